@@ -25,12 +25,15 @@ import com.google.common.base.*;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.listeners.*;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.pow.AbstractPowRulesChecker;
 import org.bitcoinj.pow.AbstractRuleCheckerFactory;
 import org.bitcoinj.pow.factory.RuleCheckerFactory;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletDispatcher;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -85,6 +88,10 @@ import static com.google.common.base.Preconditions.*;
  */
 public abstract class AbstractBlockChain {
     private static final Logger log = LoggerFactory.getLogger(AbstractBlockChain.class);
+    // Time taken to process blocks handed to add(), including connecting any orphans they make connectable.
+    private static final LatencyHistogram blockAddTime = MetricRegistry.getDefault().histogram("chain.block.add");
+    private static final LatencyHistogram filteredBlockAddTime =
+            MetricRegistry.getDefault().histogram("chain.filteredblock.add");
     protected final ReentrantLock lock = Threading.lock("blockchain");
 
     /** Keeps a map of block hashes to StoredBlocks. */
@@ -207,6 +214,23 @@ public abstract class AbstractBlockChain {
         removeTransactionReceivedListener(wallet);
     }
 
+    /**
+     * Add a {@link WalletDispatcher} to the BlockChain, so that blocks are routed to the wallets it hosts. As with
+     * {@link #addWallet(Wallet)}, the wallets will be unaffected by any blocks received while they were not connected.
+     */
+    public void addWalletDispatcher(WalletDispatcher dispatcher) {
+        addNewBestBlockListener(Threading.SAME_THREAD, dispatcher);
+        addReorganizeListener(Threading.SAME_THREAD, dispatcher);
+        addTransactionReceivedListener(Threading.SAME_THREAD, dispatcher);
+    }
+
+    /** Removes a wallet dispatcher from the chain. */
+    public void removeWalletDispatcher(WalletDispatcher dispatcher) {
+        removeNewBestBlockListener(dispatcher);
+        removeReorganizeListener(dispatcher);
+        removeTransactionReceivedListener(dispatcher);
+    }
+
     /** Replaced with more specific listener methods: use them instead. */
     @Deprecated @SuppressWarnings("deprecation")
     public void addListener(BlockChainListener listener) {
@@ -357,6 +381,7 @@ public abstract class AbstractBlockChain {
      * Accessing block's transactions in another thread while this method runs may result in undefined behavior.
      */
     public boolean add(Block block) throws VerificationException, PrunedException {
+        long start = System.nanoTime();
         try {
             return add(block, true, null, null);
         } catch (BlockStoreException e) {
@@ -370,6 +395,8 @@ public abstract class AbstractBlockChain {
             }
             throw new VerificationException("Could not verify block:\n" +
                     block.toString(), e);
+        } finally {
+            blockAddTime.recordSince(start);
         }
     }
     
@@ -379,6 +406,7 @@ public abstract class AbstractBlockChain {
      * If the block can be connected to the chain, returns true.
      */
     public boolean add(FilteredBlock block) throws VerificationException, PrunedException {
+        long start = System.nanoTime();
         try {
             // The block has a list of hashes of transactions that matched the Bloom filter, and a list of associated
             // Transaction objects. There may be fewer Transaction objects than hashes, this is expected. It can happen
@@ -399,6 +427,8 @@ public abstract class AbstractBlockChain {
             }
             throw new VerificationException("Could not verify block " + block.getHash().toString() + "\n" +
                     block.toString(), e);
+        } finally {
+            filteredBlockAddTime.recordSince(start);
         }
     }
     
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A persistent record of the peers we have heard about and how well they served us, in the spirit of Bitcoin
+ * Core's peers.dat. A {@link PeerGroup} given an address book via {@link PeerGroup#setAddressBook(AddressBook)}
+ * feeds it addresses gossiped in "addr" messages along with the outcome of every connection attempt, the ping time
+ * and the chain height each peer served. On the next start the best scoring peers are tried first, so that the
+ * group usually reaches its connection target without waiting on DNS seeds or trying dead addresses.</p>
+ *
+ * <p>The score favours peers we have connected to successfully and recently, with low latency, which were at the
+ * tip of the chain, and heavily penalises peers which keep failing. Peers we have only heard about through gossip
+ * score zero and rank behind every peer known to work, but ahead of peers which are known to fail.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class AddressBook {
+    private static final Logger log = LoggerFactory.getLogger(AddressBook.class);
+
+    /** The default number of addresses kept before the worst scoring ones are evicted. */
+    public static final int DEFAULT_MAX_ENTRIES = 5000;
+    /** A peer that has failed this many times in a row without a success in between is forgotten. */
+    public static final int MAX_CONSECUTIVE_FAILURES = 10;
+    /** Peers whose served height was this many blocks behind the typical peer are considered lagging. */
+    public static final int LAGGING_BLOCKS = 6;
+    /** How long the bonus for having connected to a peer recently takes to wear off. */
+    public static final long RECENT_SUCCESS_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int FILE_MAGIC = 0x424a4142; // "BJAB"
+    private static final int FILE_VERSION = 1;
+
+    private final ReentrantLock lock = Threading.lock("addressbook");
+    private final NetworkParameters params;
+    @Nullable private final File file;
+    private final int maxEntries;
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    @GuardedBy("lock") private boolean dirty;
+
+    /** What we know about one address. Instances handed out by the book are snapshots. */
+    public static class Entry {
+        private final InetAddress address;
+        private final int port;
+        private long services;
+        private long lastSeenSecs;
+        private long lastAttemptMillis;
+        private long lastSuccessMillis;
+        private int successes;
+        private int failures;
+        private int consecutiveFailures;
+        private long pingTimeMillis = -1;
+        private long bestHeight = -1;
+
+        private Entry(InetAddress address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        private Entry(Entry other) {
+            this(other.address, other.port);
+            services = other.services;
+            lastSeenSecs = other.lastSeenSecs;
+            lastAttemptMillis = other.lastAttemptMillis;
+            lastSuccessMillis = other.lastSuccessMillis;
+            successes = other.successes;
+            failures = other.failures;
+            consecutiveFailures = other.consecutiveFailures;
+            pingTimeMillis = other.pingTimeMillis;
+            bestHeight = other.bestHeight;
+        }
+
+        public InetSocketAddress getSocketAddress() {
+            return new InetSocketAddress(address, port);
+        }
+
+        /** Returns the service bits the peer advertised, or zero if unknown. */
+        public long getServices() {
+            return services;
+        }
+
+        /** Returns when the address was last gossiped or connected to, in seconds since the epoch. */
+        public long getLastSeenSecs() {
+            return lastSeenSecs;
+        }
+
+        /** Returns when we last completed a handshake with the peer, in milliseconds since the epoch, or zero. */
+        public long getLastSuccessMillis() {
+            return lastSuccessMillis;
+        }
+
+        public int getSuccesses() {
+            return successes;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /** Returns the smoothed ping time in milliseconds, or -1 if never measured. */
+        public long getPingTimeMillis() {
+            return pingTimeMillis;
+        }
+
+        /** Returns the chain height the peer last served, or -1 if unknown. */
+        public long getBestHeight() {
+            return bestHeight;
+        }
+
+        /**
+         * Returns how attractive the peer is to connect to, higher being better. referenceHeight is the height a
+         * peer at the tip is expected to serve, or -1 if unknown.
+         */
+        double score(long referenceHeight, long nowMillis) {
+            double score = 0;
+            if (successes > 0) {
+                // Known to work: reward a track record, and reliability relative to all attempts.
+                score += 100 + 5 * Math.min(successes, 10);
+                score += 50.0 * successes / (successes + failures);
+                // The longer ago we last got through, the more likely the peer has moved or gone.
+                long age = Math.max(0, nowMillis - lastSuccessMillis);
+                score += 40 * (1 - Math.min(age, RECENT_SUCCESS_MILLIS) / (double) RECENT_SUCCESS_MILLIS);
+                // Lower latency is better, anything slower than two seconds counts the same.
+                if (pingTimeMillis >= 0)
+                    score += 50 * (1 - Math.min(pingTimeMillis, 2000) / 2000.0);
+                if (referenceHeight > 0 && bestHeight >= 0 && bestHeight < referenceHeight - LAGGING_BLOCKS)
+                    score -= 60;
+            }
+            // A run of failures means the peer has probably gone away, whatever its history.
+            score -= 40 * consecutiveFailures;
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return getSocketAddress() + " ok=" + successes + " failed=" + failures + "(" + consecutiveFailures
+                    + " in a row) ping=" + pingTimeMillis + " height=" + bestHeight;
+        }
+    }
+
+    /** Creates an empty address book which is never written to disk. */
+    public AddressBook(NetworkParameters params) {
+        this(params, null, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates an address book backed by the given file, loading it if it exists. A missing, unreadable or corrupt
+     * file just results in an empty book, as the contents can always be rediscovered.
+     */
+    public AddressBook(NetworkParameters params, File file) {
+        this(params, checkNotNull(file), DEFAULT_MAX_ENTRIES);
+    }
+
+    public AddressBook(NetworkParameters params, @Nullable File file, int maxEntries) {
+        checkArgument(maxEntries > 0, "maxEntries must be positive: %s", maxEntries);
+        this.params = checkNotNull(params);
+        this.file = file;
+        this.maxEntries = maxEntries;
+        if (file != null && file.exists()) {
+            try {
+                InputStream stream = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    load(stream);
+                } finally {
+                    stream.close();
+                }
+                log.info("Loaded {} addresses from {}", size(), file);
+            } catch (IOException e) {
+                log.warn("Could not read address book {}, starting afresh: {}", file, e.toString());
+                lock.lock();
+                try {
+                    entries.clear();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Returns the number of addresses in the book. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of what is known about the given address, or null if it isn't in the book. */
+    @Nullable
+    public Entry getEntry(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            return entry == null ? null : new Entry(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records addresses gossiped by a peer. Returns the number of addresses that were new to the book. */
+    public int addAll(List<PeerAddress> addresses) {
+        int added = 0;
+        lock.lock();
+        try {
+            for (PeerAddress address : addresses) {
+                if (address.getAddr() == null || address.getPort() == 0)
+                    continue; // Hostname-only (eg onion) addresses can't be stored
+                Entry entry = entries.get(address.getSocketAddress());
+                if (entry == null) {
+                    entry = new Entry(address.getAddr(), address.getPort());
+                    entries.put(entry.getSocketAddress(), entry);
+                    added++;
+                }
+                // Gossip is unauthenticated, so it may only fill in what we don't know first hand.
+                if (entry.successes == 0 && address.getServices() != null)
+                    entry.services = address.getServices().longValue();
+                entry.lastSeenSecs = Math.max(entry.lastSeenSecs,
+                        Math.min(address.getTime(), Utils.currentTimeSeconds()));
+            }
+            if (added > 0) {
+                dirty = true;
+                maybeEvict();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return added;
+    }
+
+    /** Records a completed version handshake with the given peer. */
+    public void recordSuccess(PeerAddress address, long services, long bestHeight) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            if (entry == null)
+                return;
+            long now = Utils.currentTimeMillis();
+            entry.lastAttemptMillis = now;
+            entry.lastSuccessMillis = now;
+            entry.lastSeenSecs = now / 1000;
+            entry.successes++;
+            entry.consecutiveFailures = 0;
+            entry.services = services;
+            entry.bestHeight = bestHeight;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that connecting to the given peer, or completing the handshake with it, failed. Addresses that aren't
+     * in the book are ignored, as there is nothing worth remembering about them.
+     */
+    public void recordFailure(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = address.getAddr() == null ? null : entries.get(address.getSocketAddress());
+            if (entry == null)
+                return;
+            entry.lastAttemptMillis = Utils.currentTimeMillis();
+            entry.failures++;
+            entry.consecutiveFailures++;
+            if (entry.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                log.info("Forgetting {} after {} failures in a row", entry.getSocketAddress(), entry.consecutiveFailures);
+                entries.remove(entry.getSocketAddress());
+            }
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the current ping time (or -1 if not known) and chain height of a connected peer, typically as it
+     * disconnects.
+     */
+    public void recordStats(PeerAddress address, long pingTimeMillis, long bestHeight) {
+        lock.lock();
+        try {
+            Entry entry = address.getAddr() == null ? null : entries.get(address.getSocketAddress());
+            if (entry == null)
+                return;
+            if (pingTimeMillis >= 0 && pingTimeMillis != Long.MAX_VALUE)
+                entry.pingTimeMillis = entry.pingTimeMillis < 0 ? pingTimeMillis : (3 * entry.pingTimeMillis + pingTimeMillis) / 4;
+            entry.bestHeight = Math.max(entry.bestHeight, bestHeight);
+            entry.lastSeenSecs = Utils.currentTimeSeconds();
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to count addresses to connect to, best first, skipping peers known to lack any of the required
+     * service bits. Peers we have never heard from are only returned once the known good ones are exhausted, and
+     * peers that failed last time come after those.
+     */
+    public List<PeerAddress> getBestAddresses(int count, long requiredServices) {
+        List<Entry> candidates;
+        lock.lock();
+        try {
+            candidates = new ArrayList<Entry>(entries.size());
+            for (Entry entry : entries.values()) {
+                // Services of an address we've only heard gossip about are only a hint, but filter on them anyway.
+                if (entry.services != 0 && (entry.services & requiredServices) != requiredServices)
+                    continue;
+                candidates.add(entry);
+            }
+            sortByScore(candidates);
+        } finally {
+            lock.unlock();
+        }
+        List<PeerAddress> result = new ArrayList<PeerAddress>(Math.min(count, candidates.size()));
+        for (Entry entry : candidates) {
+            if (result.size() == count)
+                break;
+            result.add(new PeerAddress(params, entry.address, entry.port));
+        }
+        return result;
+    }
+
+    /** Writes the book to its file if anything changed since it was loaded or last saved. */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            File temp = new File(file.getAbsolutePath() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                write(out);
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (Utils.isWindows() && file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file + " for replacement");
+            if (!temp.renameTo(file))
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the book in its file format. */
+    @GuardedBy("lock")
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeUTF(params.getId());
+        out.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            byte[] address = entry.address.getAddress();
+            out.writeByte(address.length);
+            out.write(address);
+            out.writeShort(entry.port);
+            out.writeLong(entry.services);
+            out.writeLong(entry.lastSeenSecs);
+            out.writeLong(entry.lastAttemptMillis);
+            out.writeLong(entry.lastSuccessMillis);
+            out.writeInt(entry.successes);
+            out.writeInt(entry.failures);
+            out.writeInt(entry.consecutiveFailures);
+            out.writeLong(entry.pingTimeMillis);
+            out.writeLong(entry.bestHeight);
+        }
+    }
+
+    private void load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != FILE_MAGIC)
+            throw new IOException("Not an address book");
+        int version = in.readInt();
+        if (version != FILE_VERSION)
+            throw new IOException("Unsupported address book version " + version);
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new IOException("Address book is for " + id + ", not " + params.getId());
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Negative entry count");
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = in.readUnsignedByte();
+                if (length != 4 && length != 16)
+                    throw new IOException("Bad address length " + length);
+                byte[] address = new byte[length];
+                in.readFully(address);
+                Entry entry = new Entry(InetAddress.getByAddress(address), in.readUnsignedShort());
+                entry.services = in.readLong();
+                entry.lastSeenSecs = in.readLong();
+                entry.lastAttemptMillis = in.readLong();
+                entry.lastSuccessMillis = in.readLong();
+                entry.successes = in.readInt();
+                entry.failures = in.readInt();
+                entry.consecutiveFailures = in.readInt();
+                entry.pingTimeMillis = in.readLong();
+                entry.bestHeight = in.readLong();
+                entries.put(entry.getSocketAddress(), entry);
+            }
+            if (in.read() != -1)
+                throw new IOException("Trailing data in address book");
+            maybeEvict();
+        } catch (EOFException e) {
+            throw new IOException("Truncated address book", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable @GuardedBy("lock")
+    private Entry getOrCreate(PeerAddress address) {
+        if (address.getAddr() == null)
+            return null;
+        InetSocketAddress key = address.getSocketAddress();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(address.getAddr(), address.getPort());
+            entries.put(key, entry);
+            maybeEvict();
+        }
+        return entry;
+    }
+
+    // Evicts the worst scoring tenth of the book once it grows past its limit, so that a stream of gossip doesn't
+    // cost a full sort per address.
+    @GuardedBy("lock")
+    private void maybeEvict() {
+        if (entries.size() <= maxEntries)
+            return;
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        sortByScore(sorted);
+        int keep = Math.max(1, maxEntries - maxEntries / 10);
+        for (Entry entry : sorted.subList(keep, sorted.size()))
+            entries.remove(entry.getSocketAddress());
+    }
+
+    // Sorts best first. Ties are broken by whichever we saw most recently.
+    @GuardedBy("lock")
+    private void sortByScore(List<Entry> list) {
+        final long referenceHeight = referenceHeight();
+        final long now = Utils.currentTimeMillis();
+        final Map<Entry, Double> scores = new HashMap<Entry, Double>(list.size() * 2);
+        for (Entry entry : list)
+            scores.put(entry, entry.score(referenceHeight, now));
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int result = Double.compare(scores.get(b), scores.get(a));
+                if (result == 0)
+                    result = Long.compare(b.lastSeenSecs, a.lastSeenSecs);
+                return result;
+            }
+        });
+    }
+
+    // The median height served by peers we've connected to, which a single lying peer can't move far.
+    @GuardedBy("lock")
+    private long referenceHeight() {
+        long[] heights = new long[entries.size()];
+        int n = 0;
+        for (Entry entry : entries.values())
+            if (entry.successes > 0 && entry.bestHeight > 0)
+                heights[n++] = entry.bestHeight;
+        if (n == 0)
+            return -1;
+        Arrays.sort(heights, 0, n);
+        return heights[n / 2];
+    }
+
+    @Override
+    public String toString() {
+        return "AddressBook of " + size() + " addresses" + (file != null ? " in " + file : "");
+    }
+}
@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.core.listeners.FeeFilterMessage;
 import org.bitcoinj.core.listeners.SendHeadersMessage;
+import org.bitcoinj.net.DirectBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,7 +27,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.bitcoinj.core.Utils.*;
@@ -67,12 +70,17 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
         names.put(RejectMessage.class, "reject");
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
     }
 
     /**
@@ -91,6 +99,15 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = header(name, message.length, Sha256Hash.hashTwice(message));
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    private byte[] header(String name, long length, byte[] hash) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -100,15 +117,10 @@ public class BitcoinSerializer extends MessageSerializer {
             header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = Sha256Hash.hashTwice(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
     /**
@@ -123,6 +135,44 @@ public class BitcoinSerializer extends MessageSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Writes message straight into buffers from the pool, leaving room for the header and filling it in once the
+     * payload and so its checksum are known. Unlike {@link #serialize(Message, OutputStream)} this never copies the
+     * payload into an intermediate array.
+     */
+    @Override
+    public List<ByteBuffer> serialize(Message message, DirectBufferPool pool) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        final int headerLength = 4 + BitcoinPacketHeader.HEADER_LENGTH;
+        DirectBufferPool.PooledOutputStream out = pool.newOutputStream();
+        boolean success = false;
+        try {
+            out.skip(headerLength);
+            message.bitcoinSerialize(out);
+            long length = out.size() - headerLength;
+            List<ByteBuffer> buffers = out.finish();
+            MessageDigest digest = Sha256Hash.newDigest();
+            for (int i = 0; i < buffers.size(); i++) {
+                ByteBuffer payload = buffers.get(i).duplicate();
+                if (i == 0)
+                    payload.position(headerLength);
+                digest.update(payload);
+            }
+            byte[] hash = digest.digest(digest.digest());
+            buffers.get(0).duplicate().put(header(name, length, hash));
+            success = true;
+            if (log.isDebugEnabled())
+                log.debug("Sending {} message of {} bytes", name, length);
+            return buffers;
+        } finally {
+            if (!success)
+                out.release();
+        }
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -221,6 +271,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return makeAlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes, 0);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -231,6 +283,14 @@ public class BitcoinSerializer extends MessageSerializer {
             return new UTXOsMessage(params, payloadBytes);
         } else if (command.equals("getutxos")) {
             return new GetUTXOsMessage(params, payloadBytes);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(params, payloadBytes);
+        } else if (command.equals("cfilter")) {
+            return new CFilterMessage(params, payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("cfheaders")) {
+            return new CFHeadersMessage(params, payloadBytes);
         } else if (command.equals("sendheaders")) {
             return new SendHeadersMessage(params);
         } else if (command.equals("feefilter")) {
@@ -120,6 +120,16 @@ public class BloomFilter extends Message {
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    /** Creates a copy of the given filter, which can then be changed without affecting the original. */
+    BloomFilter(BloomFilter filter) {
+        synchronized (filter) {
+            this.data = Arrays.copyOf(filter.data, filter.data.length);
+            this.hashFuncs = filter.hashFuncs;
+            this.nTweak = filter.nTweak;
+            this.nFlags = filter.nFlags;
+        }
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
@@ -127,6 +137,34 @@ public class BloomFilter extends Message {
         return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
     }
 
+    /**
+     * Returns the false positive rate of this filter as it is now, estimated from the fraction of bits that are set.
+     * Unlike {@link #getFalsePositiveRate(int)} this doesn't need to know how many elements were inserted, so it also
+     * accounts for elements that got into the filter some other way, for example by {@link #merge(BloomFilter)}.
+     */
+    public synchronized double getEstimatedFalsePositiveRate() {
+        int bitsSet = 0;
+        for (byte b : data)
+            bitsSet += Integer.bitCount(b & 0xff);
+        return pow((double) bitsSet / (data.length * 8), hashFuncs);
+    }
+
+    /**
+     * Returns true if this filter matches everything the given filter matches: it has the same size, hash function
+     * count, tweak and update flags, and every bit set in the given filter is also set in this one.
+     */
+    public synchronized boolean containsAll(BloomFilter filter) {
+        synchronized (filter) {
+            if (filter.data.length != data.length || filter.hashFuncs != hashFuncs || filter.nTweak != nTweak
+                    || filter.nFlags != nFlags)
+                return false;
+            for (int i = 0; i < data.length; i++)
+                if ((filter.data[i] & ~data[i]) != 0)
+                    return false;
+            return true;
+        }
+    }
+
     @Override
     public String toString() {
         return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
@@ -327,7 +365,8 @@ public class BloomFilter extends Message {
         for (TransactionOutput output : tx.getOutputs()) {
             Script script = output.getScriptPubKey();
             for (ScriptChunk chunk : script.getChunks()) {
-                if (!chunk.isPushData())
+                // Like Bitcoin Core, only pushes of some data count: OP_1 to OP_16 carry none.
+                if (!chunk.isPushData() || chunk.data == null || chunk.data.length == 0)
                     continue;
                 if (contains(chunk.data)) {
                     boolean isSendingToPubKeys = script.isSentToRawPubKey() || script.isSentToMultiSig();
@@ -343,13 +382,26 @@ public class BloomFilter extends Message {
                 return true;
             }
             for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
-                if (chunk.isPushData() && contains(chunk.data))
+                if (chunk.isPushData() && chunk.data != null && chunk.data.length > 0 && contains(chunk.data))
                     return true;
             }
         }
         return false;
     }
     
+    /** Returns a copy of the filter bits, for {@link BloomFilterMatcher}. */
+    synchronized byte[] copyData() {
+        return Arrays.copyOf(data, data.length);
+    }
+
+    synchronized int getHashFuncs() {
+        return (int) hashFuncs;
+    }
+
+    synchronized long getTweak() {
+        return nTweak;
+    }
+
     @Override
     public synchronized boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+
+import net.jcip.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.bitcoinj.script.ScriptOpCodes.OP_PUSHDATA1;
+import static org.bitcoinj.script.ScriptOpCodes.OP_PUSHDATA2;
+import static org.bitcoinj.script.ScriptOpCodes.OP_PUSHDATA4;
+
+/**
+ * <p>Matches transactions and blocks against the Bloom filters of many remote peers at once, which is what a node
+ * serving SPV clients has to do for every transaction and block it relays. The result for each filter is the same
+ * as that of {@link BloomFilter#applyAndUpdate(Transaction)}, including the outpoints inserted into the filter on a
+ * match, but the work is organised for throughput:</p>
+ *
+ * <ul>
+ * <li>Scripts are walked in place instead of being parsed into chunks, so data pushes are never copied.</li>
+ * <li>The part of MurmurHash3 that doesn't depend on the seed is computed once per data element and then reused for
+ * every hash function of every filter.</li>
+ * <li>Filter bits are held in long words and probed without a monitor per element.</li>
+ * <li>A transaction is tested against all filters in one go, and a block is turned into the filtered blocks of all
+ * filters in one pass over its transactions.</li>
+ * </ul>
+ *
+ * <p>Filters are identified by the handle returned from {@link #add(BloomFilter)}. The matcher keeps its own copy of
+ * each filter, so elements a peer adds later with filteradd must be passed to {@link #insert(int, byte[])}.</p>
+ *
+ * <p>This class is thread safe, but matching takes a lock for the whole transaction or block.</p>
+ */
+public class BloomFilterMatcher {
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private final ReentrantLock lock = Threading.lock("bloomfiltermatcher");
+
+    private static final class Filter {
+        final long[] bits;
+        final long numBits;
+        final int[] seeds;
+        final BloomFilter.BloomUpdate update;
+        final boolean matchAll;
+
+        Filter(BloomFilter filter) {
+            byte[] data = filter.copyData();
+            numBits = data.length * 8L;
+            bits = new long[(data.length + 7) / 8];
+            for (int i = 0; i < data.length; i++)
+                bits[i >>> 3] |= (data[i] & 0xffL) << ((i & 7) * 8);
+            long tweak = filter.getTweak();
+            seeds = new int[filter.getHashFuncs()];
+            for (int i = 0; i < seeds.length; i++)
+                seeds[i] = (int) (i * 0xFBA4C795L + tweak);
+            update = filter.getUpdateFlag();
+            matchAll = filter.matchesAll();
+        }
+    }
+
+    @GuardedBy("lock") private final ArrayList<Filter> filters = new ArrayList<Filter>();
+    @GuardedBy("lock") private int count;
+
+    // The element being matched: its MurmurHash3 body blocks already mixed with the constants, and the mixed tail.
+    @GuardedBy("lock") private int[] blocks = new int[32];
+    @GuardedBy("lock") private int numBlocks;
+    @GuardedBy("lock") private int tail;
+    @GuardedBy("lock") private int length;
+    // Where nextPush() found the last data push.
+    @GuardedBy("lock") private int pushOffset, pushLength;
+    // Scratch space for serialized outpoints.
+    @GuardedBy("lock") private final byte[] outPoint = new byte[36];
+    @GuardedBy("lock") private final List<Filter> pendingUpdates = new ArrayList<Filter>();
+
+    /** Adds a copy of the given filter and returns the handle that identifies it in results. */
+    public int add(BloomFilter filter) {
+        Filter f = new Filter(filter);
+        lock.lock();
+        try {
+            count++;
+            int handle = filters.indexOf(null);
+            if (handle >= 0) {
+                filters.set(handle, f);
+                return handle;
+            }
+            filters.add(f);
+            return filters.size() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Replaces the filter with the given handle, as when the peer sends a new filterload. */
+    public void set(int handle, BloomFilter filter) {
+        Filter f = new Filter(filter);
+        lock.lock();
+        try {
+            getFilterLocked(handle);
+            filters.set(handle, f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the filter with the given handle. The handle may be given out again by {@link #add(BloomFilter)}. */
+    public void remove(int handle) {
+        lock.lock();
+        try {
+            getFilterLocked(handle);
+            filters.set(handle, null);
+            count--;
+            while (!filters.isEmpty() && filters.get(filters.size() - 1) == null)
+                filters.remove(filters.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the filter with the given handle, which must be in use.
+    @GuardedBy("lock")
+    private Filter getFilterLocked(int handle) {
+        Filter f = handle >= 0 && handle < filters.size() ? filters.get(handle) : null;
+        checkArgument(f != null, "Unknown filter %s", handle);
+        return f;
+    }
+
+    /** Returns the number of filters. */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Inserts an element into the filter with the given handle, as when the peer sends a filteradd. */
+    public void insert(int handle, byte[] element) {
+        lock.lock();
+        try {
+            Filter f = getFilterLocked(handle);
+            prepare(element, 0, element.length);
+            insertPrepared(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the filter with the given handle matches the given element. */
+    public boolean contains(int handle, byte[] element) {
+        lock.lock();
+        try {
+            Filter f = getFilterLocked(handle);
+            prepare(element, 0, element.length);
+            return containsPrepared(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tests the transaction against all filters, updating them as {@link BloomFilter#applyAndUpdate(Transaction)}
+     * would, and returns the handles of the filters that matched.
+     */
+    public BitSet applyAndUpdate(Transaction tx) {
+        lock.lock();
+        try {
+            return applyAndUpdateLocked(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Filters the block for all filters, updating them as {@link BloomFilter#applyAndUpdate(Block)} would, and
+     * returns the filtered block for each filter handle.
+     */
+    public Map<Integer, FilteredBlock> applyAndUpdate(Block block) {
+        lock.lock();
+        try {
+            List<Transaction> txns = block.getTransactions();
+            List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
+            Map<Integer, byte[]> includeBits = new HashMap<Integer, byte[]>();
+            Map<Integer, List<Transaction>> matchedTxns = new HashMap<Integer, List<Transaction>>();
+            int bitsLength = (txns.size() + 7) / 8;
+            for (int t = 0; t < txns.size(); t++) {
+                Transaction tx = txns.get(t);
+                txHashes.add(tx.getHash());
+                BitSet matched = applyAndUpdateLocked(tx);
+                for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+                    byte[] bits = includeBits.get(i);
+                    if (bits == null) {
+                        bits = new byte[bitsLength];
+                        includeBits.put(i, bits);
+                        matchedTxns.put(i, new ArrayList<Transaction>());
+                    }
+                    Utils.setBitLE(bits, t);
+                    matchedTxns.get(i).add(tx);
+                }
+            }
+            NetworkParameters params = block.getParams();
+            Block header = block.cloneAsHeader();
+            // Filters that matched nothing all get the same tree, so it is only built once.
+            PartialMerkleTree emptyTree = null;
+            Map<Integer, FilteredBlock> result = new TreeMap<Integer, FilteredBlock>();
+            for (int i = 0; i < filters.size(); i++) {
+                if (filters.get(i) == null)
+                    continue;
+                byte[] bits = includeBits.get(i);
+                FilteredBlock filteredBlock;
+                if (bits == null) {
+                    if (emptyTree == null)
+                        emptyTree = PartialMerkleTree.buildFromLeaves(params, new byte[bitsLength], txHashes);
+                    filteredBlock = new FilteredBlock(params, header, emptyTree);
+                } else {
+                    filteredBlock = new FilteredBlock(params, header,
+                            PartialMerkleTree.buildFromLeaves(params, bits, txHashes));
+                    for (Transaction tx : matchedTxns.get(i))
+                        filteredBlock.provideTransaction(tx);
+                }
+                result.put(i, filteredBlock);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private BitSet applyAndUpdateLocked(Transaction tx) {
+        int size = filters.size();
+        BitSet matched = new BitSet(size);
+        byte[] hash = tx.getHash().getBytes();
+        prepare(hash, 0, hash.length);
+        for (int i = 0; i < size; i++) {
+            Filter f = filters.get(i);
+            if (f != null && containsPrepared(f))
+                matched.set(i);
+        }
+        // Filters matching the transaction hash are done, the others look at the outputs and keep going after a match
+        // so that every matching output is added to them.
+        BitSet done = (BitSet) matched.clone();
+        for (int i = 0; i < 32; i++)
+            outPoint[i] = hash[31 - i];
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int o = 0; o < outputs.size(); o++) {
+            TransactionOutput output = outputs.get(o);
+            byte[] script = output.getScriptBytes();
+            int sendsToPubKeys = -1;
+            int pos = 0;
+            while ((pos = nextPush(script, pos)) >= 0) {
+                prepare(script, pushOffset, pushLength);
+                for (int i = done.nextClearBit(0); i < size; i = done.nextClearBit(i + 1)) {
+                    Filter f = filters.get(i);
+                    if (f == null || !containsPrepared(f))
+                        continue;
+                    matched.set(i);
+                    if (f.update == BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY && sendsToPubKeys < 0)
+                        sendsToPubKeys = isSendingToPubKeys(output) ? 1 : 0;
+                    if (f.update == BloomFilter.BloomUpdate.UPDATE_ALL
+                            || (f.update == BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY && sendsToPubKeys == 1))
+                        pendingUpdates.add(f);
+                }
+                if (!pendingUpdates.isEmpty()) {
+                    Utils.uint32ToByteArrayLE(o, outPoint, 32);
+                    prepare(outPoint, 0, outPoint.length);
+                    for (Filter f : pendingUpdates)
+                        insertPrepared(f);
+                    pendingUpdates.clear();
+                }
+            }
+        }
+        if (matched.cardinality() == count)
+            return matched;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint spent = input.getOutpoint();
+            byte[] spentHash = spent.getHash().getBytes();
+            for (int i = 0; i < 32; i++)
+                outPoint[i] = spentHash[31 - i];
+            Utils.uint32ToByteArrayLE(spent.getIndex(), outPoint, 32);
+            prepare(outPoint, 0, outPoint.length);
+            matchUnmatched(matched, size);
+            byte[] script = input.getScriptBytes();
+            int pos = 0;
+            while ((pos = nextPush(script, pos)) >= 0) {
+                prepare(script, pushOffset, pushLength);
+                matchUnmatched(matched, size);
+            }
+        }
+        return matched;
+    }
+
+    @GuardedBy("lock")
+    private void matchUnmatched(BitSet matched, int size) {
+        for (int i = matched.nextClearBit(0); i < size; i = matched.nextClearBit(i + 1)) {
+            Filter f = filters.get(i);
+            if (f != null && containsPrepared(f))
+                matched.set(i);
+        }
+    }
+
+    private static boolean isSendingToPubKeys(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            return script.isSentToRawPubKey() || script.isSentToMultiSig();
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds the next push of some data in the script from the given position on, leaving it in pushOffset and
+     * pushLength. Returns the position after the push, or -1 at the end of the script or if the rest of it is
+     * malformed.
+     */
+    @GuardedBy("lock")
+    private int nextPush(byte[] script, int pos) {
+        while (pos < script.length) {
+            int opcode = script[pos++] & 0xff;
+            long len;
+            if (opcode < OP_PUSHDATA1) {
+                len = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (script.length - pos < 1) return -1;
+                len = script[pos] & 0xff;
+                pos += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (script.length - pos < 2) return -1;
+                len = (script[pos] & 0xff) | ((script[pos + 1] & 0xff) << 8);
+                pos += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (script.length - pos < 4) return -1;
+                len = Utils.readUint32(script, pos);
+                pos += 4;
+            } else {
+                continue;
+            }
+            if (len > script.length - pos)
+                return -1;
+            if (len == 0)
+                continue;
+            pushOffset = pos;
+            pushLength = (int) len;
+            return pos + pushLength;
+        }
+        return -1;
+    }
+
+    /** Computes the seed independent part of the MurmurHash3 (x86_32) of the given element. */
+    @GuardedBy("lock")
+    private void prepare(byte[] data, int offset, int len) {
+        length = len;
+        numBlocks = len >>> 2;
+        if (blocks.length < numBlocks)
+            blocks = new int[Math.max(numBlocks, blocks.length * 2)];
+        for (int i = 0; i < numBlocks; i++) {
+            int p = offset + (i << 2);
+            int k1 = (data[p] & 0xff) | ((data[p + 1] & 0xff) << 8) | ((data[p + 2] & 0xff) << 16) |
+                    ((data[p + 3] & 0xff) << 24);
+            k1 *= C1;
+            k1 = Integer.rotateLeft(k1, 15);
+            k1 *= C2;
+            blocks[i] = k1;
+        }
+        int p = offset + (numBlocks << 2);
+        int k1 = 0;
+        switch (len & 3) {
+            case 3:
+                k1 ^= (data[p + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (data[p + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (data[p] & 0xff);
+                k1 *= C1;
+                k1 = Integer.rotateLeft(k1, 15);
+                k1 *= C2;
+                // Fall through.
+            default:
+                break;
+        }
+        tail = k1;
+    }
+
+    /** Finishes the hash of the prepared element with the given seed, see {@link BloomFilter#murmurHash3}. */
+    @GuardedBy("lock")
+    private long bitIndex(int seed, long numBits) {
+        int h1 = seed;
+        for (int i = 0; i < numBlocks; i++) {
+            h1 ^= blocks[i];
+            h1 = Integer.rotateLeft(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        h1 ^= tail;
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return (h1 & 0xFFFFFFFFL) % numBits;
+    }
+
+    @GuardedBy("lock")
+    private boolean containsPrepared(Filter f) {
+        if (f.matchAll)
+            return true;
+        if (f.numBits == 0)
+            return false;
+        for (int seed : f.seeds) {
+            long bit = bitIndex(seed, f.numBits);
+            if ((f.bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void insertPrepared(Filter f) {
+        if (f.numBits == 0)
+            return;
+        for (int seed : f.seeds) {
+            long bit = bitIndex(seed, f.numBits);
+            f.bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Sent in answer to a {@link GetCFHeadersMessage}: the filter hashes of a range of blocks and the filter header of
+ * the block before the range. Each filter header commits to the filter of its block and to all previous filter
+ * headers, so a client that has a trusted filter header can verify every filter it downloads afterwards. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private byte filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private ImmutableList<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, byte filterType, Sha256Hash stopHash,
+                            Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        checkArgument(filterHashes.size() <= GetCFHeadersMessage.MAX_HEADERS, "Too many filter hashes: %s",
+                filterHashes.size());
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = ImmutableList.copyOf(filterHashes);
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0];
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long count = readVarInt();
+        if (count < 0 || count > GetCFHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + count);
+        ImmutableList.Builder<Sha256Hash> hashes = ImmutableList.builder();
+        for (int i = 0; i < count; i++)
+            hashes.add(readHash());
+        filterHashes = hashes.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    public List<Sha256Hash> getFilterHashes() {
+        return filterHashes;
+    }
+
+    /**
+     * Returns the filter headers of the blocks in the range, computed by chaining the filter hashes onto the previous
+     * filter header.
+     */
+    public List<Sha256Hash> getFilterHeaders() {
+        ImmutableList.Builder<Sha256Hash> headers = ImmutableList.builder();
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes) {
+            header = filterHeader(filterHash, header);
+            headers.add(header);
+        }
+        return headers.build();
+    }
+
+    /** Returns the filter header committing to the given filter hash on top of the previous filter header. */
+    public static Sha256Hash filterHeader(Sha256Hash filterHash, Sha256Hash previousFilterHeader) {
+        byte[] filterBytes = filterHash.getReversedBytes();
+        byte[] previousBytes = previousFilterHeader.getReversedBytes();
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterBytes, 0, filterBytes.length,
+                previousBytes, 0, previousBytes.length));
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders with " + filterHashes.size() + " hashes up to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFHeadersMessage other = (CFHeadersMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash) &&
+                previousFilterHeader.equals(other.previousFilterHeader) && filterHashes.equals(other.filterHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, stopHash, previousFilterHeader, filterHashes);
+    }
+}
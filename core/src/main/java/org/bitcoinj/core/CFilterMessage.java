@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>Carries the compact filter of a single block, sent in answer to a {@link GetCFiltersMessage}. The filter can be
+ * queried with a {@link GolombCodedSet} and its hash checked against a {@link CFHeadersMessage}. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFilterMessage extends Message {
+    /** The filter type of the BIP 158 basic filter. */
+    public static final byte BASIC_FILTER_TYPE = 0;
+
+    private byte filterType;
+    private Sha256Hash blockHash;
+    private byte[] filter;
+
+    public CFilterMessage(NetworkParameters params, byte filterType, Sha256Hash blockHash, byte[] filter) {
+        super(params);
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filter = filter;
+    }
+
+    public CFilterMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0];
+        blockHash = readHash();
+        filter = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filter.length).encode());
+        stream.write(filter);
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the serialized filter, which can be handed to {@link GolombCodedSet}. */
+    public byte[] getFilter() {
+        return filter;
+    }
+
+    /** Returns the double SHA-256 of the filter, which is what the filter headers commit to. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filter));
+    }
+
+    /** Parses the filter for querying. */
+    public GolombCodedSet getGolombCodedSet() throws ProtocolException {
+        return new GolombCodedSet(blockHash, filter);
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter of " + filter.length + " bytes for " + blockHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFilterMessage other = (CFilterMessage) o;
+        return filterType == other.filterType && blockHash.equals(other.blockHash) &&
+                Arrays.equals(filter, other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, blockHash, Arrays.hashCode(filter));
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CompactFilterStore;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletDispatcher;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Syncs wallets with <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a> compact
+ * block filters instead of Bloom filters. The download peer hands each batch of block headers to
+ * {@link #processHeaders(Peer, List)}, which downloads the filter headers and filters of the batch, checks the filters
+ * against the filter header chain, matches them locally against the output scripts of the wallets and fetches only the
+ * blocks that match. Nothing about the wallets is revealed to the remote peer beyond which blocks were fetched.</p>
+ *
+ * <p>Verified filters are kept in a {@link CompactFilterStore}, so {@link #rescan()} after importing keys replays the
+ * chain against the cached filters and only goes to the network for the matching blocks.</p>
+ *
+ * <p>The first filter header received is trusted as is, every later one must connect to it. Use a peer you trust
+ * for the initial sync if that matters to you.</p>
+ */
+public class CompactFilterClient {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterClient.class);
+
+    private final AbstractBlockChain chain;
+    private final CompactFilterStore store;
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<Wallet>();
+    private final CopyOnWriteArrayList<WalletDispatcher> walletDispatchers = new CopyOnWriteArrayList<WalletDispatcher>();
+    // Bumped by every rescan, so that a batch that was in progress stops adding blocks on top of the rolled back chain.
+    private final AtomicInteger rescanGeneration = new AtomicInteger();
+
+    private final AtomicLong filtersDownloaded = new AtomicLong();
+    private final AtomicLong filtersFromStore = new AtomicLong();
+    private final AtomicLong blocksDownloaded = new AtomicLong();
+
+    public CompactFilterClient(AbstractBlockChain chain, CompactFilterStore store) {
+        this.chain = checkNotNull(chain);
+        this.store = checkNotNull(store);
+    }
+
+    /** Adds a wallet whose scripts are matched against the filters. */
+    public void addWallet(Wallet wallet) {
+        wallets.addIfAbsent(wallet);
+    }
+
+    public void removeWallet(Wallet wallet) {
+        wallets.remove(wallet);
+    }
+
+    /** Adds a wallet dispatcher, so that the scripts of all its wallets are matched against the filters. */
+    public void addWalletDispatcher(WalletDispatcher dispatcher) {
+        walletDispatchers.addIfAbsent(dispatcher);
+    }
+
+    public void removeWalletDispatcher(WalletDispatcher dispatcher) {
+        walletDispatchers.remove(dispatcher);
+    }
+
+    private List<Wallet> getWallets() {
+        List<Wallet> result = new ArrayList<Wallet>(wallets);
+        for (WalletDispatcher dispatcher : walletDispatchers)
+            result.addAll(dispatcher.getWallets());
+        return result;
+    }
+
+    private List<byte[]> getScripts() {
+        List<byte[]> scripts = new ArrayList<byte[]>();
+        for (Wallet wallet : getWallets())
+            scripts.addAll(wallet.getScriptPubKeyPrograms());
+        return scripts;
+    }
+
+    /** Returns the number of filters downloaded from peers so far. */
+    public long getFiltersDownloaded() {
+        return filtersDownloaded.get();
+    }
+
+    /** Returns the number of filters that were taken from the store instead of being downloaded again. */
+    public long getFiltersFromStore() {
+        return filtersFromStore.get();
+    }
+
+    /** Returns the number of blocks downloaded because their filter matched. */
+    public long getBlocksDownloaded() {
+        return blocksDownloaded.get();
+    }
+
+    /**
+     * Connects the given headers, which must follow each other and a block already in the chain, fetching the full
+     * blocks whose filters match the wallets. Runs asynchronously on the network thread of the peer.
+     *
+     * @return a future that completes with the number of full blocks fetched once all headers are in the chain.
+     */
+    public ListenableFuture<Integer> processHeaders(Peer peer, List<Block> headers) {
+        checkArgument(!headers.isEmpty());
+        SettableFuture<Integer> result = SettableFuture.create();
+        try {
+            new Batch(peer, headers, result).start();
+        } catch (Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Clears the transactions of all wallets and rolls the chain back to a week before the earliest key creation time
+     * of the wallets, so that the next chain download finds the transactions of keys imported after they were used.
+     * The filters of the replayed blocks come from the store, so only matching blocks are downloaded again. Call
+     * {@link PeerGroup#rescan()} rather than this, which also restarts the download.
+     */
+    public void rescan() throws BlockStoreException {
+        rescanGeneration.incrementAndGet();
+        List<Wallet> wallets = getWallets();
+        long earliestKeyTimeSecs = Long.MAX_VALUE;
+        for (Wallet wallet : wallets)
+            earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, wallet.getEarliestKeyCreationTime());
+        if (earliestKeyTimeSecs == Long.MAX_VALUE)
+            return;
+        earliestKeyTimeSecs -= 86400 * 7;
+        StoredBlock cursor = chain.getChainHead();
+        while (cursor.getHeader().getTimeSeconds() >= earliestKeyTimeSecs) {
+            StoredBlock prev = cursor.getPrev(chain.getBlockStore());
+            if (prev == null) {
+                log.warn("Block store doesn't go back far enough, rescanning from height {}", cursor.getHeight());
+                break;
+            }
+            cursor = prev;
+        }
+        log.info("Rescanning {} wallets from height {}", wallets.size(), cursor.getHeight());
+        for (Wallet wallet : wallets)
+            wallet.reset();
+        chain.rollbackBlockStore(cursor.getHeight());
+    }
+
+    /** The work on one batch of headers, driven by the futures of the requests it makes. */
+    private class Batch {
+        private final Peer peer;
+        private final List<Block> headers;
+        private final SettableFuture<Integer> result;
+        private final int generation;
+        private final int size;
+
+        private Sha256Hash prevHash;
+        private int startHeight;
+        private Sha256Hash prevFilterHeader;
+        private final Sha256Hash[] filterHeaders;
+        private final byte[][] filters;
+        private final boolean[] matched;
+        private final List<ListenableFuture<Block>> blockFutures;
+        private int scriptCount;
+        private int next;
+        private int fetched;
+
+        Batch(Peer peer, List<Block> headers, SettableFuture<Integer> result) {
+            this.peer = peer;
+            this.headers = new ArrayList<Block>(headers);
+            this.result = result;
+            this.generation = rescanGeneration.get();
+            this.size = headers.size();
+            this.filterHeaders = new Sha256Hash[size];
+            this.filters = new byte[size][];
+            this.matched = new boolean[size];
+            this.blockFutures = new ArrayList<ListenableFuture<Block>>(size);
+            for (int i = 0; i < size; i++)
+                blockFutures.add(null);
+        }
+
+        void start() throws BlockStoreException {
+            prevHash = headers.get(0).getPrevBlockHash();
+            StoredBlock prev = chain.getBlockStore().get(prevHash);
+            if (prev == null)
+                throw new ProtocolException("Headers don't connect to the chain: " + headers.get(0).getHashAsString());
+            for (int i = 1; i < size; i++) {
+                if (!headers.get(i).getPrevBlockHash().equals(headers.get(i - 1).getHash()))
+                    throw new ProtocolException("Headers don't connect: " + headers.get(i).getHashAsString());
+            }
+            startHeight = prev.getHeight() + 1;
+            prevFilterHeader = store.getFilterHeader(prevHash);
+            boolean complete = prevFilterHeader != null;
+            for (int i = 0; i < size; i++) {
+                filterHeaders[i] = store.getFilterHeader(headers.get(i).getHash());
+                complete &= filterHeaders[i] != null;
+            }
+            if (complete) {
+                fetchFilters();
+                return;
+            }
+            Futures.addCallback(peer.getCFHeaders(startHeight, headers.get(size - 1).getHash()),
+                    new FutureCallback<CFHeadersMessage>() {
+                        @Override
+                        public void onSuccess(CFHeadersMessage m) {
+                            try {
+                                processFilterHeaders(m);
+                                fetchFilters();
+                            } catch (Exception e) {
+                                result.setException(e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            result.setException(t);
+                        }
+                    });
+        }
+
+        private void processFilterHeaders(CFHeadersMessage m) throws BlockStoreException {
+            if (m.getFilterType() != CFilterMessage.BASIC_FILTER_TYPE
+                    || !m.getStopHash().equals(headers.get(size - 1).getHash())
+                    || m.getFilterHashes().size() != size)
+                throw new ProtocolException("Filter headers don't answer our request: " + m);
+            if (prevFilterHeader != null && !prevFilterHeader.equals(m.getPreviousFilterHeader()))
+                throw new ProtocolException("Filter headers don't connect to ours at height " + (startHeight - 1));
+            List<Sha256Hash> received = m.getFilterHeaders();
+            for (int i = 0; i < size; i++) {
+                if (filterHeaders[i] != null && !filterHeaders[i].equals(received.get(i)))
+                    throw new ProtocolException("Filter header conflicts with ours at height " + (startHeight + i));
+            }
+            if (prevFilterHeader == null) {
+                log.info("Trusting filter header {} at height {}", m.getPreviousFilterHeader(), startHeight - 1);
+                prevFilterHeader = m.getPreviousFilterHeader();
+                store.putFilterHeader(prevHash, prevFilterHeader);
+            }
+            for (int i = 0; i < size; i++) {
+                filterHeaders[i] = received.get(i);
+                store.putFilterHeader(headers.get(i).getHash(), filterHeaders[i]);
+            }
+        }
+
+        private void fetchFilters() throws BlockStoreException {
+            // Request runs of missing filters, several at once so the peer can stream them back to back.
+            List<ListenableFuture<List<CFilterMessage>>> requests = new ArrayList<ListenableFuture<List<CFilterMessage>>>();
+            final List<Integer> starts = new ArrayList<Integer>();
+            int i = 0;
+            while (i < size) {
+                filters[i] = store.getFilter(headers.get(i).getHash());
+                if (filters[i] != null) {
+                    filtersFromStore.incrementAndGet();
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end + 1 < size && end + 1 - i < GetCFiltersMessage.MAX_FILTERS
+                        && (filters[end + 1] = store.getFilter(headers.get(end + 1).getHash())) == null)
+                    end++;
+                starts.add(i);
+                requests.add(peer.getCFilters(startHeight + i, headers.get(end).getHash()));
+                i = end + 1;
+            }
+            if (requests.isEmpty()) {
+                connect();
+                return;
+            }
+            Futures.addCallback(Futures.allAsList(requests), new FutureCallback<List<List<CFilterMessage>>>() {
+                @Override
+                public void onSuccess(List<List<CFilterMessage>> responses) {
+                    try {
+                        for (int k = 0; k < responses.size(); k++)
+                            processFilters(starts.get(k), responses.get(k));
+                        connect();
+                    } catch (Exception e) {
+                        result.setException(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    result.setException(t);
+                }
+            });
+        }
+
+        private void processFilters(int start, List<CFilterMessage> received) throws BlockStoreException {
+            for (int k = 0; k < received.size(); k++) {
+                CFilterMessage m = received.get(k);
+                int index = start + k;
+                if (index >= size || !m.getBlockHash().equals(headers.get(index).getHash()))
+                    throw new ProtocolException("Unexpected filter for block " + m.getBlockHash());
+                Sha256Hash previous = index == 0 ? prevFilterHeader : filterHeaders[index - 1];
+                if (!CFHeadersMessage.filterHeader(m.getFilterHash(), previous).equals(filterHeaders[index]))
+                    throw new ProtocolException("Filter doesn't match its filter header for block " + m.getBlockHash());
+                filters[index] = m.getFilter();
+                store.putFilter(m.getBlockHash(), m.getFilter());
+                filtersDownloaded.incrementAndGet();
+            }
+        }
+
+        private void connect() {
+            List<byte[]> scripts = getScripts();
+            scriptCount = scripts.size();
+            match(0, scripts);
+            connectNext();
+        }
+
+        /** Matches the filters from the given index on and requests the blocks that newly match. */
+        private void match(int from, List<byte[]> scripts) {
+            for (int i = from; i < size; i++) {
+                if (matched[i])
+                    continue;
+                matched[i] = new GolombCodedSet(headers.get(i).getHash(), filters[i]).matchesAny(scripts);
+                if (matched[i])
+                    blockFutures.set(i, peer.getBlock(headers.get(i).getHash()));
+            }
+        }
+
+        private void connectNext() {
+            try {
+                while (next < size) {
+                    if (generation != rescanGeneration.get()) {
+                        log.info("Rescan started, abandoning batch of headers at height {}", startHeight + next);
+                        break;
+                    }
+                    if (!peer.isDownloadData()) {
+                        log.info("{} is no longer the download peer, abandoning batch of headers at height {}", peer,
+                                startHeight + next);
+                        break;
+                    }
+                    Block header = headers.get(next);
+                    if (matched[next]) {
+                        ListenableFuture<Block> future = blockFutures.get(next);
+                        if (!future.isDone()) {
+                            future.addListener(new Runnable() {
+                                @Override
+                                public void run() {
+                                    connectNext();
+                                }
+                            }, Threading.SAME_THREAD);
+                            return;
+                        }
+                        Block block = future.get();
+                        if (!block.getHash().equals(header.getHash()))
+                            throw new ProtocolException("Received the wrong block: " + block.getHashAsString());
+                        block.verifyTransactions(startHeight + next, EnumSet.noneOf(Block.VerifyFlag.class));
+                        add(block);
+                        fetched++;
+                        blocksDownloaded.incrementAndGet();
+                        // Receiving transactions can extend the key lookahead, and the new scripts may appear in the
+                        // rest of the batch.
+                        List<byte[]> scripts = getScripts();
+                        if (scripts.size() != scriptCount) {
+                            scriptCount = scripts.size();
+                            match(next + 1, scripts);
+                        }
+                    } else {
+                        add(header);
+                    }
+                    next++;
+                }
+                result.set(fetched);
+            } catch (Exception e) {
+                result.setException(e);
+            }
+        }
+
+        private void add(Block block) throws PrunedException {
+            if (!chain.add(block))
+                throw new ProtocolException("Got unconnected block from peer: " + block.getHashAsString());
+            peer.invokeOnBlocksDownloaded(block, null);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The common payload of the BIP 157 filter requests: a filter type and the range of blocks from the given start height
+ * up to and including the block with the given stop hash.
+ */
+abstract class CompactFilterRequestMessage extends Message {
+    protected byte filterType;
+    protected long startHeight;
+    protected Sha256Hash stopHash;
+
+    CompactFilterRequestMessage(NetworkParameters params, byte filterType, long startHeight, Sha256Hash stopHash) {
+        super(params);
+        checkArgument(startHeight >= 0 && startHeight <= 0xFFFFFFFFL, "Start height out of range: %s", startHeight);
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    CompactFilterRequestMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0];
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompactFilterRequestMessage other = (CompactFilterRequestMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(filterType, startHeight, stopHash);
+    }
+}
@@ -42,6 +42,7 @@ public class Context {
     private static final Logger log = LoggerFactory.getLogger(Context.class);
 
     private TxConfidenceTable confidenceTable;
+    private final TxRequestTable txRequestTable = new TxRequestTable();
     private NetworkParameters params;
     private int eventHorizon = 100;
     private boolean ensureMinRequiredFee = true;
@@ -158,6 +159,14 @@ public class Context {
         return confidenceTable;
     }
 
+    /**
+     * Returns the {@link TxRequestTable} created by this context, which all peers share to avoid downloading a
+     * transaction more than once when many of them announce it.
+     */
+    public TxRequestTable getTxRequestTable() {
+        return txRequestTable;
+    }
+
     /**
      * Returns the {@link org.bitcoinj.core.NetworkParameters} specified when this context was (auto) created. The
      * network parameters defines various hard coded constants for a specific instance of a Bitcoin network, such as
@@ -39,6 +39,7 @@ import org.spongycastle.crypto.AsymmetricCipherKeyPair;
 import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.ec.CustomNamedCurves;
 import org.spongycastle.crypto.generators.ECKeyPairGenerator;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.crypto.params.*;
 import org.spongycastle.crypto.signers.ECDSASigner;
 import org.spongycastle.crypto.signers.HMacDSAKCalculator;
@@ -456,7 +457,8 @@ public class ECKey implements EncryptableItem {
 
     /**
      * Returns public key point from the given private key. To convert a byte array into a BigInteger, use <tt>
-     * new BigInteger(1, bytes);</tt>
+     * new BigInteger(1, bytes);</tt> If libsecp256k1 is loaded, the multiplication is done there, which is several
+     * times faster than Bouncy Castle even with its precomputed table.
      */
     public static ECPoint publicPointFromPrivate(BigInteger privKey) {
         /*
@@ -466,6 +468,16 @@ public class ECKey implements EncryptableItem {
         if (privKey.bitLength() > CURVE.getN().bitLength()) {
             privKey = privKey.mod(CURVE.getN());
         }
+        if (Secp256k1Context.isEnabled() && privKey.signum() > 0 && privKey.compareTo(CURVE.getN()) < 0) {
+            try {
+                byte[] pubKey = NativeSecp256k1.computePubkey(Utils.bigIntegerToBytes(privKey, 32));
+                if (pubKey.length > 0)
+                    return CURVE.getCurve().decodePoint(pubKey);
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+            }
+        }
+        // Uses the comb table precomputed for G in the static initializer.
         return new FixedPointCombMultiplier().multiply(CURVE.getG(), privKey);
     }
 
@@ -623,6 +635,92 @@ public class ECKey implements EncryptableItem {
         }
     }
 
+    /**
+     * <p>Groups the two components of a Schnorr signature as specified for Bitcoin Cash in the May 2019 upgrade: r is
+     * the X coordinate of the nonce point R, chosen such that its Y coordinate is a quadratic residue, and
+     * s = k + e * x (mod N) where e = SHA256(r || compressed public key || message).</p>
+     *
+     * <p>Unlike ECDSA signatures there is only one valid encoding, the two components as 32 byte big endian numbers.
+     * See <a href="https://github.com/bitcoincashorg/bitcoincash.org/blob/master/spec/2019-05-15-schnorr.md">the
+     * specification</a> for details.</p>
+     */
+    public static class SchnorrSignature {
+        /** The two components of the signature. */
+        public final BigInteger r, s;
+
+        public SchnorrSignature(BigInteger r, BigInteger s) {
+            this.r = r;
+            this.s = s;
+        }
+
+        /** Returns the 64 byte encoding of the signature. */
+        public byte[] encode() {
+            byte[] bytes = new byte[64];
+            System.arraycopy(Utils.bigIntegerToBytes(r, 32), 0, bytes, 0, 32);
+            System.arraycopy(Utils.bigIntegerToBytes(s, 32), 0, bytes, 32, 32);
+            return bytes;
+        }
+
+        /**
+         * Decodes a 64 byte signature. The components are not range checked, that's done when verifying.
+         * @throws IllegalArgumentException if the signature isn't 64 bytes long.
+         */
+        public static SchnorrSignature decode(byte[] bytes) {
+            checkArgument(bytes.length == 64, "Schnorr signatures are 64 bytes long, not %s", bytes.length);
+            return new SchnorrSignature(new BigInteger(1, Arrays.copyOfRange(bytes, 0, 32)),
+                    new BigInteger(1, Arrays.copyOfRange(bytes, 32, 64)));
+        }
+
+        /**
+         * Returns the nonce point R committed to by this signature, which is the point with X coordinate r and a
+         * Y coordinate that is a quadratic residue, or null if there is no such point.
+         */
+        @Nullable
+        public ECPoint getNoncePoint() {
+            BigInteger p = CURVE.getCurve().getField().getCharacteristic();
+            if (r.compareTo(p) >= 0)
+                return null;
+            BigInteger c = r.pow(3).add(CURVE.getCurve().getB().toBigInteger()).mod(p);
+            BigInteger y = c.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+            if (!y.multiply(y).mod(p).equals(c))
+                return null;
+            // As (p + 1) / 4 is even, the square root found above is itself a square.
+            return CURVE.getCurve().createPoint(r, y);
+        }
+
+        /** Returns the challenge e = SHA256(r || compressed public key || message) (mod N). */
+        public BigInteger getChallenge(ECPoint pub, byte[] message) {
+            SHA256Digest digest = new SHA256Digest();
+            byte[] rBytes = Utils.bigIntegerToBytes(r, 32);
+            byte[] pubBytes = pub.getEncoded(true);
+            digest.update(rBytes, 0, rBytes.length);
+            digest.update(pubBytes, 0, pubBytes.length);
+            digest.update(message, 0, message.length);
+            byte[] hash = new byte[32];
+            digest.doFinal(hash, 0);
+            return new BigInteger(1, hash).mod(CURVE.getN());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SchnorrSignature other = (SchnorrSignature) o;
+            return r.equals(other.r) && s.equals(other.s);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(r, s);
+        }
+    }
+
+    /** Returns true if the given field element is a quadratic residue, i.e. its Jacobi symbol is 1. */
+    static boolean isQuadraticResidue(BigInteger fieldElement) {
+        BigInteger p = CURVE.getCurve().getField().getCharacteristic();
+        return fieldElement.modPow(p.shiftRight(1), p).equals(BigInteger.ONE);
+    }
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the Bitcoin protocol, they are
      * usually encoded using ASN.1 format, so you want {@link org.bitcoinj.core.ECKey.ECDSASignature#toASN1()}
@@ -761,6 +859,125 @@ public class ECKey implements EncryptableItem {
         return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
     }
 
+    /**
+     * Signs the given hash with a Bitcoin Cash Schnorr signature. The nonce is derived deterministically from the
+     * private key and the hash, the same way libsecp256k1 does, so signing is repeatable.
+     * @throws KeyCrypterException if this ECKey doesn't have a private part.
+     */
+    public SchnorrSignature signSchnorr(Sha256Hash input) throws KeyCrypterException {
+        return signSchnorr(input, null);
+    }
+
+    /**
+     * Signs the given hash with a Bitcoin Cash Schnorr signature, see {@link SchnorrSignature}.
+     *
+     * @param aesKey The AES key to use for decryption of the private key. If null then no decryption is required.
+     * @throws KeyCrypterException if there's something wrong with aesKey.
+     * @throws ECKey.MissingPrivateKeyException if this key cannot sign because it's pubkey only.
+     */
+    public SchnorrSignature signSchnorr(Sha256Hash input, @Nullable KeyParameter aesKey) throws KeyCrypterException {
+        KeyCrypter crypter = getKeyCrypter();
+        if (crypter != null) {
+            if (aesKey == null)
+                throw new KeyIsEncryptedException();
+            return decrypt(aesKey).signSchnorr(input);
+        } else {
+            // No decryption of private key required.
+            if (priv == null)
+                throw new MissingPrivateKeyException();
+        }
+        return doSignSchnorr(input, priv);
+    }
+
+    protected SchnorrSignature doSignSchnorr(Sha256Hash input, BigInteger privateKeyForSigning) {
+        if (FAKE_SIGNATURES)
+            return new SchnorrSignature(BigInteger.ONE, BigInteger.ONE);
+        checkNotNull(privateKeyForSigning);
+        final BigInteger n = CURVE.getN();
+        BigInteger k = schnorrNonce(Utils.bigIntegerToBytes(privateKeyForSigning, 32), input.getBytes());
+        ECPoint noncePoint = publicPointFromPrivate(k).normalize();
+        if (!isQuadraticResidue(noncePoint.getAffineYCoord().toBigInteger()))
+            k = n.subtract(k);
+        BigInteger r = noncePoint.getAffineXCoord().toBigInteger();
+        BigInteger e = new SchnorrSignature(r, BigInteger.ZERO).getChallenge(
+                publicPointFromPrivate(privateKeyForSigning), input.getBytes());
+        return new SchnorrSignature(r, k.add(e.multiply(privateKeyForSigning)).mod(n));
+    }
+
+    private static final byte[] SCHNORR_NONCE_ALGORITHM = "Schnorr+SHA256  ".getBytes(Charset.forName("US-ASCII"));
+
+    // RFC 6979 nonce generation over the private key, the message and the algorithm tag, exactly as done by
+    // libsecp256k1 for Schnorr signatures so that both produce the same signatures.
+    private static BigInteger schnorrNonce(byte[] privateKey, byte[] message) {
+        byte[] keyData = new byte[privateKey.length + message.length + SCHNORR_NONCE_ALGORITHM.length];
+        System.arraycopy(privateKey, 0, keyData, 0, privateKey.length);
+        System.arraycopy(message, 0, keyData, privateKey.length, message.length);
+        System.arraycopy(SCHNORR_NONCE_ALGORITHM, 0, keyData, privateKey.length + message.length,
+                SCHNORR_NONCE_ALGORITHM.length);
+        byte[] k = new byte[32];
+        byte[] v = new byte[32];
+        Arrays.fill(v, (byte) 1);
+        k = hmacSha256(k, v, new byte[] { 0 }, keyData);
+        v = hmacSha256(k, v);
+        k = hmacSha256(k, v, new byte[] { 1 }, keyData);
+        v = hmacSha256(k, v);
+        while (true) {
+            v = hmacSha256(k, v);
+            BigInteger nonce = new BigInteger(1, v);
+            if (nonce.signum() > 0 && nonce.compareTo(CURVE.getN()) < 0)
+                return nonce;
+            k = hmacSha256(k, v, new byte[] { 0 });
+            v = hmacSha256(k, v);
+        }
+    }
+
+    private static byte[] hmacSha256(byte[] key, byte[]... data) {
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(key));
+        for (byte[] bytes : data)
+            mac.update(bytes, 0, bytes.length);
+        byte[] out = new byte[32];
+        mac.doFinal(out, 0);
+        return out;
+    }
+
+    /**
+     * <p>Verifies the given Bitcoin Cash Schnorr signature against the message bytes using the public key bytes.</p>
+     *
+     * @param data      Hash of the data to verify, 32 bytes.
+     * @param signature The signature.
+     * @param pub       The public key bytes to use.
+     */
+    public static boolean verifySchnorr(byte[] data, SchnorrSignature signature, byte[] pub) {
+        if (FAKE_SIGNATURES)
+            return true;
+        checkArgument(data.length == 32, "Schnorr signatures sign a 32 byte hash");
+        final BigInteger n = CURVE.getN();
+        if (signature.r.compareTo(CURVE.getCurve().getField().getCharacteristic()) >= 0 || signature.s.compareTo(n) >= 0)
+            return false;
+        ECPoint pubPoint;
+        try {
+            pubPoint = CURVE.getCurve().decodePoint(pub);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        BigInteger e = signature.getChallenge(pubPoint, data);
+        // R = sG - eP must be the nonce point the signature commits to.
+        ECPoint noncePoint = ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), signature.s, pubPoint, n.subtract(e))
+                .normalize();
+        if (noncePoint.isInfinity())
+            return false;
+        return isQuadraticResidue(noncePoint.getAffineYCoord().toBigInteger())
+                && noncePoint.getAffineXCoord().toBigInteger().equals(signature.r);
+    }
+
+    /**
+     * Verifies the given Bitcoin Cash Schnorr signature against a hash using the public key.
+     */
+    public boolean verifySchnorr(Sha256Hash sigHash, SchnorrSignature signature) {
+        return ECKey.verifySchnorr(sigHash.getBytes(), signature, getPubKey());
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key, and throws an exception
      * if the signature doesn't match
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The "filteradd" message inserts a single data element into the {@link BloomFilter} already loaded on a
+ * connection, so that a few new keys or outpoints don't require sending the whole filter again. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0037.mediawiki">BIP 37</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    /** The largest data element a remote peer accepts, the same as the maximum size of a script push. */
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] data) {
+        super(params);
+        checkArgument(data.length <= MAX_DATA_SIZE, "Data element too large: %s bytes", data.length);
+        this.data = data;
+    }
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes, int offset) throws ProtocolException {
+        super(params, payloadBytes, offset);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE)
+            throw new ProtocolException("Filter data element out of size range.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the data element to insert into the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd of " + data.length + " bytes";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(data, ((FilterAddMessage) o).data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+}
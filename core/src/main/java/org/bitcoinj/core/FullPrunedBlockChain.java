@@ -17,6 +17,9 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.crypto.SchnorrBatchVerifier;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.store.BlockStoreException;
@@ -46,6 +49,8 @@ import static com.google.common.base.Preconditions.checkState;
  */
 public class FullPrunedBlockChain extends AbstractBlockChain {
     private static final Logger log = LoggerFactory.getLogger(FullPrunedBlockChain.class);
+    // Time taken to verify the transactions of new best chain blocks and apply them to the UTXO set.
+    private static final LatencyHistogram connectTime = MetricRegistry.getDefault().histogram("chain.full.connect");
 
     /**
      * Keeps a map of block hashes to StoredBlocks.
@@ -156,11 +161,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         final Transaction tx;
         final List<Script> prevOutScripts;
         final Set<VerifyFlag> verifyFlags;
+        final SchnorrBatchVerifier schnorrBatch;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
+        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags,
+                        final SchnorrBatchVerifier schnorrBatch) {
             this.tx = tx;
             this.prevOutScripts = prevOutScripts;
             this.verifyFlags = verifyFlags;
+            this.schnorrBatch = schnorrBatch;
         }
 
         @Nullable
@@ -170,7 +178,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
                 for (int index = 0; index < tx.getInputs().size(); index++) {
                     Coin value = tx.getInput(index).getConnectedOutput() != null ? tx.getInput(index).getConnectedOutput().getValue() : Coin.ZERO;
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), value, verifyFlags);
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), value, verifyFlags,
+                            schnorrBatch);
                 }
             } catch (VerificationException e) {
                 return e;
@@ -210,6 +219,23 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
+        long start = System.nanoTime();
+        try {
+            return connectBlockTransactions(height, block);
+        } finally {
+            connectTime.recordSince(start);
+        }
+    }
+
+    /** Returns the median time past of the parent of the given block, which the script upgrades activate on. */
+    private long getMedianTimePastOfParent(Block block) throws BlockStoreException {
+        StoredBlock prev = blockStore.get(block.getPrevBlockHash());
+        // Only the genesis block has no parent, and its transactions are never connected.
+        return prev == null ? block.getTimeSeconds() : getMedianTimestampOfRecentBlocks(prev, blockStore);
+    }
+
+    private TransactionOutputChanges connectBlockTransactions(int height, Block block)
+            throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         if (block.transactions == null)
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
@@ -226,13 +252,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
         List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        // Schnorr signatures of the whole block are checked at once after all scripts ran.
+        final SchnorrBatchVerifier schnorrBatch = new SchnorrBatchVerifier();
         try {
+            final long medianTimePast = getMedianTimePastOfParent(block);
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
                 // BIP30 document for more details on this: https://github.com/bitcoin/bips/blob/master/bip-0030.mediawiki
                 for (Transaction tx : block.transactions) {
-                    final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
+                    final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx,
+                            getVersionTally(), height, medianTimePast);
                     Sha256Hash hash = tx.getHash();
                     // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
                     // being added twice (bug) or the block is a BIP30 violator.
@@ -249,7 +279,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
                 final List<Script> prevOutScripts = new LinkedList<Script>();
-                final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
+                final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx,
+                        getVersionTally(), height, medianTimePast);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
@@ -309,7 +340,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
+                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags,
+                            schnorrBatch));
                     scriptVerificationExecutor.execute(future);
                     listScriptVerificationResults.add(future);
                 }
@@ -329,6 +361,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (e != null)
                     throw e;
             }
+            if (!schnorrBatch.verify())
+                throw new VerificationException("Block contains an invalid Schnorr signature");
         } catch (VerificationException e) {
             scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
@@ -379,9 +413,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (scriptVerificationExecutor.isShutdown())
                     scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
                 List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                final SchnorrBatchVerifier schnorrBatch = new SchnorrBatchVerifier();
+                final long medianTimePast = getMedianTimePastOfParent(newBlock.getHeader());
                 for (final Transaction tx : transactions) {
-                    final Set<VerifyFlag> verifyFlags =
-                        params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
+                    final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(newBlock.getHeader(), tx,
+                            getVersionTally(), Integer.SIZE, medianTimePast);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
@@ -440,7 +476,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
+                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags,
+                                schnorrBatch));
                         scriptVerificationExecutor.execute(future);
                         listScriptVerificationResults.add(future);
                     }
@@ -462,6 +499,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (e != null)
                         throw e;
                 }
+                if (!schnorrBatch.verify())
+                    throw new VerificationException("Block contains an invalid Schnorr signature");
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+/**
+ * <p>Requests the compact filters of a range of blocks, which the remote peer answers with one {@link CFilterMessage}
+ * per block in ascending height order. See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">
+ * BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFiltersMessage extends CompactFilterRequestMessage {
+    /** The largest number of filters that may be requested at once. */
+    public static final int MAX_FILTERS = 1000;
+
+    public GetCFiltersMessage(NetworkParameters params, byte filterType, long startHeight, Sha256Hash stopHash) {
+        super(params, filterType, startHeight, stopHash);
+    }
+
+    public GetCFiltersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfilters from " + startHeight + " to " + stopHash;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A Golomb-coded set as used by the basic compact block filters of
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP 158</a>. Each element is hashed with
+ * SipHash keyed by the block hash, mapped onto the range [0, N * M) and the sorted differences between the resulting
+ * values are Golomb-Rice coded with parameter P.</p>
+ *
+ * <p>Unlike a {@link BloomFilter} the filter is computed by the full node for every block, so the same filter serves
+ * every client and reveals nothing about what a client is interested in. A client downloads the filter, queries it
+ * locally against its own scripts and only fetches the block when one of them matches.</p>
+ *
+ * <p>Instances are immutable and may be shared between threads.</p>
+ */
+public class GolombCodedSet {
+    /** The Golomb-Rice parameter of the basic filter type. */
+    public static final int BASIC_FILTER_P = 19;
+    /** The inverse false positive rate of the basic filter type. */
+    public static final long BASIC_FILTER_M = 784931;
+
+    private final byte[] filter;
+    private final int dataOffset;
+    private final int n;
+    private final int p;
+    private final long f;
+    private final HashFunction hashFunction;
+
+    /**
+     * Parses a basic filter, as found in a {@link CFilterMessage}, for the block with the given hash.
+     *
+     * @throws ProtocolException if the element count is malformed
+     */
+    public GolombCodedSet(Sha256Hash blockHash, byte[] filter) throws ProtocolException {
+        this(blockHash, filter, BASIC_FILTER_P, BASIC_FILTER_M);
+    }
+
+    GolombCodedSet(Sha256Hash blockHash, byte[] filter, int p, long m) throws ProtocolException {
+        checkArgument(p > 0 && p < 32, "Bad Golomb-Rice parameter: %s", p);
+        final long count;
+        final int headerSize;
+        try {
+            VarInt varInt = new VarInt(filter, 0);
+            count = varInt.value;
+            headerSize = varInt.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new ProtocolException("Filter element count out of range: " + count);
+        this.filter = filter;
+        this.dataOffset = headerSize;
+        this.n = (int) count;
+        this.p = p;
+        this.f = n * m;
+        this.hashFunction = hashFunction(blockHash);
+    }
+
+    /** Returns the number of elements the filter was built from. */
+    public int size() {
+        return n;
+    }
+
+    /** Returns true if the given element is probably in the set. */
+    public boolean matches(byte[] element) {
+        return matchesAny(Collections.singletonList(element));
+    }
+
+    /**
+     * Returns true if any of the given elements is probably in the set. The whole batch is hashed and sorted up front
+     * and then merged with the filter in a single pass, so querying many scripts costs about the same as querying one.
+     */
+    public boolean matchesAny(Collection<byte[]> elements) {
+        if (n == 0 || elements.isEmpty())
+            return false;
+        long[] queries = new long[elements.size()];
+        int i = 0;
+        for (byte[] element : elements)
+            queries[i++] = hashToRange(element);
+        // The values are below 2^63 for any realistic N * M, so a signed sort orders them correctly.
+        Arrays.sort(queries);
+
+        BitReader reader = new BitReader(filter, dataOffset);
+        long value = 0;
+        int q = 0;
+        for (int k = 0; k < n; k++) {
+            value += reader.readGolombRice(p);
+            while (queries[q] < value) {
+                if (++q == queries.length)
+                    return false;
+            }
+            if (queries[q] == value)
+                return true;
+        }
+        return false;
+    }
+
+    private long hashToRange(byte[] element) {
+        return multiplyHigh(hashFunction.hashBytes(element).asLong(), f);
+    }
+
+    private static HashFunction hashFunction(Sha256Hash blockHash) {
+        // The key is the first 16 bytes of the block hash in its internal (little endian) byte order.
+        byte[] key = blockHash.getReversedBytes();
+        return Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+    }
+
+    /** Returns the high 64 bits of the unsigned 128 bit product of x and y. */
+    static long multiplyHigh(long x, long y) {
+        long x0 = x & 0xffffffffL, x1 = x >>> 32;
+        long y0 = y & 0xffffffffL, y1 = y >>> 32;
+        long p00 = x0 * y0, p01 = x0 * y1, p10 = x1 * y0, p11 = x1 * y1;
+        long middle = (p00 >>> 32) + (p01 & 0xffffffffL) + (p10 & 0xffffffffL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    /** Builds the serialized basic filter for the given block hash and distinct elements. */
+    public static byte[] build(Sha256Hash blockHash, Collection<byte[]> elements) {
+        return build(blockHash, elements, BASIC_FILTER_P, BASIC_FILTER_M);
+    }
+
+    static byte[] build(Sha256Hash blockHash, Collection<byte[]> elements, int p, long m) {
+        HashFunction hashFunction = hashFunction(blockHash);
+        long f = elements.size() * m;
+        long[] values = new long[elements.size()];
+        int i = 0;
+        for (byte[] element : elements)
+            values[i++] = multiplyHigh(hashFunction.hashBytes(element).asLong(), f);
+        Arrays.sort(values);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(new VarInt(values.length).encode());
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        BitWriter writer = new BitWriter(bos);
+        long last = 0;
+        for (long value : values) {
+            writer.writeGolombRice(value - last, p);
+            last = value;
+        }
+        writer.flush();
+        return bos.toByteArray();
+    }
+
+    /** Reads bits most significant first through a 64 bit window, so unary runs are counted a word at a time. */
+    private static final class BitReader {
+        private final byte[] data;
+        private int pos;
+        // The top "available" bits of buffer are unread, the rest are zero.
+        private long buffer;
+        private int available;
+
+        BitReader(byte[] data, int offset) {
+            this.data = data;
+            this.pos = offset;
+        }
+
+        long readGolombRice(int p) {
+            long quotient = readUnary();
+            return (quotient << p) | readBits(p);
+        }
+
+        private long readUnary() {
+            long count = 0;
+            while (true) {
+                if (available == 0) {
+                    refill();
+                    if (available == 0)
+                        throw new ProtocolException("Truncated compact filter");
+                }
+                int ones = Long.numberOfLeadingZeros(~buffer);
+                if (ones < available) {
+                    consume(ones + 1);
+                    return count + ones;
+                }
+                count += available;
+                consume(available);
+            }
+        }
+
+        private long readBits(int bits) {
+            if (available < bits) {
+                refill();
+                if (available < bits)
+                    throw new ProtocolException("Truncated compact filter");
+            }
+            long value = buffer >>> (64 - bits);
+            consume(bits);
+            return value;
+        }
+
+        private void refill() {
+            while (available <= 56 && pos < data.length) {
+                buffer |= (data[pos++] & 0xffL) << (56 - available);
+                available += 8;
+            }
+        }
+
+        private void consume(int bits) {
+            buffer = bits == 64 ? 0 : buffer << bits;
+            available -= bits;
+        }
+    }
+
+    private static final class BitWriter {
+        private final ByteArrayOutputStream out;
+        private int current;
+        private int used;
+
+        BitWriter(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void writeGolombRice(long value, int p) {
+            for (long q = value >>> p; q > 0; q--)
+                writeBit(1);
+            writeBit(0);
+            for (int i = p - 1; i >= 0; i--)
+                writeBit((int) (value >>> i) & 1);
+        }
+
+        private void writeBit(int bit) {
+            current = (current << 1) | bit;
+            if (++used == 8) {
+                out.write(current);
+                current = 0;
+                used = 0;
+            }
+        }
+
+        void flush() {
+            if (used > 0) {
+                out.write(current << (8 - used));
+                current = 0;
+                used = 0;
+            }
+        }
+    }
+}
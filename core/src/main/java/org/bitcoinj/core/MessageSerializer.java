@@ -18,10 +18,13 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.DirectBufferPool;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Generic interface for classes which serialize/deserialize messages. Implementing
@@ -163,5 +166,25 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Writes message into buffers taken from the given pool and returns them, flipped and ready to be written to a
+     * channel in order. The caller owns the buffers and must release them to the pool once done. This default
+     * implementation serializes with {@link #serialize(Message, OutputStream)}.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization.
+     */
+    public List<ByteBuffer> serialize(Message message, DirectBufferPool pool) throws IOException, UnsupportedOperationException {
+        DirectBufferPool.PooledOutputStream out = pool.newOutputStream();
+        boolean success = false;
+        try {
+            serialize(message, out);
+            success = true;
+            return out.finish();
+        } finally {
+            if (!success)
+                out.release();
+        }
+    }
 }
@@ -98,6 +98,10 @@ public abstract class NetworkParameters {
     protected int daaUpdateHeight;
     // May, 15 2018 hard fork
     protected long monolithActivationTime = 1526400000L;
+    // May, 15 2019 hard fork
+    protected long schnorrActivationTime = 1557921600L;
+    // Nov, 15 2019 hard fork
+    protected long schnorrMultisigActivationTime = 1573819200L;
 
     /**
      * See getId(). This may be null for old deserialized wallets. In that case we derive it heuristically
@@ -157,6 +161,7 @@ public abstract class NetworkParameters {
      * mined upon and thus will be quickly re-orged out as long as the majority are enforcing the rule.
      */
     public static final int BIP16_ENFORCE_TIME = 1333238400;
+
     
     /**
      * The maximum number of coins to be generated
@@ -404,6 +409,16 @@ public abstract class NetworkParameters {
         return monolithActivationTime;
     }
 
+    /** MTP activation time for May 15th, 2019 upgrade, which enabled Schnorr signatures in CHECKSIG **/
+    public long getSchnorrActivationTime() {
+        return schnorrActivationTime;
+    }
+
+    /** MTP activation time for Nov 15th, 2019 upgrade, which enabled Schnorr signatures in CHECKMULTISIG **/
+    public long getSchnorrMultisigActivationTime() {
+        return schnorrMultisigActivationTime;
+    }
+
     /**
      * Returns the number of coins that will be produced in total, on this
      * network. Where not applicable, a very large number of coins is returned
@@ -518,12 +533,36 @@ public abstract class NetworkParameters {
      * @param transaction to determine flags for.
      * @param height height of the block, if known, null otherwise. Returned
      * tests should be a safe subset if block height is unknown.
+     * @deprecated upgrades activated on the median time past are judged by the block time here, which is wrong for
+     * blocks around the activation. Use {@link #getTransactionVerificationFlags(Block, Transaction, VersionTally,
+     * Integer, long)}.
      */
+    @Deprecated
     public EnumSet<Script.VerifyFlag> getTransactionVerificationFlags(final Block block,
             final Transaction transaction, final VersionTally tally, final Integer height) {
+        return getTransactionVerificationFlags(block, transaction, tally, height, block.getTimeSeconds());
+    }
+
+    /**
+     * The flags indicating which script validation tests should be applied to
+     * the given transaction. Enables support for alternative blockchains which enable
+     * tests based on different criteria.
+     *
+     * @param block block the transaction belongs to.
+     * @param transaction to determine flags for.
+     * @param height height of the block, if known, null otherwise. Returned
+     * tests should be a safe subset if block height is unknown.
+     * @param medianTimePast median time past of the block's parent, which the Bitcoin Cash upgrades activate on.
+     */
+    public EnumSet<Script.VerifyFlag> getTransactionVerificationFlags(final Block block,
+            final Transaction transaction, final VersionTally tally, final Integer height, final long medianTimePast) {
         final EnumSet<Script.VerifyFlag> verifyFlags = EnumSet.noneOf(Script.VerifyFlag.class);
         if (block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME)
             verifyFlags.add(Script.VerifyFlag.P2SH);
+        if (medianTimePast >= getSchnorrActivationTime())
+            verifyFlags.add(Script.VerifyFlag.SCHNORR);
+        if (medianTimePast >= getSchnorrMultisigActivationTime())
+            verifyFlags.add(Script.VerifyFlag.SCHNORR_MULTISIG);
 
         // Start enforcing CHECKLOCKTIMEVERIFY, (BIP65) for block.nVersion=4
         // blocks, when 75% of the network has upgraded:
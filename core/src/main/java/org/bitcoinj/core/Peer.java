@@ -25,6 +25,7 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletDispatcher;
 
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
@@ -43,6 +44,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -93,6 +95,7 @@ public class Peer extends PeerSocketHandler {
     private final AtomicInteger blocksAnnounced = new AtomicInteger();
     // Each wallet added to the peer will be notified of downloaded transaction data.
     private final CopyOnWriteArrayList<Wallet> wallets;
+    private final CopyOnWriteArrayList<WalletDispatcher> walletDispatchers;
     // A time before which we only download block headers, after that point we download block bodies.
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     // Whether we are currently downloading headers only or block bodies. Starts at true. If the fast catchup time is
@@ -103,6 +106,12 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // If set, the chain is synced with BIP 157 compact filters instead: headers past the fast catchup time are handed
+    // to the client, which fetches only the blocks whose filters match our wallets. Block bodies are never downloaded
+    // by the normal chain download in this mode.
+    private volatile CompactFilterClient vCompactFilterClient;
+    // Whether the compact filter client is still working through a batch of headers we handed to it.
+    @GuardedBy("lock") private boolean compactFilterBatchInFlight;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -123,7 +132,21 @@ public class Peer extends PeerSocketHandler {
     //
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
-    private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // Blocks announced to us during chain download that we didn't ask for yet. Rather than requesting a whole inv
+    // worth of blocks and waiting for all of them, we keep a window of requests in flight and top it up as blocks
+    // arrive, so they can be processed while more are on their way.
+    @GuardedBy("lock") private final LinkedHashSet<Sha256Hash> blocksToRequest = new LinkedHashSet<Sha256Hash>();
+    // The last block of a full getblocks answer, from which the next getblocks is sent as soon as everything announced
+    // so far has been requested. Null if the last answer wasn't full, meaning we're near the head of the chain.
+    @GuardedBy("lock") @Nullable private Sha256Hash nextGetBlocksFrom;
+    // True whilst a getblocks sent ahead of the download hasn't been answered yet.
+    @GuardedBy("lock") private boolean getBlocksAhead;
+    private volatile int vMaxBlocksInFlight = DEFAULT_MAX_BLOCKS_IN_FLIGHT;
+    /** The default number of blocks that can be requested from the download peer at once. */
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 128;
+    // How many blocks a remote peer announces at most in answer to getblocks.
+    private static final int MAX_GETBLOCKS_RESULTS = 500;
     // Keep references to TransactionConfidence objects for transactions that were announced by a remote peer, but
     // which we haven't downloaded yet. These objects are de-duplicated by the TxConfidenceTable class.
     // Once the tx is downloaded (by some peer), the Transaction object that is created will have a reference to
@@ -131,6 +154,10 @@ public class Peer extends PeerSocketHandler {
     // to keep it pinned to the root set if they care about this data.
     @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
     private final HashSet<TransactionConfidence> pendingTxDownloads = new HashSet<TransactionConfidence>();
+    // Transactions this peer announced or sent to us recently. Further announcements of them are dropped on arrival
+    // without consulting the confidence table. Only touched from the network thread, but needs no locking anyway.
+    private final RollingBloomFilter knownInventory = new RollingBloomFilter(KNOWN_INVENTORY_SIZE, 0.000001);
+    private static final int KNOWN_INVENTORY_SIZE = 10000;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -147,6 +174,22 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
+    // Compact filter requests in flight. Peers answer them in order, a getcfilters with one cfilter per block.
+    private static class GetCFiltersRequest {
+        final Sha256Hash stopHash;
+        final List<CFilterMessage> filters = new ArrayList<CFilterMessage>();
+        final SettableFuture<List<CFilterMessage>> future = SettableFuture.create();
+
+        GetCFiltersRequest(Sha256Hash stopHash) {
+            this.stopHash = stopHash;
+        }
+    }
+    @GuardedBy("lock") private final LinkedList<SettableFuture<CFHeadersMessage>> getCFHeadersFutures =
+            new LinkedList<SettableFuture<CFHeadersMessage>>();
+    @GuardedBy("lock") private final LinkedList<GetCFiltersRequest> getCFiltersRequests =
+            new LinkedList<GetCFiltersRequest>();
+    // When the last compact filter request was sent with none outstanding, or the last answer arrived.
+    @GuardedBy("lock") private long lastCompactFilterResponseTime;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -154,6 +197,19 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    // Block download statistics: how many bytes of block data arrived in each of the last few seconds, and how long
+    // the peer takes to answer each block we asked for as part of the chain download.
+    private final ReentrantLock downloadStatsLock = new ReentrantLock();
+    @GuardedBy("downloadStatsLock") private final long[] downloadBuckets = new long[DOWNLOAD_SPEED_WINDOW_SECONDS];
+    @GuardedBy("downloadStatsLock") private long downloadBucketsSecond;
+    @GuardedBy("downloadStatsLock") private long downloadBytesTotal;
+    @GuardedBy("downloadStatsLock") private final LinkedHashMap<Sha256Hash, Long> blockRequestTimes =
+            new LinkedHashMap<Sha256Hash, Long>();
+    @GuardedBy("downloadStatsLock") private long lastBlockResponseTime;
+    @GuardedBy("downloadStatsLock") private long[] lastBlockResponseTimes = null;
+    private static final int DOWNLOAD_SPEED_WINDOW_SECONDS = 10;
+    private static final int MAX_TRACKED_BLOCK_REQUESTS = 2000;
+
     private volatile VersionMessage vPeerVersionMessage;
 
     // A settable future which completes (with this) when the connection is open
@@ -236,6 +292,7 @@ public class Peer extends PeerSocketHandler {
         this.pendingPings = new CopyOnWriteArrayList<PendingPing>();
         this.vMinProtocolVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG);
         this.wallets = new CopyOnWriteArrayList<Wallet>();
+        this.walletDispatchers = new CopyOnWriteArrayList<WalletDispatcher>();
         this.context = Context.get();
 
         this.versionHandshakeFuture.addListener(new Runnable() {
@@ -416,6 +473,8 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        // Nothing will answer outstanding compact filter requests any more.
+        failCompactFilterRequests(new PeerException("Peer disconnected"));
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -471,6 +530,13 @@ public class Peer extends PeerSocketHandler {
             currentFilteredBlock = null;
         }
 
+        if (m instanceof Block)
+            addBlockDownloadData(((Block) m).getHash(), m.length);
+        else if (m instanceof FilteredBlock)
+            addBlockDownloadData(((FilteredBlock) m).getHash(), m.length);
+        else if (m instanceof Transaction && currentFilteredBlock != null)
+            addBlockDownloadData(null, m.length);
+
         // No further communication is possible until version handshake is complete.
         if (!(m instanceof VersionMessage || m instanceof VersionAck
                 || (versionHandshakeFuture.isDone() && !versionHandshakeFuture.isCancelled())))
@@ -510,6 +576,10 @@ public class Peer extends PeerSocketHandler {
             processVersionAck((VersionAck) m);
         } else if (m instanceof UTXOsMessage) {
             processUTXOMessage((UTXOsMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processCFHeaders((CFHeadersMessage) m);
+        } else if (m instanceof CFilterMessage) {
+            processCFilter((CFilterMessage) m);
         } else if (m instanceof RejectMessage) {
             log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
         } else {
@@ -530,6 +600,46 @@ public class Peer extends PeerSocketHandler {
             future.set(m);
     }
 
+    protected void processCFHeaders(CFHeadersMessage m) {
+        SettableFuture<CFHeadersMessage> future;
+        lock.lock();
+        try {
+            future = getCFHeadersFutures.pollFirst();
+            lastCompactFilterResponseTime = Utils.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+        if (future != null)
+            future.set(m);
+        else
+            log.warn("{}: Received unrequested {}", this, m);
+    }
+
+    protected void processCFilter(CFilterMessage m) {
+        GetCFiltersRequest completed = null;
+        lock.lock();
+        try {
+            GetCFiltersRequest request = getCFiltersRequests.peekFirst();
+            if (request == null) {
+                log.warn("{}: Received unrequested {}", this, m);
+                return;
+            }
+            lastCompactFilterResponseTime = Utils.currentTimeMillis();
+            request.filters.add(m);
+            if (m.getBlockHash().equals(request.stopHash)) {
+                completed = getCFiltersRequests.removeFirst();
+            } else if (request.filters.size() >= GetCFiltersMessage.MAX_FILTERS) {
+                getCFiltersRequests.removeFirst();
+                request.future.setException(new ProtocolException("Too many filters for request up to " +
+                        request.stopHash));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (completed != null)
+            completed.future.set(completed.filters);
+    }
+
     private void processAddressMessage(AddressMessage m) {
         SettableFuture<AddressMessage> future;
         synchronized (getAddrFutures) {
@@ -634,6 +744,12 @@ public class Peer extends PeerSocketHandler {
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
         // in the chain).
         //
+        // Forget about transactions we were waiting for from this peer, so another peer announcing them can be asked
+        // instead.
+        for (InventoryItem item : m.getItems()) {
+            if (item.type == InventoryItem.Type.Transaction)
+                context.getTxRequestTable().markNotFound(item.hash, getAddress());
+        }
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
@@ -671,6 +787,7 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        CompactFilterClient compactFilterClient;
 
         lock.lock();
         try {
@@ -681,11 +798,16 @@ public class Peer extends PeerSocketHandler {
             }
             fastCatchupTimeSecs = this.fastCatchupTimeSecs;
             downloadBlockBodies = this.downloadBlockBodies;
+            compactFilterClient = vCompactFilterClient;
         } finally {
             lock.unlock();
         }
 
         try {
+            if (compactFilterClient != null) {
+                processHeadersWithCompactFilters(m, compactFilterClient, fastCatchupTimeSecs);
+                return;
+            }
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
@@ -744,6 +866,84 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void processHeadersWithCompactFilters(HeadersMessage m, CompactFilterClient client,
+                                                  long fastCatchupTimeSecs) throws VerificationException,
+                                                                                   PrunedException {
+        // Headers from before the fast catchup time can't contain anything for our wallets, so they go straight into
+        // the chain. The rest are handed to the client, which checks their filters and fetches the matching blocks.
+        List<Block> headers = m.getBlockHeaders();
+        final boolean more = headers.size() >= HeadersMessage.MAX_HEADERS;
+        int i = 0;
+        for (; i < headers.size(); i++) {
+            Block header = headers.get(i);
+            if (header.getTimeSeconds() >= fastCatchupTimeSecs)
+                break;
+            if (!vDownloadData) {
+                log.info("Lost download peer status, throwing away downloaded headers.");
+                return;
+            }
+            if (blockChain.add(header))
+                invokeOnBlocksDownloaded(header, null);
+            else
+                throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+        }
+        if (i == headers.size()) {
+            if (more) {
+                lock.lock();
+                try {
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            if (compactFilterBatchInFlight) {
+                // Unsolicited headers, we'll ask for these again once the current batch is done.
+                log.info("{}: Ignoring headers received whilst compact filter sync is in progress", this);
+                return;
+            }
+            compactFilterBatchInFlight = true;
+        } finally {
+            lock.unlock();
+        }
+        ListenableFuture<Integer> future = client.processHeaders(this, headers.subList(i, headers.size()));
+        Futures.addCallback(future, new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer blocksFetched) {
+                lock.lock();
+                try {
+                    compactFilterBatchInFlight = false;
+                    if (!vDownloadData)
+                        return;
+                    // Ask for more even if the batch wasn't full, as blocks may have been solved in the meantime. If
+                    // the chain head didn't move, the duplicate check stops us from asking for the same headers again.
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                lock.lock();
+                try {
+                    compactFilterBatchInFlight = false;
+                } finally {
+                    lock.unlock();
+                }
+                if (!vDownloadData) {
+                    log.info("{}: Lost download peer status, abandoned compact filter sync", Peer.this);
+                    return;
+                }
+                log.warn("{}: Compact filter sync failed, disconnecting", Peer.this, t);
+                close();
+            }
+        });
+    }
+
     protected void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -765,6 +965,8 @@ public class Peer extends PeerSocketHandler {
     protected void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        knownInventory.add(tx.getHash());
+        context.getTxRequestTable().markReceived(tx.getHash());
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
@@ -792,54 +994,12 @@ public class Peer extends PeerSocketHandler {
                 return;
             }
             // It's a broadcast transaction. Tell all wallets about this tx so they can check if it's relevant or not.
-            for (final Wallet wallet : wallets) {
-                try {
-                    if (wallet.isPendingTransactionRelevant(tx)) {
-                        if (vDownloadTxDependencyDepth > 0) {
-                            // This transaction seems interesting to us, so let's download its dependencies. This has
-                            // several purposes: we can check that the sender isn't attacking us by engaging in protocol
-                            // abuse games, like depending on a time-locked transaction that will never confirm, or
-                            // building huge chains of unconfirmed transactions (again - so they don't confirm and the
-                            // money can be taken back with a Finney attack). Knowing the dependencies also lets us
-                            // store them in a serialized wallet so we always have enough data to re-announce to the
-                            // network and get the payment into the chain, in case the sender goes away and the network
-                            // starts to forget.
-                            //
-                            // TODO: Not all the above things are implemented.
-                            //
-                            // Note that downloading of dependencies can end up walking around 15 minutes back even
-                            // through transactions that have confirmed, as getdata on the remote peer also checks
-                            // relay memory not only the mempool. Unfortunately we have no way to know that here. In
-                            // practice it should not matter much.
-                            Futures.addCallback(downloadDependencies(tx), new FutureCallback<List<Transaction>>() {
-                                @Override
-                                public void onSuccess(List<Transaction> dependencies) {
-                                    try {
-                                        log.info("{}: Dependency download complete!", getAddress());
-                                        wallet.receivePending(tx, dependencies);
-                                    } catch (VerificationException e) {
-                                        log.error("{}: Wallet failed to process pending transaction {}", getAddress(), tx.getHash());
-                                        log.error("Error was: ", e);
-                                        // Not much more we can do at this point.
-                                    }
-                                }
-
-                                @Override
-                                public void onFailure(Throwable throwable) {
-                                    log.error("Could not download dependencies of tx {}", tx.getHashAsString());
-                                    log.error("Error was: ", throwable);
-                                    // Not much more we can do at this point.
-                                }
-                            });
-                        } else {
-                            wallet.receivePending(tx, null);
-                        }
-                    }
-                } catch (VerificationException e) {
-                    log.error("Wallet failed to verify tx", e);
-                    // Carry on, listeners may still want to know.
-                }
-            }
+            for (Wallet wallet : wallets)
+                maybeReceivePending(wallet, tx);
+            // Wallets hosted by a dispatcher only get to see the transactions that touch them.
+            for (WalletDispatcher dispatcher : walletDispatchers)
+                for (Wallet wallet : dispatcher.getCandidateWallets(tx))
+                    maybeReceivePending(wallet, tx);
         } finally {
             lock.unlock();
         }
@@ -855,6 +1015,56 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void maybeReceivePending(final Wallet wallet, final Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        try {
+            if (wallet.isPendingTransactionRelevant(tx)) {
+                if (vDownloadTxDependencyDepth > 0) {
+                    // This transaction seems interesting to us, so let's download its dependencies. This has
+                    // several purposes: we can check that the sender isn't attacking us by engaging in protocol
+                    // abuse games, like depending on a time-locked transaction that will never confirm, or
+                    // building huge chains of unconfirmed transactions (again - so they don't confirm and the
+                    // money can be taken back with a Finney attack). Knowing the dependencies also lets us
+                    // store them in a serialized wallet so we always have enough data to re-announce to the
+                    // network and get the payment into the chain, in case the sender goes away and the network
+                    // starts to forget.
+                    //
+                    // TODO: Not all the above things are implemented.
+                    //
+                    // Note that downloading of dependencies can end up walking around 15 minutes back even
+                    // through transactions that have confirmed, as getdata on the remote peer also checks
+                    // relay memory not only the mempool. Unfortunately we have no way to know that here. In
+                    // practice it should not matter much.
+                    Futures.addCallback(downloadDependencies(tx), new FutureCallback<List<Transaction>>() {
+                        @Override
+                        public void onSuccess(List<Transaction> dependencies) {
+                            try {
+                                log.info("{}: Dependency download complete!", getAddress());
+                                wallet.receivePending(tx, dependencies);
+                            } catch (VerificationException e) {
+                                log.error("{}: Wallet failed to process pending transaction {}", getAddress(), tx.getHash());
+                                log.error("Error was: ", e);
+                                // Not much more we can do at this point.
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable throwable) {
+                            log.error("Could not download dependencies of tx {}", tx.getHashAsString());
+                            log.error("Error was: ", throwable);
+                            // Not much more we can do at this point.
+                        }
+                    });
+                } else {
+                    wallet.receivePending(tx, null);
+                }
+            }
+        } catch (VerificationException e) {
+            log.error("Wallet failed to verify tx", e);
+            // Carry on, listeners may still want to know.
+        }
+    }
+
     /**
      * <p>Returns a future that wraps a list of all transactions that the given transaction depends on, recursively.
      * Only transactions in peers memory pools are included; the recursion stops at transactions that are in the
@@ -990,7 +1200,14 @@ public class Peer extends PeerSocketHandler {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
+        lock.lock();
+        try {
+            pendingBlockDownloads.remove(m.getHash());
+            // Keep the following blocks coming whilst this one is being processed.
+            requestMoreBlocksLocked();
+        } finally {
+            lock.unlock();
+        }
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -1017,7 +1234,12 @@ public class Peer extends PeerSocketHandler {
                 // off a request for lots more headers in parallel.
                 lock.lock();
                 try {
-                    if (downloadBlockBodies) {
+                    if (isFetchingAheadLocked()) {
+                        // This is the head block the peer tickled us with, but the blocks leading up to it are
+                        // already announced or asked for, so it will connect once they arrive.
+                        log.debug("{}: Orphan block {} will connect once the download pipeline catches up",
+                                getAddress(), m.getHashAsString());
+                    } else if (downloadBlockBodies) {
                         final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
                         blockChainDownloadLocked(orphanRoot.getHash());
                     } else {
@@ -1051,7 +1273,12 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        lock.lock();
+        try {
+            pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        } finally {
+            lock.unlock();
+        }
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1093,6 +1320,8 @@ public class Peer extends PeerSocketHandler {
                     awaitingFreshFilter.addAll(blockChain.drainOrphanBlocks());
                     return;   // Chain download process is restarted via a call to setBloomFilter.
                 }
+                // Keep the following blocks coming whilst this one is being processed.
+                requestMoreBlocksLocked();
             } finally {
                 lock.unlock();
             }
@@ -1118,8 +1347,10 @@ public class Peer extends PeerSocketHandler {
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    if (!isFetchingAheadLocked()) {
+                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
+                        blockChainDownloadLocked(orphanRoot.getHash());
+                    }
                 } finally {
                     lock.unlock();
                 }
@@ -1140,6 +1371,9 @@ public class Peer extends PeerSocketHandler {
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
         }
+        for (WalletDispatcher dispatcher : walletDispatchers) {
+            exhausted |= dispatcher.checkForFilterExhaustion(m);
+        }
         return exhausted;
     }
 
@@ -1157,7 +1391,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1178,11 +1412,15 @@ public class Peer extends PeerSocketHandler {
         // Separate out the blocks and transactions, we'll handle them differently
         List<InventoryItem> transactions = new LinkedList<InventoryItem>();
         List<InventoryItem> blocks = new LinkedList<InventoryItem>();
+        int numTransactionItems = 0;
 
         for (InventoryItem item : items) {
             switch (item.type) {
                 case Transaction:
-                    transactions.add(item);
+                    numTransactionItems++;
+                    // Drop transactions this peer already told us about.
+                    if (knownInventory.add(item.hash))
+                        transactions.add(item);
                     break;
                 case Block:
                     blocks.add(item);
@@ -1194,7 +1432,7 @@ public class Peer extends PeerSocketHandler {
 
         final boolean downloadData = this.vDownloadData;
 
-        if (transactions.size() == 0 && blocks.size() == 1) {
+        if (numTransactionItems == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
             // (the block chain download protocol is very implicit and not well thought out). If we're not downloading
             // the chain then this probably means a new block was solved and the peer believes it connects to the best
@@ -1217,17 +1455,21 @@ public class Peer extends PeerSocketHandler {
             // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
             // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
             // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
-            // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-            // sending us the transaction: currently we'll never try to re-fetch after a timeout.
+            // transaction once. If the peer we asked answers with notfound, or doesn't answer within the timeout of
+            // the TxRequestTable, the next peer announcing the transaction is asked for it instead.
             //
             // The line below can trigger confidence listeners.
             TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
-                // Some other peer already announced this so don't download.
-                it.remove();
-            } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
+            TxRequestTable requestTable = context.getTxRequestTable();
+            if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
                 // We created this transaction ourselves, so don't download.
                 it.remove();
+            } else if (conf.numBroadcastPeers() > 1 && !requestTable.contains(item.hash)) {
+                // Some other peer announced this long ago so don't download.
+                it.remove();
+            } else if (!requestTable.tryRequest(item.hash, getAddress())) {
+                // Some other peer already announced this and we asked for it recently, or already have it.
+                it.remove();
             } else {
                 log.debug("{}: getdata on tx {}", getAddress(), item.hash);
                 getdata.addItem(item);
@@ -1236,22 +1478,28 @@ public class Peer extends PeerSocketHandler {
             }
         }
 
-        // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
-        // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
-        boolean pingAfterGetData = false;
-
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadData && blockChain != null && vCompactFilterClient != null) {
+                // New blocks are fetched through their headers and filters, unless a batch is still being worked on
+                // in which case we'll ask for the next headers once it's done anyway.
+                if (!compactFilterBatchInFlight)
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+            } else if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
+                if (blocks.size() > 1)
+                    getBlocksAhead = false;
                 for (InventoryItem item : blocks) {
                     if (blockChain.isOrphan(item.hash) && downloadBlockBodies) {
                         // If an orphan was re-advertised, ask for more blocks unless we are not currently downloading
-                        // full block data because we have a getheaders outstanding.
-                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        // full block data because we have a getheaders outstanding, or the blocks leading up to it
+                        // were already announced to us.
+                        if (!isFetchingAheadLocked()) {
+                            final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
+                            blockChainDownloadLocked(orphanRoot.getHash());
+                        }
                     } else {
                         // Don't re-request blocks we already requested. Normally this should not happen. However there is
                         // an edge case: if a block is solved and we complete the inv<->getdata<->block<->getblocks cycle
@@ -1265,17 +1513,14 @@ public class Peer extends PeerSocketHandler {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But Bitcoin Core may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
-                            if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
-                                getdata.addFilteredBlock(item.hash);
-                                pingAfterGetData = true;
-                            } else {
-                                getdata.addItem(item);
-                            }
-                            pendingBlockDownloads.add(item.hash);
-                        }
+                        if (!pendingBlockDownloads.contains(item.hash))
+                            blocksToRequest.add(item.hash);
                     }
                 }
+                // A full answer to getblocks means there's more to come after it.
+                if (blocks.size() >= MAX_GETBLOCKS_RESULTS)
+                    nextGetBlocksFrom = blocks.get(blocks.size() - 1).hash;
+                requestMoreBlocksLocked();
                 // If we're downloading the chain, doing a getdata on the last block we were told about will cause the
                 // peer to advertize the head block to us in a single-item inv. When we download THAT, it will be an
                 // orphan block, meaning we'll re-enter blockChainDownloadLocked() to trigger another getblocks between the
@@ -1287,12 +1532,9 @@ public class Peer extends PeerSocketHandler {
         }
 
         if (!getdata.getItems().isEmpty()) {
-            // This will cause us to receive a bunch of block or tx messages.
+            // This will cause us to receive a bunch of tx messages.
             sendMessage(getdata);
         }
-
-        if (pingAfterGetData)
-            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
     }
 
     /**
@@ -1364,7 +1606,7 @@ public class Peer extends PeerSocketHandler {
         try {
             if (secondsSinceEpoch == 0) {
                 fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
-                downloadBlockBodies = true;
+                downloadBlockBodies = vCompactFilterClient == null;
             } else {
                 fastCatchupTimeSecs = secondsSinceEpoch;
                 // If the given time is before the current chains head block time, then this has no effect (we already
@@ -1392,13 +1634,88 @@ public class Peer extends PeerSocketHandler {
         wallets.remove(wallet);
     }
 
+    /**
+     * Links the given wallet dispatcher to this peer, so broadcast transactions are routed to its wallets. As with
+     * {@link Peer#addWallet(Wallet)}, use {@link PeerGroup#addWalletDispatcher(WalletDispatcher)} instead of calling
+     * this directly.
+     */
+    public void addWalletDispatcher(WalletDispatcher dispatcher) {
+        walletDispatchers.add(dispatcher);
+    }
+
+    /** Unlinks the given wallet dispatcher from peer. See {@link Peer#addWalletDispatcher(WalletDispatcher)}. */
+    public void removeWalletDispatcher(WalletDispatcher dispatcher) {
+        walletDispatchers.remove(dispatcher);
+    }
+
     // Keep track of the last request we made to the peer in blockChainDownloadLocked so we can avoid redundant and harmful
     // getblocks requests.
     @GuardedBy("lock")
     private Sha256Hash lastGetBlocksBegin, lastGetBlocksEnd;
 
+    /**
+     * Tops up the chain download pipeline. Once no more than half of the in-flight window is outstanding, announced
+     * blocks are requested until the window is full again. Once everything announced has been requested and the
+     * peer indicated there's more, the next getblocks goes out straight away rather than after the last block
+     * arrived, so the following inv is usually here before the pipeline runs dry.
+     */
+    @GuardedBy("lock")
+    private void requestMoreBlocksLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!vDownloadData || blockChain == null || awaitingFreshFilter != null)
+            return;
+        final int maxInFlight = vMaxBlocksInFlight;
+        if (!blocksToRequest.isEmpty() && pendingBlockDownloads.size() <= maxInFlight / 2) {
+            final boolean filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+            GetDataMessage getdata = new GetDataMessage(params);
+            Iterator<Sha256Hash> it = blocksToRequest.iterator();
+            while (it.hasNext() && pendingBlockDownloads.size() < maxInFlight) {
+                Sha256Hash hash = it.next();
+                it.remove();
+                if (filtered)
+                    getdata.addFilteredBlock(hash);
+                else
+                    getdata.addBlock(hash);
+                pendingBlockDownloads.add(hash);
+                addBlockRequest(hash);
+            }
+            sendMessage(getdata);
+            // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
+            // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
+            if (filtered)
+                sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+        if (blocksToRequest.isEmpty() && nextGetBlocksFrom != null && downloadBlockBodies) {
+            Sha256Hash from = nextGetBlocksFrom;
+            nextGetBlocksFrom = null;
+            getBlocksAhead = true;
+            blockChainDownloadLocked(from, Sha256Hash.ZERO_HASH);
+        }
+    }
+
+    /**
+     * Returns true if blocks were announced that we didn't request yet, or more are expected to be announced in answer
+     * to a getblocks sent ahead. In that case an orphan block will connect by itself once the download catches up.
+     */
+    private boolean isFetchingAheadLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!blocksToRequest.isEmpty())
+            return true;
+        // A getblocks sent from the peer's head block is never answered, so only trust it whilst we're behind.
+        return getBlocksAhead && checkNotNull(blockChain).getBestChainHeight() < getBestHeight();
+    }
+
     @GuardedBy("lock")
     private void blockChainDownloadLocked(Sha256Hash toHash) {
+        blockChainDownloadLocked(null, toHash);
+    }
+
+    /**
+     * Asks the peer for the blocks following our chain head, or following the given block if it isn't null. The
+     * latter is used to ask for the next batch of blocks before the current one has been downloaded.
+     */
+    @GuardedBy("lock")
+    private void blockChainDownloadLocked(@Nullable Sha256Hash fromHash, Sha256Hash toHash) {
         checkState(lock.isHeldByCurrentThread());
         // The block chain download process is a bit complicated. Basically, we start with one or more blocks in a
         // chain that we have from a previous session. We want to catch up to the head of the chain BUT we don't know
@@ -1445,19 +1762,24 @@ public class Peer extends PeerSocketHandler {
         BlockStore store = checkNotNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        Sha256Hash beginHash = fromHash != null ? fromHash : chainHeadHash;
         // Did we already make this request? If so, don't do it again.
-        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
-            log.info("blockChainDownloadLocked({}): ignoring duplicated request: {}", toHash, chainHeadHash);
+        if (Objects.equal(lastGetBlocksBegin, beginHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
+            log.info("blockChainDownloadLocked({}): ignoring duplicated request: {}", toHash, beginHash);
             for (Sha256Hash hash : pendingBlockDownloads)
                 log.info("Pending block download: {}", hash);
             log.info(Throwables.getStackTraceAsString(new Throwable()));
             return;
         }
         if (log.isDebugEnabled())
-            log.debug("{}: blockChainDownloadLocked({}) current head = {}",
-                    this, toHash, chainHead.getHeader().getHashAsString());
+            log.debug("{}: blockChainDownloadLocked({}) current head = {}, from = {}",
+                    this, toHash, chainHead.getHeader().getHashAsString(), fromHash);
+        // The peer will answer starting after the first block in the locator that it has on its main chain. The
+        // locator must stay within the 101 entries remote peers accept.
+        if (fromHash != null)
+            blockLocator.add(fromHash);
         StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
+        for (int i = fromHash != null ? 99 : 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
             try {
                 cursor = cursor.getPrev(store);
@@ -1472,7 +1794,7 @@ public class Peer extends PeerSocketHandler {
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
+        lastGetBlocksBegin = beginHash;
         lastGetBlocksEnd = toHash;
 
         if (downloadBlockBodies) {
@@ -1610,6 +1932,138 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /** Notes that a block or filtered block was requested as part of the chain download. */
+    private void addBlockRequest(Sha256Hash hash) {
+        downloadStatsLock.lock();
+        try {
+            blockRequestTimes.put(hash, Utils.currentTimeMillis());
+            if (blockRequestTimes.size() > MAX_TRACKED_BLOCK_REQUESTS) {
+                Iterator<Sha256Hash> it = blockRequestTimes.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /**
+     * Accounts for a block, filtered block or filtered block transaction received from the peer. If the hash matches
+     * a block we requested, a response time sample is taken: the time since the request went out or since the
+     * previous block arrived, whichever is later, so that blocks queued up behind each other aren't penalised.
+     */
+    private void addBlockDownloadData(@Nullable Sha256Hash hash, int length) {
+        long now = Utils.currentTimeMillis();
+        downloadStatsLock.lock();
+        try {
+            if (length > 0) {
+                rollDownloadBuckets(now);
+                downloadBuckets[(int) (downloadBucketsSecond % DOWNLOAD_SPEED_WINDOW_SECONDS)] += length;
+                downloadBytesTotal += length;
+            }
+            Long requestTime = hash != null ? blockRequestTimes.remove(hash) : null;
+            if (requestTime == null)
+                return;
+            long sample = now - Math.max(requestTime, lastBlockResponseTime);
+            lastBlockResponseTime = now;
+            if (lastBlockResponseTimes == null) {
+                lastBlockResponseTimes = new long[PING_MOVING_AVERAGE_WINDOW];
+                Arrays.fill(lastBlockResponseTimes, sample);
+            } else {
+                System.arraycopy(lastBlockResponseTimes, 1, lastBlockResponseTimes, 0, lastBlockResponseTimes.length - 1);
+                lastBlockResponseTimes[lastBlockResponseTimes.length - 1] = sample;
+            }
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /** Moves the download speed window forward to the given time, zeroing the seconds in which nothing arrived. */
+    @GuardedBy("downloadStatsLock")
+    private void rollDownloadBuckets(long nowMillis) {
+        long second = nowMillis / 1000;
+        long elapsed = second - downloadBucketsSecond;
+        if (elapsed <= 0)
+            return;
+        if (elapsed >= DOWNLOAD_SPEED_WINDOW_SECONDS) {
+            Arrays.fill(downloadBuckets, 0);
+        } else {
+            for (long s = downloadBucketsSecond + 1; s <= second; s++)
+                downloadBuckets[(int) (s % DOWNLOAD_SPEED_WINDOW_SECONDS)] = 0;
+        }
+        downloadBucketsSecond = second;
+    }
+
+    /**
+     * Returns how many bytes per second of block data (blocks, filtered blocks and the transactions that accompany
+     * them) this peer sent us, averaged over the last ten seconds. Peers that aren't serving us the chain will
+     * usually report zero.
+     */
+    public long getDownloadSpeed() {
+        downloadStatsLock.lock();
+        try {
+            rollDownloadBuckets(Utils.currentTimeMillis());
+            long sum = 0;
+            for (long bucket : downloadBuckets) sum += bucket;
+            return sum / DOWNLOAD_SPEED_WINDOW_SECONDS;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /** Returns the total number of bytes of block data received from this peer. */
+    public long getDownloadedBytes() {
+        downloadStatsLock.lock();
+        try {
+            return downloadBytesTotal;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a moving average of how many milliseconds the peer took to answer each block requested during chain
+     * download. If no requested block was received yet, returns {@link Long#MAX_VALUE}.
+     */
+    public long getBlockResponseTime() {
+        downloadStatsLock.lock();
+        try {
+            if (lastBlockResponseTimes == null)
+                return Long.MAX_VALUE;
+            long sum = 0;
+            for (long i : lastBlockResponseTimes) sum += i;
+            return (long)((double) sum / lastBlockResponseTimes.length);
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /** Returns how many blocks requested as part of the chain download are still on their way. */
+    public int getPendingBlockRequests() {
+        downloadStatsLock.lock();
+        try {
+            return blockRequestTimes.size();
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many milliseconds we've been waiting for the next requested block to arrive, or zero if no
+     * requests are outstanding. A peer that stopped answering shows up here long before its average speed drops.
+     */
+    public long getBlockResponseWaitTime() {
+        downloadStatsLock.lock();
+        try {
+            if (blockRequestTimes.isEmpty())
+                return 0;
+            long oldestRequest = blockRequestTimes.values().iterator().next();
+            return Math.max(0, Utils.currentTimeMillis() - Math.max(oldestRequest, lastBlockResponseTime));
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
     private void processPing(Ping m) {
         if (m.hasNonce())
             sendMessage(new Pong(m.getNonce()));
@@ -1661,6 +2115,42 @@ public class Peer extends PeerSocketHandler {
      */
     public void setDownloadData(boolean downloadData) {
         this.vDownloadData = downloadData;
+        if (!downloadData) {
+            // Whatever is still in flight will be dropped on arrival, so stop waiting for it.
+            lock.lock();
+            try {
+                blocksToRequest.clear();
+                pendingBlockDownloads.clear();
+                nextGetBlocksFrom = null;
+                getBlocksAhead = false;
+            } finally {
+                lock.unlock();
+            }
+            downloadStatsLock.lock();
+            try {
+                blockRequestTimes.clear();
+            } finally {
+                downloadStatsLock.unlock();
+            }
+            // The compact filter batch, if any, gives up once it sees the failure.
+            if (vCompactFilterClient != null)
+                failCompactFilterRequests(new PeerException("No longer the download peer"));
+        }
+    }
+
+    /**
+     * Sets how many blocks or filtered blocks can be requested from this peer at once during chain download. Blocks
+     * are requested again once half of them arrived, so that the peer always has work queued up. Defaults to
+     * {@link #DEFAULT_MAX_BLOCKS_IN_FLIGHT}.
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight > 0, "maxBlocksInFlight must be positive");
+        this.vMaxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    /** Returns how many blocks can be requested from this peer at once during chain download. */
+    public int getMaxBlocksInFlight() {
+        return vMaxBlocksInFlight;
     }
 
     /** Returns version data announced by the remote peer. */
@@ -1742,6 +2232,29 @@ public class Peer extends PeerSocketHandler {
         maybeRestartChainDownload();
     }
 
+    /**
+     * <p>Inserts the given data elements into the Bloom filter already set on this connection, sending one
+     * {@link FilterAddMessage} for each instead of the whole filter again. The given filter must be the current filter
+     * with the elements inserted: it replaces the current filter, so that the remote peer and this object agree on it
+     * and it's what gets resent every so often.</p>
+     *
+     * <p>Returns false, and does nothing, if no filter was set yet or the remote peer doesn't support Bloom filtering.
+     * Like {@link #setBloomFilter(BloomFilter, boolean)}, you should not use this method if your app uses a
+     * {@link PeerGroup}.</p>
+     */
+    public boolean addToBloomFilter(List<byte[]> elements, BloomFilter updatedFilter) {
+        checkNotNull(updatedFilter);
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported() || vBloomFilter == null)
+            return false;
+        vBloomFilter = updatedFilter;
+        log.debug("{}: Adding {} elements to Bloom filter", this, elements.size());
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(params, element));
+        maybeRestartChainDownload();
+        return true;
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
@@ -1758,19 +2271,20 @@ public class Peer extends PeerSocketHandler {
                 @Override
                 public void run() {
                     lock.lock();
-                    checkNotNull(awaitingFreshFilter);
-                    GetDataMessage getdata = new GetDataMessage(params);
-                    for (Sha256Hash hash : awaitingFreshFilter)
-                        getdata.addFilteredBlock(hash);
-                    awaitingFreshFilter = null;
-                    lock.unlock();
-
-                    log.info("Restarting chain download");
-                    sendMessage(getdata);
-                    // TODO: This bizarre ping-after-getdata hack probably isn't necessary.
-                    // It's to ensure we know when the end of a filtered block stream of txns is, but we should just be
-                    // able to match txns with the merkleblock. Ask Matt why it's written this way.
-                    sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+                    try {
+                        checkNotNull(awaitingFreshFilter);
+                        // The discarded blocks go first, ahead of those announced but not requested yet, and are
+                        // requested through the usual pipeline so they're tracked and windowed like any other.
+                        List<Sha256Hash> notRequested = new ArrayList<Sha256Hash>(blocksToRequest);
+                        blocksToRequest.clear();
+                        blocksToRequest.addAll(awaitingFreshFilter);
+                        blocksToRequest.addAll(notRequested);
+                        awaitingFreshFilter = null;
+                        log.info("Restarting chain download");
+                        requestMoreBlocksLocked();
+                    } finally {
+                        lock.unlock();
+                    }
                 }
             }, Threading.SAME_THREAD);
         } finally {
@@ -1829,6 +2343,124 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Sets the client used to sync the chain with BIP 157 compact block filters, or null to go back to downloading
+     * (filtered) blocks. Normally {@link PeerGroup#enableCompactFilters(org.bitcoinj.store.CompactFilterStore)} does
+     * this for every peer.
+     */
+    public void setCompactFilterClient(@Nullable CompactFilterClient client) {
+        lock.lock();
+        try {
+            vCompactFilterClient = client;
+            if (client != null)
+                downloadBlockBodies = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the compact filter client set on this peer, or null if the chain is synced with block downloads. */
+    @Nullable
+    public CompactFilterClient getCompactFilterClient() {
+        return vCompactFilterClient;
+    }
+
+    /**
+     * Asks the remote peer for the basic filter hashes of the blocks from the given height up to the given block, and
+     * the filter header before them. At most {@link GetCFHeadersMessage#MAX_HEADERS} can be requested at once.
+     *
+     * @throws ProtocolException if this peer doesn't serve compact filters.
+     */
+    public ListenableFuture<CFHeadersMessage> getCFHeaders(long startHeight, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            if (!getPeerVersionMessage().isCompactFilteringSupported())
+                throw new ProtocolException("Peer does not serve compact filters");
+            SettableFuture<CFHeadersMessage> future = SettableFuture.create();
+            if (getCFHeadersFutures.isEmpty() && getCFiltersRequests.isEmpty())
+                lastCompactFilterResponseTime = Utils.currentTimeMillis();
+            getCFHeadersFutures.add(future);
+            sendMessage(new GetCFHeadersMessage(params, CFilterMessage.BASIC_FILTER_TYPE, startHeight, stopHash));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the remote peer for the basic filters of the blocks from the given height up to the given block. The future
+     * completes with the filters in ascending height order once the filter of the stop block has arrived. At most
+     * {@link GetCFiltersMessage#MAX_FILTERS} can be requested at once.
+     *
+     * @throws ProtocolException if this peer doesn't serve compact filters.
+     */
+    public ListenableFuture<List<CFilterMessage>> getCFilters(long startHeight, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            if (!getPeerVersionMessage().isCompactFilteringSupported())
+                throw new ProtocolException("Peer does not serve compact filters");
+            GetCFiltersRequest request = new GetCFiltersRequest(stopHash);
+            if (getCFHeadersFutures.isEmpty() && getCFiltersRequests.isEmpty())
+                lastCompactFilterResponseTime = Utils.currentTimeMillis();
+            getCFiltersRequests.add(request);
+            sendMessage(new GetCFiltersMessage(params, CFilterMessage.BASIC_FILTER_TYPE, startHeight, stopHash));
+            return request.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many milliseconds we've been waiting for the next answer to a compact filter request, or zero if no
+     * requests are outstanding. {@link PeerGroup} moves the chain download to another peer if this gets too long.
+     */
+    public long getCompactFilterResponseWaitTime() {
+        lock.lock();
+        try {
+            if (getCFHeadersFutures.isEmpty() && getCFiltersRequests.isEmpty())
+                return 0;
+            return Math.max(0, Utils.currentTimeMillis() - lastCompactFilterResponseTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Fails all outstanding compact filter requests with the given exception. */
+    private void failCompactFilterRequests(Throwable t) {
+        List<SettableFuture<CFHeadersMessage>> headersFutures;
+        List<GetCFiltersRequest> filtersRequests;
+        lock.lock();
+        try {
+            headersFutures = new ArrayList<SettableFuture<CFHeadersMessage>>(getCFHeadersFutures);
+            filtersRequests = new ArrayList<GetCFiltersRequest>(getCFiltersRequests);
+            getCFHeadersFutures.clear();
+            getCFiltersRequests.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (SettableFuture<CFHeadersMessage> future : headersFutures)
+            future.setException(t);
+        for (GetCFiltersRequest request : filtersRequests)
+            request.future.setException(t);
+    }
+
+    /**
+     * Continues the chain download from the current chain head, after the compact filter client rolled the chain back
+     * for a rescan. Does nothing if this isn't the download peer or a batch of headers is still being worked on, as
+     * the next request is made when that batch is done.
+     */
+    void restartCompactFilterDownload() {
+        lock.lock();
+        try {
+            if (!vDownloadData || compactFilterBatchInFlight)
+                return;
+            lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns true if this peer will use getdata/notfound messages to walk backwards through transaction dependencies
      * before handing the transaction off to the wallet. The wallet can do risk analysis on pending/recent transactions
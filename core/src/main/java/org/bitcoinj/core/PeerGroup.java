@@ -28,12 +28,18 @@ import com.subgraph.orchid.*;
 import net.jcip.annotations.*;
 import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.crypto.*;
+import org.bitcoinj.metrics.Counter;
+import org.bitcoinj.metrics.Gauge;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.net.*;
 import org.bitcoinj.net.discovery.*;
 import org.bitcoinj.script.*;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CompactFilterStore;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletDispatcher;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
@@ -44,6 +50,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -85,6 +92,10 @@ public class PeerGroup implements TransactionBroadcaster {
      */
     public static final int DEFAULT_CONNECTIONS = 12;
     private static final int TOR_TIMEOUT_SECONDS = 60;
+    /** How often an address book given to {@link #setAddressBook(AddressBook)} is saved. */
+    public static final int ADDRESS_BOOK_SAVE_INTERVAL_MINUTES = 5;
+    // New peers are asked for addresses while the address book holds fewer than this many.
+    private static final int ADDRESS_BOOK_GETADDR_THRESHOLD = 1000;
     private volatile int vMaxPeersToDiscoverCount = 100;
     private static final long DEFAULT_PEER_DISCOVERY_TIMEOUT_MILLIS = 5000;
     private volatile long vPeerDiscoveryTimeoutMillis = DEFAULT_PEER_DISCOVERY_TIMEOUT_MILLIS;
@@ -107,16 +118,38 @@ public class PeerGroup implements TransactionBroadcaster {
     // Addresses to try to connect to, excluding active peers.
     @GuardedBy("lock") private final PriorityQueue<PeerAddress> inactives;
     @GuardedBy("lock") private final Map<PeerAddress, ExponentialBackoff> backoffMap;
+    // Optional persistent record of peers, used to connect to known good ones first.
+    @Nullable private volatile AddressBook vAddressBook;
+    // Position of addresses taken from the address book, best first, which orders inactives that are otherwise equal.
+    @GuardedBy("lock") private final Map<PeerAddress, Integer> addressBookRanks = new HashMap<PeerAddress, Integer>();
 
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
     // Currently connecting peers.
     private final CopyOnWriteArrayList<Peer> pendingPeers;
+    // Published in the default metric registry while running.
+    private final Gauge connectedPeersGauge = new Gauge() {
+        @Override
+        public long getValue() {
+            return peers.size();
+        }
+    };
+    private final Gauge pendingPeersGauge = new Gauge() {
+        @Override
+        public long getValue() {
+            return pendingPeers.size();
+        }
+    };
+    private static final Counter peerConnects = MetricRegistry.getDefault().counter("peergroup.peers.connects");
+    private static final Counter peerDeaths = MetricRegistry.getDefault().counter("peergroup.peers.deaths");
     private final ClientConnectionManager channels;
     @Nullable private final TorClient torClient;
 
     // The peer that has been selected for the purposes of downloading announced data.
     @GuardedBy("lock") private Peer downloadPeer;
+    // Peers we moved the chain download away from because they were too slow. They are only picked again when
+    // nobody else is available.
+    @GuardedBy("lock") private final Set<Peer> slowDownloadPeers = new HashSet<Peer>();
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
@@ -160,6 +193,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
+    private final CopyOnWriteArrayList<WalletDispatcher> walletDispatchers;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
     // This event listener is added to every peer. It's here so when we announce transactions via an "inv", every
@@ -175,6 +209,13 @@ public class PeerGroup implements TransactionBroadcaster {
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
+            // The same elements the key chains insert into their filters, so they can be sent to peers one by one.
+            List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+            for (ECKey key : keys) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+            }
+            addPendingFilterElements(elements);
             recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
         }
     };
@@ -206,6 +247,7 @@ public class PeerGroup implements TransactionBroadcaster {
             // and shouldn't, we should just recalculate and cache the new filter for next time.
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.getScriptPubKey().isSentToRawPubKey() && output.isMine(wallet)) {
+                    addPendingFilterElements(Collections.singletonList(output.getOutPointFor().unsafeBitcoinSerialize()));
                     if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
                         recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
                     else
@@ -225,6 +267,8 @@ public class PeerGroup implements TransactionBroadcaster {
     // being garbage collected if nothing in the apps code holds on to them transitively. See the discussion
     // in broadcastTransaction.
     private final Set<TransactionBroadcast> runningBroadcasts;
+    // Created on first use by queueTransactionBroadcast.
+    @GuardedBy("lock") @Nullable private TransactionBroadcastQueue broadcastQueue;
 
     private class PeerListener implements GetDataEventListener, BlocksDownloadedEventListener {
 
@@ -265,6 +309,17 @@ public class PeerGroup implements TransactionBroadcaster {
 
     private final PeerStartupListener startupListener = new PeerStartupListener();
 
+    // Records addresses gossiped by connected peers in the address book, if there is one.
+    private final PreMessageReceivedEventListener addressBookListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            AddressBook addressBook = vAddressBook;
+            if (addressBook != null && m instanceof AddressMessage)
+                addressBook.addAll(((AddressMessage) m).getAddresses());
+            return m;
+        }
+    };
+
     /**
      * The default Bloom filter false positive rate, which is selected to be extremely low such that you hardly ever
      * download false positives. This provides maximum performance. Although this default can be overridden to push
@@ -276,9 +331,23 @@ public class PeerGroup implements TransactionBroadcaster {
     public static final double DEFAULT_BLOOM_FILTER_FP_RATE = 0.00001;
     /** Maximum increase in FP rate before forced refresh of the bloom filter */
     public static final double MAX_FP_RATE_INCREASE = 10.0f;
+    /**
+     * Maximum increase in the estimated FP rate of a peers filter, compared to the configured rate, up to which new
+     * elements are sent with filteradd messages instead of a whole new filter.
+     */
+    public static final double MAX_INCREMENTAL_FP_RATE_INCREASE = 2.0;
+    // Beyond this many new elements the whole filter is sent instead, as at about 80 bytes per filteradd message they
+    // would take more bandwidth than even the largest possible filter.
+    private static final int MAX_FILTERADD_ELEMENTS = 450;
     // An object that calculates bloom filters given a list of filter providers, whilst tracking some state useful
     // for privacy purposes.
     private final FilterMerger bloomFilterMerger;
+    // Elements added to the filter providers since the last filter recalculation, that can be sent to peers with
+    // filteradd if nothing else changed.
+    @GuardedBy("pendingFilterElements") private final List<byte[]> pendingFilterElements = new ArrayList<byte[]>();
+    // How often a changed filter was sent to peers as a whole, or with filteradd messages only.
+    private final AtomicLong fullFilterUpdates = new AtomicLong();
+    private final AtomicLong incrementalFilterUpdates = new AtomicLong();
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
@@ -286,6 +355,8 @@ public class PeerGroup implements TransactionBroadcaster {
     
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
+    // Set when the chain is synced with BIP 157 compact filters instead of Bloom filters.
+    @Nullable private volatile CompactFilterClient vCompactFilterClient;
 
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
@@ -401,6 +472,7 @@ public class PeerGroup implements TransactionBroadcaster {
         this.chain = chain;
         fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         wallets = new CopyOnWriteArrayList<Wallet>();
+        walletDispatchers = new CopyOnWriteArrayList<WalletDispatcher>();
         peerFilterProviders = new CopyOnWriteArrayList<PeerFilterProvider>();
         this.torClient = torClient;
 
@@ -424,6 +496,9 @@ public class PeerGroup implements TransactionBroadcaster {
             public int compare(PeerAddress a, PeerAddress b) {
                 checkState(lock.isHeldByCurrentThread());
                 int result = backoffMap.get(a).compareTo(backoffMap.get(b));
+                // Prefer the better of two addresses from the address book
+                if (result == 0)
+                    result = Ints.compare(addressBookRank(a), addressBookRank(b));
                 // Sort by port if otherwise equals - for testing
                 if (result == 0)
                     result = Ints.compare(a.getPort(), b.getPort());
@@ -573,9 +648,12 @@ public class PeerGroup implements TransactionBroadcaster {
                     }
                     return;
                 } else {
-                    do {
+                    addrToTry = inactives.poll();
+                    while (ipv6Unreachable && addrToTry.getAddr() instanceof Inet6Address) {
+                        // Dropped for good, so it doesn't need a rank any more.
+                        addressBookRanks.remove(addrToTry);
                         addrToTry = inactives.poll();
-                    } while (ipv6Unreachable && addrToTry.getAddr() instanceof Inet6Address);
+                    }
                     retryTime = backoffMap.get(addrToTry).getRetryTime();
                 }
                 retryTime = Math.max(retryTime, groupBackoff.getRetryTime());
@@ -623,12 +701,19 @@ public class PeerGroup implements TransactionBroadcaster {
             while (it.hasNext()) {
                 InventoryItem item = it.next();
                 // Check the wallets.
+                Transaction found = null;
                 for (Wallet w : wallets) {
-                    Transaction tx = w.getTransaction(item.hash);
-                    if (tx == null) continue;
-                    transactions.add(tx);
+                    found = w.getTransaction(item.hash);
+                    if (found != null) break;
+                }
+                for (int i = 0; found == null && i < walletDispatchers.size(); i++)
+                    found = walletDispatchers.get(i).getTransaction(item.hash);
+                // And the transactions we are broadcasting through the queue.
+                if (found == null && broadcastQueue != null)
+                    found = broadcastQueue.getTransaction(item.hash);
+                if (found != null) {
+                    transactions.add(found);
                     it.remove();
-                    break;
                 }
             }
             return transactions;
@@ -1036,6 +1121,70 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Gives the group an {@link AddressBook} to learn about peers with. The best scoring addresses in the book are
+     * queued straight away, ahead of anything from the peer discovery sources, so that a restart reconnects to peers
+     * that worked well last time rather than waiting on discovery and probing unknown addresses.</p>
+     *
+     * <p>From then on the book records addresses gossiped by connected peers, the outcome of each connection attempt
+     * and every peer's ping time and chain height. It is saved every {@link #ADDRESS_BOOK_SAVE_INTERVAL_MINUTES}
+     * minutes and when the group stops. Can only be set once.</p>
+     */
+    public void setAddressBook(AddressBook addressBook) {
+        checkNotNull(addressBook);
+        lock.lock();
+        try {
+            checkState(vAddressBook == null, "Address book already set");
+            vAddressBook = addressBook;
+            List<PeerAddress> best = addressBook.getBestAddresses(vMaxPeersToDiscoverCount, requiredServices);
+            for (int i = 0; i < best.size(); i++) {
+                PeerAddress address = best.get(i);
+                // The queue's ordering depends on the rank, so it must be in place before the address is queued, and
+                // an address discovery already queued has to come out while its rank changes.
+                boolean queued = inactives.remove(address);
+                addressBookRanks.put(address, i);
+                if (queued)
+                    inactives.offer(address);
+                else
+                    addInactive(address);
+            }
+            log.info("Queued {} addresses from {}", best.size(), addressBook);
+            if (!best.isEmpty() && getMaxConnections() == 0)
+                setMaxConnections(DEFAULT_CONNECTIONS);
+        } finally {
+            lock.unlock();
+        }
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveAddressBook();
+            }
+        }, ADDRESS_BOOK_SAVE_INTERVAL_MINUTES, ADDRESS_BOOK_SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /** Returns the address book given to {@link #setAddressBook(AddressBook)}, or null. */
+    @Nullable
+    public AddressBook getAddressBook() {
+        return vAddressBook;
+    }
+
+    @GuardedBy("lock")
+    private int addressBookRank(PeerAddress address) {
+        Integer rank = addressBookRanks.get(address);
+        return rank != null ? rank : Integer.MAX_VALUE;
+    }
+
+    private void saveAddressBook() {
+        AddressBook addressBook = vAddressBook;
+        if (addressBook == null)
+            return;
+        try {
+            addressBook.save();
+        } catch (IOException e) {
+            log.warn("Failed to save address book", e);
+        }
+    }
+
     /** Returns number of discovered peers. */
     protected int discoverPeers() throws PeerDiscoveryException {
         // Don't hold the lock whilst doing peer discovery: it can take a long time and cause high API latency.
@@ -1130,6 +1279,8 @@ public class PeerGroup implements TransactionBroadcaster {
         checkState(!vUsedUp, "Cannot start a peer group twice");
         vRunning = true;
         vUsedUp = true;
+        MetricRegistry.getDefault().register("peergroup.peers.connected", connectedPeersGauge);
+        MetricRegistry.getDefault().register("peergroup.peers.pending", pendingPeersGauge);
         executorStartupLatch.countDown();
         // We do blocking waits during startup, so run on the executor thread.
         return executor.submit(new Runnable() {
@@ -1172,14 +1323,22 @@ public class PeerGroup implements TransactionBroadcaster {
     public ListenableFuture stopAsync() {
         checkState(vRunning);
         vRunning = false;
+        MetricRegistry.getDefault().remove("peergroup.peers.connected", connectedPeersGauge);
+        MetricRegistry.getDefault().remove("peergroup.peers.pending", pendingPeersGauge);
         ListenableFuture future = executor.submit(new Runnable() {
             @Override
             public void run() {
                 try {
                     log.info("Stopping ...");
+                    // Peer deaths aren't tracked once we stop running, so capture what we learned about them now.
+                    AddressBook addressBook = vAddressBook;
+                    if (addressBook != null)
+                        for (Peer peer : peers)
+                            addressBook.recordStats(peer.getAddress(), peer.getPingTime(), peer.getBestHeight());
                     // Blocking close of all sockets.
                     channels.stopAsync();
                     channels.awaitTerminated();
+                    saveAddressBook();
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
@@ -1245,6 +1404,8 @@ public class PeerGroup implements TransactionBroadcaster {
             wallet.addKeyChainEventListener(Threading.SAME_THREAD, walletKeyEventListener);
             wallet.addScriptChangeEventListener(Threading.SAME_THREAD, walletScriptEventListener);
             addPeerFilterProvider(wallet);
+            if (vCompactFilterClient != null)
+                vCompactFilterClient.addWallet(wallet);
             for (Peer peer : peers) {
                 peer.addWallet(wallet);
             }
@@ -1317,11 +1478,58 @@ public class PeerGroup implements TransactionBroadcaster {
         wallet.removeKeyChainEventListener(walletKeyEventListener);
         wallet.removeScriptChangeEventListener(walletScriptEventListener);
         wallet.setTransactionBroadcaster(null);
+        if (vCompactFilterClient != null)
+            vCompactFilterClient.removeWallet(wallet);
         for (Peer peer : peers) {
             peer.removeWallet(wallet);
         }        
     }
 
+    /**
+     * <p>Link the given wallet dispatcher to this PeerGroup. This is the equivalent of
+     * {@link PeerGroup#addWallet(Wallet)} for all the wallets hosted by the dispatcher: they receive broadcast
+     * transactions that are relevant to them, their transactions are announced and the dispatcher provides a single
+     * combined Bloom filter for all of them. Don't add the hosted wallets individually as well.</p>
+     *
+     * <p>Remember to use {@link PeerGroup#removeWalletDispatcher(WalletDispatcher)} if you wish to keep the dispatcher
+     * but lose the PeerGroup.</p>
+     */
+    public void addWalletDispatcher(WalletDispatcher dispatcher) {
+        lock.lock();
+        try {
+            checkNotNull(dispatcher);
+            checkState(!walletDispatchers.contains(dispatcher));
+            walletDispatchers.add(dispatcher);
+            dispatcher.setTransactionBroadcaster(this);
+            dispatcher.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletCoinsReceivedEventListener);
+            dispatcher.addKeyChainEventListener(Threading.SAME_THREAD, walletKeyEventListener);
+            dispatcher.addScriptChangeEventListener(Threading.SAME_THREAD, walletScriptEventListener);
+            addPeerFilterProvider(dispatcher);
+            if (vCompactFilterClient != null)
+                vCompactFilterClient.addWalletDispatcher(dispatcher);
+            for (Peer peer : peers) {
+                peer.addWalletDispatcher(dispatcher);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Unlinks the given wallet dispatcher. See {@link PeerGroup#addWalletDispatcher(WalletDispatcher)}. */
+    public void removeWalletDispatcher(WalletDispatcher dispatcher) {
+        walletDispatchers.remove(checkNotNull(dispatcher));
+        peerFilterProviders.remove(dispatcher);
+        dispatcher.removeCoinsReceivedEventListener(walletCoinsReceivedEventListener);
+        dispatcher.removeKeyChainEventListener(walletKeyEventListener);
+        dispatcher.removeScriptChangeEventListener(walletScriptEventListener);
+        dispatcher.setTransactionBroadcaster(null);
+        if (vCompactFilterClient != null)
+            vCompactFilterClient.removeWalletDispatcher(dispatcher);
+        for (Peer peer : peers) {
+            peer.removeWalletDispatcher(dispatcher);
+        }
+    }
+
     public enum FilterRecalculateMode {
         SEND_IF_CHANGED,
         FORCE_SEND_FOR_REFRESH,
@@ -1335,6 +1543,11 @@ public class PeerGroup implements TransactionBroadcaster {
      * (instead of only headers). Note that calls made one after another may return the same future, if the request
      * wasn't processed yet (i.e. calls are deduplicated).
      *
+     * <p>In {@link FilterRecalculateMode#SEND_IF_CHANGED} mode, if the only change is keys or pay-to-pubkey outpoints
+     * added to the wallets, peers are sent just those with {@link FilterAddMessage}s, as long as the false positive
+     * rate of their filter stays within {@link #MAX_INCREMENTAL_FP_RATE_INCREASE} of the configured rate. Otherwise
+     * the whole filter is sent.</p>
+     *
      * @param mode In what situations to send the filter to connected peers.
      * @return a future that completes once the filter has been calculated (note: this does not mean acknowledged by remote peers).
      */
@@ -1357,6 +1570,21 @@ public class PeerGroup implements TransactionBroadcaster {
 
             public void go() {
                 checkState(!lock.isHeldByCurrentThread());
+                // Taken before calculating, so all of these are part of the new filter.
+                List<byte[]> addedElements = takePendingFilterElements();
+                if (vCompactFilterClient != null) {
+                    // There is no Bloom filter to send, but the client still skips filters before the oldest key.
+                    long earliestKeyTimeSecs = Long.MAX_VALUE;
+                    for (PeerFilterProvider provider : peerFilterProviders)
+                        earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, provider.getEarliestKeyCreationTime());
+                    if (earliestKeyTimeSecs != Long.MAX_VALUE)
+                        setFastCatchupTimeSecs(earliestKeyTimeSecs - 86400 * 7);
+                    synchronized (inFlightRecalculations) {
+                        inFlightRecalculations.put(mode, null);
+                    }
+                    future.set(null);
+                    return;
+                }
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
                 if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
                     return;
@@ -1377,12 +1605,26 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new UnsupportedOperationException();
                 }
                 if (send) {
+                    // Peers that already have a filter covering everything but the added elements only get those.
+                    boolean incremental = mode == FilterRecalculateMode.SEND_IF_CHANGED
+                            && isIncrementalFilterUpdatePossible(addedElements);
+                    boolean sentWholeFilter = false, sentElements = false;
+                    Map<BloomFilter, BloomFilter> updatedFilters = new IdentityHashMap<BloomFilter, BloomFilter>();
                     for (Peer peer : peers /* COW */) {
+                        if (incremental && maybeAddToBloomFilter(peer, result.filter, addedElements, updatedFilters)) {
+                            sentElements = true;
+                            continue;
+                        }
                         // Only query the mempool if this recalculation request is not in order to lower the observed FP
                         // rate. There's no point querying the mempool when doing this because the FP rate can only go
                         // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
                         peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+                        sentWholeFilter = true;
                     }
+                    if (sentWholeFilter)
+                        fullFilterUpdates.incrementAndGet();
+                    else if (sentElements)
+                        incrementalFilterUpdates.incrementAndGet();
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
                     if (chain != null)
@@ -1404,6 +1646,73 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
     
+    private void addPendingFilterElements(List<byte[]> elements) {
+        if (!vBloomFilteringEnabled)
+            return;
+        synchronized (pendingFilterElements) {
+            pendingFilterElements.addAll(elements);
+        }
+    }
+
+    private List<byte[]> takePendingFilterElements() {
+        synchronized (pendingFilterElements) {
+            List<byte[]> elements = new ArrayList<byte[]>(pendingFilterElements);
+            pendingFilterElements.clear();
+            return elements;
+        }
+    }
+
+    private static boolean isIncrementalFilterUpdatePossible(List<byte[]> elements) {
+        if (elements.isEmpty() || elements.size() > MAX_FILTERADD_ELEMENTS)
+            return false;
+        for (byte[] element : elements)
+            if (element.length > FilterAddMessage.MAX_DATA_SIZE)
+                return false;
+        return true;
+    }
+
+    /**
+     * Sends the added elements to the given peer if its current filter, with those elements, matches everything the
+     * new filter matches and the false positive rate of the result is still acceptable. Returns false if the peer needs
+     * the whole new filter instead. Peers usually share their current filter, the result is kept in updatedFilters.
+     */
+    private boolean maybeAddToBloomFilter(Peer peer, BloomFilter filter, List<byte[]> elements,
+                                          Map<BloomFilter, BloomFilter> updatedFilters) {
+        BloomFilter current = peer.getBloomFilter();
+        if (current == null)
+            return false;
+        BloomFilter updated;
+        if (updatedFilters.containsKey(current)) {
+            updated = updatedFilters.get(current);
+        } else {
+            updated = new BloomFilter(current);
+            for (byte[] element : elements)
+                updated.insert(element);
+            double maxRate = bloomFilterMerger.getBloomFilterFPRate() * MAX_INCREMENTAL_FP_RATE_INCREASE;
+            if (!updated.containsAll(filter) || updated.getEstimatedFalsePositiveRate() > maxRate)
+                updated = null;
+            updatedFilters.put(current, updated);
+        }
+        return updated != null && peer.addToBloomFilter(elements, updated);
+    }
+
+    /**
+     * Returns how many times a changed Bloom filter was sent to the connected peers as a whole, because it could not
+     * be updated with filteradd messages. Together with {@link #getIncrementalFilterUpdateCount()} this shows how
+     * often the filter is rebuilt.
+     */
+    public long getFullFilterUpdateCount() {
+        return fullFilterUpdates.get();
+    }
+
+    /**
+     * Returns how many times the Bloom filters of the connected peers were brought up to date by sending only the
+     * newly added keys and outpoints with filteradd messages.
+     */
+    public long getIncrementalFilterUpdateCount() {
+        return incrementalFilterUpdates.get();
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1548,7 +1857,12 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: be more nuanced about which peer to download from.  We can also try
             // downloading from multiple peers and handle the case when a new peer comes along
             // with a longer chain after we thought we were done.
-            if (!peers.isEmpty()) {
+            if (vCompactFilterClient != null) {
+                // Only peers serving compact filters can sync the chain in this mode.
+                Peer peer = selectDownloadPeer(peers);
+                if (peer != null)
+                    startBlockChainDownloadFromPeer(peer);
+            } else if (!peers.isEmpty()) {
                 startBlockChainDownloadFromPeer(peers.iterator().next()); // Will add the new download listener
             }
         } finally {
@@ -1602,25 +1916,41 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
+            AddressBook addressBook = vAddressBook;
+            if (addressBook != null) {
+                addressBook.recordSuccess(peer.getAddress(), peer.getPeerVersionMessage().localServices,
+                        peer.getBestHeight());
+                peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, addressBookListener);
+                // Ask for more addresses while the book is still small, as a fresh one only has discovery results.
+                if (addressBook.size() < ADDRESS_BOOK_GETADDR_THRESHOLD)
+                    peer.sendMessage(new GetAddrMessage(params));
+            }
 
             // Sets up the newly connected peer so it can do everything it needs to.
             pendingPeers.remove(peer);
             peers.add(peer);
             newSize = peers.size();
+            peerConnects.inc();
             log.info("{}: New peer      ({} connected, {} pending, {} max)", peer, newSize, pendingPeers.size(), maxConnections);
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
-            if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
+            // With compact filters, a Bloom filter computed before they were enabled must not reach the peer.
+            if (vCompactFilterClient == null && bloomFilterMerger.getLastFilter() != null)
+                peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            peer.setCompactFilterClient(vCompactFilterClient);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            for (WalletDispatcher dispatcher : walletDispatchers)
+                peer.addWalletDispatcher(dispatcher);
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
                 boolean shouldDownloadChain = downloadListener != null && chain != null;
-                if (shouldDownloadChain) {
+                // With compact filters, there may be no peer serving them yet.
+                if (shouldDownloadChain && downloadPeer != null) {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
             }
@@ -1763,10 +2093,19 @@ public class PeerGroup implements TransactionBroadcaster {
         lock.lock();
         try {
             pendingPeers.remove(peer);
-            peers.remove(peer);
+            boolean wasConnected = peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            AddressBook addressBook = vAddressBook;
+            if (addressBook != null) {
+                if (wasConnected)
+                    addressBook.recordStats(address, peer.getPingTime(), peer.getBestHeight());
+                else
+                    addressBook.recordFailure(address);
+            }
 
+            slowDownloadPeers.remove(peer);
+            peerDeaths.inc();
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
@@ -1790,6 +2129,8 @@ public class PeerGroup implements TransactionBroadcaster {
                     ipv6Unreachable = true;
                     log.warn("IPv6 peer connect failed due to routing failure, ignoring IPv6 addresses from now on");
                 }
+                // Not put back on the inactive list, so it doesn't need a rank any more.
+                addressBookRanks.remove(address);
             } else {
                 backoffMap.get(address).trackFailure();
                 // Put back on inactive list
@@ -1808,6 +2149,9 @@ public class PeerGroup implements TransactionBroadcaster {
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        for (WalletDispatcher dispatcher : walletDispatchers) {
+            peer.removeWalletDispatcher(dispatcher);
+        }
 
         final int fNumConnectedPeers = numConnectedPeers;
 
@@ -1819,6 +2163,7 @@ public class PeerGroup implements TransactionBroadcaster {
             peer.removeGetDataEventListener(registration.listener);
         for (ListenerRegistration<PreMessageReceivedEventListener> registration: peersPreMessageReceivedEventListeners)
             peer.removePreMessageReceivedEventListener(registration.listener);
+        peer.removePreMessageReceivedEventListener(addressBookListener);
         for (ListenerRegistration<OnTransactionBroadcastListener> registration : peersTransactionBroadastEventListeners)
             peer.removeOnTransactionBroadcastListener(registration.listener);
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : peerDisconnectedEventListeners) {
@@ -1838,8 +2183,10 @@ public class PeerGroup implements TransactionBroadcaster {
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
      * unacceptably slowly. Once a peer has served us data slower than the given data rate for the given
-     * number of seconds, it is considered stalled and will be disconnected, forcing the chain download to continue
-     * from a different peer. The defaults are chosen conservatively, but if you are running on a platform that is
+     * number of seconds, or hasn't answered a block request for that long, it is considered stalled and the chain
+     * download moves to a different peer. If no other peer is available the stalled one is disconnected. On top of
+     * this fixed floor, a download peer is also replaced when it falls well behind the best speed seen recently
+     * during the same sync, see {@link Peer#getDownloadSpeed()}. The defaults are chosen conservatively, but if you are running on a platform that is
      * CPU constrained or on a very slow network e.g. EDGE, the default settings may need adjustment to
      * avoid false stalls.
      *
@@ -1867,6 +2214,11 @@ public class PeerGroup implements TransactionBroadcaster {
         // How many seconds the peer has until we start measuring its speed.
         private int warmupSeconds = -1;
 
+        // The best moving average seen during this sync, decaying a little every second so that a stretch of small
+        // blocks doesn't make every later peer look slow. A download peer that falls below a fraction of it is
+        // replaced by another peer, if there is one.
+        private double peakAverage;
+
         // Used to calculate a moving average.
         private long[] samples;
         private int cursor;
@@ -1917,13 +2269,21 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (samples == null || samples.length != period) {
                     samples = new long[period];
                     // *2 because otherwise a single low sample could cause an immediate disconnect which is too harsh.
-                    Arrays.fill(samples, minSpeedBytesPerSec * 2);
+                    // Likewise a new peer starts out at the recent best speed, so it isn't judged on the old one's.
+                    Arrays.fill(samples, Math.max(minSpeedBytesPerSec * 2, (long) peakAverage));
                     warmupSeconds = 15;
                 }
 
                 boolean behindPeers = chain != null && chain.getBestChainHeight() < getMostCommonChainHeight();
-                if (!behindPeers)
+                if (!behindPeers && !syncDone) {
                     syncDone = true;
+                    lock.lock();
+                    try {
+                        slowDownloadPeers.clear();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
                 if (!syncDone) {
                     if (warmupSeconds < 0) {
                         // Calculate the moving average.
@@ -1933,11 +2293,28 @@ public class PeerGroup implements TransactionBroadcaster {
                         for (long sample : samples) average += sample;
                         average /= samples.length;
 
+                        peakAverage = Math.max(peakAverage * PEAK_SPEED_DECAY, average);
+                        long threshold = Math.max(minSpeedBytesPerSec, (long) (peakAverage / SLOW_PEER_FACTOR));
+                        Peer peer = getDownloadPeer();
+                        // A peer that stopped answering compact filter requests stalls the sync just the same.
+                        long waitMillis = peer != null ? Math.max(peer.getBlockResponseWaitTime(),
+                                peer.getCompactFilterResponseWaitTime()) : 0;
+                        boolean unresponsive = waitMillis > period * 1000L;
+                        // Filter mode only downloads the blocks that match, so the byte rate says nothing about the
+                        // peer. Only a peer that stops answering is replaced then.
+                        boolean measureSpeed = vCompactFilterClient == null;
+
                         log.info(String.format(Locale.US, "%d blocks/sec, %d tx/sec, %d pre-filtered tx/sec, avg/last %.2f/%.2f kilobytes per sec (stall threshold <%.2f KB/sec for %d seconds)",
                                 blocksInLastSecond, txnsInLastSecond, origTxnsInLastSecond, average / 1024.0, bytesInLastSecond / 1024.0,
-                                minSpeedBytesPerSec / 1024.0, samples.length));
-
-                        if (average < minSpeedBytesPerSec && maxStalls > 0) {
+                                threshold / 1024.0, samples.length));
+
+                        if (peer != null && ((measureSpeed && average < threshold) || unresponsive) && switchDownloadPeer(peer)) {
+                            log.warn(String.format(Locale.US, "Chain download slow: received %.2f KB/sec for %d seconds (best recently %.2f KB/sec), no block for %d ms, moved away from %s",
+                                    average / 1024.0, samples.length, peakAverage / 1024.0, waitMillis, peer));
+                            // Reset the sample buffer and give the next peer time to get going.
+                            samples = null;
+                            warmupSeconds = period;
+                        } else if (((measureSpeed && average < minSpeedBytesPerSec) || unresponsive) && maxStalls > 0) {
                             maxStalls--;
                             if (maxStalls == 0) {
                                 // We could consider starting to drop the Bloom filtering FP rate at this point, because
@@ -1948,8 +2325,7 @@ public class PeerGroup implements TransactionBroadcaster {
                                 // as they don't give us a whole lot of privacy either way that's not inherently a big
                                 // deal.
                                 log.warn("This network seems to be slower than the requested stall threshold - won't do stall disconnects any more.");
-                            } else {
-                                Peer peer = getDownloadPeer();
+                            } else if (peer != null) {
                                 log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer));
                                 peer.close();
                                 // Reset the sample buffer and give the next peer time to get going.
@@ -1973,6 +2349,41 @@ public class PeerGroup implements TransactionBroadcaster {
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
+    // A download peer whose speed falls below the recent best divided by this is replaced.
+    private static final double SLOW_PEER_FACTOR = 4.0;
+    // How much of the recent best download speed is kept each second.
+    private static final double PEAK_SPEED_DECAY = 0.99;
+
+    /**
+     * Moves the chain download away from the given peer to another one, without disconnecting it. Returns false if
+     * the peer is no longer the download peer or there is nobody to take over who wasn't found to be slow already.
+     */
+    private boolean switchDownloadPeer(Peer slowPeer) {
+        lock.lock();
+        try {
+            if (downloadPeer != slowPeer)
+                return false;
+            List<Peer> others = new ArrayList<Peer>(peers);
+            others.remove(slowPeer);
+            slowDownloadPeers.add(slowPeer);
+            Peer newDownloadPeer = selectDownloadPeer(others);
+            if (newDownloadPeer == null || slowDownloadPeers.contains(newDownloadPeer)) {
+                slowDownloadPeers.remove(slowPeer);
+                return false;
+            }
+            log.info("Switching download peer from {} ({} bytes/sec, {} ms per block) to {}", slowPeer,
+                    slowPeer.getDownloadSpeed(), slowPeer.getBlockResponseTime(), newDownloadPeer);
+            if (chainDownloadSpeedCalculator != null)
+                slowPeer.removeBlocksDownloadedEventListener(chainDownloadSpeedCalculator);
+            setDownloadPeer(newDownloadPeer);
+            if (downloadListener != null)
+                startBlockChainDownloadFromPeer(newDownloadPeer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
@@ -2166,6 +2577,55 @@ public class PeerGroup implements TransactionBroadcaster {
         }
         final TransactionBroadcast broadcast = new TransactionBroadcast(this, tx);
         broadcast.setMinConnections(minConnections);
+        addBroadcastCallback(broadcast);
+        broadcast.broadcast();
+        return broadcast;
+    }
+
+    /**
+     * <p>Queues a transaction to be broadcast together with others, which suits applications that emit many
+     * transactions a minute far better than {@link #broadcastTransaction(Transaction)}. Queued transactions are
+     * announced by txid on a timer, many per inv message, to half of the connected peers, who then download them
+     * from us. See {@link #setBroadcastTrickleInterval(long)} for how often that happens.</p>
+     *
+     * <p>Propagation is tracked for all queued transactions together, with the same rules as a single broadcast: the
+     * returned broadcast's future completes once enough of the other peers announced the transaction back to us or
+     * it was mined, and fails if too many peers rejected it. Nothing is announced until
+     * {@link #getMinBroadcastConnections()} peers are connected.</p>
+     */
+    public TransactionBroadcast queueTransactionBroadcast(final Transaction tx) {
+        if (tx.getConfidence().getSource().equals(TransactionConfidence.Source.UNKNOWN)) {
+            log.info("Transaction source unknown, setting to SELF: {}", tx.getHashAsString());
+            tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        }
+        final TransactionBroadcast broadcast = new TransactionBroadcast(this, tx);
+        addBroadcastCallback(broadcast);
+        getBroadcastQueue().add(broadcast, tx);
+        return broadcast;
+    }
+
+    /**
+     * Sets how often transactions queued with {@link #queueTransactionBroadcast(Transaction)} are announced, in
+     * milliseconds. Longer intervals put more transactions into each announcement. Defaults to half a second.
+     */
+    public void setBroadcastTrickleInterval(long millis) {
+        getBroadcastQueue().setTrickleInterval(millis);
+    }
+
+    private TransactionBroadcastQueue getBroadcastQueue() {
+        lock.lock();
+        try {
+            if (broadcastQueue == null) {
+                broadcastQueue = new TransactionBroadcastQueue(this, executor);
+                addPreMessageReceivedEventListener(Threading.SAME_THREAD, broadcastQueue.rejectionListener);
+            }
+            return broadcastQueue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addBroadcastCallback(final TransactionBroadcast broadcast) {
         // Send the TX to the wallet once we have a successful broadcast.
         Futures.addCallback(broadcast.future(), new FutureCallback<Transaction>() {
             @Override
@@ -2186,6 +2646,15 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
                     }
                 }
+                for (WalletDispatcher dispatcher : walletDispatchers) {
+                    for (Wallet wallet : dispatcher.getCandidateWallets(transaction)) {
+                        try {
+                            wallet.receivePending(transaction, null);
+                        } catch (VerificationException e) {
+                            throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
+                        }
+                    }
+                }
             }
 
             @Override
@@ -2199,8 +2668,6 @@ public class PeerGroup implements TransactionBroadcaster {
         // eventually be collected. This in turn could result in the transaction not being committed to the wallet
         // at all.
         runningBroadcasts.add(broadcast);
-        broadcast.broadcast();
-        return broadcast;
     }
 
     /**
@@ -2284,7 +2751,17 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Didn't already turn out to be slow at serving us the chain
         //  - Randomly, to try and spread the load.
+        // When syncing with compact filters, only the peers that serve them can be used.
+        if (vCompactFilterClient != null) {
+            List<Peer> filterPeers = new ArrayList<Peer>(peers.size());
+            for (Peer peer : peers) {
+                if (peer.getPeerVersionMessage().isCompactFilteringSupported())
+                    filterPeers.add(peer);
+            }
+            peers = filterPeers;
+        }
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -2310,6 +2787,14 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
+        // Avoid peers that already served us the chain too slowly, unless there's nobody else.
+        ArrayList<Peer> fastPeers = new ArrayList<Peer>(candidates2.size());
+        for (Peer peer : candidates2) {
+            if (!slowDownloadPeers.contains(peer))
+                fastPeers.add(peer);
+        }
+        if (!fastPeers.isEmpty())
+            candidates2 = fastPeers;
         int index = (int) (Math.random() * candidates2.size());
         return candidates2.get(index);
     }
@@ -2394,4 +2879,57 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * <p>Switches chain sync to <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>
+     * compact block filters: no Bloom filter is sent to peers, instead the download peer fetches the filter of every
+     * block after the fast catchup time, matches it locally against the wallets and downloads only the blocks that
+     * match. The download peer is picked among the peers advertising {@link VersionMessage#NODE_COMPACT_FILTERS}, so
+     * make sure to connect to some, e.g. with {@link #setRequiredServices(long)}. Call this before the chain download
+     * starts.</p>
+     *
+     * @param store where downloaded filters are kept, so that {@link #rescan()} doesn't download them again.
+     * @return the client, mostly useful for its statistics.
+     */
+    public CompactFilterClient enableCompactFilters(CompactFilterStore store) {
+        lock.lock();
+        try {
+            checkState(chain != null && !chain.shouldVerifyTransactions(), "Compact filters need an SPV chain");
+            checkState(vCompactFilterClient == null, "Compact filters already enabled");
+            CompactFilterClient client = new CompactFilterClient(chain, store);
+            for (Wallet wallet : wallets)
+                client.addWallet(wallet);
+            for (WalletDispatcher dispatcher : walletDispatchers)
+                client.addWalletDispatcher(dispatcher);
+            vBloomFilteringEnabled = false;
+            vCompactFilterClient = client;
+            for (Peer peer : peers)
+                peer.setCompactFilterClient(client);
+            recalculateFastCatchupAndFilter(FilterRecalculateMode.DONT_SEND);
+            return client;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the compact filter client if {@link #enableCompactFilters(CompactFilterStore)} was called, else null. */
+    @Nullable
+    public CompactFilterClient getCompactFilterClient() {
+        return vCompactFilterClient;
+    }
+
+    /**
+     * Clears the transactions of all wallets and replays the chain from a week before their earliest key, for example
+     * after importing keys that were used before the chain was synced. Only available with compact filters: the
+     * filters come from the store, so only the blocks that match are downloaded again.
+     */
+    public void rescan() throws BlockStoreException {
+        CompactFilterClient client = vCompactFilterClient;
+        checkState(client != null, "Rescanning needs compact filters");
+        client.rescan();
+        recalculateFastCatchupAndFilter(FilterRecalculateMode.DONT_SEND);
+        Peer peer = getDownloadPeer();
+        if (peer != null)
+            peer.restartCompactFilterDownload();
+    }
 }
@@ -16,7 +16,11 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.metrics.Counter;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.BufferWriteTarget;
+import org.bitcoinj.net.DirectBufferPool;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.utils.Threading;
@@ -31,6 +35,9 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -58,6 +65,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    // Traffic over this connection. It is also added to the totals over all connections in the default registry.
+    private final AtomicLong bytesSent = new AtomicLong(), bytesReceived = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong(), messagesReceived = new AtomicLong();
+    private static final Counter totalBytesSent = MetricRegistry.getDefault().counter("net.bytes.sent");
+    private static final Counter totalBytesReceived = MetricRegistry.getDefault().counter("net.bytes.received");
+    private static final Counter totalMessagesSent = MetricRegistry.getDefault().counter("net.messages.sent");
+    private static final Counter totalMessagesReceived = MetricRegistry.getDefault().counter("net.messages.received");
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
         serializer = params.getDefaultSerializer();
@@ -76,21 +91,66 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendMessage(Message message) throws NotYetConnectedException {
+        MessageWriteTarget target = getWriteTarget();
+        try {
+            if (target instanceof BufferWriteTarget) {
+                // Serialize straight into pooled direct buffers which the target writes out without further copies.
+                DirectBufferPool pool = DirectBufferPool.getDefault();
+                List<ByteBuffer> buffers = serializer.serialize(message, pool);
+                long length = 0;
+                for (ByteBuffer buffer : buffers)
+                    length += buffer.remaining();
+                ((BufferWriteTarget) target).writeBuffers(buffers, pool);
+                countSent(length);
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.serialize(message, out);
+                target.writeBytes(out.toByteArray());
+                countSent(out.size());
+            }
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    /**
+     * Sends a message which has already been serialized, for example because it is going to several peers at once.
+     * The encoding is shared rather than copied wherever the underlying connection allows it.
+     *
+     * @see #sendMessage(Message)
+     */
+    public void sendMessage(SerializedMessage message) throws NotYetConnectedException {
+        MessageWriteTarget target = getWriteTarget();
+        try {
+            if (target instanceof BufferWriteTarget) {
+                ((BufferWriteTarget) target).writeBuffers(Collections.singletonList(message.getBytes()), null);
+            } else {
+                byte[] bytes = new byte[message.length()];
+                message.getBytes().get(bytes);
+                target.writeBytes(bytes);
+            }
+            countSent(message.length());
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    private void countSent(long length) {
+        bytesSent.addAndGet(length);
+        messagesSent.incrementAndGet();
+        totalBytesSent.add(length);
+        totalMessagesSent.inc();
+    }
+
+    private MessageWriteTarget getWriteTarget() throws NotYetConnectedException {
         lock.lock();
         try {
             if (writeTarget == null)
                 throw new NotYetConnectedException();
+            return writeTarget;
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
-        } catch (IOException e) {
-            exceptionCaught(e);
-        }
     }
 
     /**
@@ -122,6 +182,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     @Override
     public int receiveBytes(ByteBuffer buff) {
+        int consumed = readMessages(buff);
+        if (consumed > 0) {
+            bytesReceived.addAndGet(consumed);
+            totalBytesReceived.add(consumed);
+        }
+        return consumed;
+    }
+
+    private int readMessages(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
@@ -139,6 +208,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
                         // ...processing a message if one is available
+                        countReceived();
                         processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
                         largeReadBuffer = null;
                         header = null;
@@ -179,6 +249,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
+                countReceived();
                 processMessage(message);
                 firstMessage = false;
             }
@@ -188,6 +259,31 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    private void countReceived() {
+        messagesReceived.incrementAndGet();
+        totalMessagesReceived.inc();
+    }
+
+    /** Returns the number of bytes sent over this connection, including message headers. */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /** Returns the number of bytes received over this connection, including message headers. */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /** Returns the number of messages sent over this connection. */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /** Returns the number of messages received over this connection. */
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link org.bitcoinj.net.NioClient} or
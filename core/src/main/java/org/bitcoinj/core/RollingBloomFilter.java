@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A Bloom filter that remembers the most recently added hashes, in the spirit of Bitcoin Core's
+ * CRollingBloomFilter. It is used to recognise inventory a peer already told us about without looking anything up.</p>
+ *
+ * <p>The filter keeps two generations of bits, each sized for half the capacity. Hashes are added to the current
+ * generation and looked up in both. Once the current generation is full it becomes the previous one and the oldest
+ * is dropped, so the filter always remembers at least the last half and at most all of the last capacity hashes,
+ * with a false positive rate of about the given rate.</p>
+ *
+ * <p>This class is thread safe without locking: bits are set with atomic operations, and the generations are
+ * swapped by whichever thread filled the current one. An add racing with a swap may be forgotten a generation early,
+ * which for inventory deduplication only means a duplicate isn't recognised.</p>
+ */
+public class RollingBloomFilter {
+    private static final int MAX_HASH_FUNCS = 16;
+
+    private final int generationSize;
+    private final int numBits;
+    private final int numHashFuncs;
+    private final long tweak;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    private class Generation {
+        final AtomicLongArray words = new AtomicLongArray((numBits + 63) / 64);
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    /**
+     * Creates a filter remembering up to the given number of hashes.
+     *
+     * @param capacity how many of the most recently added hashes are remembered, at most.
+     * @param falsePositiveRate the rate at which {@link #contains(Sha256Hash)} wrongly returns true.
+     */
+    public RollingBloomFilter(int capacity, double falsePositiveRate) {
+        checkArgument(capacity > 1, "capacity must be greater than one");
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be between 0 and 1");
+        this.generationSize = (capacity + 1) / 2;
+        // Lookups consult two generations, so each gets half the false positive budget.
+        double generationRate = falsePositiveRate / 2;
+        double bits = -generationSize * Math.log(generationRate) / (Math.log(2) * Math.log(2));
+        this.numBits = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(bits)));
+        this.numHashFuncs = (int) Math.max(1, Math.min(MAX_HASH_FUNCS, Math.round(numBits / (double) generationSize * Math.log(2))));
+        // Keeps other nodes from predicting which hashes collide in our filters.
+        this.tweak = new SecureRandom().nextLong();
+        this.current = new Generation();
+        this.previous = new Generation();
+    }
+
+    /** Returns true if the hash was probably added recently. */
+    public boolean contains(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long h1 = Utils.readInt64(bytes, 0) ^ tweak;
+        long h2 = Utils.readInt64(bytes, 8) ^ Long.rotateLeft(tweak, 32);
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    /**
+     * Adds the hash to the filter, returning true if it wasn't probably there already. This mirrors
+     * {@link java.util.Set#add(Object)}, so a caller can check and record a hash in one step.
+     */
+    public boolean add(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long h1 = Utils.readInt64(bytes, 0) ^ tweak;
+        long h2 = Utils.readInt64(bytes, 8) ^ Long.rotateLeft(tweak, 32);
+        Generation generation = current;
+        if (contains(generation, h1, h2) || contains(previous, h1, h2))
+            return false;
+        for (int i = 0; i < numHashFuncs; i++) {
+            int bit = bitIndex(h1, h2, i);
+            int word = bit >>> 6;
+            long mask = 1L << (bit & 63);
+            long old;
+            do {
+                old = generation.words.get(word);
+            } while ((old & mask) == 0 && !generation.words.compareAndSet(word, old, old | mask));
+        }
+        if (generation.count.incrementAndGet() == generationSize) {
+            // Publish the full generation as the previous one before replacing it, so it's never missing.
+            previous = generation;
+            current = new Generation();
+        }
+        return true;
+    }
+
+    /** Forgets everything added so far. */
+    public void clear() {
+        previous = new Generation();
+        current = new Generation();
+    }
+
+    private boolean contains(Generation generation, long h1, long h2) {
+        for (int i = 0; i < numHashFuncs; i++) {
+            int bit = bitIndex(h1, h2, i);
+            if ((generation.words.get(bit >>> 6) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Double hashing: the hash is already uniformly distributed, so two halves of it are enough.
+    private int bitIndex(long h1, long h2, int i) {
+        return (int) (((h1 + i * h2) & Long.MAX_VALUE) % numBits);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A message together with its complete wire encoding, header included. Sending the same transaction or block to
+ * many peers through {@link PeerSocketHandler#sendMessage(SerializedMessage)} serializes it only once, and every
+ * connection then writes from the same immutable direct buffer rather than its own copy.</p>
+ *
+ * <p>The encoding includes the network's packet magic, so it may only be sent to peers on the network of the
+ * serializer it was created with. Instances are immutable and may be shared between threads.</p>
+ */
+public class SerializedMessage {
+    private final Message message;
+    private final ByteBuffer bytes;
+
+    public SerializedMessage(MessageSerializer serializer, Message message) {
+        this.message = checkNotNull(message);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serializer.serialize(message, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen, we are serializing to a memory stream.
+        }
+        byte[] encoded = out.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+        buffer.put(encoded);
+        buffer.flip();
+        this.bytes = buffer.asReadOnlyBuffer();
+    }
+
+    /** Returns the message that was serialized. */
+    public Message getMessage() {
+        return message;
+    }
+
+    /** Returns a new read only view of the encoding, positioned at its start. */
+    public ByteBuffer getBytes() {
+        return bytes.duplicate();
+    }
+
+    /** Returns the length of the encoding in bytes. */
+    public int length() {
+        return bytes.remaining();
+    }
+
+    @Override
+    public String toString() {
+        return "serialized " + message.getClass().getSimpleName() + " of " + length() + " bytes";
+    }
+}
@@ -22,6 +22,7 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.crypto.TransactionSchnorrSignature;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
@@ -31,6 +32,7 @@ import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletTransaction.Pool;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
@@ -368,6 +370,8 @@ public class Transaction extends ChildMessage {
     public Coin getValueSentFromMe(TransactionBag wallet) throws ScriptException {
         // This is tested in WalletTest.
         Coin v = Coin.ZERO;
+        // Evicted transactions are read from storage, so each is read only once even if several inputs spend it.
+        Map<Sha256Hash, Transaction> evicted = null;
         for (TransactionInput input : inputs) {
             // This input is taking value from a transaction in our wallet. To discover the value,
             // we must find the connected transaction.
@@ -376,6 +380,16 @@ public class Transaction extends ChildMessage {
                 connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.SPENT));
             if (connected == null)
                 connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.PENDING));
+            if (connected == null) {
+                TransactionOutPoint outpoint = input.getOutpoint();
+                if (evicted == null)
+                    evicted = new HashMap<Sha256Hash, Transaction>();
+                if (!evicted.containsKey(outpoint.getHash()))
+                    evicted.put(outpoint.getHash(), wallet.getEvictedTransaction(outpoint.getHash()));
+                Transaction tx = evicted.get(outpoint.getHash());
+                if (tx != null && outpoint.getIndex() < tx.getOutputs().size())
+                    connected = tx.getOutput(outpoint.getIndex());
+            }
             if (connected == null)
                 continue;
             // The connected output may be the change to the sender of a previous input sent to this wallet. In this
@@ -474,8 +488,15 @@ public class Transaction extends ChildMessage {
         return updatedAt;
     }
 
+    /**
+     * Sets the time the transaction was first seen. If it changes, the listeners of its confidence object are told
+     * with {@link TransactionConfidence.Listener.ChangeReason#UPDATE_TIME}, so that wallets can re-sort it.
+     */
     public void setUpdateTime(Date updatedAt) {
+        Date old = this.updatedAt;
         this.updatedAt = updatedAt;
+        if (confidence != null && !Objects.equal(old, updatedAt))
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.UPDATE_TIME);
     }
 
     /**
@@ -1070,6 +1091,34 @@ public class Transaction extends ChildMessage {
         return new TransactionSignature(key.sign(hash, aesKey), hashType, anyoneCanPay, true);
     }
 
+    /**
+     * Calculates a Bitcoin Cash Schnorr signature that is valid for being inserted into the input at the given
+     * position. This is a wrapper around calling {@link Transaction#hashForSignatureWitness(int, byte[], Coin,
+     * org.bitcoinj.core.Transaction.SigHash, boolean)} followed by {@link ECKey#signSchnorr(Sha256Hash, KeyParameter)}.
+     * Encoded, Schnorr signatures are about 7 bytes shorter than ECDSA signatures.
+     *
+     * @param inputIndex Which input to calculate the signature for, as an index.
+     * @param key The private key used to calculate the signature.
+     * @param aesKey The AES key to use for decryption of the private key. If null then no decryption is required.
+     * @param redeemScript Byte-exact contents of the scriptPubKey that is being satisified, or the P2SH redeem script.
+     * @param value The value of the output being spent.
+     * @param hashType Signing mode, see the enum for documentation.
+     * @param anyoneCanPay Signing mode, see the SigHash enum for documentation.
+     * @return A newly calculated signature object that wraps the r, s and sighash components.
+     */
+    public TransactionSchnorrSignature calculateSchnorrSignature(
+            int inputIndex,
+            ECKey key,
+            @Nullable KeyParameter aesKey,
+            byte[] redeemScript,
+            Coin value,
+            SigHash hashType,
+            boolean anyoneCanPay)
+    {
+        Sha256Hash hash = hashForSignatureWitness(inputIndex, redeemScript, value, hashType, anyoneCanPay);
+        return new TransactionSchnorrSignature(key.signSchnorr(hash, aesKey), hashType, anyoneCanPay, true);
+    }
+
     /**
      * Calculates a signature that is valid for being inserted into the input at the given position. This is simply
      * a wrapper around calling {@link Transaction#hashForSignature(int, byte[], org.bitcoinj.core.Transaction.SigHash, boolean)}
@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.wallet.WalletTransaction;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 
 /**
@@ -39,4 +40,11 @@ public interface TransactionBag {
 
     /** Returns transactions from a specific pool. */
     Map<Sha256Hash, Transaction> getTransactionPool(WalletTransaction.Pool pool);
+
+    /**
+     * Returns the transaction with the given hash if it was moved out of the pools to secondary storage, or null. This
+     * may have to read it from disk, so callers should look in the pools first and not ask twice for the same hash.
+     */
+    @Nullable
+    Transaction getEvictedTransaction(Sha256Hash hash);
 }
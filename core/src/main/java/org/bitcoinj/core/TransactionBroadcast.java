@@ -147,9 +147,11 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // Serialize once and let every connection write from the same buffer.
+            SerializedMessage serializedTx = new SerializedMessage(tx.getParams().getDefaultSerializer(), tx);
             for (Peer peer : peers) {
                 try {
-                    peer.sendMessage(tx);
+                    peer.sendMessage(serializedTx);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
                     // how many peers announced to us.
                 } catch (Exception e) {
@@ -212,6 +214,24 @@ public class TransactionBroadcast {
         invokeProgressCallback(numSeenPeers, mined);
     }
 
+    /** Reports how a transaction broadcast through a {@link TransactionBroadcastQueue} is propagating. */
+    void queuedProgress(int numWaitingFor, int numSeenPeers, boolean mined) {
+        synchronized (this) {
+            this.numWaitingFor = numWaitingFor;
+        }
+        invokeAndRecord(numSeenPeers, mined);
+    }
+
+    /** Completes a broadcast made through a {@link TransactionBroadcastQueue}. */
+    void queuedComplete() {
+        future.set(tx);  // RE-ENTRANCY POINT
+    }
+
+    /** Fails a broadcast made through a {@link TransactionBroadcastQueue}. */
+    void queuedFailed(Throwable throwable) {
+        future.setException(throwable);
+    }
+
     private void invokeProgressCallback(int numSeenPeers, boolean mined) {
         final ProgressCallback callback;
         Executor executor;
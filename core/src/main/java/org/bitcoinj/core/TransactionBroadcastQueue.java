@@ -0,0 +1,272 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Broadcasts many transactions together, for when a {@link PeerGroup} emits more than a handful of transactions a
+ * minute. Instead of sending each transaction in full to its own random half of the peers and watching each one's
+ * confidence separately, as {@link TransactionBroadcast} does, transactions are queued and announced on a timer.
+ * Every trickle interval the transactions queued since the last one are announced to a random half of the connected
+ * peers with a single inv each. Those peers then fetch them with getdata, which the peer group answers from this
+ * queue. Transactions that completed are kept in a small relay cache for late requests.</p>
+ *
+ * <p>Propagation is checked for all queued transactions at once on every tick, against the same rules as a single
+ * broadcast: a transaction is done when at least half of the peers it wasn't announced to announced it back to us,
+ * or when it was mined. It fails when more than half of that number rejected it. Each queued transaction is still
+ * represented by a {@link TransactionBroadcast}, which carries the future and progress callbacks.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+class TransactionBroadcastQueue implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(TransactionBroadcastQueue.class);
+
+    /** The default time between two rounds of announcements. */
+    public static final long DEFAULT_TRICKLE_INTERVAL_MILLIS = 500;
+    // How many completed transactions are kept to answer getdata requests that arrive late.
+    private static final int RELAY_CACHE_SIZE = 1000;
+
+    private final ReentrantLock lock = Threading.lock("broadcastqueue");
+    private final PeerGroup peerGroup;
+    private final ScheduledExecutorService executor;
+    private volatile long vTrickleIntervalMillis = DEFAULT_TRICKLE_INTERVAL_MILLIS;
+
+    private static class Entry {
+        final TransactionBroadcast broadcast;
+        final Transaction tx;
+        boolean announced;
+        int numWaitingFor;
+        int numSeenPeers = -1;
+        boolean mined;
+        final Map<Peer, RejectMessage> rejects = new HashMap<Peer, RejectMessage>();
+
+        Entry(TransactionBroadcast broadcast, Transaction tx) {
+            this.broadcast = broadcast;
+            this.tx = tx;
+        }
+    }
+
+    // Everything queued and not yet done, in the order it was queued.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<Sha256Hash, Entry>();
+    @GuardedBy("lock") private final LinkedList<Entry> unannounced = new LinkedList<Entry>();
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> relayCache =
+            new LinkedHashMap<Sha256Hash, Transaction>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+                    return size() > RELAY_CACHE_SIZE;
+                }
+            };
+    @GuardedBy("lock") private boolean scheduled;
+
+    TransactionBroadcastQueue(PeerGroup peerGroup, ScheduledExecutorService executor) {
+        this.peerGroup = peerGroup;
+        this.executor = executor;
+    }
+
+    /** Sets the time between two rounds of announcements. */
+    void setTrickleInterval(long millis) {
+        checkArgument(millis > 0, "millis must be positive");
+        vTrickleIntervalMillis = millis;
+    }
+
+    /** Queues the transaction of the given broadcast, which will be announced on the next tick. */
+    void add(TransactionBroadcast broadcast, Transaction tx) {
+        lock.lock();
+        try {
+            if (entries.containsKey(tx.getHash()))
+                return;
+            Entry entry = new Entry(broadcast, tx);
+            entries.put(tx.getHash(), entry);
+            unannounced.add(entry);
+            scheduleLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the queued or recently broadcast transaction with the given hash, or null. */
+    Transaction getTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry != null ? entry.tx : relayCache.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions are queued or waiting to propagate. */
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void scheduleLocked() {
+        if (!scheduled && !entries.isEmpty()) {
+            scheduled = true;
+            executor.schedule(this, vTrickleIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            tick();
+        } catch (Throwable e) {
+            log.error("Error in transaction broadcast queue", e);
+        } finally {
+            lock.lock();
+            try {
+                scheduled = false;
+                scheduleLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void tick() {
+        // Snapshots, taken before our own lock as they need the peer group's.
+        List<Peer> peers = peerGroup.getConnectedPeers();
+        int minConnections = Math.max(1, peerGroup.getMinBroadcastConnections());
+
+        List<Transaction> toAnnounce = new ArrayList<Transaction>();
+        List<Peer> announceTo = Collections.emptyList();
+        List<Entry> progressed = new ArrayList<Entry>();
+        List<Entry> done = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            if (!unannounced.isEmpty() && peers.size() >= minConnections) {
+                // Same split as a single broadcast: announce to half the peers and wait to hear back from half of
+                // the rest. With only one connection there's nobody to hear back from.
+                int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
+                int numWaitingFor = minConnections > 1 ? (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0) : 0;
+                Collections.shuffle(peers, TransactionBroadcast.random);
+                announceTo = peers.subList(0, numToBroadcastTo);
+                for (Entry entry : unannounced) {
+                    entry.announced = true;
+                    entry.numWaitingFor = numWaitingFor;
+                    toAnnounce.add(entry.tx);
+                }
+                unannounced.clear();
+                log.info("Announcing {} transactions to {} of {} peers, will wait for {}", toAnnounce.size(),
+                        numToBroadcastTo, peers.size(), numWaitingFor);
+            }
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (!entry.announced)
+                    continue;
+                int numSeenPeers = entry.tx.getConfidence().numBroadcastPeers() + entry.rejects.size();
+                boolean mined = entry.tx.getAppearsInHashes() != null;
+                if (numSeenPeers != entry.numSeenPeers || mined != entry.mined) {
+                    entry.numSeenPeers = numSeenPeers;
+                    entry.mined = mined;
+                    if (entry.numWaitingFor > 0)
+                        progressed.add(entry);
+                }
+                if (numSeenPeers >= entry.numWaitingFor || mined) {
+                    it.remove();
+                    relayCache.put(entry.tx.getHash(), entry.tx);
+                    done.add(entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (!toAnnounce.isEmpty()) {
+            NetworkParameters params = toAnnounce.get(0).getParams();
+            for (int i = 0; i < toAnnounce.size(); i += (int) ListMessage.MAX_INVENTORY_ITEMS) {
+                InventoryMessage inv = new InventoryMessage(params);
+                for (Transaction tx : toAnnounce.subList(i, (int) Math.min(toAnnounce.size(), i + ListMessage.MAX_INVENTORY_ITEMS)))
+                    inv.addTransaction(tx);
+                // Serialize once and let every connection write from the same buffer.
+                SerializedMessage serializedInv = new SerializedMessage(params.getDefaultSerializer(), inv);
+                for (Peer peer : announceTo) {
+                    try {
+                        peer.sendMessage(serializedInv);
+                    } catch (Exception e) {
+                        log.error("Caught exception sending to {}", peer, e);
+                    }
+                }
+            }
+        }
+        // It's important that our lock isn't held when the futures complete, as that runs arbitrary listeners.
+        for (Entry entry : progressed)
+            entry.broadcast.queuedProgress(entry.numWaitingFor, entry.numSeenPeers, entry.mined);
+        for (Entry entry : done) {
+            log.info("broadcastTransaction: {} complete", entry.tx.getHash());
+            entry.broadcast.queuedComplete();
+        }
+    }
+
+    /** Counts reject messages against queued transactions, and fails them once too many peers rejected them. */
+    final PreMessageReceivedEventListener rejectionListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (!(m instanceof RejectMessage))
+                return m;
+            RejectMessage rejectMessage = (RejectMessage) m;
+            Entry rejected = null;
+            lock.lock();
+            try {
+                Entry entry = entries.get(rejectMessage.getRejectedObjectHash());
+                if (entry != null && entry.announced) {
+                    entry.rejects.put(peer, rejectMessage);
+                    long threshold = Math.round(entry.numWaitingFor / 2.0);
+                    if (entry.rejects.size() > threshold) {
+                        log.warn("Threshold for considering broadcast rejected has been reached ({}/{})",
+                                entry.rejects.size(), threshold);
+                        entries.remove(entry.tx.getHash());
+                        rejected = entry;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (rejected != null)
+                rejected.broadcast.queuedFailed(new RejectedTransactionException(rejected.tx, rejectMessage));
+            return m;
+        }
+    };
+}
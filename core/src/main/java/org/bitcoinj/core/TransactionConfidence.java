@@ -182,6 +182,13 @@ public class TransactionConfidence {
              * is considered relayable and has thus reached the miners.
              */
             SEEN_PEERS,
+
+            /**
+             * Occurs when {@link Transaction#setUpdateTime(java.util.Date)} changed the update time of a transaction
+             * that has a confidence object. The confidence itself is unchanged, but holders of the transaction that
+             * sort by time, such as wallets, learn about it this way.
+             */
+            UPDATE_TIME,
         }
         void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason);
     }
@@ -450,7 +457,7 @@ public class TransactionConfidence {
      */
     public void queueListeners(final Listener.ChangeReason reason) {
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            registration.executor.execute(new CoalescingRunnable(TransactionConfidence.this, reason) {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
@@ -23,6 +23,7 @@ import java.lang.ref.*;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,28 +36,77 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every announcement from every peer goes through this table, so it is split into stripes by transaction hash,
+ * each with its own lock and its own share of the size limit. Peers announcing different transactions don't contend.
+ * Small tables use a single stripe, so the oldest entry overall is the one dropped when full.</p>
  */
 public class TxConfidenceTable {
+    /**
+     * Not used by this class any more, each stripe of the table has its own lock.
+     */
+    @Deprecated
     protected ReentrantLock lock = Threading.lock("txconfidencetable");
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
-        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
-            super(confidence, queue);
+        // The stripe holding this reference, so the cleaner can find it without knowing the table.
+        final Stripe stripe;
+        public WeakConfidenceReference(TransactionConfidence confidence, Stripe stripe) {
+            super(confidence, referenceQueue);
             hash = confidence.getTransactionHash();
+            this.stripe = stripe;
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Stripe {
+        final ReentrantLock lock = Threading.lock("txconfidencetable");
+        final LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+        Stripe(final int size) {
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the
+                    // event of some kind of DoS attack.
+                    return size() > size;
+                }
+            };
+        }
+    }
+    private final Stripe[] stripes;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
-    // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    // only thing that is tracking the confidence data anymore. A background thread waits on it and deletes the table
+    // entries corresponding to expired transactions. In this way memory usage of the system is in line with however
+    // many transactions you actually care to track the confidence of. We can still end up with lots of hashes being
+    // stored if our peers flood us with invs but the MAX_SIZE param caps this. The queue and the thread are shared by
+    // all tables, each reference knows which stripe it belongs to.
+    private static final ReferenceQueue<TransactionConfidence> referenceQueue = new ReferenceQueue<TransactionConfidence>();
+
+    static {
+        Thread cleaner = new Thread("TxConfidenceTable cleaner") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        cleanEntry((WeakConfidenceReference) referenceQueue.remove());
+                    } catch (InterruptedException e) {
+                        // Nobody should interrupt this thread, carry on.
+                    }
+                }
+            }
+        };
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
+    /** The most stripes a table is split into by default. */
+    public static final int DEFAULT_MAX_STRIPES = 16;
+    // Tables are only split into stripes of at least this many entries.
+    private static final int MIN_STRIPE_SIZE = 64;
 
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
@@ -64,15 +114,22 @@ public class TxConfidenceTable {
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<TransactionConfidence>();
+        this(size, DEFAULT_MAX_STRIPES);
+    }
+
+    /**
+     * Creates a table that will track at most the given number of transactions, split into up to the given number of
+     * independently locked stripes. The number of stripes is rounded down to a power of two, and reduced so each
+     * stripe holds at least 64 transactions.
+     * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
+     * @param maxStripes How many threads may update the table without contending, at most.
+     */
+    public TxConfidenceTable(final int size, int maxStripes) {
+        checkArgument(maxStripes > 0, "maxStripes must be positive");
+        int numStripes = Integer.highestOneBit(Math.max(1, Math.min(maxStripes, size / MIN_STRIPE_SIZE)));
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe(size / numStripes + (i < size % numStripes ? 1 : 0));
     }
 
     /**
@@ -83,24 +140,27 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private Stripe stripeFor(Sha256Hash hash) {
+        int h = hash.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
     /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
+     * Called on the cleaner thread when a transaction has expired due to being only weakly reachable through us, to
+     * delete its table entry - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
      * are relevant to any of our wallets.
      */
-    private void cleanTable() {
-        lock.lock();
+    private static void cleanEntry(WeakConfidenceReference txRef) {
+        // Remove the associated map entry so the other bits of memory can also be reclaimed, unless the hash was seen
+        // again since and has a new entry.
+        Stripe stripe = txRef.stripe;
+        stripe.lock.lock();
         try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
+            if (stripe.table.get(txRef.hash) == txRef)
+                stripe.table.remove(txRef.hash);
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -108,24 +168,24 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        Stripe stripe = stripeFor(txHash);
+        stripe.lock.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            WeakConfidenceReference entry = stripe.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    stripe.table.remove(txHash);
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -136,15 +196,9 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        }
-        lock.unlock();
+        // Marking is thread safe by itself, so it happens outside the stripe lock.
+        TransactionConfidence confidence = getOrCreate(hash);
+        boolean fresh = confidence.markBroadcastBy(byPeer);
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
@@ -156,19 +210,20 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
+            WeakConfidenceReference reference = stripe.table.get(hash);
             if (reference != null) {
                 TransactionConfidence confidence = reference.get();
                 if (confidence != null)
                     return confidence;
             }
             TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            stripe.table.put(hash, new WeakConfidenceReference(newConfidence, stripe));
             return newConfidence;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -178,9 +233,10 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
+            WeakConfidenceReference ref = stripe.table.get(hash);
             if (ref == null)
                 return null;
             TransactionConfidence confidence = ref.get();
@@ -189,7 +245,7 @@ public class TxConfidenceTable {
             else
                 return null;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 }
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded pool of unconfirmed transactions heard from the network, so apps can estimate fees or ask whether a
+ * transaction is waiting to be mined without running a full node. It is optional and fed by connecting it to a peer
+ * group and block chain:</p>
+ *
+ * <pre>
+ * peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, pool);
+ * chain.addTransactionReceivedListener(Threading.SAME_THREAD, pool);
+ * </pre>
+ *
+ * <p>Transactions are accepted on a first seen basis: one spending an outpoint already spent in the pool is dropped.
+ * When a block on the best chain contains a transaction, it is removed along with anything double spending it and
+ * their descendants, and the most recently confirmed ones are remembered so copies relayed late don't come back as
+ * unconfirmed. While a Bloom filter is set, peers only relay and report matching transactions, so the pool holds
+ * those only. Re-organizations are not followed, transactions of blocks leaving the best chain don't come back.</p>
+ *
+ * <p>An SPV node doesn't know the values of the confirmed outputs a transaction spends, so a fee is only known for
+ * transactions whose inputs all spend outputs in the pool or inputs connected by a wallet. Transactions of unknown fee
+ * are the first to go when the estimated memory usage of the pool exceeds its bound, followed by those paying the
+ * lowest fee per kilobyte.</p>
+ *
+ * <p>A transaction spending an output of one we've asked a peer for but not received yet, or of another orphan, is an
+ * orphan. Orphans are held in a small pool until their missing parents arrive or confirm, or they expire.</p>
+ */
+public class TxMemoryPool implements OnTransactionBroadcastListener, TransactionReceivedInBlockListener {
+    private static final Logger log = LoggerFactory.getLogger(TxMemoryPool.class);
+
+    /** Default bound on the estimated memory used by the transactions in the pool. */
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 32 * 1024 * 1024;
+    /** Default number of orphan transactions held. */
+    public static final int DEFAULT_MAX_ORPHANS = 100;
+    /** Orphans bigger than this are dropped rather than held. */
+    public static final int MAX_ORPHAN_SIZE = 100000;
+    /** How long an orphan waits for its missing parents. */
+    public static final long ORPHAN_EXPIRY_MILLIS = 20 * 60 * 1000;
+    /** How many recently confirmed transactions are remembered, so that copies relayed late are kept out. */
+    public static final int MAX_RECENTLY_CONFIRMED = 10000;
+
+    // Rough costs of the objects behind a parsed transaction and its index entries, on top of the serialized bytes.
+    private static final int TX_OVERHEAD_BYTES = 400;
+    private static final int INPUT_OVERHEAD_BYTES = 250;
+    private static final int OUTPUT_OVERHEAD_BYTES = 150;
+
+    private final ReentrantLock lock = Threading.lock("txmemorypool");
+    private final TxRequestTable requestTable;
+    private final long maxMemoryBytes;
+    private final int maxOrphans;
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    // The pool transaction spending each outpoint.
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Entry> spenders = new HashMap<TransactionOutPoint, Entry>();
+    // Ordered from the first to evict to the last.
+    @GuardedBy("lock") private final TreeSet<Entry> byFeeRate = new TreeSet<Entry>(EVICTION_ORDER);
+    @GuardedBy("lock") private long memoryUsage;
+    @GuardedBy("lock") private long nextSequence;
+    // In arrival order, so the oldest are expired and evicted first.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Orphan> orphans = new LinkedHashMap<Sha256Hash, Orphan>();
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Sha256Hash> orphansByParent = HashMultimap.create();
+    // In confirmation order, so the oldest are forgotten first.
+    @GuardedBy("lock") private final LinkedHashSet<Sha256Hash> recentlyConfirmed = new LinkedHashSet<Sha256Hash>();
+
+    private static class Entry {
+        final Transaction tx;
+        final Sha256Hash hash;
+        final int size;
+        final long memoryUsage;
+        final long sequence;
+        // Only changed while the entry is out of byFeeRate, as the ordering depends on it.
+        @Nullable Coin fee;
+        long feePerKb = -1;
+
+        Entry(Transaction tx, long sequence) {
+            this.tx = tx;
+            this.hash = tx.getHash();
+            this.size = tx.unsafeBitcoinSerialize().length;
+            this.memoryUsage = estimateMemoryUsage(tx, size);
+            this.sequence = sequence;
+        }
+    }
+
+    // Unknown fees first, then the lowest fee rates. Among equals the newest goes first, to protect the first seen.
+    private static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.feePerKb != b.feePerKb)
+                return a.feePerKb < b.feePerKb ? -1 : 1;
+            return a.sequence == b.sequence ? 0 : (a.sequence > b.sequence ? -1 : 1);
+        }
+    };
+
+    private static class Orphan {
+        final Transaction tx;
+        final Set<Sha256Hash> missingParents;
+        final long timeMillis;
+
+        Orphan(Transaction tx, Set<Sha256Hash> missingParents, long timeMillis) {
+            this.tx = tx;
+            this.missingParents = missingParents;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    public TxMemoryPool() {
+        this(DEFAULT_MAX_MEMORY_BYTES, DEFAULT_MAX_ORPHANS);
+    }
+
+    /**
+     * Creates a pool using the request table of the current {@link Context} to recognise orphans.
+     *
+     * @param maxMemoryBytes bound on the estimated memory used by the transactions in the pool.
+     * @param maxOrphans how many orphan transactions are held at most.
+     */
+    public TxMemoryPool(long maxMemoryBytes, int maxOrphans) {
+        checkArgument(maxMemoryBytes > 0, "maxMemoryBytes must be positive");
+        checkArgument(maxOrphans >= 0, "maxOrphans must not be negative");
+        this.requestTable = Context.get().getTxRequestTable();
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxOrphans = maxOrphans;
+    }
+
+    /**
+     * Offers a transaction to the pool. Returns true if it was accepted, false if it was already known, conflicts with
+     * a transaction in the pool, was held as an orphan or was evicted straight away for paying too little. Orphans that
+     * were waiting for it are accepted too.
+     */
+    public boolean add(Transaction tx) {
+        lock.lock();
+        try {
+            if (!acceptLocked(tx, null))
+                return false;
+            promoteOrphansLocked(tx.getHash(), false);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the given transaction is in the pool. Orphans aren't. */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return entries.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction with the given hash if it is in the pool, or null. */
+    @Nullable
+    public Transaction get(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transaction in the pool spending the given outpoint, or null if there is none. */
+    @Nullable
+    public Transaction getSpendingTransaction(TransactionOutPoint outPoint) {
+        lock.lock();
+        try {
+            Entry entry = spenders.get(outPoint);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the fee of the given transaction, or null if it isn't in the pool or its fee isn't known. */
+    @Nullable
+    public Coin getFee(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            return entry != null ? entry.fee : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transactions in the pool, those paying the highest fee per kilobyte first. */
+    public List<Transaction> getTransactions() {
+        lock.lock();
+        try {
+            List<Transaction> result = new ArrayList<Transaction>(byFeeRate.size());
+            for (Entry entry : byFeeRate.descendingSet())
+                result.add(entry.tx);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates the fee per kilobyte needed to make it into the next block, by filling a block of the given size with
+     * the transactions of known fee paying the most. Returns the fee rate of the first transaction that doesn't fit, or
+     * {@link Transaction#REFERENCE_DEFAULT_MIN_TX_FEE} if they all do.
+     */
+    public Coin estimateFeePerKb(int maxBlockBytes) {
+        checkArgument(maxBlockBytes > 0, "maxBlockBytes must be positive");
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (Entry entry : byFeeRate.descendingSet()) {
+                if (entry.feePerKb < 0)
+                    break;
+                bytes += entry.size;
+                if (bytes > maxBlockBytes)
+                    return Coin.valueOf(Math.max(entry.feePerKb, Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.value));
+            }
+            return Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions in the pool, not counting orphans. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan transactions held. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphans.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated number of bytes of memory used by the transactions in the pool, not counting orphans. */
+    public long getMemoryUsage() {
+        lock.lock();
+        try {
+            return memoryUsage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Block chain and peer group integration
+    //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onTransaction(Peer peer, Transaction t) {
+        add(t);
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        if (blockType != AbstractBlockChain.NewBlockType.BEST_CHAIN)
+            return;
+        lock.lock();
+        try {
+            removeConfirmedLocked(tx.getHash(), tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(txHash);
+                removeConfirmedLocked(txHash, entry != null ? entry.tx : null);
+            } finally {
+                lock.unlock();
+            }
+        }
+        // Knowing a transaction from relay doesn't make it relevant to our Bloom filter, so this never vouches for
+        // a filtered block transaction not being a false positive.
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Adds the transaction to the pool, or to the orphans if a parent is missing. A parent that just confirmed can
+    // be given, so it isn't taken for missing.
+    @GuardedBy("lock")
+    private boolean acceptLocked(Transaction tx, @Nullable Sha256Hash confirmedParent) {
+        Sha256Hash hash = tx.getHash();
+        if (tx.isCoinBase() || entries.containsKey(hash) || orphans.containsKey(hash))
+            return false;
+        if (recentlyConfirmed.contains(hash)) {
+            log.debug("{}: Dropping tx that is already in the chain", hash);
+            return false;
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            Entry spender = spenders.get(input.getOutpoint());
+            if (spender != null) {
+                log.debug("{}: Dropping tx that double spends {} in the memory pool", hash, spender.hash);
+                return false;
+            }
+        }
+        Set<Sha256Hash> missingParents = new HashSet<Sha256Hash>();
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash parent = input.getOutpoint().getHash();
+            if (parent.equals(confirmedParent) || entries.containsKey(parent))
+                continue;
+            if (orphans.containsKey(parent) || requestTable.isPending(parent))
+                missingParents.add(parent);
+        }
+        if (!missingParents.isEmpty()) {
+            addOrphanLocked(tx, missingParents);
+            return false;
+        }
+        Entry entry = new Entry(tx, nextSequence++);
+        updateFeeLocked(entry);
+        entries.put(hash, entry);
+        for (TransactionInput input : tx.getInputs())
+            spenders.put(input.getOutpoint(), entry);
+        byFeeRate.add(entry);
+        memoryUsage += entry.memoryUsage;
+        // Children that were accepted before their parent may now have a known fee.
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            Entry child = spenders.get(new TransactionOutPoint(tx.getParams(), i, hash));
+            if (child != null && child.fee == null) {
+                byFeeRate.remove(child);
+                updateFeeLocked(child);
+                byFeeRate.add(child);
+            }
+        }
+        while (memoryUsage > maxMemoryBytes)
+            removeWithDescendantsLocked(byFeeRate.first());
+        return entries.containsKey(hash);
+    }
+
+    @GuardedBy("lock")
+    private void updateFeeLocked(Entry entry) {
+        Coin in = Coin.ZERO;
+        for (TransactionInput input : entry.tx.getInputs()) {
+            Coin value = null;
+            TransactionOutPoint outPoint = input.getOutpoint();
+            Entry parent = entries.get(outPoint.getHash());
+            if (parent != null) {
+                if (outPoint.getIndex() < parent.tx.getOutputs().size())
+                    value = parent.tx.getOutput(outPoint.getIndex()).getValue();
+            } else {
+                value = input.getValue();
+            }
+            if (value == null)
+                return;
+            in = in.add(value);
+        }
+        Coin fee = in.subtract(entry.tx.getOutputSum());
+        if (fee.signum() < 0)
+            return;
+        entry.fee = fee;
+        entry.feePerKb = fee.value * 1000 / Math.max(1, entry.size);
+    }
+
+    @GuardedBy("lock")
+    private void removeEntryLocked(Entry entry) {
+        entries.remove(entry.hash);
+        byFeeRate.remove(entry);
+        memoryUsage -= entry.memoryUsage;
+        for (TransactionInput input : entry.tx.getInputs()) {
+            if (spenders.get(input.getOutpoint()) == entry)
+                spenders.remove(input.getOutpoint());
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removeWithDescendantsLocked(Entry root) {
+        Deque<Entry> toRemove = new ArrayDeque<Entry>();
+        toRemove.push(root);
+        while (!toRemove.isEmpty()) {
+            Entry entry = toRemove.pop();
+            if (entries.get(entry.hash) != entry)
+                continue;
+            removeEntryLocked(entry);
+            for (int i = 0; i < entry.tx.getOutputs().size(); i++) {
+                Entry child = spenders.get(new TransactionOutPoint(entry.tx.getParams(), i, entry.hash));
+                if (child != null)
+                    toRemove.push(child);
+            }
+        }
+    }
+
+    // The transaction made it into the best chain. Its children stay, but anything double spending it goes.
+    @GuardedBy("lock")
+    private void removeConfirmedLocked(Sha256Hash hash, @Nullable Transaction tx) {
+        if (recentlyConfirmed.add(hash) && recentlyConfirmed.size() > MAX_RECENTLY_CONFIRMED) {
+            Iterator<Sha256Hash> it = recentlyConfirmed.iterator();
+            it.next();
+            it.remove();
+        }
+        Entry entry = entries.get(hash);
+        if (entry != null)
+            removeEntryLocked(entry);
+        removeOrphanLocked(hash);
+        if (tx != null) {
+            for (TransactionInput input : tx.getInputs()) {
+                Entry conflict = spenders.get(input.getOutpoint());
+                if (conflict != null) {
+                    log.info("{}: Removing tx double spent by a block from the memory pool", conflict.hash);
+                    removeWithDescendantsLocked(conflict);
+                }
+            }
+        }
+        promoteOrphansLocked(hash, true);
+    }
+
+    @GuardedBy("lock")
+    private void addOrphanLocked(Transaction tx, Set<Sha256Hash> missingParents) {
+        long now = Utils.currentTimeMillis();
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            if (now - orphan.timeMillis <= ORPHAN_EXPIRY_MILLIS)
+                break;
+            it.remove();
+            for (Sha256Hash parent : orphan.missingParents)
+                orphansByParent.remove(parent, orphan.tx.getHash());
+        }
+        if (maxOrphans == 0 || tx.unsafeBitcoinSerialize().length > MAX_ORPHAN_SIZE)
+            return;
+        Sha256Hash hash = tx.getHash();
+        orphans.put(hash, new Orphan(tx, missingParents, now));
+        for (Sha256Hash parent : missingParents)
+            orphansByParent.put(parent, hash);
+        while (orphans.size() > maxOrphans)
+            removeOrphanLocked(orphans.keySet().iterator().next());
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Orphan removeOrphanLocked(Sha256Hash hash) {
+        Orphan orphan = orphans.remove(hash);
+        if (orphan != null) {
+            for (Sha256Hash parent : orphan.missingParents)
+                orphansByParent.remove(parent, hash);
+        }
+        return orphan;
+    }
+
+    // Retries the orphans waiting for the given parent, and in turn those waiting for the ones that get accepted.
+    @GuardedBy("lock")
+    private void promoteOrphansLocked(Sha256Hash parent, boolean confirmed) {
+        Deque<Sha256Hash> parents = new ArrayDeque<Sha256Hash>();
+        parents.add(parent);
+        while (!parents.isEmpty()) {
+            Sha256Hash next = parents.poll();
+            Sha256Hash confirmedParent = confirmed && next.equals(parent) ? parent : null;
+            for (Sha256Hash hash : new ArrayList<Sha256Hash>(orphansByParent.get(next))) {
+                Orphan orphan = removeOrphanLocked(hash);
+                if (orphan != null && acceptLocked(orphan.tx, confirmedParent))
+                    parents.add(hash);
+            }
+        }
+    }
+
+    private static long estimateMemoryUsage(Transaction tx, int size) {
+        return TX_OVERHEAD_BYTES + size + (long) INPUT_OVERHEAD_BYTES * tx.getInputs().size()
+                + (long) OUTPUT_OVERHEAD_BYTES * tx.getOutputs().size();
+    }
+}
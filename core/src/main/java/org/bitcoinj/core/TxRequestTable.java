@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers which announced transactions were asked for with getdata and from which peer, so that the same
+ * transaction announced by many peers is only downloaded once. A request that wasn't answered within the timeout, or
+ * that the peer asked answered with notfound, can be made again to the next peer announcing the transaction.</p>
+ *
+ * <p>Entries are forgotten once they are older than the retention period. This class is thread safe without
+ * locking, so peers can consult it for every announcement they receive. There is one per {@link Context}.</p>
+ */
+public class TxRequestTable {
+    /** How long a peer gets to answer a request before another peer may be asked. */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    /** How long a request or received transaction is remembered. */
+    public static final long DEFAULT_RETENTION_MILLIS = 20 * 60 * 1000;
+    // How many updates happen between sweeps for entries past retention.
+    private static final int PURGE_INTERVAL = 1000;
+
+    private final long requestTimeoutMillis;
+    private final long retentionMillis;
+    private final ConcurrentHashMap<Sha256Hash, Request> requests = new ConcurrentHashMap<Sha256Hash, Request>();
+    private final AtomicInteger updatesSincePurge = new AtomicInteger();
+
+    // Immutable, so entries are swapped with compare and set semantics. Compared by identity.
+    private static final class Request {
+        final long timeMillis;
+        final boolean received;
+        // The peer that was asked, null once received.
+        @Nullable final PeerAddress peer;
+
+        Request(long timeMillis, boolean received, @Nullable PeerAddress peer) {
+            this.timeMillis = timeMillis;
+            this.received = received;
+            this.peer = peer;
+        }
+
+        boolean isFrom(PeerAddress other) {
+            // PeerAddress.equals() also compares time and services, which may differ for the same peer.
+            return peer != null && peer.toSocketAddress().equals(other.toSocketAddress());
+        }
+    }
+
+    public TxRequestTable() {
+        this(DEFAULT_REQUEST_TIMEOUT_MILLIS, DEFAULT_RETENTION_MILLIS);
+    }
+
+    public TxRequestTable(long requestTimeoutMillis, long retentionMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Records a request for the given transaction to the given peer and returns true, unless it was already received
+     * or another request for it is still within its timeout, in which case false is returned and nothing should be
+     * requested.
+     */
+    public boolean tryRequest(Sha256Hash hash, PeerAddress peer) {
+        checkNotNull(peer);
+        long now = Utils.currentTimeMillis();
+        Request request = new Request(now, false, peer);
+        maybePurge(now);
+        Request existing = requests.putIfAbsent(hash, request);
+        if (existing == null)
+            return true;
+        if (existing.received || now - existing.timeMillis < requestTimeoutMillis)
+            return false;
+        // Timed out. Only one of the peers racing to take over wins.
+        return requests.replace(hash, existing, request);
+    }
+
+    /** Returns true if the transaction was requested or received within the retention period. */
+    public boolean contains(Sha256Hash hash) {
+        return requests.containsKey(hash);
+    }
+
+    /** Returns true if the transaction was requested and hasn't arrived yet. */
+    public boolean isPending(Sha256Hash hash) {
+        Request request = requests.get(hash);
+        return request != null && !request.received;
+    }
+
+    /** Records that the transaction arrived, so it won't be requested again. */
+    public void markReceived(Sha256Hash hash) {
+        long now = Utils.currentTimeMillis();
+        maybePurge(now);
+        requests.put(hash, new Request(now, true, null));
+    }
+
+    /**
+     * Records that the given peer didn't have the transaction after all, so the next peer announcing it can be asked.
+     * Ignored unless that peer is the one the transaction was requested from, as a peer may answer notfound for
+     * things it wasn't asked by this table, such as dependencies, or for anything at all.
+     */
+    public void markNotFound(Sha256Hash hash, PeerAddress peer) {
+        Request existing = requests.get(hash);
+        // Backdate the request rather than removing it, so the transaction still counts as one we were after.
+        if (existing != null && !existing.received && existing.isFrom(peer))
+            requests.replace(hash, existing,
+                    new Request(existing.timeMillis - requestTimeoutMillis, false, existing.peer));
+    }
+
+    /** Returns the number of transactions currently remembered. */
+    public int size() {
+        return requests.size();
+    }
+
+    private void maybePurge(long now) {
+        if (updatesSincePurge.incrementAndGet() < PURGE_INTERVAL)
+            return;
+        updatesSincePurge.set(0);
+        Iterator<Map.Entry<Sha256Hash, Request>> it = requests.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().timeMillis > retentionMillis)
+                it.remove();
+        }
+    }
+}
@@ -43,6 +43,8 @@ public class VersionMessage extends Message {
     public static final int NODE_GETUTXOS = 1 << 1;
     /** A service bit used by Bitcoin-ABC to announce Bitcoin Cash nodes. */
     public static final int NODE_BITCOIN_CASH = 1 << 5;
+    /** A service bit that denotes whether the peer serves BIP 157 compact block filters or not. */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
 
     /**
      * The version number of the protocol spoken.
@@ -295,4 +297,9 @@ public class VersionMessage extends Message {
         return clientVersion >= GetUTXOsMessage.MIN_PROTOCOL_VERSION &&
                 (localServices & NODE_GETUTXOS) == NODE_GETUTXOS;
     }
+
+    /** Returns true if the service bits indicate that the peer serves BIP 157 compact block filters. */
+    public boolean isCompactFilteringSupported() {
+        return (localServices & NODE_COMPACT_FILTERS) == NODE_COMPACT_FILTERS;
+    }
 }
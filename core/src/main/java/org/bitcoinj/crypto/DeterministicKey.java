@@ -368,6 +368,21 @@ public class DeterministicKey extends ECKey {
         }
     }
 
+    @Override
+    public SchnorrSignature signSchnorr(Sha256Hash input, @Nullable KeyParameter aesKey) throws KeyCrypterException {
+        if (isEncrypted()) {
+            return super.signSchnorr(input, aesKey);
+        } else {
+            // If it's not encrypted, derive the private via the parents.
+            final BigInteger privateKey = findOrDerivePrivateKey();
+            if (privateKey == null) {
+                // This key is a part of a public-key only heirarchy and cannot be used for signing
+                throw new MissingPrivateKeyException();
+            }
+            return super.doSignSchnorr(input, privateKey);
+        }
+    }
+
     @Override
     public DeterministicKey decrypt(KeyCrypter keyCrypter, KeyParameter aesKey) throws KeyCrypterException {
         checkNotNull(keyCrypter);
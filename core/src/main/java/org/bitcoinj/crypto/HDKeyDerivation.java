@@ -17,6 +17,9 @@
 package org.bitcoinj.crypto;
 
 import com.google.common.collect.*;
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
 import org.bitcoinj.core.*;
 import org.spongycastle.math.ec.*;
 
@@ -24,6 +27,7 @@ import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -51,6 +55,13 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    // Batches of child keys are split into slices of this many keys for deriving them in parallel, and smaller
+    // batches are derived on the calling thread.
+    private static final int PARALLEL_DERIVATION_SLICE = 32;
+
+    // Created when the first batch is derived in parallel. The threads are daemon threads and idle ones go away.
+    private static ForkJoinPool derivationPool;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -123,6 +134,74 @@ public final class HDKeyDerivation {
 
     }
 
+    /**
+     * Derives {@code count} consecutive children of the given key, starting with the "extended" child number
+     * {@code firstChildNumber}. Like {@link #deriveThisOrNextChildKey(DeterministicKey, int)}, child numbers for
+     * which derivation fails are skipped. The keys are returned in order of their child numbers. Each key costs an
+     * elliptic curve multiplication, so larger batches are split across a shared fork-join pool.
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int firstChildNumber, int count) {
+        checkArgument(count >= 0, count);
+        final ChildNumber first = new ChildNumber(firstChildNumber);
+        final DeterministicKey[] keys = new DeterministicKey[count];
+        // The public key point of the parent is decoded lazily, do that before it is shared between threads.
+        parent.getPubKeyPoint();
+        DeriveChildKeysTask task = new DeriveChildKeysTask(parent, first, keys, 0, count);
+        if (count <= PARALLEL_DERIVATION_SLICE || Runtime.getRuntime().availableProcessors() < 2)
+            task.compute();
+        else
+            getDerivationPool().invoke(task);
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        for (DeterministicKey key : keys)
+            if (key != null)
+                result.add(key);
+        // Make up for children that could not be derived, which is extremely unlikely.
+        int next = first.num() + count;
+        while (result.size() < count) {
+            DeterministicKey key = deriveThisOrNextChildKey(parent, new ChildNumber(next, first.isHardened()).i());
+            result.add(key);
+            next = key.getChildNumber().num() + 1;
+        }
+        return result;
+    }
+
+    private static synchronized ForkJoinPool getDerivationPool() {
+        if (derivationPool == null)
+            derivationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return derivationPool;
+    }
+
+    // Derives the children in [from, to) of the batch into keys, leaving null where derivation fails.
+    private static class DeriveChildKeysTask extends RecursiveAction {
+        private final DeterministicKey parent;
+        private final ChildNumber first;
+        private final DeterministicKey[] keys;
+        private final int from, to;
+
+        DeriveChildKeysTask(DeterministicKey parent, ChildNumber first, DeterministicKey[] keys, int from, int to) {
+            this.parent = parent;
+            this.first = first;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_DERIVATION_SLICE || getPool() == null) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        keys[i] = deriveChildKey(parent, new ChildNumber(first.num() + i, first.isHardened()));
+                    } catch (HDDerivationException ignore) { }
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DeriveChildKeysTask(parent, first, keys, from, middle),
+                        new DeriveChildKeysTask(parent, first, keys, middle, to));
+            }
+        }
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (eg. private key == 0).
@@ -193,6 +272,9 @@ public final class HDKeyDerivation {
         ECPoint Ki;
         switch (mode) {
             case NORMAL:
+                // libsecp256k1 does the multiplication and the addition in one go, without decoding points.
+                if (Secp256k1Context.isEnabled())
+                    return new RawKeyBytes(nativePubKeyTweakAdd(parentPublicKey, il), chainCode);
                 Ki = ECKey.publicPointFromPrivate(ilInt).add(parent.getPubKeyPoint());
                 break;
             case WITH_INVERSION:
@@ -212,6 +294,24 @@ public final class HDKeyDerivation {
         return new RawKeyBytes(Ki.getEncoded(true), chainCode);
     }
 
+    // Returns the compressed encoding of parentPublicKey + tweak * G, computed by libsecp256k1.
+    private static byte[] nativePubKeyTweakAdd(byte[] parentPublicKey, byte[] tweak) throws HDDerivationException {
+        byte[] pubKey;
+        try {
+            pubKey = NativeSecp256k1.pubKeyTweakAdd(parentPublicKey, tweak);
+        } catch (NativeSecp256k1Util.AssertFailException e) {
+            // The only way adding a valid tweak can fail.
+            throw new HDDerivationException("Illegal derived key: derived public key equals infinity.");
+        }
+        if (pubKey.length == 33)
+            return pubKey;
+        checkState(pubKey.length == 65, "Unexpected public key length " + pubKey.length);
+        byte[] compressed = new byte[33];
+        compressed[0] = (byte) ((pubKey[64] & 1) == 0 ? 0x02 : 0x03);
+        System.arraycopy(pubKey, 1, compressed, 1, 32);
+        return compressed;
+    }
+
     private static void assertNonZero(BigInteger integer, String errorMessage) {
         if (integer.equals(BigInteger.ZERO))
             throw new HDDerivationException(errorMessage);
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+
+import org.spongycastle.math.ec.ECAlgorithms;
+import org.spongycastle.math.ec.ECPoint;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Collects Bitcoin Cash Schnorr signatures and verifies them all at once, which is considerably faster than
+ * verifying them one by one. A batch of n signatures is checked with a single multi-scalar multiplication of 2n + 1
+ * points: with random weights a<sub>i</sub>, (&Sigma; a<sub>i</sub>s<sub>i</sub>)G must equal
+ * &Sigma; a<sub>i</sub>R<sub>i</sub> + &Sigma; a<sub>i</sub>e<sub>i</sub>P<sub>i</sub>. The random weights make it
+ * infeasible for invalid signatures to cancel each other out.</p>
+ *
+ * <p>The result only tells whether all signatures are valid. To find out which one is invalid, verify them
+ * individually with {@link ECKey#verifySchnorr(byte[], ECKey.SchnorrSignature, byte[])}.</p>
+ *
+ * <p>Signatures may be added from several threads at once.</p>
+ */
+public class SchnorrBatchVerifier {
+    private static final SecureRandom random = new SecureRandom();
+
+    private static class Entry {
+        final byte[] data;
+        final ECKey.SchnorrSignature signature;
+        final byte[] pub;
+
+        Entry(byte[] data, ECKey.SchnorrSignature signature, byte[] pub) {
+            this.data = data;
+            this.signature = signature;
+            this.pub = pub;
+        }
+    }
+
+    @GuardedBy("this") private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Adds a signature to the batch.
+     *
+     * @param data      Hash of the data that was signed, 32 bytes.
+     * @param signature The signature.
+     * @param pub       The public key bytes to verify with.
+     */
+    public synchronized void add(byte[] data, ECKey.SchnorrSignature signature, byte[] pub) {
+        checkArgument(data.length == 32, "Schnorr signatures sign a 32 byte hash");
+        entries.add(new Entry(data, signature, pub));
+    }
+
+    /** Returns the number of signatures in the batch. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns true if all signatures in the batch are valid, or the batch is empty. */
+    public synchronized boolean verify() {
+        if (ECKey.FAKE_SIGNATURES || entries.isEmpty())
+            return true;
+        final BigInteger n = ECKey.CURVE.getN();
+        final BigInteger p = ECKey.CURVE.getCurve().getField().getCharacteristic();
+        final int size = entries.size();
+        ECPoint[] points = new ECPoint[2 * size + 1];
+        BigInteger[] scalars = new BigInteger[2 * size + 1];
+        BigInteger sumOfS = BigInteger.ZERO;
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries.get(i);
+            ECKey.SchnorrSignature signature = entry.signature;
+            if (signature.r.compareTo(p) >= 0 || signature.s.compareTo(n) >= 0)
+                return false;
+            ECPoint noncePoint = signature.getNoncePoint();
+            if (noncePoint == null)
+                return false;
+            ECPoint pubPoint;
+            try {
+                pubPoint = ECKey.CURVE.getCurve().decodePoint(entry.pub);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            // The first weight can be 1 without loss of security.
+            BigInteger weight = i == 0 ? BigInteger.ONE : new BigInteger(n.bitLength(), random).mod(n);
+            BigInteger e = signature.getChallenge(pubPoint, entry.data);
+            points[2 * i] = noncePoint;
+            scalars[2 * i] = weight;
+            points[2 * i + 1] = pubPoint;
+            scalars[2 * i + 1] = weight.multiply(e).mod(n);
+            sumOfS = sumOfS.add(weight.multiply(signature.s)).mod(n);
+        }
+        points[2 * size] = ECKey.CURVE.getG();
+        scalars[2 * size] = n.subtract(sumOfS);
+        return ECAlgorithms.sumOfMultiplies(points, scalars).isInfinity();
+    }
+
+    /** Removes all signatures from the batch. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
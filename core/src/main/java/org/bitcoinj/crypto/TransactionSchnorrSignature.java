@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.core.VerificationException;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * A TransactionSchnorrSignature wraps an {@link org.bitcoinj.core.ECKey.SchnorrSignature} and adds the SIGHASH mode
+ * byte, the same way {@link TransactionSignature} does for ECDSA signatures. In scripts, Schnorr signatures are told
+ * apart from ECDSA signatures by their length: with the sighash byte they are always 65 bytes long, which no valid
+ * DER encoded signature is.
+ */
+public class TransactionSchnorrSignature extends ECKey.SchnorrSignature {
+    /** The length of an encoded signature including the sighash byte. */
+    public static final int ENCODED_LENGTH = 65;
+
+    /** The sighash flags, see {@link TransactionSignature#sighashFlags}. */
+    public final int sighashFlags;
+
+    /** Constructs a signature with the given components and raw sighash flag bytes. */
+    public TransactionSchnorrSignature(BigInteger r, BigInteger s, int sighashFlags) {
+        super(r, s);
+        this.sighashFlags = sighashFlags;
+    }
+
+    /** Constructs a transaction signature based on the Schnorr signature. */
+    public TransactionSchnorrSignature(ECKey.SchnorrSignature signature, Transaction.SigHash mode, boolean anyoneCanPay,
+                                       boolean useForkId) {
+        this(signature.r, signature.s, TransactionSignature.calcSigHashValue(mode, anyoneCanPay, useForkId));
+    }
+
+    /** Returns true if the given script signature has the length of a Schnorr signature with a sighash byte. */
+    public static boolean isSchnorrEncoded(byte[] signature) {
+        return signature.length == ENCODED_LENGTH;
+    }
+
+    /**
+     * Returns true if the sighash byte is one of the defined types, that is ALL, NONE or SINGLE, optionally combined
+     * with ANYONECANPAY and FORKID, and no other bits are set.
+     */
+    public boolean hasDefinedSigHash() {
+        final int mode = sighashFlags & ~(Transaction.SigHash.ANYONECANPAY.value | SigHash.FORKID.value);
+        return mode >= Transaction.SigHash.ALL.value && mode <= Transaction.SigHash.SINGLE.value;
+    }
+
+    public boolean anyoneCanPay() {
+        return (sighashFlags & Transaction.SigHash.ANYONECANPAY.value) != 0;
+    }
+
+    public boolean useForkId() {
+        return (sighashFlags & SigHash.FORKID.value) != 0;
+    }
+
+    public Transaction.SigHash sigHashMode() {
+        final int mode = sighashFlags & 0x1f;
+        if (mode == Transaction.SigHash.NONE.value)
+            return Transaction.SigHash.NONE;
+        else if (mode == Transaction.SigHash.SINGLE.value)
+            return Transaction.SigHash.SINGLE;
+        else
+            return Transaction.SigHash.ALL;
+    }
+
+    /** Returns the 64 byte signature followed by the sighash byte, as used in scripts. */
+    public byte[] encodeToBitcoin() {
+        byte[] bytes = Arrays.copyOf(encode(), ENCODED_LENGTH);
+        bytes[ENCODED_LENGTH - 1] = (byte) sighashFlags;
+        return bytes;
+    }
+
+    /**
+     * Returns a decoded signature.
+     * @throws VerificationException if the signature doesn't have the length of a Schnorr signature.
+     */
+    public static TransactionSchnorrSignature decodeFromBitcoin(byte[] bytes) throws VerificationException {
+        if (!isSchnorrEncoded(bytes))
+            throw new VerificationException("Schnorr signature has wrong length: " + bytes.length);
+        ECKey.SchnorrSignature sig = ECKey.SchnorrSignature.decode(Arrays.copyOf(bytes, ENCODED_LENGTH - 1));
+        return new TransactionSchnorrSignature(sig.r, sig.s, bytes[ENCODED_LENGTH - 1] & 0xff);
+    }
+}
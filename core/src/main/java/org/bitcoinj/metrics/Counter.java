@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of events or amounts that only goes up, such as messages or bytes received. Thread safe.
+ */
+public class Counter implements Metric {
+    private final AtomicLong count = new AtomicLong();
+
+    /** Adds one to the count. */
+    public void inc() {
+        count.incrementAndGet();
+    }
+
+    /** Adds the given amount to the count. */
+    public void add(long amount) {
+        count.addAndGet(amount);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(getCount());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Publishes the metrics of a registry as MBeans, one per metric, named {@code <domain>:type=Metric,name=<name>}.
+ * Counters and gauges have a single value attribute, histograms their count, mean, max and a few percentiles in
+ * microseconds. Add it with:</p>
+ *
+ * <pre>
+ * MetricRegistry.getDefault().addExporter(Threading.SAME_THREAD, new JmxMetricsExporter());
+ * </pre>
+ *
+ * <p>JMX is not available on Android.</p>
+ */
+public class JmxMetricsExporter implements MetricsExporter {
+    private static final Logger log = LoggerFactory.getLogger(JmxMetricsExporter.class);
+
+    private final MBeanServer server;
+    private final String domain;
+
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    public interface HistogramMXBean {
+        long getCount();
+        long getMeanMicros();
+        long getMaxMicros();
+        long getMedianMicros();
+        long get95thPercentileMicros();
+        long get99thPercentileMicros();
+    }
+
+    /** Publishes into the platform MBean server under the {@code org.bitcoinj} domain. */
+    public JmxMetricsExporter() {
+        this(ManagementFactory.getPlatformMBeanServer(), "org.bitcoinj");
+    }
+
+    public JmxMetricsExporter(MBeanServer server, String domain) {
+        this.server = checkNotNull(server);
+        this.domain = checkNotNull(domain);
+    }
+
+    @Override
+    public void onMetricAdded(String name, Metric metric) {
+        try {
+            StandardMBean bean;
+            if (metric instanceof Counter)
+                bean = new StandardMBean(new CounterBean((Counter) metric), CounterMXBean.class, true);
+            else if (metric instanceof Gauge)
+                bean = new StandardMBean(new GaugeBean((Gauge) metric), GaugeMXBean.class, true);
+            else if (metric instanceof LatencyHistogram)
+                bean = new StandardMBean(new HistogramBean((LatencyHistogram) metric), HistogramMXBean.class, true);
+            else
+                return;
+            ObjectName objectName = objectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(bean, objectName);
+        } catch (JMException e) {
+            log.warn("Could not publish metric " + name, e);
+        }
+    }
+
+    @Override
+    public void onMetricRemoved(String name, Metric metric) {
+        try {
+            ObjectName objectName = objectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Could not unpublish metric " + name, e);
+        }
+    }
+
+    private ObjectName objectName(String name) throws JMException {
+        return new ObjectName(domain + ":type=Metric,name=" + ObjectName.quote(name));
+    }
+
+    private static class CounterBean implements CounterMXBean {
+        private final Counter counter;
+
+        CounterBean(Counter counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public long getCount() {
+            return counter.getCount();
+        }
+    }
+
+    private static class GaugeBean implements GaugeMXBean {
+        private final Gauge gauge;
+
+        GaugeBean(Gauge gauge) {
+            this.gauge = gauge;
+        }
+
+        @Override
+        public long getValue() {
+            return gauge.getValue();
+        }
+    }
+
+    private static class HistogramBean implements HistogramMXBean {
+        private final LatencyHistogram histogram;
+
+        HistogramBean(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public long getMeanMicros() {
+            return histogram.getMean() / 1000;
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return histogram.getMax() / 1000;
+        }
+
+        @Override
+        public long getMedianMicros() {
+            return histogram.getPercentile(50) / 1000;
+        }
+
+        @Override
+        public long get95thPercentileMicros() {
+            return histogram.getPercentile(95) / 1000;
+        }
+
+        @Override
+        public long get99thPercentileMicros() {
+            return histogram.getPercentile(99) / 1000;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A histogram of durations in nanoseconds, in the style of HdrHistogram: each power of two is split into 16
+ * linear buckets, so any percentile is reported to within about 6% of the true value using under 8KB of counts,
+ * however many values are recorded. Recording is a few atomic increments and takes no locks.</p>
+ *
+ * <p>Values are read without stopping writers, so a percentile computed while other threads record may be off by
+ * the values recorded in the meantime.</p>
+ */
+public class LatencyHistogram implements Metric {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for every positive long.
+    private static final int NUM_BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records a duration in nanoseconds. Negative durations, from clock adjustments, are recorded as zero. */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long currentMax;
+        do {
+            currentMax = max.get();
+        } while (value > currentMax && !max.compareAndSet(currentMax, value));
+    }
+
+    /** Records the time since the given {@link System#nanoTime()} reading. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** Returns the number of durations recorded. */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Returns the longest duration recorded, in nanoseconds. */
+    public long getMax() {
+        return max.get();
+    }
+
+    /** Returns the mean of the durations recorded, in nanoseconds, or zero if there are none. */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Returns the duration in nanoseconds that the given percentage of the recorded durations didn't exceed, or zero
+     * if there are none. For example {@code getPercentile(99)} is the 99th percentile.
+     */
+    public long getPercentile(double percent) {
+        checkArgument(percent >= 0 && percent <= 100, "percent must be between 0 and 100");
+        long[] counts = new long[NUM_BUCKETS];
+        long n = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(bucketUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Like {@link #getPercentile(double)} but converted to the given unit. */
+    public long getPercentile(double percent, TimeUnit unit) {
+        return unit.convert(getPercentile(percent), TimeUnit.NANOSECONDS);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dns p50=%dns p99=%dns max=%dns", getCount(), getMean(),
+                getPercentile(50), getPercentile(99), getMax());
+    }
+}
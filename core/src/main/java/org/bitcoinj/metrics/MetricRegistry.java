@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+import org.bitcoinj.utils.ListenerRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A set of named metrics. bitcoinj records into the {@link #getDefault() default registry}; the names it uses are
+ * dotted paths starting with the area they measure, like {@code net.bytes.received} or {@code chain.block.add}.
+ * Counters and histograms are created on first use, so code that records into them can look them up once and keep
+ * them. Gauges are registered by the object they read from, and removed again when it goes away.</p>
+ *
+ * <p>To get the values out, either poll {@link #getMetrics()} or add a {@link MetricsExporter}, such as the
+ * {@link JmxMetricsExporter}. This class is thread safe.</p>
+ */
+public class MetricRegistry {
+    private static final Logger log = LoggerFactory.getLogger(MetricRegistry.class);
+
+    private static final MetricRegistry DEFAULT = new MetricRegistry();
+
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private final CopyOnWriteArrayList<ListenerRegistration<MetricsExporter>> exporters
+        = new CopyOnWriteArrayList<ListenerRegistration<MetricsExporter>>();
+
+    /** Returns the registry bitcoinj records its metrics into. */
+    public static MetricRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     * @throws IllegalArgumentException if the name is taken by a different kind of metric.
+     */
+    public Counter counter(String name) {
+        return getOrAdd(name, Counter.class);
+    }
+
+    /**
+     * Returns the latency histogram with the given name, creating it if needed.
+     * @throws IllegalArgumentException if the name is taken by a different kind of metric.
+     */
+    public LatencyHistogram histogram(String name) {
+        return getOrAdd(name, LatencyHistogram.class);
+    }
+
+    /** Registers a gauge under the given name, replacing any metric of that name. */
+    public void register(String name, Gauge gauge) {
+        checkNotNull(gauge);
+        Metric old = metrics.put(checkNotNull(name), gauge);
+        if (old != null)
+            notifyRemoved(name, old);
+        notifyAdded(name, gauge);
+    }
+
+    /** Removes the given metric if it is still registered under the given name. Returns true if it was. */
+    public boolean remove(String name, Metric metric) {
+        if (!metrics.remove(name, metric))
+            return false;
+        notifyRemoved(name, metric);
+        return true;
+    }
+
+    /** Returns the metric with the given name, or null if there is none. */
+    @Nullable
+    public Metric get(String name) {
+        return metrics.get(name);
+    }
+
+    /** Returns a snapshot of the registered metrics, sorted by name. */
+    public SortedMap<String, Metric> getMetrics() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, Metric>(metrics));
+    }
+
+    /**
+     * Adds an exporter, which is called back on the given executor. It is told about all the metrics registered so
+     * far straight away.
+     */
+    public void addExporter(Executor executor, final MetricsExporter exporter) {
+        exporters.add(new ListenerRegistration<MetricsExporter>(checkNotNull(exporter), executor));
+        for (final Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    exporter.onMetricAdded(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+    }
+
+    /** Removes an exporter. Returns true if it was added before. */
+    public boolean removeExporter(MetricsExporter exporter) {
+        return ListenerRegistration.removeFromList(exporter, exporters);
+    }
+
+    private <T extends Metric> T getOrAdd(String name, Class<T> type) {
+        Metric metric = metrics.get(checkNotNull(name));
+        if (metric == null) {
+            Metric created = type == Counter.class ? new Counter() : new LatencyHistogram();
+            metric = metrics.putIfAbsent(name, created);
+            if (metric == null) {
+                notifyAdded(name, created);
+                metric = created;
+            }
+        }
+        if (!type.isInstance(metric))
+            throw new IllegalArgumentException(name + " is a " + metric.getClass().getSimpleName() + ", not a "
+                    + type.getSimpleName());
+        return type.cast(metric);
+    }
+
+    private void notifyAdded(final String name, final Metric metric) {
+        for (final ListenerRegistration<MetricsExporter> registration : exporters) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        registration.listener.onMetricAdded(name, metric);
+                    } catch (RuntimeException e) {
+                        log.error("Metrics exporter failed to add " + name, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private void notifyRemoved(final String name, final Metric metric) {
+        for (final ListenerRegistration<MetricsExporter> registration : exporters) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        registration.listener.onMetricRemoved(name, metric);
+                    } catch (RuntimeException e) {
+                        log.error("Metrics exporter failed to remove " + name, e);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+/**
+ * Told about metrics being added to and removed from a {@link MetricRegistry}, so they can be published elsewhere.
+ * Exporters that only need the current values can instead poll {@link MetricRegistry#getMetrics()}.
+ */
+public interface MetricsExporter {
+    /** Called when an exporter is added for every existing metric, then for every metric added later. */
+    void onMetricAdded(String name, Metric metric);
+
+    /** Called when a metric is removed from the registry, or replaced by another of the same name. */
+    void onMetricRemoved(String name, Metric metric);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.net;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A {@link MessageWriteTarget} which can take outbound data as {@link ByteBuffer}s without copying it, and write many
+ * of them to the socket in a single gathering write.
+ */
+public interface BufferWriteTarget extends MessageWriteTarget {
+    /**
+     * <p>Queues the remaining bytes of the given buffers, in order, for writing to the remote end. The buffers are not
+     * copied, so they must not be modified afterwards; read only views of a shared buffer may be passed to many
+     * targets.</p>
+     *
+     * <p>If releaseTo is non-null, the target owns the buffers and returns each one to that pool once it has been
+     * written, or once the connection is closed. The buffers are also released if this method throws.</p>
+     */
+    void writeBuffers(List<ByteBuffer> buffers, @Nullable DirectBufferPool releaseTo) throws IOException;
+}
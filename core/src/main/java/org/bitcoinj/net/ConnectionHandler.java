@@ -28,10 +28,12 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -43,13 +45,31 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements BufferWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // The most buffers handed to a single gathering write, comfortably below the usual IOV_MAX of 1024.
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    // An outbound buffer, and the pool it goes back to once written (if any).
+    private static class PendingWrite {
+        final ByteBuffer buffer;
+        @Nullable final DirectBufferPool pool;
+
+        PendingWrite(ByteBuffer buffer, @Nullable DirectBufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        void release() {
+            if (pool != null)
+                pool.release(buffer);
+        }
+    }
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -61,10 +81,14 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final LinkedList<PendingWrite> bytesToWrite = new LinkedList<PendingWrite>();
 
     private Set<ConnectionHandler> connectedHandlers;
 
+    // If set, received bytes are handed to the connection on this executor instead of the selecting thread. OP_READ is
+    // cleared while a decode is in flight, so readBuff only ever has one user and messages are processed in order.
+    @Nullable private final Executor decodeExecutor;
+
     public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
         this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
         if (connection == null)
@@ -72,7 +96,12 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+        this(connection, key, (Executor) null);
+    }
+
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key, @Nullable Executor decodeExecutor) {
         this.key = key;
+        this.decodeExecutor = decodeExecutor;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
             readBuff = null;
@@ -85,7 +114,16 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+        this(connection, key, connectedHandlers, null);
+    }
+
+    /**
+     * Creates a handler which, if decodeExecutor is non-null, passes received bytes to the connection on that executor
+     * rather than on the thread which calls {@link #handleKey(SelectionKey)}.
+     */
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable Executor decodeExecutor) {
+        this(checkNotNull(connection), key, decodeExecutor);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -112,14 +150,20 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound queue as possible into the OS' network buffer, handing several buffers to
+            // each write call so that many small messages (or a message spread over pooled buffers) cost one syscall.
+            ByteBuffer[] gather = new ByteBuffer[Math.min(bytesToWrite.size(), MAX_GATHERED_BUFFERS)];
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (PendingWrite write : bytesToWrite) {
+                    if (count == gather.length)
+                        break;
+                    gather[count++] = write.buffer;
+                }
+                bytesToWriteRemaining -= channel.write(gather, 0, count);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().buffer.hasRemaining())
+                    bytesToWrite.poll().release();
+                if (count > 0 && gather[count - 1].hasRemaining()) {
                     setWriteOps();
                     break;
                 }
@@ -133,8 +177,18 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The array is queued as is rather than copied, so it must not be modified after this call.</p>
+     */
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        writeBuffers(Collections.singletonList(ByteBuffer.wrap(message)), null);
+    }
+
+    @Override
+    public void writeBuffers(List<ByteBuffer> buffers, @Nullable DirectBufferPool releaseTo) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -142,15 +196,20 @@ class ConnectionHandler implements MessageWriteTarget {
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            for (ByteBuffer buffer : buffers)
+                bytesToWrite.offer(new PendingWrite(buffer, releaseTo));
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
+            // Only thrown before anything was queued
+            if (releaseTo != null)
+                for (ByteBuffer buffer : buffers)
+                    releaseTo.release(buffer);
             lock.unlock();
             andUnlock = false;
             log.warn("Error writing message to connection, closing connection", e);
@@ -160,7 +219,7 @@ class ConnectionHandler implements MessageWriteTarget {
             lock.unlock();
             andUnlock = false;
             log.warn("Error writing message to connection, closing connection", e);
-            closeConnection();
+            closeConnection(); // Releases the queued buffers
             throw new IOException(e);
         } finally {
             if (andUnlock)
@@ -186,6 +245,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so hand any pooled buffers back
+            for (PendingWrite write : bytesToWrite)
+                write.release();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -195,6 +259,62 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Passes the bytes in readBuff to the connection and drops whatever it consumed
+    private void receiveBytes() throws Exception {
+        // "flip" the buffer - setting the limit to the current position and setting position to 0
+        readBuff.flip();
+        // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
+        int bytesConsumed = checkNotNull(connection).receiveBytes(readBuff);
+        checkState(readBuff.position() == bytesConsumed);
+        // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative position)
+        readBuff.compact();
+    }
+
+    // Reads from the socket on the selecting thread and hands the bytes to decodeExecutor. Taking the lock around the
+    // read orders it after the previous decode, which released the lock when it re-enabled OP_READ.
+    private void readAndDecodeAsync() throws IOException {
+        int read;
+        lock.lock();
+        try {
+            read = channel.read(readBuff);
+            if (read > 0)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } finally {
+            lock.unlock();
+        }
+        if (read == 0)
+            return; // Was probably waiting on a write
+        else if (read == -1) { // Socket was closed
+            key.cancel();
+            closeConnection();
+            return;
+        }
+        try {
+            decodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        receiveBytes();
+                        lock.lock();
+                        try {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                            key.selector().wakeup();
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (Exception e) {
+                        Throwable t = Throwables.getRootCause(e);
+                        log.warn("Error decoding received bytes: {} {}", t.getClass().getName(), t.getMessage() != null ? t.getMessage() : "", e);
+                        closeConnection();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The decode pool has been shut down, which only happens as the client manager stops
+            closeConnection();
+        }
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
@@ -208,23 +328,20 @@ class ConnectionHandler implements MessageWriteTarget {
                 return;
             }
             if (key.isReadable()) {
-                // Do a socket read and invoke the connection's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
-                    return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
-                    key.cancel();
-                    handler.closeConnection();
-                    return;
+                if (handler.decodeExecutor != null) {
+                    handler.readAndDecodeAsync();
+                } else {
+                    // Do a socket read and invoke the connection's receiveBytes message
+                    int read = handler.channel.read(handler.readBuff);
+                    if (read == 0)
+                        return; // Was probably waiting on a write
+                    else if (read == -1) { // Socket was closed
+                        key.cancel();
+                        handler.closeConnection();
+                        return;
+                    }
+                    handler.receiveBytes();
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
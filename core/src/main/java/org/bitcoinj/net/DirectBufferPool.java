@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.net;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A pool of equally sized direct {@link ByteBuffer}s. Outbound messages are serialized straight into buffers from
+ * the pool and returned to it once they have been written to the socket, which avoids both allocating a fresh array
+ * per message and the copy the JDK makes into a temporary direct buffer when writing a heap buffer to a channel.</p>
+ *
+ * <p>At most a fixed number of free buffers are retained; beyond that released buffers are left to the garbage
+ * collector. This class is thread safe.</p>
+ */
+public class DirectBufferPool {
+    /** The size of the buffers in the default pool. */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    /** The number of free buffers the default pool retains. */
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final DirectBufferPool DEFAULT = new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        checkArgument(bufferSize >= 64, "Buffer size too small: %s", bufferSize);
+        checkArgument(maxPooled > 0, "Must pool at least one buffer: %s", maxPooled);
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+    }
+
+    /** Returns the pool shared by all connections which weren't given one of their own. */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** Returns the capacity of every buffer handed out by this pool. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns a cleared buffer, reusing a released one if there is one. */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire()} back to the pool. The caller must not touch it, or any view of
+     * it, afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        checkArgument(buffer.isDirect() && buffer.capacity() == bufferSize, "Buffer is not from this pool");
+        free.offer(buffer);
+    }
+
+    /** Returns the number of free buffers currently held. */
+    public int getFreeCount() {
+        return free.size();
+    }
+
+    /** Returns a new stream which writes into buffers acquired from this pool as it fills them. */
+    public PooledOutputStream newOutputStream() {
+        return new PooledOutputStream();
+    }
+
+    /**
+     * An {@link OutputStream} which writes into a chain of buffers from the pool. Once done, {@link #finish()} hands
+     * the buffers to the caller, who becomes responsible for releasing them; if writing fails part way,
+     * {@link #release()} returns them to the pool instead. Not thread safe.
+     */
+    public class PooledOutputStream extends OutputStream {
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private ByteBuffer current;
+        private long size;
+        private boolean finished;
+
+        private PooledOutputStream() {
+        }
+
+        private ByteBuffer current() {
+            checkState(!finished, "Stream already finished");
+            if (current == null || !current.hasRemaining()) {
+                current = acquire();
+                buffers.add(current);
+            }
+            return current;
+        }
+
+        @Override
+        public void write(int b) {
+            current().put((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+            while (len > 0) {
+                ByteBuffer buffer = current();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Leaves the given number of zero bytes to be filled in later, eg with a header whose content isn't known yet. */
+        public void skip(int count) {
+            write(new byte[count], 0, count);
+        }
+
+        /** Returns the number of bytes written so far. */
+        public long size() {
+            return size;
+        }
+
+        /** Returns the buffers written to, each flipped so that its remaining bytes are the ones written. */
+        public List<ByteBuffer> finish() {
+            checkState(!finished, "Stream already finished");
+            finished = true;
+            for (ByteBuffer buffer : buffers)
+                buffer.flip();
+            return buffers;
+        }
+
+        /** Returns all buffers to the pool without handing them out. */
+        public void release() {
+            finished = true;
+            for (ByteBuffer buffer : buffers)
+                DirectBufferPool.this.release(buffer);
+            buffers.clear();
+        }
+    }
+}
@@ -21,14 +21,16 @@ import com.google.common.base.*;
 import com.google.common.util.concurrent.*;
 import org.slf4j.*;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
+import java.util.List;
 
 /**
  * Creates a simple connection to a server using a {@link StreamConnection} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements BufferWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
@@ -123,4 +125,10 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(List<ByteBuffer> buffers, @Nullable DirectBufferPool releaseTo) throws IOException {
+        // The write target is always a ConnectionHandler, as the connection is made through a NioClientManager
+        ((BufferWriteTarget) handler.writeTarget).writeBuffers(buffers, releaseTo);
+    }
 }
@@ -21,6 +21,8 @@ import com.google.common.util.concurrent.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
@@ -28,15 +30,24 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * <p>A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
+ * configurable number of network processing threads.</p>
+ *
+ * <p>Each thread runs its own event loop with its own {@link Selector}, and new connections are assigned to the loop
+ * with the fewest connections. Optionally, received bytes are passed to their {@link StreamConnection} on a separate
+ * pool of decode threads, so that parsing a large message from one peer doesn't hold up the others on the same loop.
+ * Bytes from any one connection are still processed one batch at a time and in order.</p>
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final EventLoop[] loops;
+    @Nullable private final ExecutorService decodeExecutor;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,101 +57,173 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
-
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
-
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+
+    // A single selector and the connections registered with it. run() is executed by exactly one thread.
+    private class EventLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
+        // Connections which have been assigned to this loop but haven't finished connecting yet.
+        final AtomicInteger connecting = new AtomicInteger();
+        // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
+        final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+        // Written only by the loop thread.
+        volatile long busyNanos, selectNanos, keysHandled;
+
+        EventLoop(int index) {
+            this.index = index;
             try {
-                if (sc.finishConnect()) {
-                    log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        int load() {
+            return connectedHandlers.size() + connecting.get();
+        }
+
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                connecting.decrementAndGet();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, decodeExecutor);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
+                    handler.closeConnection();
+                    data.future.setException(cause);
                     data.future = null;
                 }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                while (isRunning()) {
+                    long start = System.nanoTime();
+                    PendingConnect conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn);
+                        } catch (ClosedChannelException e) {
+                            connecting.decrementAndGet();
+                            log.warn("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    long selectStart = System.nanoTime();
+                    selector.select();
+                    long selectEnd = System.nanoTime();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    int handled = 0;
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                        handled++;
+                    }
+                    busyNanos += (selectStart - start) + (System.nanoTime() - selectEnd);
+                    selectNanos += selectEnd - selectStart;
+                    keysHandled += handled;
+                }
             } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
+                log.warn("Error trying to open/read from connection: ", e);
+            } finally {
+                // A loop which dies takes the whole manager down with it, rather than leaving its connections orphaned
+                // and still being assigned new ones.
+                if (isRunning())
+                    stopAsync();
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.warn("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.warn("Error closing client manager selector", e);
+                }
             }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
+        }
     }
 
     /**
      * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
-     * calls.
+     * calls and processes received bytes on that same thread.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1, 0);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading connections over the given
+     * number of selecting threads. If decodeThreads is greater than zero, received bytes are handed to each
+     * connection (and so deserialized and processed) on a pool of that many threads rather than on the selecting
+     * threads.
+     */
+    public NioClientManager(int selectorThreads, int decodeThreads) {
+        checkArgument(selectorThreads > 0, "Need at least one selector thread: %s", selectorThreads);
+        checkArgument(decodeThreads >= 0, "Negative decode thread count: %s", decodeThreads);
+        loops = new EventLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new EventLoop(i);
+        if (decodeThreads > 0)
+            decodeExecutor = Executors.newFixedThreadPool(decodeThreads,
+                    new ContextPropagatingThreadFactory("NioClientManager decoder"));
+        else
+            decodeExecutor = null;
     }
 
     @Override
     public void run() {
+        // The service thread runs the first loop itself and waits for the others before shutting down.
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
+            for (int i = 1; i < loops.length; i++) {
+                Thread thread = new ContextPropagatingThreadFactory("NioClientManager loop " + i).newThread(loops[i]);
+                thread.start();
+                threads.add(thread);
             }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            for (EventLoop loop : loops)
+                loop.selector.wakeup();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
+            if (decodeExecutor != null)
+                decodeExecutor.shutdown();
         }
     }
 
@@ -154,36 +237,130 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            EventLoop loop = leastLoadedLoop();
+            loop.connecting.incrementAndGet();
+            loop.newConnectionChannels.offer(data);
+            loop.selector.wakeup();
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
         }
     }
 
+    private EventLoop leastLoadedLoop() {
+        EventLoop best = loops[0];
+        int bestLoad = best.load();
+        for (int i = 1; i < loops.length; i++) {
+            int load = loops[i].load();
+            if (load < bestLoad) {
+                best = loops[i];
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = 0;
+        for (EventLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
     }
 
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
-            ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+            ConnectionHandler handler = null;
+            for (EventLoop loop : loops) {
+                synchronized (loop.connectedHandlers) {
+                    Iterator<ConnectionHandler> it = loop.connectedHandlers.iterator();
+                    if (it.hasNext()) {
+                        handler = it.next();
+                        break;
+                    }
+                }
             }
             if (handler != null)
                 handler.closeConnection(); // Removes handler from connectedHandlers before returning
         }
     }
 
+    /** Returns the number of selecting threads connections are spread over. */
+    public int getEventLoopCount() {
+        return loops.length;
+    }
+
+    /** Returns a snapshot of how busy each selecting thread has been since the manager started, in loop order. */
+    public List<EventLoopStats> getEventLoopStats() {
+        List<EventLoopStats> stats = new ArrayList<EventLoopStats>(loops.length);
+        for (EventLoop loop : loops)
+            stats.add(new EventLoopStats(loop.index, loop.connectedHandlers.size(), loop.busyNanos, loop.selectNanos,
+                    loop.keysHandled));
+        return stats;
+    }
+
+    /**
+     * Utilization of a single selecting thread. Busy time is spent registering connections and handling ready keys,
+     * which includes deserializing and processing messages unless they are offloaded to decode threads. Select time is
+     * spent waiting for the network.
+     */
+    public static class EventLoopStats {
+        private final int index;
+        private final int connectionCount;
+        private final long busyNanos;
+        private final long selectNanos;
+        private final long keysHandled;
+
+        EventLoopStats(int index, int connectionCount, long busyNanos, long selectNanos, long keysHandled) {
+            this.index = index;
+            this.connectionCount = connectionCount;
+            this.busyNanos = busyNanos;
+            this.selectNanos = selectNanos;
+            this.keysHandled = keysHandled;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /** Returns the number of open connections on this loop. */
+        public int getConnectionCount() {
+            return connectionCount;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public long getSelectNanos() {
+            return selectNanos;
+        }
+
+        /** Returns the number of ready keys this loop has handled. */
+        public long getKeysHandled() {
+            return keysHandled;
+        }
+
+        /** Returns the fraction of time the loop spent busy rather than waiting in select, between 0 and 1. */
+        public double getUtilization() {
+            long total = busyNanos + selectNanos;
+            return total == 0 ? 0 : (double) busyNanos / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "loop %d: %d connections, %d keys, %.1f%% busy", index, connectionCount,
+                    keysHandled, getUtilization() * 100);
+        }
+    }
+
     @Override
     protected Executor executor() {
         return new Executor() {
@@ -23,6 +23,8 @@
 package org.bitcoinj.script;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.SchnorrBatchVerifier;
+import org.bitcoinj.crypto.TransactionSchnorrSignature;
 import org.bitcoinj.crypto.TransactionSignature;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -81,7 +83,9 @@ public class Script {
         CLEANSTACK, // Require that only a single stack element remains after evaluation.
         CHECKLOCKTIMEVERIFY, // Enable CHECKLOCKTIMEVERIFY operation
         ENABLESIGHASHFORKID,
-        MONOLITH_OPCODES // May 15, 2018 Hard fork
+        MONOLITH_OPCODES, // May 15, 2018 Hard fork
+        SCHNORR, // 65 byte signatures in CHECKSIG are Schnorr signatures (May 15, 2019 Hard fork)
+        SCHNORR_MULTISIG // CHECKMULTISIG with a non-null dummy takes Schnorr signatures (Nov 15, 2019 Hard fork)
     }
     public static final EnumSet<VerifyFlag> ALL_VERIFY_FLAGS = EnumSet.allOf(VerifyFlag.class);
 
@@ -89,6 +93,8 @@ public class Script {
     public static final long MAX_SCRIPT_ELEMENT_SIZE = 520;  // bytes
     public static final int DEFAULT_MAX_NUM_ELEMENT_SIZE = 4;
     public static final int SIG_SIZE = 75;
+    /** Size of a pushed Schnorr signature, see {@link #SIG_SIZE}. */
+    public static final int SCHNORR_SIG_SIZE = 66;
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
@@ -949,6 +955,13 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Coin value, Set<VerifyFlag> verifyFlags, ScriptStateListener scriptStateListener) throws ScriptException {
+        executeScript(txContainingThis, index, script, stack, value, verifyFlags, scriptStateListener, null);
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, long index,
+                                      Script script, LinkedList<byte[]> stack, Coin value, Set<VerifyFlag> verifyFlags,
+                                      @Nullable ScriptStateListener scriptStateListener,
+                                      @Nullable SchnorrBatchVerifier schnorrBatch) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
 
@@ -1613,13 +1626,15 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, value, verifyFlags);
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, value, verifyFlags,
+                            schnorrBatch);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, value, verifyFlags);
+                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, value, verifyFlags,
+                            schnorrBatch);
                     break;
                 case OP_CHECKLOCKTIMEVERIFY:
                     if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
@@ -1709,7 +1724,8 @@ public class Script {
 
     private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
                                         int lastCodeSepLocation, int opcode, Coin value,
-                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+                                        Set<VerifyFlag> verifyFlags,
+                                        @Nullable SchnorrBatchVerifier schnorrBatch) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
@@ -1729,6 +1745,12 @@ public class Script {
         }
         connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
 
+        if (verifyFlags.contains(VerifyFlag.SCHNORR) && TransactionSchnorrSignature.isSchnorrEncoded(sigBytes)) {
+            executeCheckSchnorrSig(txContainingThis, index, connectedScript, stack, opcode, value, sigBytes, pubKey,
+                    schnorrBatch);
+            return;
+        }
+
         // TODO: Use int for indexes everywhere, we can't have that many inputs/outputs
         boolean sigValid = false;
         try {
@@ -1757,9 +1779,29 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
+    private static void executeCheckSchnorrSig(Transaction txContainingThis, int index, byte[] connectedScript,
+                                               LinkedList<byte[]> stack, int opcode, Coin value, byte[] sigBytes,
+                                               byte[] pubKey, @Nullable SchnorrBatchVerifier schnorrBatch)
+            throws ScriptException {
+        TransactionSchnorrSignature sig = decodeSchnorrSig(sigBytes, pubKey, getOpCodeName(opcode));
+        Sha256Hash hash = txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(),
+                sig.anyoneCanPay());
+        // As in Bitcoin Cash, a Schnorr signature that doesn't verify fails the script rather than pushing false
+        // (NULLFAIL). That's what allows deferring the check to a batch, which is rejected as a whole if any of its
+        // signatures is invalid.
+        if (schnorrBatch != null)
+            schnorrBatch.add(hash.getBytes(), sig, pubKey);
+        else if (!ECKey.verifySchnorr(hash.getBytes(), sig, pubKey))
+            throw new ScriptException("Script failed " + getOpCodeName(opcode) + ": invalid Schnorr signature");
+
+        if (opcode == OP_CHECKSIG)
+            stack.add(new byte[] {1});
+    }
+
     private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode, Coin value,
-                                       Set<VerifyFlag> verifyFlags) throws ScriptException {
+                                       Set<VerifyFlag> verifyFlags,
+                                       @Nullable SchnorrBatchVerifier schnorrBatch) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
             || verifyFlags.contains(VerifyFlag.DERSIG)
             || verifyFlags.contains(VerifyFlag.LOW_S);
@@ -1806,6 +1848,24 @@ public class Script {
             connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
         }
 
+        if (verifyFlags.contains(VerifyFlag.SCHNORR_MULTISIG)) {
+            byte[] dummy = stack.getLast();
+            if (dummy.length > 0) {
+                checkMultiSchnorrSig(txContainingThis, index, connectedScript, value, pubkeys, sigs, dummy,
+                        schnorrBatch);
+                stack.pollLast();
+                if (opcode == OP_CHECKMULTISIG)
+                    stack.add(new byte[] {1});
+                return opCount;
+            }
+        }
+        // Since Schnorr signatures were enabled in CHECKSIG, 65 byte signatures are never accepted by the ECDSA path.
+        if (verifyFlags.contains(VerifyFlag.SCHNORR) || verifyFlags.contains(VerifyFlag.SCHNORR_MULTISIG)) {
+            for (byte[] sig : sigs)
+                if (TransactionSchnorrSignature.isSchnorrEncoded(sig))
+                    throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with a null dummy can't take Schnorr signatures");
+        }
+
         boolean valid = true;
         while (sigs.size() > 0) {
             byte[] pubKey = pubkeys.pollFirst();
@@ -1843,6 +1903,62 @@ public class Script {
         return opCount;
     }
 
+    /**
+     * Decodes a Schnorr signature and checks the encoding of it and the public key it's checked against. Schnorr
+     * signatures came after the strict encoding and forkid rules became mandatory on Bitcoin Cash, so unlike for ECDSA
+     * these checks don't depend on the verify flags: the sighash type must be defined and include SIGHASH_FORKID, and
+     * the public key must be a compressed or uncompressed point encoding.
+     */
+    private static TransactionSchnorrSignature decodeSchnorrSig(byte[] sigBytes, byte[] pubKey, String opName)
+            throws ScriptException {
+        TransactionSchnorrSignature sig = TransactionSchnorrSignature.decodeFromBitcoin(sigBytes);
+        if (!sig.hasDefinedSigHash())
+            throw new ScriptException(opName + " with a Schnorr signature of undefined hashtype");
+        if (!sig.useForkId())
+            throw new ScriptException(opName + " with a Schnorr signature without SIGHASH_FORKID");
+        if (!ECKey.isPubKeyCanonical(pubKey))
+            throw new ScriptException(opName + " with a non-canonical public key");
+        return sig;
+    }
+
+    /**
+     * Checks the signatures of a CHECKMULTISIG in Schnorr mode, selected by a non-null dummy element. The dummy is a
+     * little endian bitfield of the keys, in script order, that the signatures are checked against, in order. All
+     * signatures must be valid Schnorr signatures, otherwise the script fails. The pubkeys and sigs were popped off
+     * the stack and thus are in reverse script order.
+     */
+    private static void checkMultiSchnorrSig(Transaction txContainingThis, int index, byte[] connectedScript,
+                                             Coin value, List<byte[]> pubkeys, List<byte[]> sigs, byte[] bitfield,
+                                             @Nullable SchnorrBatchVerifier schnorrBatch) throws ScriptException {
+        final int keyCount = pubkeys.size();
+        if (bitfield.length != (keyCount + 7) / 8)
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with a dummy bitfield of the wrong size");
+        long checkBits = 0;
+        for (int i = 0; i < bitfield.length; i++)
+            checkBits |= (long) (bitfield[i] & 0xff) << (8 * i);
+        if ((checkBits >>> keyCount) != 0)
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with a dummy bitfield selecting keys out of range");
+        if (Long.bitCount(checkBits) != sigs.size())
+            throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with a dummy bitfield not matching the signature count");
+
+        int sigIndex = sigs.size() - 1;
+        for (int keyIndex = 0; keyIndex < keyCount; keyIndex++) {
+            if ((checkBits & (1L << keyIndex)) == 0)
+                continue;
+            byte[] sigBytes = sigs.get(sigIndex--);
+            byte[] pubKey = pubkeys.get(keyCount - 1 - keyIndex);
+            if (!TransactionSchnorrSignature.isSchnorrEncoded(sigBytes))
+                throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with a non-null dummy only takes Schnorr signatures");
+            TransactionSchnorrSignature sig = decodeSchnorrSig(sigBytes, pubKey, "OP_CHECKMULTISIG(VERIFY)");
+            Sha256Hash hash = txContainingThis.hashForSignatureWitness(index, connectedScript, value,
+                    sig.sigHashMode(), sig.anyoneCanPay());
+            if (schnorrBatch != null)
+                schnorrBatch.add(hash.getBytes(), sig, pubKey);
+            else if (!ECKey.verifySchnorr(hash.getBytes(), sig, pubKey))
+                throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with an invalid Schnorr signature");
+        }
+    }
+
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, enabling all
      * validation rules.
@@ -1877,6 +1993,20 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, value, verifyFlags, null);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, deferring the
+     * checks of Schnorr signatures to the given batch. The input only correctly spends the output if this method
+     * returns and {@link SchnorrBatchVerifier#verify()} returns true for the batch afterwards. This is meant for
+     * verifying all inputs of a block at once.
+     * @param schnorrBatch The batch to add Schnorr signatures to, or null to check them right away.
+     * @see #correctlySpends(Transaction, long, Script, Coin, Set)
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
+                                Set<VerifyFlag> verifyFlags, @Nullable SchnorrBatchVerifier schnorrBatch)
+            throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1890,10 +2020,10 @@ public class Script {
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack, value, verifyFlags);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, value, verifyFlags, null, schnorrBatch);
         if (verifyFlags.contains(VerifyFlag.P2SH))
             p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, value, verifyFlags);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, value, verifyFlags, null, schnorrBatch);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
@@ -1922,7 +2052,8 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, value, verifyFlags);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, value, verifyFlags, null,
+                    schnorrBatch);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
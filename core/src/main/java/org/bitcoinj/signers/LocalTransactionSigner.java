@@ -38,7 +38,8 @@ import org.slf4j.LoggerFactory;
  * {@link TransactionSigner.ProposedTransaction} object that will be also passed then to the next signer in chain. This allows other
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
- * <p>This signer always uses {@link org.bitcoinj.core.Transaction.SigHash#ALL} signing mode.</p>
+ * <p>This signer always uses {@link org.bitcoinj.core.Transaction.SigHash#ALL} signing mode. With forkid signatures,
+ * inputs spending to a single key are signed with Schnorr signatures unless the send request says otherwise.</p>
  */
 public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -48,7 +49,7 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
      * signed.
      */
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
-        VerifyFlag.NULLDUMMY);
+        VerifyFlag.NULLDUMMY, VerifyFlag.SCHNORR);
 
     @Override
     public boolean isReady() {
@@ -102,9 +103,18 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
             // a CHECKMULTISIG program for P2SH inputs
             byte[] script = redeemData.redeemScript.getProgram();
             try {
-                TransactionSignature signature = propTx.useForkId ?
-                        tx.calculateWitnessSignature(i, key, script, tx.getInput(i).getConnectedOutput().getValue(), Transaction.SigHash.ALL, false) :
-                        tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+                byte[] signature;
+                if (propTx.useForkId && propTx.useSchnorr && !scriptPubKey.isPayToScriptHash()) {
+                    // Schnorr signatures are shorter, but in multisig they require all signers to agree on which
+                    // keys sign, so P2SH inputs stay ECDSA.
+                    signature = tx.calculateSchnorrSignature(i, key, null, script,
+                            tx.getInput(i).getConnectedOutput().getValue(), Transaction.SigHash.ALL, false).encodeToBitcoin();
+                } else {
+                    TransactionSignature ecdsaSignature = propTx.useForkId ?
+                            tx.calculateWitnessSignature(i, key, script, tx.getInput(i).getConnectedOutput().getValue(), Transaction.SigHash.ALL, false) :
+                            tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
+                    signature = ecdsaSignature.encodeToBitcoin();
+                }
 
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
@@ -114,7 +124,7 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 // we always run first, we have to depend on the other signers rearranging the signatures as needed.
                 // Therefore, always place as first signature.
                 int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
+                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature, sigIndex);
                 txIn.setScriptSig(inputScript);
             } catch (ECKey.KeyIsEncryptedException e) {
                 throw e;
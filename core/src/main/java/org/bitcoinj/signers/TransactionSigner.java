@@ -63,7 +63,13 @@ public interface TransactionSigner {
             this.useForkId = useForkId;
         }
 
+        public ProposedTransaction(Transaction partialTx, boolean useForkId, boolean useSchnorr) {
+            this(partialTx, useForkId);
+            this.useSchnorr = useSchnorr;
+        }
+
         boolean useForkId = false;
+        boolean useSchnorr = false;
     }
 
     class MissingSignatureException extends RuntimeException {
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * A CompactFilterStore caches the BIP 158 filters and filter headers a {@link org.bitcoinj.core.CompactFilterClient}
+ * has downloaded and verified, keyed by block hash. Because the filters don't depend on the wallet, a rescan after
+ * adding keys can be answered entirely from the store instead of downloading the filters again.<p>
+ *
+ * CompactFilterStores are thread safe.
+ */
+public interface CompactFilterStore {
+    /** Saves the serialized filter of the given block. */
+    void putFilter(Sha256Hash blockHash, byte[] filter) throws BlockStoreException;
+
+    /** Returns the serialized filter of the given block, or null if it isn't stored. */
+    byte[] getFilter(Sha256Hash blockHash) throws BlockStoreException;
+
+    /** Saves the verified filter header of the given block. */
+    void putFilterHeader(Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException;
+
+    /** Returns the filter header of the given block, or null if it isn't stored. */
+    Sha256Hash getFilterHeader(Sha256Hash blockHash) throws BlockStoreException;
+
+    /** Closes the store. */
+    void close() throws BlockStoreException;
+}
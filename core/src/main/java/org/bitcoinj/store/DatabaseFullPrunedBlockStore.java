@@ -20,6 +20,8 @@ package org.bitcoinj.store;
 
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.script.Script;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,6 +90,7 @@ import java.util.*;
  */
 public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
+    private static final LatencyHistogram commitTime = MetricRegistry.getDefault().histogram("store.database.commit");
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
@@ -1019,11 +1022,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        long start = System.nanoTime();
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            commitTime.recordSince(start);
         }
     }
 
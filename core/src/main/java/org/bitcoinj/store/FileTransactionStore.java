@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Keeps transaction records in a single scratch file. Records are appended, only their position is kept in memory.
+ * Space taken by removed or replaced records is reclaimed once it exceeds the space taken by live records.</p>
+ *
+ * <p>The file only has to live as long as the store is open: existing content is discarded when the store is
+ * opened.</p>
+ */
+public class FileTransactionStore implements TransactionStore {
+    // Don't bother compacting tiny files.
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    // Offset of each record in the file. A record is its length as a 32 bit integer followed by the data.
+    private final Map<Sha256Hash, Long> offsets = new HashMap<Sha256Hash, Long>();
+    private long liveBytes;
+
+    public FileTransactionStore(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.randomAccessFile.setLength(0);
+    }
+
+    @Override
+    public synchronized void put(Sha256Hash hash, byte[] data) throws IOException {
+        checkOpen();
+        remove(hash);
+        byte[] record = new byte[4 + data.length];
+        Utils.uint32ToByteArrayBE(data.length, record, 0);
+        System.arraycopy(data, 0, record, 4, data.length);
+        long offset = randomAccessFile.length();
+        randomAccessFile.seek(offset);
+        randomAccessFile.write(record);
+        offsets.put(hash, offset);
+        liveBytes += record.length;
+    }
+
+    @Override
+    @Nullable
+    public synchronized byte[] get(Sha256Hash hash) throws IOException {
+        checkOpen();
+        Long offset = offsets.get(hash);
+        if (offset == null)
+            return null;
+        return read(offset);
+    }
+
+    @Override
+    public synchronized void remove(Sha256Hash hash) throws IOException {
+        checkOpen();
+        Long offset = offsets.remove(hash);
+        if (offset == null)
+            return;
+        randomAccessFile.seek(offset);
+        liveBytes -= 4 + randomAccessFile.readInt();
+        long garbage = randomAccessFile.length() - liveBytes;
+        if (garbage > liveBytes && garbage > MIN_COMPACTION_GARBAGE)
+            compact();
+    }
+
+    /** Returns the file backing this store. */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (randomAccessFile == null)
+            return;
+        randomAccessFile.close();
+        randomAccessFile = null;
+        offsets.clear();
+    }
+
+    private byte[] read(long offset) throws IOException {
+        randomAccessFile.seek(offset);
+        byte[] data = new byte[randomAccessFile.readInt()];
+        randomAccessFile.readFully(data);
+        return data;
+    }
+
+    // Moves all live records to the start of the file, in place. Records only ever move towards the start, so
+    // processing them in file order never overwrites a record that has not been moved yet.
+    private void compact() throws IOException {
+        List<Map.Entry<Sha256Hash, Long>> entries = new ArrayList<Map.Entry<Sha256Hash, Long>>(offsets.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Sha256Hash, Long>>() {
+            @Override
+            public int compare(Map.Entry<Sha256Hash, Long> a, Map.Entry<Sha256Hash, Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+        long position = 0;
+        for (Map.Entry<Sha256Hash, Long> entry : entries) {
+            byte[] data = read(entry.getValue());
+            randomAccessFile.seek(position);
+            randomAccessFile.writeInt(data.length);
+            randomAccessFile.write(data);
+            entry.setValue(position);
+            position += 4 + data.length;
+        }
+        randomAccessFile.setLength(position);
+    }
+
+    private void checkOpen() throws IOException {
+        if (randomAccessFile == null) throw new IOException("FileTransactionStore is closed");
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps compact filters and filter headers in memory. The filter of a block is usually a few hundred bytes, so this
+ * is fine for wallets that sync from a recent checkpoint but apps that rescan from far back may want to persist them.
+ */
+public class MemoryCompactFilterStore implements CompactFilterStore {
+    private Map<Sha256Hash, byte[]> filters = new HashMap<Sha256Hash, byte[]>();
+    private Map<Sha256Hash, Sha256Hash> filterHeaders = new HashMap<Sha256Hash, Sha256Hash>();
+
+    @Override
+    public synchronized void putFilter(Sha256Hash blockHash, byte[] filter) throws BlockStoreException {
+        if (filters == null) throw new BlockStoreException("MemoryCompactFilterStore is closed");
+        filters.put(blockHash, filter);
+    }
+
+    @Override
+    public synchronized byte[] getFilter(Sha256Hash blockHash) throws BlockStoreException {
+        if (filters == null) throw new BlockStoreException("MemoryCompactFilterStore is closed");
+        return filters.get(blockHash);
+    }
+
+    @Override
+    public synchronized void putFilterHeader(Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException {
+        if (filterHeaders == null) throw new BlockStoreException("MemoryCompactFilterStore is closed");
+        filterHeaders.put(blockHash, filterHeader);
+    }
+
+    @Override
+    public synchronized Sha256Hash getFilterHeader(Sha256Hash blockHash) throws BlockStoreException {
+        if (filterHeaders == null) throw new BlockStoreException("MemoryCompactFilterStore is closed");
+        return filterHeaders.get(blockHash);
+    }
+
+    @Override
+    public synchronized void close() {
+        filters = null;
+        filterHeaders = null;
+    }
+}
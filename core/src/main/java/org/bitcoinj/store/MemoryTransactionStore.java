@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps transaction records in memory. Used primarily for unit testing, though the serialized records are still a lot
+ * smaller than the transaction objects they were made from.
+ */
+public class MemoryTransactionStore implements TransactionStore {
+    private Map<Sha256Hash, byte[]> records = new HashMap<Sha256Hash, byte[]>();
+
+    @Override
+    public synchronized void put(Sha256Hash hash, byte[] data) throws IOException {
+        checkOpen();
+        records.put(hash, data);
+    }
+
+    @Override
+    @Nullable
+    public synchronized byte[] get(Sha256Hash hash) throws IOException {
+        checkOpen();
+        return records.get(hash);
+    }
+
+    @Override
+    public synchronized void remove(Sha256Hash hash) throws IOException {
+        checkOpen();
+        records.remove(hash);
+    }
+
+    /** Returns the number of records in the store. */
+    public synchronized int size() {
+        return records == null ? 0 : records.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        records = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (records == null) throw new IOException("MemoryTransactionStore is closed");
+    }
+}
@@ -17,6 +17,9 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.metrics.Counter;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
@@ -38,6 +41,9 @@ import static com.google.common.base.Preconditions.*;
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
+    // Lookups answered from the caches, and the time taken by those that had to scan the file.
+    private static final Counter cacheHits = MetricRegistry.getDefault().counter("store.spv.cache.hits");
+    private static final LatencyHistogram scanTime = MetricRegistry.getDefault().histogram("store.spv.scan");
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
@@ -185,10 +191,15 @@ public class SPVBlockStore implements BlockStore {
         lock.lock();
         try {
             StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
+            if (cacheHit != null) {
+                cacheHits.inc();
                 return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            }
+            if (notFoundCache.get(hash) != null) {
+                cacheHits.inc();
                 return null;
+            }
+            long start = System.nanoTime();
 
             // Starting from the current tip of the ring work backwards until we have either found the block or
             // wrapped around.
@@ -210,11 +221,13 @@ public class SPVBlockStore implements BlockStore {
                     // Found the target.
                     StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
                     blockCache.put(hash, storedBlock);
+                    scanTime.recordSince(start);
                     return storedBlock;
                 }
             } while (cursor != startingPoint);
             // Not found.
             notFoundCache.put(hash, notFoundMarker);
+            scanTime.recordSince(start);
             return null;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
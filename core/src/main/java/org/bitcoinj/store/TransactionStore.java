@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * <p>An implementor of TransactionStore keeps serialized transaction records, keyed by transaction hash, outside of
+ * the Java heap. The {@link org.bitcoinj.wallet.Wallet} uses it to hold the deeply buried spent transactions that it
+ * evicted from memory, see {@link org.bitcoinj.wallet.Wallet#setSpentTransactionStore(TransactionStore, int)}.</p>
+ *
+ * <p>The records are opaque to the store. The wallet file stays the complete record of a wallet, so a store only has
+ * to keep its contents for as long as it is open.</p>
+ *
+ * <p>TransactionStores are thread safe.</p>
+ */
+public interface TransactionStore {
+    /** Saves the given record under the given hash, replacing any previous record. */
+    void put(Sha256Hash hash, byte[] data) throws IOException;
+
+    /** Returns the record saved under the given hash, or null if there is none. */
+    @Nullable
+    byte[] get(Sha256Hash hash) throws IOException;
+
+    /** Removes the record saved under the given hash, if any. */
+    void remove(Sha256Hash hash) throws IOException;
+
+    /** Closes the store. */
+    void close() throws IOException;
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A task delivering an event that only the latest occurrence of matters, for example a notification that a
+ * transactions confidence changed. When such a task is given to a {@link ListenerQueue} while another one of the same
+ * class and with an equal key is still waiting to run, the waiting one is dropped and the new task is queued in its
+ * stead, behind any events queued in the meantime.
+ */
+public abstract class CoalescingRunnable implements Runnable {
+    private final Object key;
+
+    /** Creates a task identified by the given objects, which must have suitable equals and hashCode methods. */
+    protected CoalescingRunnable(Object... key) {
+        checkArgument(key.length > 0);
+        this.key = Arrays.asList(getClass(), Arrays.asList(key));
+    }
+
+    /** Returns the key that waiting tasks are replaced by, which includes the class of this task. */
+    public Object getCoalescingKey() {
+        return key;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.metrics.Counter;
+import org.bitcoinj.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An executor that queues the events of one listener and feeds them to a target executor, running at most a given
+ * number of them at once. With a concurrency of one, events run in the order they were queued, like they would on the
+ * target directly, but a slow listener only backs up its own queue: the target never holds more than one task per
+ * queue, so other listeners sharing the target get their turn in between.</p>
+ *
+ * <p>The queue is bounded. What happens when it's full is decided by its {@link Overflow} policy. Tasks that extend
+ * {@link CoalescingRunnable} replace an equivalent task that is still waiting, so bursts of redundant events such as
+ * repeated confidence changes of the same transaction are delivered once.</p>
+ *
+ * <p>Usually you don't create these yourself, see {@link Threading#useListenerQueues(int, Overflow)}.</p>
+ */
+public class ListenerQueue implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(ListenerQueue.class);
+    private static final Counter COALESCED = MetricRegistry.getDefault().counter("events.coalesced");
+    private static final Counter DROPPED = MetricRegistry.getDefault().counter("events.dropped");
+    // Set while a thread runs a task of any queue, so that tasks queueing more events never block on a full queue.
+    private static final ThreadLocal<Boolean> running = new ThreadLocal<Boolean>();
+
+    /** What to do with a new event when the queue is full. */
+    public enum Overflow {
+        /** Queue it anyway and log a warning, so the queue is effectively unbounded. */
+        WARN,
+        /**
+         * Wait for the listener to catch up. Events queued by the listeners themselves, or by anything else running
+         * on the user thread, are queued anyway. Note that the waiting thread may hold locks, so listeners taking for
+         * example the wallet lock can deadlock with this.
+         */
+        BLOCK,
+        /** Discard the oldest waiting event to make room. */
+        DROP_OLDEST,
+        /** Discard the new event. */
+        DROP_NEWEST
+    }
+
+    private final Executor target;
+    private final int maxConcurrency;
+    private final int capacity;
+    private final Overflow overflow;
+
+    private final ReentrantLock lock = Threading.lock("listenerqueue");
+    private final Condition notFull = lock.newCondition();
+    // Keyed by coalescing key, or a fresh object for tasks that don't coalesce. In the order the tasks are to run.
+    @GuardedBy("lock") private final LinkedHashMap<Object, Runnable> pending = new LinkedHashMap<Object, Runnable>();
+    @GuardedBy("lock") private int drainers;
+    @GuardedBy("lock") private boolean warned;
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            lock.lock();
+            try {
+                Iterator<Runnable> it = pending.values().iterator();
+                if (!it.hasNext()) {
+                    drainers--;
+                    return;
+                }
+                task = it.next();
+                it.remove();
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            running.set(Boolean.TRUE);
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                log.warn("Exception in event listener", throwable);
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    handler.uncaughtException(Thread.currentThread(), throwable);
+            } finally {
+                running.remove();
+            }
+            // Go to the back of the target's queue rather than looping, so other work on the target gets a turn.
+            lock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    drainers--;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                target.execute(this);
+            } catch (RuntimeException e) {
+                // The waiting events are picked up by the drainer started for the next event.
+                lock.lock();
+                try {
+                    drainers--;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        }
+    };
+
+    /**
+     * @param target the executor the events are run on
+     * @param maxConcurrency how many events may run at once, 1 to run them in order
+     * @param capacity how many events may wait before the overflow policy applies
+     * @param overflow what to do with events once the queue is full
+     */
+    public ListenerQueue(Executor target, int maxConcurrency, int capacity, Overflow overflow) {
+        checkArgument(maxConcurrency > 0);
+        checkArgument(capacity > 0);
+        this.target = checkNotNull(target);
+        this.maxConcurrency = maxConcurrency;
+        this.capacity = capacity;
+        this.overflow = checkNotNull(overflow);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Object key = task instanceof CoalescingRunnable ? ((CoalescingRunnable) task).getCoalescingKey() : new Object();
+        lock.lock();
+        try {
+            while (!pending.containsKey(key) && pending.size() >= capacity) {
+                if (overflow == Overflow.WARN) {
+                    if (!warned) {
+                        log.warn("Listener queue has {} pending events, check for slow event listeners.", pending.size());
+                        warned = true;
+                    }
+                    break;
+                } else if (overflow == Overflow.BLOCK) {
+                    // Only the target can drain the queue, so if it's the caller, waiting would never end. That
+                    // includes code running on the user thread outside of any queue.
+                    if (running.get() != null || Threading.UserThread.isCurrentThread())
+                        break;
+                    notFull.awaitUninterruptibly();
+                } else if (overflow == Overflow.DROP_OLDEST) {
+                    Iterator<Runnable> it = pending.values().iterator();
+                    it.next();
+                    it.remove();
+                    DROPPED.inc();
+                } else {
+                    DROPPED.inc();
+                    return;
+                }
+            }
+            // The replacement goes to the back, so it doesn't overtake events queued after the one it replaces.
+            if (pending.remove(key) != null) {
+                pending.put(key, task);
+                COALESCED.inc();
+                return;
+            }
+            pending.put(key, task);
+            if (pending.size() == 1)
+                warned = false;
+            if (drainers >= maxConcurrency)
+                return;
+            drainers++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            target.execute(drainer);
+        } catch (RuntimeException e) {
+            // The event wasn't accepted, so don't leave it behind to be run later.
+            lock.lock();
+            try {
+                drainers--;
+                if (pending.get(key) == task)
+                    pending.remove(key);
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /** Returns the executor events are run on. */
+    public Executor getTarget() {
+        return target;
+    }
+
+    /** Returns the number of events waiting to run. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if no events are waiting or running. */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return pending.isEmpty() && drainers == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -22,7 +22,9 @@ import java.util.concurrent.Executor;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
-* A simple wrapper around a listener and an executor, with some utility methods.
+* A simple wrapper around a listener and an executor, with some utility methods. If listener queues are in use, the
+* executor is the listener's queue rather than the one it was registered with, see
+* {@link Threading#useListenerQueues(int, ListenerQueue.Overflow)}.
 */
 public class ListenerRegistration<T> {
     public final T listener;
@@ -30,7 +32,7 @@ public class ListenerRegistration<T> {
 
     public ListenerRegistration(T listener, Executor executor) {
         this.listener = checkNotNull(listener);
-        this.executor = checkNotNull(executor);
+        this.executor = Threading.listenerExecutor(listener, checkNotNull(executor));
     }
 
     /** Returns true if the listener was removed, else false. */
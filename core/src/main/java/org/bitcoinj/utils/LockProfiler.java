@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.metrics.Counter;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Collects timings from locks created by {@link Threading#lock(String)} after {@link Threading#profileLocks()} was
+ * called. For every lock name it keeps a histogram of the time threads waited to acquire a lock of that name, a
+ * histogram of the time the lock was then held, and a count of contended acquisitions, in the default
+ * {@link MetricRegistry} as {@code lock.<name>.wait}, {@code lock.<name>.hold} and {@code lock.<name>.contended}.
+ * For contended acquisitions it also remembers the call site, see {@link #getTopContendedSites(int)}.</p>
+ *
+ * <p>Recording can be switched on and off at any time. While off, profiling locks cost one volatile read over a
+ * plain {@link java.util.concurrent.locks.ReentrantLock}.</p>
+ */
+public class LockProfiler {
+    // Bounds the memory used by call sites. Once full, new sites are no longer counted.
+    private static final int MAX_SITES = 1000;
+
+    private volatile boolean enabled = true;
+    private final ConcurrentHashMap<ContendedSite, AtomicLong> sites = new ConcurrentHashMap<ContendedSite, AtomicLong>();
+
+    /** A place in the code that had to wait for a lock, and how often it did. */
+    public static class ContendedSite {
+        private final String lockName;
+        private final StackTraceElement site;
+        private long count;
+
+        ContendedSite(String lockName, StackTraceElement site) {
+            this.lockName = lockName;
+            this.site = site;
+        }
+
+        public String getLockName() {
+            return lockName;
+        }
+
+        public StackTraceElement getSite() {
+            return site;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ContendedSite other = (ContendedSite) o;
+            return lockName.equals(other.lockName) && site.equals(other.site);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * lockName.hashCode() + site.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return lockName + " at " + site + ": " + count;
+        }
+    }
+
+    // The metrics kept for all locks of one name.
+    static class LockMetrics {
+        final LatencyHistogram waitTime;
+        final LatencyHistogram holdTime;
+        final Counter contended;
+
+        LockMetrics(String name) {
+            MetricRegistry registry = MetricRegistry.getDefault();
+            waitTime = registry.histogram("lock." + name + ".wait");
+            holdTime = registry.histogram("lock." + name + ".hold");
+            contended = registry.counter("lock." + name + ".contended");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Switches recording on or off. It is on to begin with. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Returns the call sites that waited for locks most often, the most frequent first. */
+    public List<ContendedSite> getTopContendedSites(int max) {
+        List<ContendedSite> result = new ArrayList<ContendedSite>();
+        for (Map.Entry<ContendedSite, AtomicLong> entry : sites.entrySet()) {
+            ContendedSite site = new ContendedSite(entry.getKey().lockName, entry.getKey().site);
+            site.count = entry.getValue().get();
+            result.add(site);
+        }
+        Collections.sort(result, new Comparator<ContendedSite>() {
+            @Override
+            public int compare(ContendedSite a, ContendedSite b) {
+                return a.count == b.count ? 0 : (a.count > b.count ? -1 : 1);
+            }
+        });
+        return result.size() > max ? new ArrayList<ContendedSite>(result.subList(0, max)) : result;
+    }
+
+    /** Forgets the call sites counted so far. */
+    public void resetContendedSites() {
+        sites.clear();
+    }
+
+    // Called by a lock that had to wait, from the waiting thread.
+    void recordContention(String lockName) {
+        StackTraceElement site = findCaller(new Throwable().getStackTrace());
+        if (site == null)
+            return;
+        ContendedSite key = new ContendedSite(lockName, site);
+        AtomicLong count = sites.get(key);
+        if (count == null) {
+            if (sites.size() >= MAX_SITES)
+                return;
+            AtomicLong created = new AtomicLong();
+            count = sites.putIfAbsent(key, created);
+            if (count == null)
+                count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    // The first frame that isn't in the lock itself or the JDK.
+    private static StackTraceElement findCaller(StackTraceElement[] stack) {
+        for (StackTraceElement element : stack) {
+            String className = element.getClassName();
+            if (className.equals(LockProfiler.class.getName())
+                    || className.equals(ProfilingReentrantLock.class.getName())
+                    || className.startsWith("java."))
+                continue;
+            return element;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ReentrantLock} that reports how long threads wait for it and hold it to a {@link LockProfiler}. Only the
+ * outermost acquisition by a thread is timed. Time spent waiting on a condition of the lock counts as held.
+ */
+class ProfilingReentrantLock extends ReentrantLock {
+    private final String name;
+    private final LockProfiler profiler;
+    private final LockProfiler.LockMetrics metrics;
+    // When the calling thread acquired the lock, or null if its current hold isn't timed. Kept per thread because a
+    // thread waiting on a condition gives up the lock without unlocking it, so another thread may acquire it and set
+    // its own start time in the meantime.
+    private final ThreadLocal<Long> acquiredAt = new ThreadLocal<Long>();
+
+    ProfilingReentrantLock(String name, LockProfiler profiler, LockProfiler.LockMetrics metrics) {
+        this.name = name;
+        this.profiler = profiler;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void lock() {
+        if (!profiler.isEnabled() || isHeldByCurrentThread()) {
+            super.lock();
+            return;
+        }
+        if (super.tryLock()) {
+            acquired(0);
+            return;
+        }
+        long start = System.nanoTime();
+        super.lock();
+        contended(start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (!profiler.isEnabled() || isHeldByCurrentThread()) {
+            super.lockInterruptibly();
+            return;
+        }
+        if (super.tryLock()) {
+            acquired(0);
+            return;
+        }
+        long start = System.nanoTime();
+        super.lockInterruptibly();
+        contended(start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!super.tryLock())
+            return false;
+        if (profiler.isEnabled() && getHoldCount() == 1)
+            acquired(0);
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!profiler.isEnabled() || isHeldByCurrentThread())
+            return super.tryLock(timeout, unit);
+        if (super.tryLock()) {
+            acquired(0);
+            return true;
+        }
+        long start = System.nanoTime();
+        if (!super.tryLock(timeout, unit))
+            return false;
+        contended(start);
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        Long start = acquiredAt.get();
+        if (start != null && getHoldCount() == 1) {
+            metrics.holdTime.recordSince(start);
+            acquiredAt.remove();
+        }
+        super.unlock();
+    }
+
+    private void contended(long start) {
+        acquired(System.nanoTime() - start);
+        metrics.contended.inc();
+        profiler.recordContention(name);
+    }
+
+    private void acquired(long waitNanos) {
+        metrics.waitTime.record(waitNanos);
+        acquiredAt.set(System.nanoTime());
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + super.toString();
+    }
+}
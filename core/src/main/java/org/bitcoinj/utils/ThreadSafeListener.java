@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+/**
+ * Marks an event listener that can safely be called from several threads at once. When {@link ListenerQueue}s are in
+ * use (see {@link Threading#useListenerQueues(int, ListenerQueue.Overflow)}), events for such listeners registered
+ * to run on {@link Threading#USER_THREAD} are instead delivered in parallel on {@link Threading#THREAD_POOL}, so
+ * they may arrive out of order.
+ */
+public interface ThreadSafeListener {
+}
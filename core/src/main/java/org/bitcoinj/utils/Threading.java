@@ -16,6 +16,7 @@
 
 package org.bitcoinj.utils;
 
+import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.CycleDetectingLockFactory;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -29,6 +30,9 @@ import javax.annotation.Nullable;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * Various threading related utilities. Provides a wrapper around explicit lock creation that lets you control whether
  * bitcoinj performs cycle detection or not. Cycle detection is useful to detect bugs but comes with a small cost.
@@ -65,13 +69,16 @@ public class Threading {
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
-        final CountDownLatch latch = new CountDownLatch(1);
-        USER_THREAD.execute(new Runnable() {
-            @Override public void run() {
-                latch.countDown();
-            }
-        });
-        Uninterruptibles.awaitUninterruptibly(latch);
+        // Listener queues hand their events to the user thread one at a time, so keep going until they're empty.
+        do {
+            final CountDownLatch latch = new CountDownLatch(1);
+            USER_THREAD.execute(new Runnable() {
+                @Override public void run() {
+                    latch.countDown();
+                }
+            });
+            Uninterruptibles.awaitUninterruptibly(latch);
+        } while (!listenerQueuesIdle());
     }
 
     /**
@@ -114,6 +121,11 @@ public class Threading {
             }
         }
 
+        /** Returns true if the calling thread is a user thread, i.e. runs the tasks of one. */
+        public static boolean isCurrentThread() {
+            return Thread.currentThread() instanceof UserThread;
+        }
+
         @Override
         public void execute(Runnable command) {
             final int size = tasks.size();
@@ -143,6 +155,68 @@ public class Threading {
         };
     }
 
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Per listener event queues
+    //
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Keyed by listener identity, weakly so that removed listeners don't leak their queues.
+    private static final ConcurrentMap<Object, ListenerQueue> listenerQueues = new MapMaker().weakKeys().makeMap();
+    private static volatile int listenerQueueCapacity;
+    private static volatile ListenerQueue.Overflow listenerQueueOverflow;
+
+    /**
+     * Makes listeners registered from now on to run on {@link #USER_THREAD} get a {@link ListenerQueue} of their own
+     * in front of it. A slow listener then only delays and fills up its own queue, redundant events are coalesced,
+     * and once a queue holds the given number of events the overflow policy decides what happens to new ones.
+     * Listeners implementing {@link ThreadSafeListener} are called in parallel on {@link #THREAD_POOL} instead.
+     * Events of one listener still run in order unless it's thread safe, but events of different listeners may now
+     * be reordered relative to each other, which is why this is off by default.
+     */
+    public static void useListenerQueues(int capacity, ListenerQueue.Overflow overflow) {
+        checkArgument(capacity > 0);
+        listenerQueueOverflow = checkNotNull(overflow);
+        listenerQueueCapacity = capacity;
+    }
+
+    /** Makes listeners registered from now on share {@link #USER_THREAD} directly again, which is the default. */
+    public static void disableListenerQueues() {
+        listenerQueueCapacity = 0;
+    }
+
+    /**
+     * Returns the executor that events for the given listener should be given to when it was registered with the
+     * given executor. This is the executor itself, unless listener queues are in use and the executor is the user
+     * thread. Used by {@link ListenerRegistration}.
+     */
+    public static Executor listenerExecutor(Object listener, Executor executor) {
+        int capacity = listenerQueueCapacity;
+        if (capacity == 0 || executor != USER_THREAD)
+            return executor;
+        boolean threadSafe = listener instanceof ThreadSafeListener;
+        Executor target = threadSafe ? THREAD_POOL : executor;
+        while (true) {
+            ListenerQueue queue = listenerQueues.get(listener);
+            if (queue != null && queue.getTarget() == target)
+                return queue;
+            int concurrency = threadSafe ? Runtime.getRuntime().availableProcessors() : 1;
+            ListenerQueue fresh = new ListenerQueue(target, concurrency, capacity, listenerQueueOverflow);
+            // Threads registering the same listener at once must end up with the same queue, or its events may be
+            // reordered.
+            if (queue == null ? listenerQueues.putIfAbsent(listener, fresh) == null
+                    : listenerQueues.replace(listener, queue, fresh))
+                return fresh;
+        }
+    }
+
+    private static boolean listenerQueuesIdle() {
+        for (ListenerQueue queue : listenerQueues.values())
+            if (!queue.isIdle())
+                return false;
+        return true;
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
     // Cycle detecting lock factories
@@ -151,10 +225,14 @@ public class Threading {
 
     private static CycleDetectingLockFactory.Policy policy;
     public static CycleDetectingLockFactory factory;
+    private static final LockProfiler lockProfiler = new LockProfiler();
+    private static volatile boolean profilingLocks;
 
     public static ReentrantLock lock(String name) {
         if (Utils.isAndroidRuntime())
             return new ReentrantLock(true);
+        else if (profilingLocks)
+            return new ProfilingReentrantLock(name, lockProfiler, new LockProfiler.LockMetrics(name));
         else
             return factory.newReentrantLock(name);
     }
@@ -167,6 +245,10 @@ public class Threading {
         setPolicy(CycleDetectingLockFactory.Policies.THROW);
     }
 
+    /**
+     * Locks created from now on are plain {@link ReentrantLock}s without cycle detection. This is the cheapest mode
+     * and the one to use in production once your app is known not to have lock ordering problems.
+     */
     public static void ignoreLockCycles() {
         setPolicy(CycleDetectingLockFactory.Policies.DISABLED);
     }
@@ -174,6 +256,28 @@ public class Threading {
     public static void setPolicy(CycleDetectingLockFactory.Policy policy) {
         Threading.policy = policy;
         factory = CycleDetectingLockFactory.newInstance(policy);
+        profilingLocks = false;
+    }
+
+    /**
+     * Locks created from now on record how long threads wait for them and hold them, per lock name, and where threads
+     * had to wait. See {@link LockProfiler} for where the results go; recording can be paused and resumed at any time
+     * with {@link LockProfiler#setEnabled(boolean)}. Profiling locks don't detect cycles, so this replaces the cycle
+     * detection policy until {@link #setPolicy(CycleDetectingLockFactory.Policy)} is called again. Like the policy,
+     * it should be set before instantiating any bitcoinj objects.
+     */
+    public static void profileLocks() {
+        profilingLocks = true;
+    }
+
+    /** Returns whether new locks are profiling locks, see {@link #profileLocks()}. */
+    public static boolean isProfilingLocks() {
+        return profilingLocks;
+    }
+
+    /** Returns the profiler that locks created after {@link #profileLocks()} report to. */
+    public static LockProfiler getLockProfiler() {
+        return lockProfiler;
     }
 
     public static CycleDetectingLockFactory.Policy getPolicy() {
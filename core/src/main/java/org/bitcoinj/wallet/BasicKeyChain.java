@@ -576,6 +576,17 @@ public class BasicKeyChain implements EncryptableKeyChain {
         return numKeys() * 2;
     }
 
+    /** Adds the output scripts paying to every key in this chain to the given index. */
+    void addScriptPubKeysTo(ScriptPubKeyIndex index) {
+        lock.lock();
+        try {
+            for (ECKey key : hashToKeys.values())
+                index.addKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
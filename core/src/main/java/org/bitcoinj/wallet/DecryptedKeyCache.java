@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.KeyCrypterException;
+
+import com.google.protobuf.ByteString;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Holds the AES key of an encrypted wallet, and the private keys decrypted with it, for a limited time. Signing many
+ * transactions with an unlocked wallet thus neither derives the AES key from the password nor decrypts keys over and
+ * over again. Created by {@link Wallet#unlockKeys(KeyParameter, long, TimeUnit, boolean)}.</p>
+ *
+ * <p>The secrets are kept in a single buffer rather than in key objects, optionally allocated outside of the Java heap.
+ * That way they are overwritten with zeros when the cache is closed, either explicitly or when it expires, and the
+ * garbage collector can't leave copies of them behind. Keys handed out for signing are rebuilt from the buffer each
+ * time and should be dropped right after use.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class DecryptedKeyCache {
+    private static final int PRIVATE_KEY_SIZE = 32;
+    private static final int INITIAL_KEY_CAPACITY = 16;
+
+    private static ScheduledExecutorService expiryExecutor;
+
+    private static synchronized ScheduledExecutorService getExpiryExecutor() {
+        if (expiryExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Decrypted key cache expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            expiryExecutor = executor;
+        }
+        return expiryExecutor;
+    }
+
+    private final boolean offHeap;
+    private final long expiryTimeMillis;
+    private final int aesKeyLength;
+    // The AES key, followed by the private keys at the offsets given in privateKeyOffsets.
+    @GuardedBy("this") @Nullable private ByteBuffer secrets;
+    @GuardedBy("this") private int used;
+    @GuardedBy("this") private final Map<ByteString, Integer> privateKeyOffsets = new HashMap<ByteString, Integer>();
+    @GuardedBy("this") @Nullable private ScheduledFuture<?> expiry;
+
+    /**
+     * Creates a cache holding the given AES key until it expires after the given time. The caller is responsible for
+     * checking the AES key is correct.
+     *
+     * @param offHeap whether to keep the secrets in memory outside of the Java heap.
+     */
+    DecryptedKeyCache(KeyParameter aesKey, long timeToLive, TimeUnit unit, boolean offHeap) {
+        checkArgument(timeToLive > 0, "Time to live must be positive");
+        this.offHeap = offHeap;
+        this.expiryTimeMillis = Utils.currentTimeMillis() + unit.toMillis(timeToLive);
+        byte[] aesKeyBytes = aesKey.getKey();
+        this.aesKeyLength = aesKeyBytes.length;
+        this.secrets = allocate(aesKeyLength + INITIAL_KEY_CAPACITY * PRIVATE_KEY_SIZE);
+        write(0, aesKeyBytes);
+        this.used = aesKeyLength;
+        this.expiry = getExpiryExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, timeToLive, unit);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    @GuardedBy("this")
+    private void write(int offset, byte[] bytes) {
+        ByteBuffer view = secrets.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    @GuardedBy("this")
+    private byte[] read(int offset, int length) {
+        ByteBuffer view = secrets.duplicate();
+        view.position(offset);
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static void zero(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i++)
+            buffer.put(i, (byte) 0);
+    }
+
+    /** Returns true until the cache is closed or has expired. */
+    public synchronized boolean isOpen() {
+        if (secrets != null && Utils.currentTimeMillis() >= expiryTimeMillis)
+            close();
+        return secrets != null;
+    }
+
+    /** Returns the time at which the cache expires, in milliseconds since the epoch. */
+    public long getExpiryTimeMillis() {
+        return expiryTimeMillis;
+    }
+
+    /**
+     * Returns a decrypted copy of the given encrypted key, decrypting it only the first time it is asked for.
+     * @throws ECKey.KeyIsEncryptedException if the cache was closed or has expired.
+     * @throws KeyCrypterException if the key can't be decrypted.
+     */
+    public synchronized ECKey decrypt(ECKey key) throws KeyCrypterException {
+        if (!isOpen())
+            throw new ECKey.KeyIsEncryptedException();
+        ByteString pubKey = ByteString.copyFrom(key.getPubKey());
+        Integer offset = privateKeyOffsets.get(pubKey);
+        if (offset == null) {
+            byte[] aesKeyBytes = read(0, aesKeyLength);
+            ECKey decrypted = key.decrypt(new KeyParameter(aesKeyBytes));
+            Arrays.fill(aesKeyBytes, (byte) 0);
+            byte[] privKeyBytes = decrypted.getPrivKeyBytes();
+            privateKeyOffsets.put(pubKey, store(privKeyBytes));
+            Arrays.fill(privKeyBytes, (byte) 0);
+            return decrypted;
+        }
+        byte[] privKeyBytes = read(offset, PRIVATE_KEY_SIZE);
+        BigInteger privKey = new BigInteger(1, privKeyBytes);
+        Arrays.fill(privKeyBytes, (byte) 0);
+        if (key instanceof DeterministicKey) {
+            DeterministicKey deterministicKey = (DeterministicKey) key;
+            DeterministicKey decrypted = new DeterministicKey(deterministicKey.getPath(),
+                    deterministicKey.getChainCode(), deterministicKey.getPubKeyPoint(), privKey,
+                    deterministicKey.getParent());
+            if (deterministicKey.getParent() == null)
+                decrypted.setCreationTimeSeconds(key.getCreationTimeSeconds());
+            return decrypted;
+        }
+        ECKey decrypted = ECKey.fromPrivateAndPrecalculatedPublic(privKey, key.getPubKeyPoint());
+        decrypted.setCreationTimeSeconds(key.getCreationTimeSeconds());
+        return decrypted;
+    }
+
+    @GuardedBy("this")
+    private int store(byte[] privKeyBytes) {
+        if (used + PRIVATE_KEY_SIZE > secrets.capacity()) {
+            ByteBuffer bigger = allocate(aesKeyLength + 2 * (secrets.capacity() - aesKeyLength));
+            ByteBuffer old = secrets.duplicate();
+            old.clear();
+            bigger.put(old);
+            zero(secrets);
+            secrets = bigger;
+        }
+        int offset = used;
+        write(offset, privKeyBytes);
+        used += PRIVATE_KEY_SIZE;
+        return offset;
+    }
+
+    /** Returns the number of decrypted private keys held. */
+    public synchronized int size() {
+        return privateKeyOffsets.size();
+    }
+
+    /** Overwrites all secrets with zeros. After this the cache can't be used any more. Does nothing if already closed. */
+    public synchronized void close() {
+        if (secrets == null)
+            return;
+        zero(secrets);
+        secrets = null;
+        privateKeyOffsets.clear();
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+}
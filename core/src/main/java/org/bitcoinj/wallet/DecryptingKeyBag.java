@@ -29,15 +29,25 @@ import static com.google.common.base.Preconditions.checkNotNull;
 /**
  * A DecryptingKeyBag filters a pre-existing key bag, decrypting keys as they are requested using the provided
  * AES key. If the keys are encrypted and no AES key provided, {@link org.bitcoinj.core.ECKey.KeyIsEncryptedException}
- * will be thrown.
+ * will be thrown. Alternatively keys can be decrypted through a {@link DecryptedKeyCache}, which avoids decrypting
+ * the same key again.
  */
 public class DecryptingKeyBag implements KeyBag {
     protected final KeyBag target;
     protected final KeyParameter aesKey;
+    @Nullable protected final DecryptedKeyCache keyCache;
 
     public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey) {
         this.target = checkNotNull(target);
         this.aesKey = aesKey;
+        this.keyCache = null;
+    }
+
+    /** Creates a key bag that decrypts keys through the given cache, see {@link Wallet#unlockKeys}. */
+    public DecryptingKeyBag(KeyBag target, DecryptedKeyCache keyCache) {
+        this.target = checkNotNull(target);
+        this.aesKey = null;
+        this.keyCache = checkNotNull(keyCache);
     }
 
     @Nullable
@@ -45,6 +55,8 @@ public class DecryptingKeyBag implements KeyBag {
         if (key == null)
             return null;
         else if (key.isEncrypted()) {
+            if (keyCache != null)
+                return keyCache.decrypt(key);
             if (aesKey == null)
                 throw new ECKey.KeyIsEncryptedException();
             return key.decrypt(aesKey);
@@ -1038,6 +1038,25 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return numKeys() * 2;
     }
 
+    /**
+     * Returns the number of output scripts {@link #addScriptPubKeysTo(ScriptPubKeyIndex)} adds, including those of
+     * lookahead keys.
+     */
+    int numScriptPubKeys() {
+        return numKeys() * 2;
+    }
+
+    /** Adds the output scripts paying to every key in this chain, including lookahead keys, to the given index. */
+    void addScriptPubKeysTo(ScriptPubKeyIndex index) {
+        lock.lock();
+        try {
+            maybeLookAhead();
+            basicKeyChain.addScriptPubKeysTo(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
         lock.lock();
@@ -1163,13 +1182,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+        // The keys are derived in parallel for large lookaheads, but the hierarchy is only updated from this thread.
+        for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, numChildren, needed)) {
             key = key.dropPrivateBytes();
             hierarchy.putKey(key);
             result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
         }
         watch.stop();
         log.info("Took {}", watch);
@@ -583,6 +583,28 @@ public class KeyChainGroup implements KeyBag {
         return result;
     }
 
+    /**
+     * Returns the number of output scripts {@link #addScriptPubKeysTo(ScriptPubKeyIndex)} adds. This grows whenever
+     * keys (including lookahead keys) or married scripts are added, so it can be used to tell when an index built
+     * earlier has gone stale.
+     */
+    public int getScriptPubKeyCount() {
+        int result = basic.numKeys() * 2;
+        for (DeterministicKeyChain chain : chains)
+            result += chain.numScriptPubKeys();
+        return result;
+    }
+
+    /**
+     * Adds the output scripts paying to every key in the group, including lookahead keys, and the pay-to-script-hash
+     * scripts of married chains to the given index.
+     */
+    public void addScriptPubKeysTo(ScriptPubKeyIndex index) {
+        basic.addScriptPubKeysTo(index);
+        for (DeterministicKeyChain chain : chains)
+            chain.addScriptPubKeysTo(index);
+    }
+
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         if (basic.numKeys() > 0)
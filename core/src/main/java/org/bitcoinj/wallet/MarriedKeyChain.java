@@ -297,4 +297,26 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         maybeLookAhead();
         return getLeafKeys().size() * 2;
     }
+
+    @Override
+    int numScriptPubKeys() {
+        lock.lock();
+        try {
+            return super.numScriptPubKeys() + marriedKeysRedeemData.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void addScriptPubKeysTo(ScriptPubKeyIndex index) {
+        lock.lock();
+        try {
+            super.addScriptPubKeysTo(index);
+            for (ByteString scriptHash : marriedKeysRedeemData.keySet())
+                index.addScriptHash(scriptHash.toByteArray());
+        } finally {
+            lock.unlock();
+        }
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.script.Script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>A compact hash set of raw scriptPubKey programs, used by the {@link Wallet} to decide whether a transaction output
+ * pays to one of its keys or watched scripts without parsing the output script into chunks.</p>
+ *
+ * <p>For every key the index holds the canonical pay-to-pubkey-hash and pay-to-pubkey programs, for married keychains
+ * the pay-to-script-hash programs, and for watched scripts their exact program bytes. A miss is only authoritative for
+ * programs in one of those canonical templates (see {@link #isStandardTemplate(byte[])}), any other program has to be
+ * checked the slow way.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ */
+public class ScriptPubKeyIndex {
+    private static final int P2PKH_LENGTH = 25;
+    private static final int P2SH_LENGTH = 23;
+    private static final int HASH_LENGTH = 20;
+    private static final int COMPRESSED_PUBKEY_LENGTH = 33;
+    private static final int UNCOMPRESSED_PUBKEY_LENGTH = 65;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Open addressing with linear probing. Slots are empty when null, the hashes array caches the hash of each slot
+    // so that probing only compares program bytes when the hashes already match.
+    private byte[][] programs;
+    private int[] hashes;
+    private int size;
+
+    public ScriptPubKeyIndex() {
+        clear();
+    }
+
+    /** Removes all programs from the index. */
+    public void clear() {
+        programs = new byte[INITIAL_CAPACITY][];
+        hashes = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /** Returns the number of distinct programs in the index. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the given program to the index. The array is stored as-is and must not be modified afterwards.
+     * @return true if the program was not already in the index.
+     */
+    public boolean add(byte[] program) {
+        if ((size + 1) * 4 > programs.length * 3)
+            resize(programs.length * 2);
+        return insert(program, hash(program));
+    }
+
+    /** Adds the program of the given script to the index. */
+    public boolean add(Script script) {
+        return add(script.getProgram());
+    }
+
+    /** Adds the canonical pay-to-pubkey-hash and pay-to-pubkey programs of the given key to the index. */
+    public void addKey(ECKey key) {
+        add(payToPubKeyHashProgram(key.getPubKeyHash()));
+        add(payToPubKeyProgram(key.getPubKey()));
+    }
+
+    /** Adds the canonical pay-to-script-hash program of the given script hash to the index. */
+    public void addScriptHash(byte[] scriptHash) {
+        add(payToScriptHashProgram(scriptHash));
+    }
+
+    /** Returns true if the exact given program is in the index. */
+    public boolean contains(byte[] program) {
+        final int hash = hash(program);
+        final int mask = programs.length - 1;
+        for (int i = hash & mask; programs[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && Arrays.equals(programs[i], program))
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns a snapshot of the programs in the index. The arrays are shared and must not be modified. */
+    List<byte[]> getPrograms() {
+        List<byte[]> result = new ArrayList<byte[]>(size);
+        for (byte[] program : programs)
+            if (program != null)
+                result.add(program);
+        return result;
+    }
+
+    /**
+     * Returns true if the given program is a canonically encoded pay-to-pubkey-hash, pay-to-script-hash or
+     * pay-to-pubkey program. For those templates a negative {@link #contains(byte[])} means the program does not pay
+     * to any key or script the index was populated with.
+     */
+    public static boolean isStandardTemplate(byte[] program) {
+        final int length = program.length;
+        if (length == P2PKH_LENGTH)
+            return program[0] == (byte) OP_DUP && program[1] == (byte) OP_HASH160 && program[2] == HASH_LENGTH
+                    && program[23] == (byte) OP_EQUALVERIFY && program[24] == (byte) OP_CHECKSIG;
+        if (length == P2SH_LENGTH)
+            return program[0] == (byte) OP_HASH160 && program[1] == HASH_LENGTH && program[22] == (byte) OP_EQUAL;
+        if (length == COMPRESSED_PUBKEY_LENGTH + 2 || length == UNCOMPRESSED_PUBKEY_LENGTH + 2)
+            return program[0] == length - 2 && program[length - 1] == (byte) OP_CHECKSIG;
+        return false;
+    }
+
+    private static byte[] payToPubKeyHashProgram(byte[] pubKeyHash) {
+        byte[] program = new byte[P2PKH_LENGTH];
+        program[0] = (byte) OP_DUP;
+        program[1] = (byte) OP_HASH160;
+        program[2] = HASH_LENGTH;
+        System.arraycopy(pubKeyHash, 0, program, 3, HASH_LENGTH);
+        program[23] = (byte) OP_EQUALVERIFY;
+        program[24] = (byte) OP_CHECKSIG;
+        return program;
+    }
+
+    private static byte[] payToScriptHashProgram(byte[] scriptHash) {
+        byte[] program = new byte[P2SH_LENGTH];
+        program[0] = (byte) OP_HASH160;
+        program[1] = HASH_LENGTH;
+        System.arraycopy(scriptHash, 0, program, 2, HASH_LENGTH);
+        program[22] = (byte) OP_EQUAL;
+        return program;
+    }
+
+    private static byte[] payToPubKeyProgram(byte[] pubKey) {
+        byte[] program = new byte[pubKey.length + 2];
+        program[0] = (byte) pubKey.length;
+        System.arraycopy(pubKey, 0, program, 1, pubKey.length);
+        program[program.length - 1] = (byte) OP_CHECKSIG;
+        return program;
+    }
+
+    private boolean insert(byte[] program, int hash) {
+        final int mask = programs.length - 1;
+        int i = hash & mask;
+        for (; programs[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && Arrays.equals(programs[i], program))
+                return false;
+        }
+        programs[i] = program;
+        hashes[i] = hash;
+        size++;
+        return true;
+    }
+
+    private void resize(int capacity) {
+        byte[][] oldPrograms = programs;
+        int[] oldHashes = hashes;
+        programs = new byte[capacity][];
+        hashes = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldPrograms.length; i++)
+            if (oldPrograms[i] != null)
+                insert(oldPrograms[i], oldHashes[i]);
+    }
+
+    private static int hash(byte[] program) {
+        // Spread the bits, the low bits are used to pick a slot.
+        int h = Arrays.hashCode(program);
+        return h ^ (h >>> 16);
+    }
+}
@@ -103,7 +103,8 @@ public class SendRequest {
 
     /**
      * The AES key to use to decrypt the private keys before signing.
-     * If null then no decryption will be performed and if decryption is required an exception will be thrown.
+     * If null then the keys unlocked by {@link Wallet#unlockKeys} are used, if any, otherwise no decryption will be
+     * performed and if decryption is required an exception will be thrown.
      * You can get this from a password by doing wallet.getKeyCrypter().deriveKey(password).
      */
     public KeyParameter aesKey = null;
@@ -270,5 +271,16 @@ public class SendRequest {
 
     public boolean getUseForkId() { return useForkId; }
 
+    /**
+     * Sign inputs spending to a single key with Schnorr signatures, which makes them smaller and thus cheaper. Only
+     * used together with forkid signatures. Multisig inputs are always signed with ECDSA. Off by default, as nodes
+     * only accept Schnorr signatures once the May 15, 2019 upgrade activated on the chain the wallet sends to.
+     */
+    private boolean useSchnorr = false;
+
+    public void setUseSchnorr(boolean useSchnorr) { this.useSchnorr = useSchnorr; }
+
+    public boolean getUseSchnorr() { return useSchnorr; }
+
 
 }
\ No newline at end of file
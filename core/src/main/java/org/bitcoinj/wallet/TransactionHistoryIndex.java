@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Keeps the transactions of a {@link Wallet} sorted by update time and by chain height, newest first, so that a
+ * page of the transaction history can be read without sorting the whole wallet.</p>
+ *
+ * <p>The sort keys of a transaction change as it confirms, is re-organized or gets a new update time. Rather than
+ * re-sorting on every change, the wallet marks transactions as dirty when it touches them or hears about such a change
+ * from their confidence, and they are re-sorted in one go by {@link #reconcile} before the index is read. Entries
+ * stay in the index while their transaction is evicted to the spent transaction store, as deeply buried transactions
+ * don't change any more.</p>
+ *
+ * <p>This class is guarded by the wallet lock, except for {@link #markDirty} which may be called from any thread, as
+ * confidence listeners run on whatever thread changed the confidence.</p>
+ */
+class TransactionHistoryIndex {
+    /** Height used for transactions that are not in the best chain, which sorts them before all confirmed ones. */
+    static final int UNCONFIRMED_HEIGHT = Integer.MAX_VALUE;
+
+    /** The position of a transaction in the index. Immutable, so that it can be held by a cursor. */
+    static final class Entry {
+        // Null only for the bounds used to start iterating at a given time, sorting before all hashes.
+        @Nullable final Sha256Hash hash;
+        final long time;
+        final int height;
+
+        Entry(@Nullable Sha256Hash hash, long time, int height) {
+            this.hash = hash;
+            this.time = time;
+            this.height = height;
+        }
+
+        static Entry of(Transaction tx) {
+            TransactionConfidence confidence = tx.getConfidence();
+            int height = confidence.getConfidenceType() == ConfidenceType.BUILDING
+                    ? confidence.getAppearedAtChainHeight() : UNCONFIRMED_HEIGHT;
+            return new Entry(tx.getHash(), tx.getUpdateTime().getTime(), height);
+        }
+
+        boolean isUpToDate(Transaction tx) {
+            Entry current = of(tx);
+            return current.time == time && current.height == height;
+        }
+    }
+
+    private static int compareHashes(@Nullable Sha256Hash a, @Nullable Sha256Hash b) {
+        if (a == null)
+            return b == null ? 0 : -1;
+        return b == null ? 1 : a.compareTo(b);
+    }
+
+    // Same order as Transaction.SORT_TX_BY_UPDATE_TIME.
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = -Longs.compare(a.time, b.time);
+            return result != 0 ? result : compareHashes(a.hash, b.hash);
+        }
+    };
+
+    private static final Comparator<Entry> BY_HEIGHT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = -Ints.compare(a.height, b.height);
+            return result != 0 ? result : BY_TIME.compare(a, b);
+        }
+    };
+
+    private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    private final TreeSet<Entry> byTime = new TreeSet<Entry>(BY_TIME);
+    private final TreeSet<Entry> byHeight = new TreeSet<Entry>(BY_HEIGHT);
+    private final Set<Sha256Hash> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+
+    /**
+     * Schedules the transaction with the given hash to be added, re-sorted or removed by the next reconcile. Doesn't
+     * need the wallet lock.
+     */
+    void markDirty(Sha256Hash hash) {
+        dirty.add(hash);
+    }
+
+    /** Schedules all transactions in the index to be re-sorted or removed by the next reconcile. */
+    void markAllDirty() {
+        dirty.addAll(entries.keySet());
+    }
+
+    /**
+     * Brings the dirty transactions up to date. Each of them is looked up in {@code resident}; if it is not there it
+     * is kept as it is if it is in {@code evicted}, or removed otherwise.
+     */
+    void reconcile(Map<Sha256Hash, Transaction> resident, Map<Sha256Hash, ?> evicted) {
+        // Hashes marked dirty by other threads meanwhile are either handled here or left for the next time.
+        Iterator<Sha256Hash> it = dirty.iterator();
+        while (it.hasNext()) {
+            Sha256Hash hash = it.next();
+            it.remove();
+            if (resident.containsKey(hash))
+                put(Entry.of(resident.get(hash)));
+            else if (!evicted.containsKey(hash))
+                remove(hash);
+        }
+    }
+
+    private void put(Entry entry) {
+        Entry old = entries.put(entry.hash, entry);
+        if (old != null) {
+            byTime.remove(old);
+            byHeight.remove(old);
+        }
+        byTime.add(entry);
+        byHeight.add(entry);
+    }
+
+    private void remove(Sha256Hash hash) {
+        Entry old = entries.remove(hash);
+        if (old != null) {
+            byTime.remove(old);
+            byHeight.remove(old);
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        byTime.clear();
+        byHeight.clear();
+        dirty.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Iterates over the entries in the given order, newest first. Starts right after {@code after} if given, and
+     * when ordering by time, not before the first entry older than {@code beforeTime}.
+     */
+    Iterator<Entry> iterator(TransactionHistoryQuery.Order order, @Nullable Entry after, long beforeTime) {
+        final boolean byUpdateTime = order == TransactionHistoryQuery.Order.UPDATE_TIME;
+        final TreeSet<Entry> set = byUpdateTime ? byTime : byHeight;
+        NavigableSet<Entry> view = set;
+        Entry timeBound = byUpdateTime && beforeTime != Long.MAX_VALUE ? new Entry(null, beforeTime - 1, 0) : null;
+        if (after != null && (timeBound == null || set.comparator().compare(after, timeBound) >= 0))
+            view = set.tailSet(after, false);
+        else if (timeBound != null)
+            view = set.tailSet(timeBound, true);
+        return view.iterator();
+    }
+}
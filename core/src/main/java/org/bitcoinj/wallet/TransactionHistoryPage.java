@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of the transaction history returned by {@link Wallet#getTransactionHistory(TransactionHistoryQuery,
+ * Cursor, int)}, along with a cursor to read the next page.
+ */
+public class TransactionHistoryPage {
+    /**
+     * The position after the last transaction looked at for a page. Passing it back with the same query continues
+     * right after that transaction, even if transactions were added to the wallet in the meantime.
+     */
+    public static final class Cursor {
+        final TransactionHistoryQuery.Order order;
+        final TransactionHistoryIndex.Entry position;
+
+        Cursor(TransactionHistoryQuery.Order order, TransactionHistoryIndex.Entry position) {
+            this.order = order;
+            this.position = position;
+        }
+    }
+
+    private final List<Transaction> transactions;
+    @Nullable private final Cursor nextCursor;
+
+    TransactionHistoryPage(List<Transaction> transactions, @Nullable Cursor nextCursor) {
+        this.transactions = Collections.unmodifiableList(transactions);
+        this.nextCursor = nextCursor;
+    }
+
+    /** Returns the transactions on this page, newest first. */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Returns the cursor to read the next page with, or null if no further transaction is selected by the query. The
+     * next page can still turn out empty if the wallet changes in between.
+     */
+    @Nullable
+    public Cursor getNextCursor() {
+        return nextCursor;
+    }
+}
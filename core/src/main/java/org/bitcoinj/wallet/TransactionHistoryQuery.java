@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBag;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Selects the transactions returned by {@link Wallet#getTransactionHistory(TransactionHistoryQuery,
+ * TransactionHistoryPage.Cursor, int)}. Create one with {@link #builder()}; by default all transactions except dead
+ * ones are selected, ordered by update time.</p>
+ *
+ * <p>Instances are immutable and can be reused to page through the history.</p>
+ */
+public class TransactionHistoryQuery {
+    /** The order of the history, newest first in both cases. */
+    public enum Order {
+        /** By {@link Transaction#getUpdateTime()}. */
+        UPDATE_TIME,
+        /** By the height of the block the transaction appeared in, with unconfirmed transactions first. */
+        HEIGHT
+    }
+
+    /** Whether transactions are selected by the sign of their value to the wallet. */
+    public enum Direction {
+        ANY,
+        /** Transactions that increase the balance. */
+        RECEIVED,
+        /** Transactions that decrease the balance, including sends to ourselves as they pay a fee. */
+        SENT
+    }
+
+    private final Order order;
+    private final long fromTime;
+    private final long toTime;
+    private final EnumSet<ConfidenceType> confidenceTypes;
+    private final Direction direction;
+
+    private TransactionHistoryQuery(Builder builder) {
+        this.order = builder.order;
+        this.fromTime = builder.fromTime;
+        this.toTime = builder.toTime;
+        this.confidenceTypes = EnumSet.copyOf(builder.confidenceTypes);
+        this.direction = builder.direction;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /** Returns the earliest update time selected, in milliseconds since the epoch. */
+    public long getFromTime() {
+        return fromTime;
+    }
+
+    /** Returns the update time, in milliseconds since the epoch, before which transactions are selected. */
+    public long getToTime() {
+        return toTime;
+    }
+
+    public EnumSet<ConfidenceType> getConfidenceTypes() {
+        return EnumSet.copyOf(confidenceTypes);
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /** Returns true if a transaction with the given update time and confidence type may be selected by this query. */
+    boolean mayMatch(long time, ConfidenceType confidenceType) {
+        return time >= fromTime && time < toTime && confidenceTypes.contains(confidenceType);
+    }
+
+    /** Returns true if the given transaction of the given wallet is selected by this query. */
+    boolean matches(Transaction tx, TransactionBag wallet) {
+        if (!mayMatch(tx.getUpdateTime().getTime(), tx.getConfidence().getConfidenceType()))
+            return false;
+        switch (direction) {
+            case RECEIVED:
+                return tx.getValue(wallet).signum() > 0;
+            case SENT:
+                return tx.getValue(wallet).signum() < 0;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("order", order).add("fromTime", fromTime).add("toTime", toTime)
+                .add("confidenceTypes", confidenceTypes).add("direction", direction).toString();
+    }
+
+    public static class Builder {
+        private Order order = Order.UPDATE_TIME;
+        private long fromTime = 0;
+        private long toTime = Long.MAX_VALUE;
+        private EnumSet<ConfidenceType> confidenceTypes = EnumSet.complementOf(EnumSet.of(ConfidenceType.DEAD));
+        private Direction direction = Direction.ANY;
+
+        private Builder() {
+        }
+
+        public Builder order(Order order) {
+            this.order = checkNotNull(order);
+            return this;
+        }
+
+        /**
+         * Selects transactions updated at or after {@code from} and before {@code to}. Either bound may be null to
+         * leave that side open. When ordering by update time, only this range of the history is looked at.
+         */
+        public Builder timeRange(@Nullable Date from, @Nullable Date to) {
+            this.fromTime = from != null ? from.getTime() : 0;
+            this.toTime = to != null ? to.getTime() : Long.MAX_VALUE;
+            checkArgument(fromTime <= toTime, "Time range ends before it starts");
+            return this;
+        }
+
+        /** Selects only transactions with one of the given confidence types. */
+        public Builder confidenceTypes(ConfidenceType... confidenceTypes) {
+            checkArgument(confidenceTypes.length > 0, "No confidence types given");
+            this.confidenceTypes = EnumSet.copyOf(Arrays.asList(confidenceTypes));
+            return this;
+        }
+
+        /** Selects transactions of all confidence types, including dead ones. */
+        public Builder allConfidenceTypes() {
+            this.confidenceTypes = EnumSet.allOf(ConfidenceType.class);
+            return this;
+        }
+
+        public Builder direction(Direction direction) {
+            this.direction = checkNotNull(direction);
+            return this;
+        }
+
+        public TransactionHistoryQuery build() {
+            return new TransactionHistoryQuery(this);
+        }
+    }
+}
@@ -59,8 +59,11 @@ import org.bitcoinj.core.VarInt;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.TransactionConfidence.*;
 import org.bitcoinj.crypto.*;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.script.*;
 import org.bitcoinj.signers.*;
+import org.bitcoinj.store.TransactionStore;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Protos.Wallet.*;
 import org.bitcoinj.wallet.WalletTransaction.*;
@@ -126,6 +129,9 @@ public class Wallet extends BaseTaggableObject
     implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+    // Time taken by wallets to take in pending transactions, and relevant transactions from blocks.
+    private static final LatencyHistogram receivePendingTime = MetricRegistry.getDefault().histogram("wallet.receive.pending");
+    private static final LatencyHistogram receiveFromBlockTime = MetricRegistry.getDefault().histogram("wallet.receive.block");
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
@@ -159,6 +165,10 @@ public class Wallet extends BaseTaggableObject
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // All transactions sorted by update time and by height, for paging through the history. Transactions are marked
+    // dirty there whenever they are added to a pool or removed, and re-sorted before the index is read.
+    private final TransactionHistoryIndex historyIndex = new TransactionHistoryIndex();
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
@@ -177,6 +187,14 @@ public class Wallet extends BaseTaggableObject
         }
     };
 
+    // Deeply buried spent transactions are moved out of memory into this store, if set, and only a summary of them is
+    // kept in evictedTransactions. Evicted transactions never have ancestors in memory: a transaction is only evicted
+    // after all of its parents in the wallet, and restoring one also restores everything spending from it. See
+    // setSpentTransactionStore().
+    @Nullable private TransactionStore spentTransactionStore;
+    private int spentTransactionEvictionDepth;
+    private final HashMap<Sha256Hash, EvictedTransaction> evictedTransactions = new HashMap<Sha256Hash, EvictedTransaction>();
+
     // The key chain group is not thread safe, and generally the whole hierarchy of objects should not be mutated
     // outside the wallet lock. So don't expose this object directly via any accessors!
     @GuardedBy("keyChainGroupLock") private KeyChainGroup keyChainGroup;
@@ -184,6 +202,15 @@ public class Wallet extends BaseTaggableObject
     // A list of scripts watched by this wallet.
     @GuardedBy("keyChainGroupLock") private Set<Script> watchedScripts;
 
+    // The raw output scripts paying to our keys (including lookahead keys) and our watched scripts, so relevance checks
+    // can probe output scripts without parsing them. Rebuilt lazily whenever the key chain group grows or watched
+    // scripts are removed, see maybeRebuildScriptPubKeyIndex().
+    @GuardedBy("keyChainGroupLock") private final ScriptPubKeyIndex scriptPubKeyIndex = new ScriptPubKeyIndex();
+    @GuardedBy("keyChainGroupLock") private int scriptPubKeyIndexCount = -1;
+
+    // Holds the AES key and decrypted private keys while the keys of an encrypted wallet are unlocked, see unlockKeys().
+    @GuardedBy("keyChainGroupLock") @Nullable private DecryptedKeyCache keyCache;
+
     protected final Context context;
     protected final NetworkParameters params;
 
@@ -343,6 +370,13 @@ public class Wallet extends BaseTaggableObject
                 // doesn't necessarily know at that point which wallets contain which transactions, so it's up
                 // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
                 // so we'll queue up a wallet change event in other parts of the code.
+                //
+                // The confidence may be shared with other wallets through the context, which can move it to another
+                // type without us knowing, and update times may be set by anyone. Both change where the transaction
+                // sorts in the history. Depth changes alone don't, the height it appeared at only changes along with
+                // the type or in a re-org.
+                if (reason == ChangeReason.TYPE || reason == ChangeReason.UPDATE_TIME)
+                    historyIndex.markDirty(confidence.getTransactionHash());
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
@@ -607,7 +641,10 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            if (removed)
+                scriptPubKeyIndexCount = -1;
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -895,6 +932,7 @@ public class Wallet extends BaseTaggableObject
                 if (script.getCreationTimeSeconds() == 0)
                     log.warn("Adding a script to the wallet with a creation time of zero, this will disable the checkpointing optimization!    {}", script);
                 watchedScripts.add(script);
+                scriptPubKeyIndex.add(script);
                 added++;
             }
         } finally {
@@ -940,11 +978,17 @@ public class Wallet extends BaseTaggableObject
     public boolean removeWatchedScripts(final List<Script> scripts) {
         lock.lock();
         try {
-            for (final Script script : scripts) {
-                if (!watchedScripts.contains(script))
-                    continue;
+            keyChainGroupLock.lock();
+            try {
+                for (final Script script : scripts) {
+                    if (!watchedScripts.contains(script))
+                        continue;
 
-                watchedScripts.remove(script);
+                    watchedScripts.remove(script);
+                    scriptPubKeyIndexCount = -1;
+                }
+            } finally {
+                keyChainGroupLock.unlock();
             }
 
             queueOnScriptsChanged(scripts, false);
@@ -1126,6 +1170,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
+            lockKeysLocked();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
         } finally {
             keyChainGroupLock.unlock();
@@ -1144,6 +1189,7 @@ public class Wallet extends BaseTaggableObject
     public void encrypt(KeyCrypter keyCrypter, KeyParameter aesKey) {
         keyChainGroupLock.lock();
         try {
+            lockKeysLocked();
             keyChainGroup.encrypt(keyCrypter, aesKey);
         } finally {
             keyChainGroupLock.unlock();
@@ -1160,6 +1206,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
+            lockKeysLocked();
             keyChainGroup.decrypt(crypter.deriveKey(password));
         } finally {
             keyChainGroupLock.unlock();
@@ -1176,6 +1223,7 @@ public class Wallet extends BaseTaggableObject
     public void decrypt(KeyParameter aesKey) {
         keyChainGroupLock.lock();
         try {
+            lockKeysLocked();
             keyChainGroup.decrypt(aesKey);
         } finally {
             keyChainGroupLock.unlock();
@@ -1250,6 +1298,79 @@ public class Wallet extends BaseTaggableObject
         return getEncryptionType() != EncryptionType.UNENCRYPTED;
     }
 
+    /**
+     * <p>Unlocks the keys of an encrypted wallet for the given time, after which they are locked again automatically.
+     * While unlocked, transactions can be signed without an AES key in the {@link SendRequest}. The AES key and the
+     * private keys decrypted with it are held by a {@link DecryptedKeyCache}, so repeated signing neither derives the
+     * AES key nor decrypts a key more than once.</p>
+     *
+     * <p>Unlocking again replaces the previous unlock session. Encrypting or decrypting the wallet, including changing
+     * its password, locks the keys.</p>
+     *
+     * @param aesKey AES key of the wallet.
+     * @param offHeap whether to keep the secrets in memory outside of the Java heap.
+     * @throws IllegalStateException if the wallet is not encrypted.
+     * @throws KeyCrypterException if the AES key is wrong.
+     */
+    public void unlockKeys(KeyParameter aesKey, long timeToLive, TimeUnit unit, boolean offHeap) {
+        keyChainGroupLock.lock();
+        try {
+            checkState(keyChainGroup.isEncrypted(), "Not encrypted");
+            if (!keyChainGroup.checkAESKey(aesKey))
+                throw new KeyCrypterException("Wrong AES key");
+            lockKeysLocked();
+            keyCache = new DecryptedKeyCache(aesKey, timeToLive, unit, offHeap);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /**
+     * Unlocks the keys of an encrypted wallet for the given time, see
+     * {@link #unlockKeys(KeyParameter, long, TimeUnit, boolean)}. This derives the AES key from the password once.
+     * @throws KeyCrypterException if the password is wrong.
+     */
+    public void unlockKeys(CharSequence password, long timeToLive, TimeUnit unit, boolean offHeap) {
+        KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter != null, "Not encrypted");
+        unlockKeys(crypter.deriveKey(password), timeToLive, unit, offHeap);
+    }
+
+    /** Locks the keys unlocked by {@link #unlockKeys}, wiping the secrets from memory. Does nothing if not unlocked. */
+    public void lockKeys() {
+        keyChainGroupLock.lock();
+        try {
+            lockKeysLocked();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    @GuardedBy("keyChainGroupLock")
+    private void lockKeysLocked() {
+        if (keyCache != null) {
+            keyCache.close();
+            keyCache = null;
+        }
+    }
+
+    /** Returns true if the keys are unlocked, see {@link #unlockKeys}. */
+    public boolean areKeysUnlocked() {
+        return getUnlockedKeyCache() != null;
+    }
+
+    @Nullable
+    private DecryptedKeyCache getUnlockedKeyCache() {
+        keyChainGroupLock.lock();
+        try {
+            if (keyCache != null && !keyCache.isOpen())
+                keyCache = null;
+            return keyCache;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /** Changes wallet encryption password, this is atomic operation. */
     public void changeEncryptionPassword(CharSequence currentPassword, CharSequence newPassword){
         keyChainGroupLock.lock();
@@ -1544,7 +1665,7 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = getResidentTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
             for (Transaction tx : transactions) {
@@ -1640,7 +1761,7 @@ public class Wallet extends BaseTaggableObject
                                               int relativityOffset) throws VerificationException {
         lock.lock();
         try {
-            Transaction tx = transactions.get(txHash);
+            Transaction tx = getTransactionOrRestoreLocked(txHash);
             if (tx == null) {
                 tx = riskDropped.get(txHash);
                 if (tx != null) {
@@ -1675,6 +1796,7 @@ public class Wallet extends BaseTaggableObject
         // Can run in a peer thread. This method will only be called if a prior call to isPendingTransactionRelevant
         // returned true, so we already know by this point that it sends coins to or from our wallet, or is a double
         // spend against one of our other pending transactions.
+        long start = System.nanoTime();
         lock.lock();
         try {
             tx.verify();
@@ -1711,6 +1833,7 @@ public class Wallet extends BaseTaggableObject
             commitTx(tx);
         } finally {
             lock.unlock();
+            receivePendingTime.recordSince(start);
         }
         // maybeRotateKeys() will ignore pending transactions so we don't bother calling it here (see the comments
         // in that function for an explanation of why).
@@ -1796,14 +1919,65 @@ public class Wallet extends BaseTaggableObject
     public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
         lock.lock();
         try {
-            return tx.getValueSentFromMe(this).signum() > 0 ||
-                   tx.getValueSentToMe(this).signum() > 0 ||
+            return isAnyOutputMineOrWatched(tx) ||
+                   tx.getValueSentFromMe(this).signum() > 0 ||
                    !findDoubleSpendsAgainst(tx, transactions).isEmpty();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Returns true if any output of the given transaction with a positive value pays to one of our keys or watched
+     * scripts, which is the same as {@code tx.getValueSentToMe(this).signum() > 0}. Outputs in the standard templates
+     * are looked up in the {@link ScriptPubKeyIndex} by their raw bytes, only other outputs get their scripts parsed.
+     */
+    private boolean isAnyOutputMineOrWatched(Transaction tx) {
+        keyChainGroupLock.lock();
+        try {
+            maybeRebuildScriptPubKeyIndex();
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.getValue().signum() <= 0)
+                    continue;
+                byte[] program = output.getScriptBytes();
+                if (scriptPubKeyIndex.contains(program))
+                    return true;
+                if (!ScriptPubKeyIndex.isStandardTemplate(program) && output.isMineOrWatched(this))
+                    return true;
+            }
+            return false;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the raw output scripts paying to this wallet's keys (including lookahead keys), married key chains and
+     * watched scripts. The arrays are shared and must not be modified.
+     */
+    public List<byte[]> getScriptPubKeyPrograms() {
+        keyChainGroupLock.lock();
+        try {
+            maybeRebuildScriptPubKeyIndex();
+            return scriptPubKeyIndex.getPrograms();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    @GuardedBy("keyChainGroupLock")
+    private void maybeRebuildScriptPubKeyIndex() {
+        checkState(keyChainGroupLock.isHeldByCurrentThread());
+        if (scriptPubKeyIndexCount == keyChainGroup.getScriptPubKeyCount())
+            return;
+        scriptPubKeyIndex.clear();
+        keyChainGroup.addScriptPubKeysTo(scriptPubKeyIndex);
+        for (Script script : watchedScripts)
+            scriptPubKeyIndex.add(script);
+        scriptPubKeyIndexCount = keyChainGroup.getScriptPubKeyCount();
+        log.debug("Rebuilt script index with {} entries", scriptPubKeyIndex.size());
+    }
+
     /**
      * Finds transactions in the specified candidates that double spend "tx". Not a general check, but it can work even if
      * the double spent inputs are not ours.
@@ -1884,7 +2058,9 @@ public class Wallet extends BaseTaggableObject
         try {
             if (!isTransactionRelevant(tx))
                 return;
+            long start = System.nanoTime();
             receive(tx, block, blockType, relativityOffset);
+            receiveFromBlockTime.recordSince(start);
         } finally {
             lock.unlock();
         }
@@ -1920,7 +2096,7 @@ public class Wallet extends BaseTaggableObject
         // If this transaction is already in the wallet we may need to move it into a different pool. At the very
         // least we need to ensure we're manipulating the canonical object rather than a duplicate.
         {
-            Transaction tmp = transactions.get(tx.getHash());
+            Transaction tmp = getTransactionOrRestoreLocked(tx.getHash());
             if (tmp != null)
                 tx = tmp;
         }
@@ -1980,7 +2156,7 @@ public class Wallet extends BaseTaggableObject
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies, getResidentTransactions(true));
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2114,8 +2290,8 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            // This is so that they can update their depth. Evicted transactions get theirs when restored.
+            Set<Transaction> transactions = getResidentTransactions(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2140,6 +2316,8 @@ public class Wallet extends BaseTaggableObject
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
+            if (!insideReorg)
+                evictSpentTransactionsLocked();
 
             if (hardSaveOnNextBlock) {
                 saveNow();
@@ -2234,6 +2412,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         if (fromChain)
             checkState(!pending.containsKey(tx.getHash()));
+        restoreEvictedParentsLocked(tx);
         for (TransactionInput input : tx.getInputs()) {
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
@@ -2352,6 +2531,7 @@ public class Wallet extends BaseTaggableObject
         if (overridingTx == null)
             return;
         log.warn("Now attempting to connect the inputs of the overriding transaction.");
+        restoreEvictedParentsLocked(overridingTx);
         for (TransactionInput input : overridingTx.getInputs()) {
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
@@ -2439,7 +2619,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getHashAsString());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, getResidentTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
                     confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
@@ -2725,7 +2905,7 @@ public class Wallet extends BaseTaggableObject
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
             } else {
-                registration.executor.execute(new Runnable() {
+                registration.executor.execute(new CoalescingRunnable(Wallet.this, tx) {
                     @Override
                     public void run() {
                         registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
@@ -2742,7 +2922,7 @@ public class Wallet extends BaseTaggableObject
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
-            registration.executor.execute(new Runnable() {
+            registration.executor.execute(new CoalescingRunnable(Wallet.this) {
                 @Override
                 public void run() {
                     registration.listener.onWalletChanged(Wallet.this);
@@ -2810,6 +2990,17 @@ public class Wallet extends BaseTaggableObject
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        lock.lock();
+        try {
+            restoreAllEvictedTransactionsLocked();
+            return getResidentTransactions(includeDead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Like {@link #getTransactions(boolean)}, but leaves out transactions evicted to the spent transaction store. */
+    Set<Transaction> getResidentTransactions(boolean includeDead) {
         lock.lock();
         try {
             Set<Transaction> all = new HashSet<Transaction>();
@@ -2828,6 +3019,20 @@ public class Wallet extends BaseTaggableObject
      * Returns a set of all WalletTransactions in the wallet.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
+        lock.lock();
+        try {
+            restoreAllEvictedTransactionsLocked();
+            return getResidentWalletTransactions();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #getWalletTransactions()}, but leaves out transactions evicted to the spent transaction store. Those
+     * can be read with {@link #getEvictedTransactionProtos()} without bringing them back into memory.
+     */
+    Iterable<WalletTransaction> getResidentWalletTransactions() {
         lock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<WalletTransaction>();
@@ -2868,6 +3073,7 @@ public class Wallet extends BaseTaggableObject
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        historyIndex.markDirty(tx.getHash());
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2906,47 +3112,117 @@ public class Wallet extends BaseTaggableObject
      * Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included. <p>
      * <p/>
-     * Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).
+     * Note: this reads the N transactions from an index kept sorted by update time. To page through the history
+     * use {@link #getTransactionHistory(TransactionHistoryQuery, TransactionHistoryPage.Cursor, int)} instead.
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        checkArgument(numTransactions >= 0);
+        TransactionHistoryQuery.Builder query = TransactionHistoryQuery.builder();
+        if (includeDead)
+            query.allConfidenceTypes();
+        return getTransactionHistory(query.build(), null,
+                numTransactions == 0 ? Integer.MAX_VALUE : numTransactions).getTransactions();
+    }
+
+    /**
+     * <p>Returns a page of at most {@code pageSize} transactions selected by the given query, newest first. Pass null
+     * as the cursor to get the first page, and {@link TransactionHistoryPage#getNextCursor()} of the previous page
+     * with the same query to get the next one.</p>
+     *
+     * <p>The transactions are read from indexes kept sorted by update time and by height, so the cost depends on the
+     * page size and on how many transactions the query skips, not on the size of the wallet. Transactions evicted to
+     * the spent transaction store are brought back into memory only if they are on the page.</p>
+     */
+    public TransactionHistoryPage getTransactionHistory(TransactionHistoryQuery query,
+                                                        @Nullable TransactionHistoryPage.Cursor cursor, int pageSize) {
+        checkNotNull(query);
+        checkArgument(pageSize > 0, "Page size must be positive");
+        checkArgument(cursor == null || cursor.order == query.getOrder(), "Cursor is for another order");
         lock.lock();
         try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = unspent.size() + spent.size() + pending.size();
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
+            TransactionHistoryPage page;
+            do {
+                // An out of date entry may have been left out of the page, or put on it where it doesn't belong. The
+                // pass marked it dirty, so re-sort and read the page again.
+                historyIndex.reconcile(transactions, evictedTransactions);
+                page = getTransactionHistoryLocked(query, cursor, pageSize);
+            } while (page == null);
+            return page;
         } finally {
             lock.unlock();
         }
     }
 
+    // Returns null if an out of date index entry was found, those are marked dirty.
+    @Nullable
+    private TransactionHistoryPage getTransactionHistoryLocked(TransactionHistoryQuery query,
+                                                               @Nullable TransactionHistoryPage.Cursor cursor,
+                                                               int pageSize) {
+        checkState(lock.isHeldByCurrentThread());
+        final TransactionHistoryQuery.Order order = query.getOrder();
+        Iterator<TransactionHistoryIndex.Entry> it = historyIndex.iterator(order,
+                cursor != null ? cursor.position : null, query.getToTime());
+        List<Transaction> result = new ArrayList<Transaction>(Math.min(pageSize, historyIndex.size()));
+        TransactionHistoryIndex.Entry last = null;
+        boolean upToDate = true;
+        boolean more = false;
+        while (it.hasNext()) {
+            TransactionHistoryIndex.Entry entry = it.next();
+            if (order == TransactionHistoryQuery.Order.UPDATE_TIME && entry.time < query.getFromTime())
+                break;
+            Transaction tx = transactions.get(entry.hash);
+            boolean evicted = tx == null && evictedTransactions.containsKey(entry.hash);
+            if (evicted) {
+                // Evicted transactions are buried and don't change, so the entry is up to date. Filter them without
+                // bringing them back, reading them from the store only if the query needs more than the entry.
+                if (!query.mayMatch(entry.time, ConfidenceType.BUILDING))
+                    continue;
+                if (query.getDirection() != TransactionHistoryQuery.Direction.ANY
+                        && !query.matches(checkNotNull(readEvictedTransactionLocked(entry.hash)), this))
+                    continue;
+            } else {
+                if (tx == null || !entry.isUpToDate(tx)) {
+                    historyIndex.markDirty(entry.hash);
+                    upToDate = false;
+                    continue;
+                }
+                if (!query.matches(tx, this))
+                    continue;
+            }
+            // Only hand out a cursor if there really is another transaction for the next page.
+            if (result.size() == pageSize) {
+                more = true;
+                break;
+            }
+            // Restoring only marks the transaction dirty in the index, so the iterator stays valid.
+            if (evicted)
+                tx = checkNotNull(getTransactionOrRestoreLocked(entry.hash));
+            result.add(tx);
+            last = entry;
+        }
+        if (!upToDate)
+            return null;
+        return new TransactionHistoryPage(result, more ? new TransactionHistoryPage.Cursor(order, last) : null);
+    }
+
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise. A transaction that
+     * was evicted to the spent transaction store is brought back into memory.
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
-            return transactions.get(hash);
+            return getTransactionOrRestoreLocked(hash);
         } finally {
             lock.unlock();
         }
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc} The spent pool doesn't include transactions evicted to the spent transaction store, see
+     * {@link #setSpentTransactionStore(TransactionStore, int)}.
+     */
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
         lock.lock();
@@ -3007,11 +3283,15 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        for (Sha256Hash hash : evictedTransactions.keySet())
+            removeFromSpentTransactionStore(hash);
+        evictedTransactions.clear();
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
+        historyIndex.clear();
         myUnspents.clear();
     }
 
@@ -3071,6 +3351,7 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        historyIndex.markDirty(tx.getHash());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3099,7 +3380,7 @@ public class Wallet extends BaseTaggableObject
             if (unspent.containsKey(txHash)) {
                 result.add(Pool.UNSPENT);
             }
-            if (spent.containsKey(txHash)) {
+            if (spent.containsKey(txHash) || evictedTransactions.containsKey(txHash)) {
                 result.add(Pool.SPENT);
             }
             if (pending.containsKey(txHash)) {
@@ -3122,7 +3403,7 @@ public class Wallet extends BaseTaggableObject
                 case UNSPENT:
                     return unspent.size();
                 case SPENT:
-                    return spent.size();
+                    return spent.size() + evictedTransactions.size();
                 case PENDING:
                     return pending.size();
                 case DEAD:
@@ -3142,7 +3423,7 @@ public class Wallet extends BaseTaggableObject
                 case UNSPENT:
                     return unspent.containsKey(txHash);
                 case SPENT:
-                    return spent.containsKey(txHash);
+                    return spent.containsKey(txHash) || evictedTransactions.containsKey(txHash);
                 case PENDING:
                     return pending.containsKey(txHash);
                 case DEAD:
@@ -3605,28 +3886,33 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
      */
     public Coin getTotalReceived() {
-        Coin total = Coin.ZERO;
+        lock.lock();
+        try {
+            Coin total = Coin.ZERO;
 
-        // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
-        // than the outputs to us.
-        for (Transaction tx: transactions.values()) {
-            Coin txTotal = Coin.ZERO;
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (output.isMine(this)) {
-                    txTotal = txTotal.add(output.getValue());
+            // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
+            // than the outputs to us. Evicted transactions are read from the store, not restored.
+            for (Transaction tx: allTransactionsLocked()) {
+                Coin txTotal = Coin.ZERO;
+                for (TransactionOutput output : tx.getOutputs()) {
+                    if (output.isMine(this)) {
+                        txTotal = txTotal.add(output.getValue());
+                    }
                 }
-            }
-            for (TransactionInput in : tx.getInputs()) {
-                TransactionOutput prevOut = in.getConnectedOutput();
-                if (prevOut != null && prevOut.isMine(this)) {
-                    txTotal = txTotal.subtract(prevOut.getValue());
+                for (TransactionInput in : tx.getInputs()) {
+                    TransactionOutput prevOut = findConnectedOutputLocked(in);
+                    if (prevOut != null && prevOut.isMine(this)) {
+                        txTotal = txTotal.subtract(prevOut.getValue());
+                    }
+                }
+                if (txTotal.isPositive()) {
+                    total = total.add(txTotal);
                 }
             }
-            if (txTotal.isPositive()) {
-                total = total.add(txTotal);
-            }
+            return total;
+        } finally {
+            lock.unlock();
         }
-        return total;
     }
 
     /**
@@ -3638,40 +3924,46 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis sent by us
      */
     public Coin getTotalSent() {
-        Coin total = Coin.ZERO;
-
-        for (Transaction tx: transactions.values()) {
-            // Count spent outputs to only if they were not to us. This means we don't count change outputs.
-            Coin txOutputTotal = Coin.ZERO;
-            for (TransactionOutput out : tx.getOutputs()) {
-                if (out.isMine(this) == false) {
-                    txOutputTotal = txOutputTotal.add(out.getValue());
+        lock.lock();
+        try {
+            Coin total = Coin.ZERO;
+
+            // Evicted transactions are read from the store, not restored.
+            for (Transaction tx: allTransactionsLocked()) {
+                // Count spent outputs to only if they were not to us. This means we don't count change outputs.
+                Coin txOutputTotal = Coin.ZERO;
+                for (TransactionOutput out : tx.getOutputs()) {
+                    if (out.isMine(this) == false) {
+                        txOutputTotal = txOutputTotal.add(out.getValue());
+                    }
                 }
-            }
 
-            // Count the input values to us
-            Coin txOwnedInputsTotal = Coin.ZERO;
-            for (TransactionInput in : tx.getInputs()) {
-                TransactionOutput prevOut = in.getConnectedOutput();
-                if (prevOut != null && prevOut.isMine(this)) {
-                    txOwnedInputsTotal = txOwnedInputsTotal.add(prevOut.getValue());
+                // Count the input values to us
+                Coin txOwnedInputsTotal = Coin.ZERO;
+                for (TransactionInput in : tx.getInputs()) {
+                    TransactionOutput prevOut = findConnectedOutputLocked(in);
+                    if (prevOut != null && prevOut.isMine(this)) {
+                        txOwnedInputsTotal = txOwnedInputsTotal.add(prevOut.getValue());
+                    }
                 }
-            }
 
-            // If there is an input that isn't from us, i.e. this is a shared transaction
-            Coin txInputsTotal = tx.getInputSum();
-            if (txOwnedInputsTotal != txInputsTotal) {
+                // If there is an input that isn't from us, i.e. this is a shared transaction
+                Coin txInputsTotal = tx.getInputSum();
+                if (txOwnedInputsTotal != txInputsTotal) {
 
-                // multiply our output total by the appropriate proportion to account for the inputs that we don't own
-                BigInteger txOutputTotalNum = new BigInteger(txOutputTotal.toString());
-                txOutputTotalNum = txOutputTotalNum.multiply(new BigInteger(txOwnedInputsTotal.toString()));
-                txOutputTotalNum = txOutputTotalNum.divide(new BigInteger(txInputsTotal.toString()));
-                txOutputTotal = Coin.valueOf(txOutputTotalNum.longValue());
-            }
-            total = total.add(txOutputTotal);
+                    // multiply our output total by the appropriate proportion to account for the inputs that we don't own
+                    BigInteger txOutputTotalNum = new BigInteger(txOutputTotal.toString());
+                    txOutputTotalNum = txOutputTotalNum.multiply(new BigInteger(txOwnedInputsTotal.toString()));
+                    txOutputTotalNum = txOutputTotalNum.divide(new BigInteger(txInputsTotal.toString()));
+                    txOutputTotal = Coin.valueOf(txOutputTotalNum.longValue());
+                }
+                total = total.add(txOutputTotal);
 
+            }
+            return total;
+        } finally {
+            lock.unlock();
         }
-        return total;
     }
 
     //endregion
@@ -3996,7 +4288,8 @@ public class Wallet extends BaseTaggableObject
 
             if (req.emptyWallet) {
                 final Coin feePerKb = req.feePerKb == null ? Coin.ZERO : req.feePerKb;
-                if (!adjustOutputDownwardsForFee(req.tx, bestCoinSelection, feePerKb, req.ensureMinRequiredFee))
+                if (!adjustOutputDownwardsForFee(req.tx, bestCoinSelection, feePerKb, req.ensureMinRequiredFee,
+                        req.getUseForkId() && req.getUseSchnorr()))
                     throw new CouldNotAdjustDownwards();
             }
 
@@ -4041,6 +4334,8 @@ public class Wallet extends BaseTaggableObject
      * to have all necessary inputs connected or they will be ignored.</p>
      * <p>Actual signing is done by pluggable {@link #signers} and it's not guaranteed that
      * transaction will be complete in the end.</p>
+     * <p>If the wallet is encrypted and the request has no AES key, the keys unlocked by {@link #unlockKeys} are
+     * used.</p>
      */
     public void signTransaction(SendRequest req) {
         req.setUseForkId(true);
@@ -4052,7 +4347,9 @@ public class Wallet extends BaseTaggableObject
             checkState(inputs.size() > 0);
             checkState(outputs.size() > 0);
 
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+            DecryptedKeyCache unlockedKeyCache = req.aesKey == null ? getUnlockedKeyCache() : null;
+            KeyBag maybeDecryptingKeyBag = unlockedKeyCache != null ? new DecryptingKeyBag(this, unlockedKeyCache)
+                    : new DecryptingKeyBag(this, req.aesKey);
 
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
@@ -4080,7 +4377,8 @@ public class Wallet extends BaseTaggableObject
                 txIn.setScriptSig(scriptPubKey.createEmptyInputScript(redeemData.keys.get(0), redeemData.redeemScript));
             }
 
-            TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx, req.getUseForkId());
+            TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx, req.getUseForkId(),
+                    req.getUseSchnorr());
             for (TransactionSigner signer : signers) {
                 if (!signer.signInputs(proposal, maybeDecryptingKeyBag))
                     log.info("{} returned false for the tx", signer.getClass().getName());
@@ -4095,8 +4393,8 @@ public class Wallet extends BaseTaggableObject
 
     /** Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size. */
     private boolean adjustOutputDownwardsForFee(Transaction tx, CoinSelection coinSelection, Coin feePerKb,
-            boolean ensureMinRequiredFee) {
-        final int size = tx.unsafeBitcoinSerialize().length + estimateBytesForSigning(coinSelection);
+            boolean ensureMinRequiredFee, boolean schnorr) {
+        final int size = tx.unsafeBitcoinSerialize().length + estimateBytesForSigning(coinSelection, schnorr);
         Coin fee = feePerKb.multiply(size).divide(1000);
         if (ensureMinRequiredFee && fee.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0)
             fee = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
@@ -4414,6 +4712,10 @@ public class Wallet extends BaseTaggableObject
             // to try and corrupt the internal data structures. We should try harder to avoid this but it's tricky
             // because there are so many ways the block can be invalid.
 
+            // Evicted transactions may be affected, directly or through the transactions spending from them. Re-orgs
+            // are rare, so just bring them all back. They are evicted again with the next block.
+            restoreAllEvictedTransactionsLocked();
+
             // Avoid spuriously informing the user of wallet/tx confidence changes whilst we're re-organizing.
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
@@ -4529,6 +4831,8 @@ public class Wallet extends BaseTaggableObject
                 notifyNewBestBlock(block);
             }
             isConsistentOrThrow();
+            // Heights and update times of anything in the re-organized blocks may have changed.
+            historyIndex.markAllDirty();
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
@@ -4560,6 +4864,343 @@ public class Wallet extends BaseTaggableObject
 
     /******************************************************************************************************************/
 
+    //region Evicting spent transactions
+
+    // What is kept in memory of a transaction that was evicted to the spent transaction store.
+    private static class EvictedTransaction {
+        public final long updateTime;
+
+        public EvictedTransaction(long updateTime) {
+            this.updateTime = updateTime;
+        }
+    }
+
+    /**
+     * <p>Sets a store that spent transactions are moved to, out of memory, once they are buried at least evictionDepth
+     * blocks deep and all transactions spending from them are confirmed too. Only a small summary of each evicted
+     * transaction is kept in memory, which keeps wallets with a long history from using ever more heap. Transactions
+     * are evicted with every new best block and by {@link #evictSpentTransactions()}.</p>
+     *
+     * <p>Evicted transactions are brought back into memory by {@link #getTransaction(Sha256Hash)},
+     * {@link #getTransactions(boolean)}, {@link #getWalletTransactions()}, re-orgs and transactions spending from them,
+     * and are evicted again with the next block. Balance and history calculations such as {@link #getTotalReceived()}
+     * and {@link Transaction#getValueSentFromMe(TransactionBag)} read them from the store instead. The wallet file
+     * still contains all transactions. Passing a null store brings all evicted transactions back and stops
+     * evicting.</p>
+     */
+    public void setSpentTransactionStore(@Nullable TransactionStore store, int evictionDepth) {
+        checkArgument(store == null || evictionDepth > 0, "evictionDepth must be positive");
+        lock.lock();
+        try {
+            restoreAllEvictedTransactionsLocked();
+            spentTransactionStore = store;
+            spentTransactionEvictionDepth = evictionDepth;
+            evictSpentTransactionsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the store set with {@link #setSpentTransactionStore(TransactionStore, int)}, or null. */
+    @Nullable
+    public TransactionStore getSpentTransactionStore() {
+        lock.lock();
+        try {
+            return spentTransactionStore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of spent transactions that are currently evicted from memory. */
+    public int getEvictedTransactionCount() {
+        lock.lock();
+        try {
+            return evictedTransactions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts all spent transactions that qualify to the spent transaction store right now, see
+     * {@link #setSpentTransactionStore(TransactionStore, int)}. Returns the number of transactions evicted.
+     */
+    public int evictSpentTransactions() {
+        lock.lock();
+        try {
+            return evictSpentTransactionsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int evictSpentTransactionsLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (spentTransactionStore == null)
+            return 0;
+        List<Transaction> candidates = new ArrayList<Transaction>();
+        for (Transaction tx : spent.values())
+            if (isEvictable(tx))
+                candidates.add(tx);
+        if (candidates.isEmpty())
+            return 0;
+        // Parents have to be evicted before their children, so go from the lowest height up. Children in the same
+        // block as their parent may need another round.
+        Collections.sort(candidates, Transaction.SORT_TX_BY_HEIGHT);
+        Collections.reverse(candidates);
+        int count = 0;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Iterator<Transaction> it = candidates.iterator(); it.hasNext(); ) {
+                Transaction tx = it.next();
+                if (hasResidentParent(tx))
+                    continue;
+                if (!evictTransaction(tx))
+                    return count;
+                it.remove();
+                count++;
+                progress = true;
+            }
+        }
+        log.info("Evicted {} spent transactions, {} are out of memory now", count, evictedTransactions.size());
+        return count;
+    }
+
+    private boolean isEvictable(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING
+                || confidence.getDepthInBlocks() < spentTransactionEvictionDepth
+                || ignoreNextNewBlock.contains(tx.getHash()))
+            return false;
+        // Transactions spending from it may still be killed by a double spend, which would need its outputs.
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null && spentBy.getParentTransaction().getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                return false;
+        }
+        return true;
+    }
+
+    private boolean hasResidentParent(Transaction tx) {
+        if (tx.isCoinBase())
+            return false;
+        for (TransactionInput input : tx.getInputs())
+            if (transactions.containsKey(input.getOutpoint().getHash()))
+                return true;
+        return false;
+    }
+
+    /**
+     * Reads the evicted transactions from the spent transaction store, without bringing them back into memory. Their
+     * depth is brought up to date, as the one stored is the depth they had when they were evicted.
+     */
+    List<Protos.Transaction> getEvictedTransactionProtos() {
+        lock.lock();
+        try {
+            List<Protos.Transaction> result = new ArrayList<Protos.Transaction>(evictedTransactions.size());
+            for (Sha256Hash hash : evictedTransactions.keySet()) {
+                Protos.Transaction txProto = Protos.Transaction.parseFrom(checkNotNull(spentTransactionStore.get(hash)));
+                Protos.TransactionConfidence confidence = txProto.getConfidence();
+                if (confidence.hasAppearedAtHeight()) {
+                    int depth = lastBlockSeenHeight - confidence.getAppearedAtHeight() + 1;
+                    txProto = txProto.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+                }
+                result.add(txProto);
+            }
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read from the spent transaction store", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean evictTransaction(Transaction tx) {
+        final Sha256Hash hash = tx.getHash();
+        Protos.Transaction txProto = WalletProtobufSerializer.makeTxProto(new WalletTransaction(Pool.SPENT, tx));
+        try {
+            spentTransactionStore.put(hash, txProto.toByteArray());
+        } catch (IOException e) {
+            log.error("Could not write transaction " + hash + " to the spent transaction store, keeping it", e);
+            return false;
+        }
+        // Unlink the transactions spending from it, so that they no longer keep it reachable. Its own parents are
+        // already evicted, or not in the wallet.
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null)
+                spentBy.disconnect();
+        }
+        tx.getConfidence().removeEventListener(txConfidenceListener);
+        confidenceChanged.remove(tx);
+        spent.remove(hash);
+        transactions.remove(hash);
+        evictedTransactions.put(hash, new EvictedTransaction(tx.getUpdateTime().getTime()));
+        return true;
+    }
+
+    // Returns the transaction with the given hash, bringing it back into memory first if it was evicted.
+    @Nullable
+    private Transaction getTransactionOrRestoreLocked(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx = transactions.get(hash);
+        if (tx == null && evictedTransactions.containsKey(hash)) {
+            restoreEvictedTransactionsLocked(Collections.singletonList(hash));
+            tx = transactions.get(hash);
+        }
+        return tx;
+    }
+
+    // Brings back the evicted transactions that the inputs of tx spend from, so that the inputs can be connected.
+    private void restoreEvictedParentsLocked(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (evictedTransactions.isEmpty() || tx.isCoinBase())
+            return;
+        List<Sha256Hash> parents = new ArrayList<Sha256Hash>();
+        for (TransactionInput input : tx.getInputs())
+            if (evictedTransactions.containsKey(input.getOutpoint().getHash()))
+                parents.add(input.getOutpoint().getHash());
+        if (!parents.isEmpty())
+            restoreEvictedTransactionsLocked(parents);
+    }
+
+    // Reads an evicted transaction from the store without bringing it back into memory. It isn't connected to anything.
+    @Nullable
+    private Transaction readEvictedTransactionLocked(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!evictedTransactions.containsKey(hash))
+            return null;
+        try {
+            Protos.Transaction txProto = Protos.Transaction.parseFrom(checkNotNull(spentTransactionStore.get(hash)));
+            return new WalletProtobufSerializer().readDetachedTransaction(params, txProto);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read transaction " + hash + " from the spent transaction store", e);
+        } catch (UnreadableWalletException e) {
+            throw new RuntimeException("Could not read transaction " + hash + " from the spent transaction store", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc} These are the transactions evicted to the spent transaction store, see
+     * {@link #setSpentTransactionStore(TransactionStore, int)}. The transaction is read from the store and not brought
+     * back into memory, so its outputs aren't connected to the transactions spending them.
+     */
+    @Override
+    @Nullable
+    public Transaction getEvictedTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return readEvictedTransactionLocked(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Finds the output an input spends from among the transactions of this wallet, including evicted ones, without
+    // bringing any of them back into memory.
+    @Nullable
+    private TransactionOutput findConnectedOutputLocked(TransactionInput input) {
+        TransactionOutput output = input.getConnectedOutput();
+        if (output != null)
+            return output;
+        TransactionOutPoint outpoint = input.getOutpoint();
+        Transaction tx = transactions.get(outpoint.getHash());
+        if (tx == null)
+            tx = readEvictedTransactionLocked(outpoint.getHash());
+        return tx != null && outpoint.getIndex() < tx.getOutputs().size() ? tx.getOutput(outpoint.getIndex()) : null;
+    }
+
+    // All transactions of the wallet, with the evicted ones read from the store one at a time as the iterator gets to
+    // them, so they don't all have to be in memory at once and aren't restored.
+    private Iterable<Transaction> allTransactionsLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        final List<Transaction> resident = new ArrayList<Transaction>(transactions.values());
+        final List<Sha256Hash> evicted = new ArrayList<Sha256Hash>(evictedTransactions.keySet());
+        return new Iterable<Transaction>() {
+            @Override
+            public Iterator<Transaction> iterator() {
+                return Iterators.concat(resident.iterator(), Iterators.transform(evicted.iterator(),
+                        new Function<Sha256Hash, Transaction>() {
+                            @Override
+                            public Transaction apply(Sha256Hash hash) {
+                                return checkNotNull(readEvictedTransactionLocked(hash));
+                            }
+                        }));
+            }
+        };
+    }
+
+    private void restoreAllEvictedTransactionsLocked() {
+        if (!evictedTransactions.isEmpty())
+            restoreEvictedTransactionsLocked(new ArrayList<Sha256Hash>(evictedTransactions.keySet()));
+    }
+
+    // Brings the given evicted transactions back into memory, along with all evicted transactions spending from them.
+    private void restoreEvictedTransactionsLocked(Collection<Sha256Hash> hashes) {
+        checkState(lock.isHeldByCurrentThread());
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Map<Transaction, Protos.Transaction> restored = new LinkedHashMap<Transaction, Protos.Transaction>();
+        LinkedList<Sha256Hash> work = new LinkedList<Sha256Hash>(hashes);
+        while (!work.isEmpty()) {
+            Sha256Hash hash = work.poll();
+            if (evictedTransactions.remove(hash) == null)
+                continue;  // Already restored.
+            Transaction tx;
+            Protos.Transaction txProto;
+            try {
+                txProto = Protos.Transaction.parseFrom(checkNotNull(spentTransactionStore.get(hash)));
+                tx = serializer.readDetachedTransaction(params, txProto);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read transaction " + hash + " from the spent transaction store", e);
+            } catch (UnreadableWalletException e) {
+                throw new RuntimeException("Could not read transaction " + hash + " from the spent transaction store", e);
+            }
+            removeFromSpentTransactionStore(hash);
+            // The depth was not kept up to date while it was evicted.
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setDepthInBlocks(lastBlockSeenHeight - confidence.getAppearedAtChainHeight() + 1);
+            addWalletTransaction(Pool.SPENT, tx);
+            restored.put(tx, txProto);
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList())
+                if (outputProto.hasSpentByTransactionHash())
+                    work.add(WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+        }
+        // Everything spending from them is in memory now, link it up again.
+        for (Map.Entry<Transaction, Protos.Transaction> entry : restored.entrySet()) {
+            Transaction tx = entry.getKey();
+            List<Protos.TransactionOutput> outputProtos = entry.getValue().getTransactionOutputList();
+            for (int i = 0; i < outputProtos.size(); i++) {
+                Protos.TransactionOutput outputProto = outputProtos.get(i);
+                if (!outputProto.hasSpentByTransactionHash())
+                    continue;
+                Transaction spendingTx = transactions.get(
+                        WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+                if (spendingTx == null) {
+                    log.warn("Transaction spending from restored {} is no longer in the wallet", tx.getHash());
+                    continue;
+                }
+                spendingTx.getInput(outputProto.getSpentByTransactionIndex()).connect(tx.getOutput(i));
+            }
+        }
+        if (!restored.isEmpty())
+            log.info("Restored {} evicted transactions, {} are out of memory now", restored.size(), evictedTransactions.size());
+    }
+
+    private void removeFromSpentTransactionStore(Sha256Hash hash) {
+        try {
+            spentTransactionStore.remove(hash);
+        } catch (IOException e) {
+            // Only wastes some space in the store.
+            log.warn("Could not remove transaction " + hash + " from the spent transaction store", e);
+        }
+    }
+
+    //endregion
+
+    /******************************************************************************************************************/
+
     //region Bloom filtering
 
     private final ArrayList<TransactionOutPoint> bloomOutPoints = Lists.newArrayList();
@@ -4930,7 +5571,7 @@ public class Wallet extends BaseTaggableObject
             // Estimate transaction size and loop again if we need more fee per kb. The serialized tx doesn't
             // include things we haven't added yet like input signatures/scripts or the change output.
             size += req.tx.unsafeBitcoinSerialize().length;
-            size += estimateBytesForSigning(selection);
+            size += estimateBytesForSigning(selection, req.getUseForkId() && req.getUseSchnorr());
             if (size > lastCalculatedSize && req.feePerKb.signum() > 0) {
                 lastCalculatedSize = size;
                 // We need more fees anyway, just try again with the same additional value
@@ -5007,7 +5648,8 @@ public class Wallet extends BaseTaggableObject
             req.tx.addInput(input);
     }
 
-    private int estimateBytesForSigning(CoinSelection selection) {
+    // With schnorr set, single key inputs are expected to be signed with Schnorr signatures, which are shorter.
+    private int estimateBytesForSigning(CoinSelection selection, boolean schnorr) {
         int size = 0;
         for (TransactionOutput output : selection.gathered) {
             try {
@@ -5022,6 +5664,8 @@ public class Wallet extends BaseTaggableObject
                     checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
                 }
                 size += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+                if (schnorr && redeemScript == null)
+                    size -= Script.SIG_SIZE - Script.SCHNORR_SIG_SIZE;
             } catch (ScriptException e) {
                 // If this happens it means an output script in a wallet tx could not be understood. That should never
                 // happen, if it does it means the wallet has got into an inconsistent state.
@@ -5262,7 +5906,7 @@ public class Wallet extends BaseTaggableObject
             }
             // When not signing, don't waste addresses.
             rekeyTx.addOutput(toMove.valueGathered, sign ? freshReceiveAddress() : currentReceiveAddress());
-            if (!adjustOutputDownwardsForFee(rekeyTx, toMove, Transaction.DEFAULT_TX_FEE, true)) {
+            if (!adjustOutputDownwardsForFee(rekeyTx, toMove, Transaction.DEFAULT_TX_FEE, true, false)) {
                 log.error("Failed to adjust rekey tx for fees.");
                 return null;
             }
@@ -0,0 +1,682 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.ListenerRegistration;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Hosts many {@link Wallet}s on a single {@link AbstractBlockChain} and {@link PeerGroup}. Instead of offering every
+ * transaction to every wallet in turn, the dispatcher keeps one global index from output scripts, transaction hashes
+ * and spent outpoints to the wallets that own them, and only hands a transaction to the wallets it may touch. Each of
+ * those wallets still makes the final relevance decision itself, so the index only needs to be a superset.</p>
+ *
+ * <p>To use it, add the wallets to the dispatcher instead of to the chain and peer group, then connect the dispatcher
+ * with {@link AbstractBlockChain#addWalletDispatcher(WalletDispatcher)} and
+ * {@link PeerGroup#addWalletDispatcher(WalletDispatcher)}. The dispatcher is also the {@link PeerFilterProvider} for
+ * all of its wallets, building one combined Bloom filter.</p>
+ *
+ * <p>Outputs whose script is a pay-to-pubkey or pay-to-address script with a non-canonical push encoding are not
+ * routed, as the index works on raw script bytes.</p>
+ */
+public class WalletDispatcher implements TransactionReceivedInBlockListener, NewBestBlockListener, ReorganizeListener,
+        PeerFilterProvider {
+    private static final Logger log = LoggerFactory.getLogger(WalletDispatcher.class);
+
+    // Ordering: wallet locks > lock. The lock only protects the index, we never call into a wallet while holding it.
+    private final ReentrantLock lock = Threading.lock("walletdispatcher");
+
+    // Wallets are identified in the index by their position in this list. Removed wallets leave a null behind so the
+    // remaining ids stay valid, and their id is handed out again once their index entries are purged.
+    @GuardedBy("lock") private final List<Wallet> walletsById = new ArrayList<Wallet>();
+    @GuardedBy("lock") private final Deque<Integer> freeIds = new ArrayDeque<Integer>();
+    @GuardedBy("lock") private final Map<Wallet, Integer> ids = new IdentityHashMap<Wallet, Integer>();
+    // The listener registered on each wallet, so it can be removed again.
+    @GuardedBy("lock") private final Map<Wallet, WalletListener> walletListeners = new IdentityHashMap<Wallet, WalletListener>();
+    // Output scripts of keys and watched scripts.
+    @GuardedBy("lock") private final Index scriptIndex = new Index();
+    // Hashes of wallet transactions, to route spends of their outputs, and outpoints spent by wallet transactions, to
+    // route double spends.
+    @GuardedBy("lock") private final Index outPointIndex = new Index();
+    // Wallets that added keys or scripts since their scripts were last indexed.
+    @GuardedBy("lock") private final Set<Wallet> dirtyWallets = new LinkedHashSet<Wallet>();
+
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<Wallet>();
+    @Nullable private volatile TransactionBroadcaster vTransactionBroadcaster;
+
+    private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> keyChainEventListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>>();
+    private final CopyOnWriteArrayList<ListenerRegistration<ScriptsChangeEventListener>> scriptChangeListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<ScriptsChangeEventListener>>();
+    private final CopyOnWriteArrayList<ListenerRegistration<WalletCoinsReceivedEventListener>> coinsReceivedListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<WalletCoinsReceivedEventListener>>();
+
+    /**
+     * Adds a wallet to the dispatcher and indexes its keys, watched scripts and transactions. The wallet must not also
+     * be added to the block chain or peer group directly.
+     */
+    public void addWallet(Wallet wallet) {
+        checkNotNull(wallet);
+        List<byte[]> programs = wallet.getScriptPubKeyPrograms();
+        Set<Transaction> transactions = wallet.getResidentTransactions(true);
+        WalletListener listener;
+        lock.lock();
+        try {
+            checkArgument(!ids.containsKey(wallet), "Wallet already added");
+            Integer free = freeIds.poll();
+            int id;
+            if (free != null) {
+                id = free;
+                walletsById.set(id, wallet);
+            } else {
+                id = walletsById.size();
+                walletsById.add(wallet);
+            }
+            ids.put(wallet, id);
+            listener = new WalletListener(wallet);
+            walletListeners.put(wallet, listener);
+            for (byte[] program : programs)
+                scriptIndex.put(fingerprint(program), id);
+            for (Transaction tx : transactions)
+                indexTransactionLocked(tx, id);
+        } finally {
+            lock.unlock();
+        }
+        wallets.add(wallet);
+        wallet.setTransactionBroadcaster(vTransactionBroadcaster);
+        // These run on the thread changing the wallet, so the index is up to date before the next transaction.
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, listener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        // Catch keys that were added before the listeners were in place.
+        lock.lock();
+        try {
+            if (ids.containsKey(wallet))
+                dirtyWallets.add(wallet);
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Added wallet, now dispatching to {} wallets", wallets.size());
+    }
+
+    /**
+     * Removes a wallet from the dispatcher, along with its entries in the index. Returns false if it was not added.
+     */
+    public boolean removeWallet(Wallet wallet) {
+        checkNotNull(wallet);
+        WalletListener listener;
+        lock.lock();
+        try {
+            Integer id = ids.remove(wallet);
+            if (id == null)
+                return false;
+            walletsById.set(id, null);
+            scriptIndex.removeAll(id);
+            outPointIndex.removeAll(id);
+            freeIds.add(id);
+            listener = walletListeners.remove(wallet);
+            dirtyWallets.remove(wallet);
+        } finally {
+            lock.unlock();
+        }
+        wallets.remove(wallet);
+        wallet.removeKeyChainEventListener(listener);
+        wallet.removeScriptChangeEventListener(listener);
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        wallet.setTransactionBroadcaster(null);
+        return true;
+    }
+
+    /**
+     * <p>Restores a wallet from each of the given seeds, as {@link Wallet#fromSeed(NetworkParameters, DeterministicSeed)}
+     * would, and adds them all to this dispatcher. The wallets are created and their lookahead keys derived in
+     * parallel, using up to one thread per processor, and they are returned in the order of the seeds.</p>
+     *
+     * <p>Restoring many wallets this way replays the chain only once for all of them: the dispatcher provides one
+     * combined Bloom filter, and its {@link #getEarliestKeyCreationTime()} is the earliest creation time of all the
+     * seeds, so the peer group downloads full blocks from there on. Like with a single restored wallet, a block chain
+     * that is already past that time must be reset, for example from a checkpoint before it. Restore the wallets before
+     * starting the peer group, so that the first filter it sends already covers all of them.</p>
+     */
+    public List<Wallet> restoreWallets(final NetworkParameters params, List<DeterministicSeed> seeds) {
+        checkNotNull(params);
+        if (seeds.isEmpty())
+            return Collections.emptyList();
+        final long start = System.nanoTime();
+        int threads = Math.min(seeds.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Wallet restore"));
+        List<Wallet> restored = new ArrayList<Wallet>(seeds.size());
+        try {
+            List<Future<Wallet>> futures = new ArrayList<Future<Wallet>>(seeds.size());
+            for (final DeterministicSeed seed : seeds) {
+                checkNotNull(seed);
+                futures.add(executor.submit(new Callable<Wallet>() {
+                    @Override
+                    public Wallet call() {
+                        Wallet wallet = Wallet.fromSeed(params, seed);
+                        // Derives the lookahead keys and indexes their scripts, addWallet then only reads them.
+                        wallet.getScriptPubKeyPrograms();
+                        return wallet;
+                    }
+                }));
+            }
+            for (Future<Wallet> future : futures) {
+                try {
+                    restored.add(Uninterruptibles.getUninterruptibly(future));
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (Wallet wallet : restored)
+            addWallet(wallet);
+        log.info("Restored and indexed {} wallets in {} ms", restored.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return restored;
+    }
+
+    /** Returns a snapshot of the wallets added to this dispatcher. */
+    public List<Wallet> getWallets() {
+        return new ArrayList<Wallet>(wallets);
+    }
+
+    /**
+     * Sets the broadcaster used by all current and future wallets of this dispatcher, see
+     * {@link Wallet#setTransactionBroadcaster(TransactionBroadcaster)}.
+     */
+    public void setTransactionBroadcaster(@Nullable TransactionBroadcaster broadcaster) {
+        vTransactionBroadcaster = broadcaster;
+        for (Wallet wallet : wallets)
+            wallet.setTransactionBroadcaster(broadcaster);
+    }
+
+    /**
+     * Returns the wallets the given transaction may be relevant to: those owning one of its output scripts, owning
+     * the transactions it spends from, or having spent one of the same outpoints. Typically this is empty.
+     */
+    public List<Wallet> getCandidateWallets(Transaction tx) {
+        refreshDirtyWallets();
+        lock.lock();
+        try {
+            Set<Wallet> result = null;
+            for (TransactionOutput output : tx.getOutputs())
+                result = collectLocked(scriptIndex, fingerprint(output.getScriptBytes()), result);
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    TransactionOutPoint outpoint = input.getOutpoint();
+                    result = collectLocked(outPointIndex, fingerprint(outpoint.getHash()), result);
+                    result = collectLocked(outPointIndex, fingerprint(outpoint), result);
+                }
+            }
+            return result == null ? Collections.<Wallet>emptyList() : new ArrayList<Wallet>(result);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the given transaction from whichever wallet holds it, or null if none does. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        for (Wallet wallet : getWalletsWithTransaction(hash)) {
+            Transaction tx = wallet.getTransaction(hash);
+            if (tx != null)
+                return tx;
+        }
+        return null;
+    }
+
+    /** See {@link Wallet#checkForFilterExhaustion(FilteredBlock)}. True if any wallet's filter was exhausted. */
+    public boolean checkForFilterExhaustion(FilteredBlock block) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    private List<Wallet> getWalletsWithTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Set<Wallet> result = collectLocked(outPointIndex, fingerprint(hash), null);
+            return result == null ? Collections.<Wallet>emptyList() : new ArrayList<Wallet>(result);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Set<Wallet> collectLocked(Index index, long fingerprint, @Nullable Set<Wallet> result) {
+        int slot = index.first(fingerprint);
+        while (slot >= 0) {
+            Wallet wallet = walletsById.get(index.valueAt(slot));
+            if (wallet != null) {
+                if (result == null)
+                    result = new LinkedHashSet<Wallet>();
+                result.add(wallet);
+            }
+            slot = index.next(fingerprint, slot);
+        }
+        return result;
+    }
+
+    private void refreshDirtyWallets() {
+        List<Wallet> dirty;
+        lock.lock();
+        try {
+            if (dirtyWallets.isEmpty())
+                return;
+            dirty = new ArrayList<Wallet>(dirtyWallets);
+            dirtyWallets.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Wallet wallet : dirty) {
+            // Fetched outside of our lock to keep the lock ordering.
+            List<byte[]> programs = wallet.getScriptPubKeyPrograms();
+            lock.lock();
+            try {
+                Integer id = ids.get(wallet);
+                if (id == null)
+                    continue;
+                for (byte[] program : programs)
+                    scriptIndex.putIfAbsent(fingerprint(program), id);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void indexTransaction(Wallet wallet, Transaction tx) {
+        lock.lock();
+        try {
+            Integer id = ids.get(wallet);
+            if (id != null)
+                indexTransactionLocked(tx, id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void indexTransactionLocked(Transaction tx, int id) {
+        outPointIndex.putIfAbsent(fingerprint(tx.getHash()), id);
+        if (!tx.isCoinBase())
+            for (TransactionInput input : tx.getInputs())
+                outPointIndex.putIfAbsent(fingerprint(input.getOutpoint()), id);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Block chain and peer group integration
+    //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        List<Wallet> candidates = getCandidateWallets(tx);
+        boolean first = true;
+        for (Wallet wallet : candidates) {
+            // Like the block chain does, give every wallet but the first its own copy so they don't share objects.
+            Transaction copy = first ? tx : tx.getParams().getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+            first = false;
+            wallet.receiveFromBlock(copy, block, blockType, relativityOffset);
+            if (wallet.getTransaction(tx.getHash()) != null)
+                indexTransaction(wallet, copy);
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        boolean found = false;
+        for (Wallet wallet : getWalletsWithTransaction(txHash))
+            found |= wallet.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        return found;
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        for (Wallet wallet : wallets)
+            wallet.notifyNewBestBlock(block);
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks,
+                           List<StoredBlock> newBlocks) throws VerificationException {
+        for (Wallet wallet : wallets)
+            wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        long earliest = Long.MAX_VALUE;
+        for (Wallet wallet : wallets)
+            earliest = Math.min(earliest, wallet.getEarliestKeyCreationTime());
+        return earliest == Long.MAX_VALUE ? Utils.currentTimeSeconds() : earliest;
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        for (Wallet wallet : wallets)
+            wallet.beginBloomFilterCalculation();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        int count = 0;
+        for (Wallet wallet : wallets)
+            count += wallet.getBloomFilterElementCount();
+        return count;
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        for (Wallet wallet : wallets)
+            filter.merge(wallet.getBloomFilter(size, falsePositiveRate, nTweak));
+        return filter;
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        for (Wallet wallet : wallets)
+            if (wallet.isRequiringUpdateAllBloomFilter())
+                return true;
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        // Release in reverse order of acquisition.
+        for (int i = wallets.size() - 1; i >= 0; i--)
+            wallets.get(i).endBloomFilterCalculation();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Event listeners
+    //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Adds a listener that is run when keys are added to any of the wallets, on the given executor. */
+    public void addKeyChainEventListener(Executor executor, KeyChainEventListener listener) {
+        keyChainEventListeners.add(new ListenerRegistration<KeyChainEventListener>(listener, executor));
+    }
+
+    /** Removes a listener added with {@link #addKeyChainEventListener(Executor, KeyChainEventListener)}. */
+    public boolean removeKeyChainEventListener(KeyChainEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, keyChainEventListeners);
+    }
+
+    /** Adds a listener that is run when watched scripts of any of the wallets change, on the given executor. */
+    public void addScriptChangeEventListener(Executor executor, ScriptsChangeEventListener listener) {
+        scriptChangeListeners.add(new ListenerRegistration<ScriptsChangeEventListener>(listener, executor));
+    }
+
+    /** Removes a listener added with {@link #addScriptChangeEventListener(Executor, ScriptsChangeEventListener)}. */
+    public boolean removeScriptChangeEventListener(ScriptsChangeEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, scriptChangeListeners);
+    }
+
+    /** Adds a listener that is run when any of the wallets receives coins, on the given executor. */
+    public void addCoinsReceivedEventListener(Executor executor, WalletCoinsReceivedEventListener listener) {
+        coinsReceivedListeners.add(new ListenerRegistration<WalletCoinsReceivedEventListener>(listener, executor));
+    }
+
+    /** Removes a listener added with {@link #addCoinsReceivedEventListener(Executor, WalletCoinsReceivedEventListener)}. */
+    public boolean removeCoinsReceivedEventListener(WalletCoinsReceivedEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, coinsReceivedListeners);
+    }
+
+    private class WalletListener implements KeyChainEventListener, ScriptsChangeEventListener,
+            WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+        private final Wallet wallet;
+
+        WalletListener(Wallet wallet) {
+            this.wallet = wallet;
+        }
+
+        @Override
+        public void onKeysAdded(final List<ECKey> keys) {
+            // We're called with the wallets key chain locked and possibly before married scripts are derived, so
+            // the wallet is re-read lazily before the next lookup. Re-reading only adds the missing entries.
+            lock.lock();
+            try {
+                if (ids.containsKey(wallet))
+                    dirtyWallets.add(wallet);
+            } finally {
+                lock.unlock();
+            }
+            for (final ListenerRegistration<KeyChainEventListener> registration : keyChainEventListeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onKeysAdded(keys);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onScriptsChanged(final Wallet wallet, final List<Script> scripts, final boolean isAddingScripts) {
+            if (isAddingScripts) {
+                lock.lock();
+                try {
+                    Integer id = ids.get(wallet);
+                    if (id != null)
+                        for (Script script : scripts)
+                            scriptIndex.putIfAbsent(fingerprint(script.getProgram()), id);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            for (final ListenerRegistration<ScriptsChangeEventListener> registration : scriptChangeListeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onScriptsChanged(wallet, scripts, isAddingScripts);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                                    final Coin newBalance) {
+            indexTransaction(wallet, tx);
+            for (final ListenerRegistration<WalletCoinsReceivedEventListener> registration : coinsReceivedListeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onCoinsReceived(wallet, tx, prevBalance, newBalance);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            indexTransaction(wallet, tx);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //
+    // Index
+    //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static long fingerprint(byte[] program) {
+        // 64 bit FNV-1a. Collisions only cause a transaction to be offered to a wallet that then ignores it.
+        long h = 0xcbf29ce484222325L;
+        for (byte b : program) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long fingerprint(Sha256Hash hash) {
+        // Hashes are uniformly distributed already.
+        return Utils.readInt64(hash.getBytes(), 0);
+    }
+
+    private static long fingerprint(TransactionOutPoint outpoint) {
+        return (fingerprint(outpoint.getHash()) ^ 0x9e3779b97f4a7c15L) * 31 + outpoint.getIndex();
+    }
+
+    /**
+     * An open addressing multimap from 64 bit fingerprints to wallet ids, so that millions of entries only cost a few
+     * machine words each. The same fingerprint may be stored several times with different ids.
+     */
+    private static final class Index {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        // Wallet id plus one, zero marks an empty slot.
+        private int[] values = new int[INITIAL_CAPACITY];
+        private int size;
+
+        void put(long key, int id) {
+            if ((size + 1) * 4 > keys.length * 3)
+                resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (values[i] != 0)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = id + 1;
+            size++;
+        }
+
+        void putIfAbsent(long key, int id) {
+            for (int slot = first(key); slot >= 0; slot = next(key, slot))
+                if (valueAt(slot) == id)
+                    return;
+            put(key, id);
+        }
+
+        /** Returns the first slot holding the given key, or -1. */
+        int first(long key) {
+            int mask = keys.length - 1;
+            return scan(key, slot(key, mask), mask);
+        }
+
+        /** Returns the next slot after the given one holding the given key, or -1. */
+        int next(long key, int slot) {
+            int mask = keys.length - 1;
+            return scan(key, (slot + 1) & mask, mask);
+        }
+
+        int valueAt(int slot) {
+            return values[slot] - 1;
+        }
+
+        private int scan(long key, int i, int mask) {
+            for (; values[i] != 0; i = (i + 1) & mask)
+                if (keys[i] == key)
+                    return i;
+            return -1;
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+
+        /**
+         * Removes every entry for the given id. Slots can't simply be cleared with linear probing, so the table is
+         * rebuilt without them.
+         */
+        void removeAll(int id) {
+            rebuild(keys.length, id);
+        }
+
+        private void resize(int capacity) {
+            rebuild(capacity, -1);
+        }
+
+        private void rebuild(int capacity, int skipId) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldValues[i] != 0 && oldValues[i] - 1 != skipId)
+                    put(oldKeys[i], oldValues[i] - 1);
+        }
+    }
+}
@@ -18,6 +18,8 @@
 package org.bitcoinj.wallet;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
@@ -39,6 +41,7 @@ import static com.google.common.base.Preconditions.*;
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
+    private static final LatencyHistogram saveTime = MetricRegistry.getDefault().histogram("wallet.save");
 
     private final Wallet wallet;
     private final ScheduledThreadPoolExecutor executor;
@@ -131,6 +134,7 @@ public class WalletFiles {
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
+        saveTime.record(watch.elapsed(TimeUnit.NANOSECONDS));
         log.info("Save completed in {}", watch);
     }
 
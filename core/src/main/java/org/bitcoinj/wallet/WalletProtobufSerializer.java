@@ -24,13 +24,19 @@ import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -45,6 +51,12 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -78,6 +90,7 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    @Nullable private LoadTimings lastLoadTimings;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -147,10 +160,12 @@ public class WalletProtobufSerializer {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : wallet.getResidentWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+        // Transactions the wallet moved out of memory are already serialized.
+        walletBuilder.addAllTransaction(wallet.getEvictedTransactionProtos());
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
@@ -228,7 +243,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -463,17 +478,281 @@ public class WalletProtobufSerializer {
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        KeyChainGroup keyChainGroup = readKeyChainGroup(params, walletProto.getKeyList(),
+                walletProto.hasEncryptionParameters() ? walletProto.getEncryptionParameters() : null);
+        Wallet wallet = factory.create(params, keyChainGroup);
+        readWatchedScripts(wallet, walletProto);
+
+        if (forceReset) {
+            // Should mirror Wallet.reset()
+            wallet.setLastBlockSeenHash(null);
+            wallet.setLastBlockSeenHeight(-1);
+            wallet.setLastBlockSeenTimeSecs(0);
+        } else {
+            // Read all transactions and insert into the txMap.
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                readTransaction(txProto, wallet.getParams());
+            }
+
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+                wallet.addWalletTransaction(wtx);
+            }
+
+            readLastSeenBlock(wallet, walletProto);
+        }
+
+        readExtensionsTagsAndSigners(wallet, extensions, walletProto);
+
+        // Make sure the object can be re-used to read another wallet without corruption.
+        txMap.clear();
+
+        return wallet;
+    }
+
+    /**
+     * <p>Loads wallet data like {@link #readWallet(InputStream, boolean, WalletExtension[])}, but without parsing the
+     * whole protocol buffer into memory first. The stream is consumed field by field: every transaction is turned into
+     * a {@link Transaction} as soon as it has been read, keeping only the small part of its message that is needed to
+     * connect it to the transactions spending it. Meanwhile the key chains are rebuilt on a background thread, so that
+     * key derivation overlaps with transaction parsing. This is not possible for encrypted wallets, as the encryption
+     * parameters are stored after the transactions. The size limit applies to each key, transaction and so on rather
+     * than to the whole wallet, so wallets larger than 512 MB can be read too.</p>
+     *
+     * <p>The time spent in each phase of loading is logged and can be retrieved from {@link #getLastLoadTimings()}.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see
+     * {@link #readWallet(InputStream, boolean, WalletExtension[])}).
+     */
+    public Wallet readWalletStreaming(InputStream input, boolean forceReset,
+                                      @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ContextPropagatingThreadFactory("Wallet key chain loader"));
+        try {
+            return readWalletStreaming(input, forceReset, extensions, executor);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            executor.shutdownNow();
+            // Make sure the object can be re-used to read another wallet without corruption.
+            txMap.clear();
+        }
+    }
+
+    private Wallet readWalletStreaming(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions,
+                                       ExecutorService executor) throws IOException, UnreadableWalletException {
+        final long start = System.nanoTime();
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // Everything but keys and transactions is small, so it is copied aside and parsed as a wallet message at the end.
+        ByteString.Output otherFields = ByteString.newOutput();
+        CodedOutputStream otherFieldsOutput = CodedOutputStream.newInstance(otherFields);
+        NetworkParameters params = null;
+        List<Protos.Key> keys = new ArrayList<Protos.Key>();
+        boolean keysEncrypted = false;
+        Future<KeyChainGroup> keyChainGroupFuture = null;
+        final long[] keyChainNanos = new long[1];
+        List<Protos.Transaction> txProtos = new ArrayList<Protos.Transaction>();
+        int numTransactions = 0;
+        boolean done = false;
+        while (!done) {
+            final int tag = codedInput.readTag();
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 0:
+                    done = true;
+                    break;
+                case Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER:
+                    final String paramsID = codedInput.readString();
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    otherFieldsOutput.writeString(Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER, paramsID);
+                    break;
+                case Protos.Wallet.KEY_FIELD_NUMBER:
+                    Protos.Key.Builder keyBuilder = Protos.Key.newBuilder();
+                    codedInput.readMessage(keyBuilder, ExtensionRegistryLite.getEmptyRegistry());
+                    Protos.Key key = keyBuilder.build();
+                    keysEncrypted |= key.hasEncryptedData() || key.hasEncryptedDeterministicSeed();
+                    keys.add(key);
+                    // We write all keys before the first transaction, but the format doesn't guarantee it.
+                    if (keyChainGroupFuture != null) {
+                        keyChainGroupFuture.cancel(true);
+                        keyChainGroupFuture = null;
+                    }
+                    break;
+                case Protos.Wallet.TRANSACTION_FIELD_NUMBER:
+                    if (params == null)
+                        throw new UnreadableWalletException("Transaction before network identifier in wallet");
+                    if (keyChainGroupFuture == null && !keysEncrypted)
+                        keyChainGroupFuture = readKeyChainGroupAsync(executor, params, keys, keyChainNanos);
+                    Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
+                    codedInput.readMessage(txBuilder, ExtensionRegistryLite.getEmptyRegistry());
+                    numTransactions++;
+                    if (!forceReset) {
+                        Protos.Transaction txProto = txBuilder.build();
+                        readTransaction(txProto, params);
+                        txProtos.add(stripForConnecting(txProto));
+                    }
+                    break;
+                default:
+                    if (!codedInput.skipField(tag, otherFieldsOutput))
+                        done = true;
+                    break;
+            }
+            codedInput.resetSizeCounter();
+        }
+        otherFieldsOutput.flush();
+        Protos.Wallet walletProto = Protos.Wallet.parseFrom(otherFields.toByteString());
+        final long parsed = System.nanoTime();
+
+        if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
+            throw new UnreadableWalletException.FutureVersion();
+        params = checkNotNull(params);
+
+        Protos.ScryptParameters encryptionParameters =
+                walletProto.hasEncryptionParameters() ? walletProto.getEncryptionParameters() : null;
         KeyChainGroup keyChainGroup;
-        if (walletProto.hasEncryptionParameters()) {
-            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        if (keyChainGroupFuture != null && encryptionParameters == null) {
+            try {
+                keyChainGroup = Uninterruptibles.getUninterruptibly(keyChainGroupFuture);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), UnreadableWalletException.class);
+                throw Throwables.propagate(e.getCause());
+            }
         } else {
-            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+            if (keyChainGroupFuture != null)
+                keyChainGroupFuture.cancel(true);
+            final long keyChainStart = System.nanoTime();
+            keyChainGroup = readKeyChainGroup(params, keys, encryptionParameters);
+            keyChainNanos[0] = System.nanoTime() - keyChainStart;
         }
+        final long keysReady = System.nanoTime();
+
         Wallet wallet = factory.create(params, keyChainGroup);
+        readWatchedScripts(wallet, walletProto);
+        if (forceReset) {
+            // Should mirror Wallet.reset()
+            wallet.setLastBlockSeenHash(null);
+            wallet.setLastBlockSeenHeight(-1);
+            wallet.setLastBlockSeenTimeSecs(0);
+        } else {
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : txProtos)
+                wallet.addWalletTransaction(connectTransactionOutputs(params, txProto));
+            readLastSeenBlock(wallet, walletProto);
+        }
+        final long connected = System.nanoTime();
 
+        readExtensionsTagsAndSigners(wallet, extensions, walletProto);
+        final long end = System.nanoTime();
+
+        lastLoadTimings = new LoadTimings(keys.size(), numTransactions, parsed - start, keyChainNanos[0],
+                keysReady - parsed, connected - keysReady, end - connected, end - start);
+        log.info("Loaded wallet: {}", lastLoadTimings);
+        return wallet;
+    }
+
+    private Future<KeyChainGroup> readKeyChainGroupAsync(ExecutorService executor, final NetworkParameters params,
+                                                         List<Protos.Key> keys, final long[] keyChainNanos) {
+        // Keys may still be added to the original list while the copy is being read.
+        final List<Protos.Key> keysCopy = new ArrayList<Protos.Key>(keys);
+        return executor.submit(new Callable<KeyChainGroup>() {
+            @Override
+            public KeyChainGroup call() throws Exception {
+                final long keyChainStart = System.nanoTime();
+                KeyChainGroup keyChainGroup = readKeyChainGroup(params, keysCopy, null);
+                keyChainNanos[0] = System.nanoTime() - keyChainStart;
+                return keyChainGroup;
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the given transaction message holding only what {@link #connectTransactionOutputs} needs, so
+     * that the scripts are not kept in memory twice while reading the rest of the wallet.
+     */
+    private static Protos.Transaction stripForConnecting(Protos.Transaction txProto) {
+        Protos.Transaction.Builder builder = txProto.toBuilder().clearTransactionInput().clearTransactionOutput()
+                .clearBlockHash().clearBlockRelativityOffsets();
+        for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+            if (output.hasSpentByTransactionHash())
+                builder.addTransactionOutput(output.toBuilder().clearScriptBytes().buildPartial());
+            else
+                builder.addTransactionOutput(Protos.TransactionOutput.getDefaultInstance());
+        }
+        return builder.buildPartial();
+    }
+
+    /**
+     * Returns how long the phases of the last {@link #readWalletStreaming(InputStream, boolean, WalletExtension[])}
+     * took, or null if no wallet has been read that way yet.
+     */
+    @Nullable
+    public LoadTimings getLastLoadTimings() {
+        return lastLoadTimings;
+    }
+
+    /**
+     * Time spent in the phases of loading a wallet with
+     * {@link #readWalletStreaming(InputStream, boolean, WalletExtension[])}. The key chains are rebuilt while the
+     * stream is being parsed, so {@link #keyChainMillis} usually overlaps {@link #parseMillis} and only
+     * {@link #keyChainWaitMillis} adds to the total.
+     */
+    public static class LoadTimings {
+        /** Number of keys and transactions read. */
+        public final int keys, transactions;
+        /** Time spent reading the stream and constructing the transactions. */
+        public final long parseMillis;
+        /** Time spent rebuilding the key chains, on the background thread if possible. */
+        public final long keyChainMillis;
+        /** Time spent waiting for the key chains after the stream was read. */
+        public final long keyChainWaitMillis;
+        /** Time spent connecting transactions to each other and adding them to the wallet. */
+        public final long connectMillis;
+        /** Time spent loading extensions, tags and transaction signers. */
+        public final long extensionsMillis;
+        /** Time the whole load took. */
+        public final long totalMillis;
+
+        LoadTimings(int keys, int transactions, long parseNanos, long keyChainNanos, long keyChainWaitNanos,
+                    long connectNanos, long extensionsNanos, long totalNanos) {
+            this.keys = keys;
+            this.transactions = transactions;
+            this.parseMillis = TimeUnit.NANOSECONDS.toMillis(parseNanos);
+            this.keyChainMillis = TimeUnit.NANOSECONDS.toMillis(keyChainNanos);
+            this.keyChainWaitMillis = TimeUnit.NANOSECONDS.toMillis(keyChainWaitNanos);
+            this.connectMillis = TimeUnit.NANOSECONDS.toMillis(connectNanos);
+            this.extensionsMillis = TimeUnit.NANOSECONDS.toMillis(extensionsNanos);
+            this.totalMillis = TimeUnit.NANOSECONDS.toMillis(totalNanos);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("keys", keys).add("transactions", transactions)
+                    .add("parseMillis", parseMillis).add("keyChainMillis", keyChainMillis)
+                    .add("keyChainWaitMillis", keyChainWaitMillis).add("connectMillis", connectMillis)
+                    .add("extensionsMillis", extensionsMillis).add("totalMillis", totalMillis).toString();
+        }
+    }
+
+    private KeyChainGroup readKeyChainGroup(NetworkParameters params, List<Protos.Key> keys,
+                                            @Nullable Protos.ScryptParameters encryptionParameters) throws UnreadableWalletException {
+        // The scrypt parameters specify how encryption and decryption is performed.
+        if (encryptionParameters != null) {
+            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
+            return KeyChainGroup.fromProtobufEncrypted(params, keys, keyCrypter, keyChainFactory);
+        } else {
+            return KeyChainGroup.fromProtobufUnencrypted(params, keys, keyChainFactory);
+        }
+    }
+
+    private void readWatchedScripts(Wallet wallet, Protos.Wallet walletProto) throws UnreadableWalletException {
         List<Script> scripts = Lists.newArrayList();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
             try {
@@ -491,43 +770,30 @@ public class WalletProtobufSerializer {
         if (walletProto.hasDescription()) {
             wallet.setDescription(walletProto.getDescription());
         }
+    }
 
-        if (forceReset) {
-            // Should mirror Wallet.reset()
+    private void readLastSeenBlock(Wallet wallet, Protos.Wallet walletProto) {
+        // Update the lastBlockSeenHash.
+        if (!walletProto.hasLastSeenBlockHash()) {
             wallet.setLastBlockSeenHash(null);
+        } else {
+            wallet.setLastBlockSeenHash(byteStringToHash(walletProto.getLastSeenBlockHash()));
+        }
+        if (!walletProto.hasLastSeenBlockHeight()) {
             wallet.setLastBlockSeenHeight(-1);
-            wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
-                wallet.addWalletTransaction(wtx);
-            }
-
-            // Update the lastBlockSeenHash.
-            if (!walletProto.hasLastSeenBlockHash()) {
-                wallet.setLastBlockSeenHash(null);
-            } else {
-                wallet.setLastBlockSeenHash(byteStringToHash(walletProto.getLastSeenBlockHash()));
-            }
-            if (!walletProto.hasLastSeenBlockHeight()) {
-                wallet.setLastBlockSeenHeight(-1);
-            } else {
-                wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
-            }
-            // Will default to zero if not present.
-            wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
+            wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
+        }
+        // Will default to zero if not present.
+        wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
 
-            if (walletProto.hasKeyRotationTime()) {
-                wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
-            }
+        if (walletProto.hasKeyRotationTime()) {
+            wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
         }
+    }
 
+    private void readExtensionsTagsAndSigners(Wallet wallet, @Nullable WalletExtension[] extensions,
+                                              Protos.Wallet walletProto) throws UnreadableWalletException {
         loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
 
         for (Protos.Tag tag : walletProto.getTagsList()) {
@@ -549,11 +815,6 @@ public class WalletProtobufSerializer {
         if (walletProto.hasVersion()) {
             wallet.setVersion(walletProto.getVersion());
         }
-
-        // Make sure the object can be re-used to read another wallet without corruption.
-        txMap.clear();
-
-        return wallet;
     }
 
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
@@ -673,6 +934,22 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
+    /**
+     * Reads a single transaction written by {@link #makeTxProto(WalletTransaction)}, including its confidence. Unlike
+     * when reading a whole wallet, the outputs are not connected to the inputs spending them.
+     */
+    Transaction readDetachedTransaction(NetworkParameters params, Protos.Transaction txProto) throws UnreadableWalletException {
+        try {
+            readTransaction(txProto, params);
+            Transaction tx = txMap.get(txProto.getHash());
+            if (txProto.hasConfidence())
+                readConfidence(params, tx, txProto.getConfidence(), tx.getConfidence());
+            return tx;
+        } finally {
+            txMap.clear();
+        }
+    }
+
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
                                                         final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
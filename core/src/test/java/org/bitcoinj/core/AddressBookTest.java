@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AddressBookTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+    }
+
+    private static PeerAddress address(int i) throws Exception {
+        return new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }), PARAMS.getPort());
+    }
+
+    @Test
+    public void ranksKnownGoodFastPeersFirst() throws Exception {
+        AddressBook book = new AddressBook(PARAMS);
+        PeerAddress gossiped = address(1), slow = address(2), fast = address(3), failing = address(4);
+        assertEquals(4, book.addAll(Arrays.asList(gossiped, slow, fast, failing)));
+        assertEquals(0, book.addAll(Arrays.asList(gossiped)));
+
+        book.recordSuccess(slow, VersionMessage.NODE_NETWORK, 1000);
+        book.recordStats(slow, 1500, 1000);
+        book.recordSuccess(fast, VersionMessage.NODE_NETWORK, 1000);
+        book.recordStats(fast, 50, 1000);
+        book.recordFailure(failing);
+
+        assertEquals(Arrays.asList(fast, slow, gossiped, failing), book.getBestAddresses(10, 0));
+        assertEquals(Arrays.asList(fast, slow), book.getBestAddresses(2, 0));
+    }
+
+    @Test
+    public void penalisesLaggingAndFailingPeers() throws Exception {
+        AddressBook book = new AddressBook(PARAMS);
+        PeerAddress lagging = address(1);
+        book.recordSuccess(lagging, VersionMessage.NODE_NETWORK, 900);
+        book.recordStats(lagging, 10, 900);
+        for (int i = 2; i <= 4; i++) {
+            book.recordSuccess(address(i), VersionMessage.NODE_NETWORK, 1000);
+            book.recordStats(address(i), 500, 1000);
+        }
+        assertEquals(lagging, book.getBestAddresses(4, 0).get(3));
+
+        // A peer that worked once but now keeps failing drops below one we've never tried.
+        PeerAddress gossiped = address(5);
+        book.addAll(Arrays.asList(gossiped));
+        book.recordFailure(address(2));
+        book.recordFailure(address(2));
+        book.recordFailure(address(2));
+        book.recordFailure(address(2));
+        List<PeerAddress> best = book.getBestAddresses(5, 0);
+        assertTrue(best.indexOf(gossiped) < best.indexOf(address(2)));
+
+        // And is eventually forgotten.
+        for (int i = 0; i < AddressBook.MAX_CONSECUTIVE_FAILURES; i++)
+            book.recordFailure(address(2));
+        assertNull(book.getEntry(address(2).getSocketAddress()));
+    }
+
+    @Test
+    public void prefersRecentlyConnectedPeers() throws Exception {
+        AddressBook book = new AddressBook(PARAMS);
+        PeerAddress old = address(1), recent = address(2);
+        // A longer track record doesn't make up for not having got through for weeks.
+        book.recordSuccess(old, VersionMessage.NODE_NETWORK, 1000);
+        book.recordSuccess(old, VersionMessage.NODE_NETWORK, 1000);
+        book.recordStats(old, 50, 1000);
+        Utils.rollMockClock(20 * 24 * 60 * 60);
+        book.recordSuccess(recent, VersionMessage.NODE_NETWORK, 1000);
+        book.recordStats(recent, 50, 1000);
+        assertEquals(Arrays.asList(recent, old), book.getBestAddresses(10, 0));
+    }
+
+    @Test
+    public void filtersOnServices() throws Exception {
+        AddressBook book = new AddressBook(PARAMS);
+        PeerAddress full = address(1), other = address(2), unknown = address(3);
+        book.recordSuccess(full, VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS, 1000);
+        book.recordSuccess(other, VersionMessage.NODE_GETUTXOS, 1000);
+        book.addAll(Arrays.asList(unknown));
+        assertEquals(Arrays.asList(full, unknown), book.getBestAddresses(10, VersionMessage.NODE_COMPACT_FILTERS));
+    }
+
+    @Test
+    public void evictsWorstWhenFull() throws Exception {
+        AddressBook book = new AddressBook(PARAMS, null, 10);
+        PeerAddress good = address(100);
+        book.recordSuccess(good, VersionMessage.NODE_NETWORK, 1000);
+        for (int i = 1; i <= 20; i++)
+            book.addAll(Arrays.asList(address(i)));
+        assertTrue(book.size() <= 10);
+        assertNotNull(book.getEntry(good.getSocketAddress()));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = File.createTempFile("addressbook", null);
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        AddressBook book = new AddressBook(PARAMS, file);
+        assertEquals(0, book.size());
+        PeerAddress gossiped = address(1), good = address(2);
+        gossiped.setServices(BigInteger.valueOf(VersionMessage.NODE_NETWORK));
+        gossiped.setTime(Utils.currentTimeSeconds() - 3600);
+        book.addAll(Arrays.asList(gossiped));
+        book.recordSuccess(good, VersionMessage.NODE_NETWORK, 1234);
+        book.recordStats(good, 80, 1240);
+        book.save();
+
+        AddressBook loaded = new AddressBook(PARAMS, file);
+        assertEquals(2, loaded.size());
+        AddressBook.Entry entry = loaded.getEntry(good.getSocketAddress());
+        assertEquals(1, entry.getSuccesses());
+        assertEquals(80, entry.getPingTimeMillis());
+        assertEquals(1240, entry.getBestHeight());
+        assertEquals(Utils.currentTimeMillis(), entry.getLastSuccessMillis());
+        entry = loaded.getEntry(gossiped.getSocketAddress());
+        assertEquals(VersionMessage.NODE_NETWORK, entry.getServices());
+        assertEquals(Utils.currentTimeSeconds() - 3600, entry.getLastSeenSecs());
+        assertEquals(Arrays.asList(good, address(1)), loaded.getBestAddresses(10, 0));
+
+        // A book for another network, or a damaged one, is ignored rather than failing startup.
+        assertEquals(0, new AddressBook(TestNet3Params.get(), file).size());
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(42);
+        out.close();
+        assertEquals(0, new AddressBook(PARAMS, file).size());
+    }
+}
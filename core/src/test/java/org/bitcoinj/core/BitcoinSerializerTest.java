@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.DirectBufferPool;
 import org.bitcoinj.params.MainNetParams;
 import org.junit.Test;
 
@@ -25,6 +26,7 @@ import java.net.InetAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.bitcoinj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -220,6 +222,66 @@ public class BitcoinSerializerTest {
         MainNetParams.get().getDefaultSerializer().seekPastMagicBytes(ByteBuffer.wrap(brokenMessage));
     }
 
+    @Test
+    public void compactFilterMessages() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Sha256Hash stopHash = Sha256Hash.of(new byte[] { 1 });
+        List<Sha256Hash> filterHashes = Arrays.asList(Sha256Hash.of(new byte[] { 2 }), Sha256Hash.of(new byte[] { 3 }));
+        Message[] messages = {
+                new GetCFHeadersMessage(MainNetParams.get(), CFilterMessage.BASIC_FILTER_TYPE, 100, stopHash),
+                new GetCFiltersMessage(MainNetParams.get(), CFilterMessage.BASIC_FILTER_TYPE, 100, stopHash),
+                new CFHeadersMessage(MainNetParams.get(), CFilterMessage.BASIC_FILTER_TYPE, stopHash,
+                        Sha256Hash.ZERO_HASH, filterHashes),
+                new CFilterMessage(MainNetParams.get(), CFilterMessage.BASIC_FILTER_TYPE, stopHash, HEX.decode("019dfca8"))
+        };
+        for (Message message : messages) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            serializer.serialize(message, bos);
+            assertEquals(message, serializer.deserialize(ByteBuffer.wrap(bos.toByteArray())));
+        }
+
+        List<Sha256Hash> filterHeaders = ((CFHeadersMessage) messages[2]).getFilterHeaders();
+        assertEquals(2, filterHeaders.size());
+        assertEquals(CFHeadersMessage.filterHeader(filterHashes.get(0), Sha256Hash.ZERO_HASH), filterHeaders.get(0));
+        assertEquals(CFHeadersMessage.filterHeader(filterHashes.get(1), filterHeaders.get(0)), filterHeaders.get(1));
+    }
+
+    @Test
+    public void serializeToPooledBuffers() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        // Small buffers so that the transaction, unlike the verack, is spread over several of them.
+        DirectBufferPool pool = new DirectBufferPool(64, 16);
+        Message[] messages = {
+                serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES)),
+                new VersionAck()
+        };
+        int mostBuffers = 0;
+        for (Message message : messages) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            serializer.serialize(message, bos);
+            byte[] expected = bos.toByteArray();
+
+            List<ByteBuffer> buffers = serializer.serialize(message, pool);
+            assertEquals((expected.length + 63) / 64, buffers.size());
+            mostBuffers = Math.max(mostBuffers, buffers.size());
+            ByteBuffer actual = ByteBuffer.allocate(expected.length);
+            for (ByteBuffer buffer : buffers) {
+                assertTrue(buffer.isDirect());
+                actual.put(buffer);
+                pool.release(buffer);
+            }
+            assertArrayEquals(expected, actual.array());
+
+            SerializedMessage serialized = new SerializedMessage(serializer, message);
+            byte[] shared = new byte[serialized.length()];
+            serialized.getBytes().get(shared);
+            assertArrayEquals(expected, shared);
+            assertEquals(0, serialized.getBytes().position()); // Each view starts afresh
+        }
+        // Every buffer went back to the pool and was reused.
+        assertEquals(mostBuffers, pool.getFreeCount());
+    }
+
     /**
      * Tests serialization of an unknown message.
      */
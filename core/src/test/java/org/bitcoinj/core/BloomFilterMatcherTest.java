@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterMatcherTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private List<ECKey> keys;
+    private List<BloomFilter> filters;
+    private List<Transaction> txns;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 6; i++)
+            keys.add(new ECKey());
+
+        // Filters with every update mode, each knowing about some of the keys, and one that matches everything.
+        filters = new ArrayList<BloomFilter>();
+        BloomFilter.BloomUpdate[] modes = BloomFilter.BloomUpdate.values();
+        for (int i = 0; i < 9; i++) {
+            BloomFilter filter = new BloomFilter(10, 0.0001, i * 1000003L, modes[i % modes.length]);
+            filter.insert(keys.get(i % keys.size()));
+            if (i % 2 == 0)
+                filter.insert(keys.get((i + 1) % keys.size()));
+            filters.add(filter);
+        }
+        BloomFilter matchAll = new BloomFilter(1, 0.01, 0);
+        matchAll.setMatchAll();
+        filters.add(matchAll);
+
+        // A chain of transactions: pay-to-pubkey and pay-to-address outputs that are spent later on.
+        txns = new ArrayList<Transaction>();
+        Transaction tx1 = new Transaction(PARAMS);
+        tx1.addInput(new TransactionInput(PARAMS, tx1, new byte[] { 1, 2, 3 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+        tx1.addOutput(Coin.COIN, keys.get(0));
+        tx1.addOutput(Coin.COIN, keys.get(1).toAddress(PARAMS));
+        tx1.addOutput(Coin.COIN, keys.get(2));
+        txns.add(tx1);
+        Transaction tx2 = new Transaction(PARAMS);
+        tx2.addInput(new TransactionInput(PARAMS, tx2, new byte[] {}, tx1.getOutput(0).getOutPointFor()));
+        tx2.addInput(new TransactionInput(PARAMS, tx2, new byte[] {}, tx1.getOutput(1).getOutPointFor()));
+        tx2.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        txns.add(tx2);
+        Transaction tx3 = new Transaction(PARAMS);
+        tx3.addInput(new TransactionInput(PARAMS, tx3, new byte[] {}, tx1.getOutput(2).getOutPointFor()));
+        tx3.addInput(new TransactionInput(PARAMS, tx3, new byte[] {}, tx2.getOutput(0).getOutPointFor()));
+        tx3.addOutput(Coin.COIN, keys.get(3).toAddress(PARAMS));
+        txns.add(tx3);
+    }
+
+    private List<BloomFilter> copies() {
+        List<BloomFilter> copies = new ArrayList<BloomFilter>();
+        for (BloomFilter filter : filters)
+            copies.add(new BloomFilter(filter));
+        return copies;
+    }
+
+    @Test
+    public void sameAsBloomFilter() {
+        List<BloomFilter> expected = copies();
+        BloomFilterMatcher matcher = new BloomFilterMatcher();
+        for (BloomFilter filter : filters)
+            assertEquals(matcher.size(), matcher.add(filter));
+        int matches = 0;
+        for (Transaction tx : txns) {
+            BitSet matched = matcher.applyAndUpdate(tx);
+            for (int i = 0; i < expected.size(); i++)
+                assertEquals("filter " + i + ", tx " + tx.getHash(), expected.get(i).applyAndUpdate(tx), matched.get(i));
+            matches += matched.cardinality();
+        }
+        // Not everything matches everything.
+        assertTrue(matches > txns.size() && matches < txns.size() * filters.size());
+        // The updates made along the way are the same too.
+        for (int i = 0; i < expected.size(); i++) {
+            for (Transaction tx : txns) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    byte[] outPoint = output.getOutPointFor().unsafeBitcoinSerialize();
+                    assertEquals(expected.get(i).contains(outPoint), matcher.contains(i, outPoint));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blocks() throws Exception {
+        Block block = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock(),
+                txns.toArray(new Transaction[txns.size()]));
+        List<BloomFilter> expected = copies();
+        BloomFilterMatcher matcher = new BloomFilterMatcher();
+        for (BloomFilter filter : filters)
+            matcher.add(filter);
+        Map<Integer, FilteredBlock> filteredBlocks = matcher.applyAndUpdate(block);
+        assertEquals(filters.size(), filteredBlocks.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).applyAndUpdate(block), filteredBlocks.get(i));
+    }
+
+    @Test
+    public void handles() {
+        BloomFilterMatcher matcher = new BloomFilterMatcher();
+        int a = matcher.add(filters.get(0));
+        int b = matcher.add(filters.get(1));
+        int c = matcher.add(filters.get(2));
+        matcher.remove(b);
+        assertEquals(2, matcher.size());
+        assertFalse(matcher.applyAndUpdate(txns.get(0)).get(b));
+        assertEquals(b, matcher.add(filters.get(3)));
+        matcher.remove(c);
+        matcher.remove(b);
+        assertEquals(1, matcher.size());
+        assertEquals(b, matcher.add(filters.get(3)));
+
+        // Elements inserted later, as with filteradd.
+        byte[] element = new byte[] { 4, 5, 6, 7, 8 };
+        assertFalse(matcher.contains(a, element));
+        matcher.insert(a, element);
+        assertTrue(matcher.contains(a, element));
+        BloomFilter copy = new BloomFilter(filters.get(0));
+        copy.insert(element);
+        matcher.set(a, copy);
+        assertTrue(matcher.contains(a, element));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setUnknownHandle() {
+        BloomFilterMatcher matcher = new BloomFilterMatcher();
+        matcher.add(filters.get(0));
+        matcher.set(1, filters.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void removeUnknownHandle() {
+        BloomFilterMatcher matcher = new BloomFilterMatcher();
+        matcher.remove(-1);
+    }
+}
@@ -22,6 +22,9 @@ import org.bitcoinj.wallet.KeyChainGroup;
 import org.bitcoinj.wallet.Wallet;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static org.bitcoinj.core.Utils.HEX;
@@ -66,6 +69,50 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(HEX.decode("03ce4299050000000100008002"), filter.unsafeBitcoinSerialize()));
     }
 
+    @Test
+    public void containsAllAndFilterAdd() throws Exception {
+        BloomFilter filter = new BloomFilter(100, 0.001, 5);
+        byte[] first = HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8");
+        byte[] second = HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee");
+        filter.insert(first);
+        BloomFilter copy = new BloomFilter(filter);
+        BloomFilter bigger = new BloomFilter(copy);
+        bigger.insert(second);
+        assertTrue(copy.equals(filter));
+        assertFalse(copy.contains(second));
+        assertTrue(bigger.containsAll(filter));
+        assertFalse(filter.containsAll(bigger));
+        assertFalse(bigger.containsAll(new BloomFilter(100, 0.001, 6)));
+
+        // A filteradd message brings the original up to date.
+        NetworkParameters params = MainNetParams.get();
+        FilterAddMessage message = new FilterAddMessage(params, second);
+        FilterAddMessage parsed = (FilterAddMessage) params.getDefaultSerializer()
+                .deserialize(ByteBuffer.wrap(serialize(params, message)));
+        assertEquals(message, parsed);
+        filter.insert(parsed.getData());
+        assertEquals(bigger, filter);
+    }
+
+    private static byte[] serialize(NetworkParameters params, Message message) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        params.getDefaultSerializer().serialize(message, bos);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void estimatedFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(100, 0.001, 0);
+        assertEquals(0, filter.getEstimatedFalsePositiveRate(), 0);
+        for (int i = 0; i < 100; i++)
+            filter.insert(Sha256Hash.of(new byte[] { (byte) i }).getBytes());
+        // Close to the rate the filter was sized for, a lot more elements make it much worse.
+        assertEquals(0.001, filter.getEstimatedFalsePositiveRate(), 0.001);
+        for (int i = 0; i < 400; i++)
+            filter.insert(Sha256Hash.of(new byte[] { (byte) i, 1 }).getBytes());
+        assertTrue(filter.getEstimatedFalsePositiveRate() > 0.1);
+    }
+
     @Test
     public void walletTest() throws Exception {
         NetworkParameters params = MainNetParams.get();
@@ -26,7 +26,9 @@ import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.utils.BriefLogFormatter;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -42,6 +44,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.net.URL;
 import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.List;
@@ -71,6 +74,76 @@ public class ECKeyTest {
         BriefLogFormatter.init();
     }
 
+    @Test
+    public void publicPointFromPrivate() throws Exception {
+        // Whether done natively or with the precomputed table, the result must match a plain multiplication.
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            BigInteger privKey = new BigInteger(256, random).mod(ECKey.CURVE.getN());
+            assertEquals(ECKey.CURVE.getG().multiply(privKey).normalize(),
+                    ECKey.publicPointFromPrivate(privKey).normalize());
+        }
+        assertEquals(ECKey.CURVE.getG().normalize(), ECKey.publicPointFromPrivate(BigInteger.ONE).normalize());
+    }
+
+    @Test
+    public void schnorrSignAndVerify() throws Exception {
+        ECKey key = new ECKey();
+        for (byte i = 0; i < 10; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { i });
+            ECKey.SchnorrSignature sig = key.signSchnorr(hash);
+            assertTrue(key.verifySchnorr(hash, sig));
+            // Nonces are deterministic, and the nonce point has a square Y coordinate.
+            assertEquals(sig, key.signSchnorr(hash));
+            assertTrue(ECKey.isQuadraticResidue(sig.getNoncePoint().getAffineYCoord().toBigInteger()));
+            assertEquals(sig, ECKey.SchnorrSignature.decode(sig.encode()));
+            assertEquals(64, sig.encode().length);
+
+            assertFalse(key.verifySchnorr(Sha256Hash.of(new byte[] { i, i }), sig));
+            assertFalse(new ECKey().verifySchnorr(hash, sig));
+            assertFalse(key.verifySchnorr(hash, new ECKey.SchnorrSignature(sig.r, sig.s.add(BigInteger.ONE))));
+            assertFalse(key.verifySchnorr(hash, new ECKey.SchnorrSignature(sig.r, ECKey.CURVE.getN().subtract(sig.s))));
+            assertFalse(key.verifySchnorr(hash, new ECKey.SchnorrSignature(sig.r.add(BigInteger.ONE), sig.s)));
+        }
+        // Works with uncompressed keys, too.
+        ECKey uncompressed = key.decompress();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 42 });
+        assertTrue(uncompressed.verifySchnorr(hash, key.signSchnorr(hash)));
+    }
+
+    @Test
+    public void schnorrTestVectors() throws Exception {
+        // The verification test vectors of the Schnorr signature scheme Bitcoin Cash adopted, see
+        // https://github.com/sipa/bips/blob/bip-schnorr/bip-schnorr/test-vectors.csv (before the switch to x-only
+        // public keys). Each line is: public key, message, signature, whether the signature is valid.
+        URL url = getClass().getResource("schnorr_test_vectors.csv");
+        List<String> lines = Resources.readLines(url, Charsets.UTF_8);
+        assertEquals(16, lines.size());
+        for (String line : lines) {
+            String[] components = line.split(",");
+            byte[] pubKey = HEX.decode(components[0].toLowerCase());
+            byte[] message = HEX.decode(components[1].toLowerCase());
+            ECKey.SchnorrSignature sig = ECKey.SchnorrSignature.decode(HEX.decode(components[2].toLowerCase()));
+            assertEquals(line, Boolean.parseBoolean(components[3]), ECKey.verifySchnorr(message, sig, pubKey));
+        }
+    }
+
+    @Test
+    public void schnorrSignEncrypted() throws Exception {
+        KeyCrypter keyCrypter = new KeyCrypterScrypt();
+        KeyParameter aesKey = keyCrypter.deriveKey("password");
+        ECKey key = new ECKey();
+        ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        assertEquals(key.signSchnorr(hash), encryptedKey.signSchnorr(hash, aesKey));
+        try {
+            encryptedKey.signSchnorr(hash);
+            fail();
+        } catch (ECKey.KeyIsEncryptedException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void sValue() throws Exception {
         // Check that we never generate an S value that is larger than half the curve order. This avoids a malleability
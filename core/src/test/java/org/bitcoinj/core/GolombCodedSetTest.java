@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class GolombCodedSetTest {
+    // The testnet genesis block and the output script of its coinbase, from the BIP 158 test vectors.
+    private static final Sha256Hash TESTNET_GENESIS =
+            Sha256Hash.wrap("000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943");
+    private static final byte[] GENESIS_SCRIPT = HEX.decode("4104678afdb0fe5548271967f1a67130b7105cd6a828e03909a6" +
+            "7962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac");
+
+    @Test
+    public void testVector() {
+        byte[] filter = GolombCodedSet.build(TESTNET_GENESIS, Collections.singletonList(GENESIS_SCRIPT));
+        assertEquals("019dfca8", HEX.encode(filter));
+        Sha256Hash filterHash = new CFilterMessage(TestNet3Params.get(), CFilterMessage.BASIC_FILTER_TYPE,
+                TESTNET_GENESIS, filter).getFilterHash();
+        assertEquals(Sha256Hash.wrap("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750"),
+                CFHeadersMessage.filterHeader(filterHash, Sha256Hash.ZERO_HASH));
+
+        GolombCodedSet set = new GolombCodedSet(TESTNET_GENESIS, filter);
+        assertEquals(1, set.size());
+        assertTrue(set.matches(GENESIS_SCRIPT));
+        assertFalse(set.matches(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void matchesAny() {
+        Random random = new Random(42);
+        List<byte[]> elements = randomElements(random, 2000);
+        Sha256Hash blockHash = Sha256Hash.of(new byte[] { 1 });
+        GolombCodedSet set = new GolombCodedSet(blockHash, GolombCodedSet.build(blockHash, elements));
+        assertEquals(2000, set.size());
+        for (byte[] element : elements)
+            assertTrue(set.matches(element));
+
+        List<byte[]> others = randomElements(random, 1000);
+        assertFalse(set.matchesAny(others));
+        others.add(elements.get(1234));
+        assertTrue(set.matchesAny(others));
+        assertFalse(set.matchesAny(Collections.<byte[]>emptyList()));
+
+        // The same elements hash differently for another block.
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 2 });
+        assertFalse(new GolombCodedSet(otherHash, GolombCodedSet.build(otherHash, others.subList(0, 1000)))
+                .matchesAny(elements.subList(0, 1000)));
+    }
+
+    @Test
+    public void empty() {
+        byte[] filter = GolombCodedSet.build(TESTNET_GENESIS, Collections.<byte[]>emptyList());
+        assertArrayEquals(new byte[] { 0 }, filter);
+        assertFalse(new GolombCodedSet(TESTNET_GENESIS, filter).matches(GENESIS_SCRIPT));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncated() {
+        byte[] filter = GolombCodedSet.build(TESTNET_GENESIS, randomElements(new Random(1), 100));
+        byte[] truncated = new byte[filter.length / 2];
+        System.arraycopy(filter, 0, truncated, 0, truncated.length);
+        // Enough queries that some hash beyond the end of the truncated data.
+        new GolombCodedSet(TESTNET_GENESIS, truncated).matchesAny(randomElements(new Random(2), 1000));
+    }
+
+    @Test
+    public void multiplyHigh() {
+        assertEquals(0, GolombCodedSet.multiplyHigh(Long.MAX_VALUE, 1));
+        assertEquals(1, GolombCodedSet.multiplyHigh(1L << 32, 1L << 32));
+        assertEquals(-2, GolombCodedSet.multiplyHigh(-1, -1)); // (2^64 - 1)^2 = 2^128 - 2^65 + 1
+        assertEquals(784930, GolombCodedSet.multiplyHigh(-1, 784931));
+    }
+
+    private static List<byte[]> randomElements(Random random, int count) {
+        List<byte[]> elements = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] element = new byte[25];
+            random.nextBytes(element);
+            elements.add(element);
+        }
+        return elements;
+    }
+}
@@ -23,6 +23,7 @@ import com.google.common.net.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.net.discovery.*;
+import org.bitcoinj.store.MemoryCompactFilterStore;
 import org.bitcoinj.testing.*;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
@@ -649,21 +650,27 @@ public class PeerGroupTest extends TestWithPeerGroup {
         InboundMessageQueuer p1 = connectPeer(1);
         InboundMessageQueuer p2 = connectPeer(2);
         peerGroup.waitForJobQueue();
-        BloomFilter f1 = p1.lastReceivedFilter;
+        BloomFilter f1 = new BloomFilter(PARAMS, p1.lastReceivedFilter.bitcoinSerialize());
+        long fullUpdates = peerGroup.getFullFilterUpdateCount();
+        long incrementalUpdates = peerGroup.getIncrementalFilterUpdateCount();
         ECKey key = null;
         // We have to run ahead of the lookahead zone for this test. There should only be one bloom filter recalc.
         for (int i = 0; i < wallet.getKeyChainGroupLookaheadSize() + wallet.getKeyChainGroupLookaheadThreshold() + 1; i++) {
             key = wallet.freshReceiveKey();
         }
         peerGroup.waitForJobQueue();
-        BloomFilter bf, f2 = null;
-        while ((bf = (BloomFilter) outbound(p1)) != null) {
-            assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
-            f2 = bf;
+        // The new keys fit into the filter, so they are sent with filteradd rather than a new filter and mempool query.
+        Message m;
+        int filterAdds = 0;
+        while ((m = outbound(p1)) != null) {
+            assertEquals(FilterAddMessage.class, m.getClass());
+            filterAdds++;
         }
         assertNotNull(key);
-        assertNotNull(f2);
-        assertNull(outbound(p1));
+        assertTrue(filterAdds > 0);
+        assertEquals(fullUpdates, peerGroup.getFullFilterUpdateCount());
+        assertEquals(incrementalUpdates + 1, peerGroup.getIncrementalFilterUpdateCount());
+        BloomFilter f2 = p1.lastReceivedFilter;
         // Check the last filter received.
         assertNotEquals(f1, f2);
         assertTrue(f2.contains(key.getPubKey()));
@@ -768,6 +775,79 @@ public class PeerGroupTest extends TestWithPeerGroup {
         }
     }
 
+    @Test
+    public void compactFilterSync() throws Exception {
+        CompactFilterClient client = peerGroup.enableCompactFilters(new MemoryCompactFilterStore());
+        peerGroup.addConnectedEventListener(connectedListener);
+        peerGroup.start();
+        VersionMessage plainVersion = new VersionMessage(PARAMS, 3);
+        plainVersion.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        plainVersion.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH;
+        VersionMessage filterVersion = new VersionMessage(PARAMS, 3);
+        filterVersion.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        filterVersion.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH
+                | VersionMessage.NODE_COMPACT_FILTERS;
+
+        // A peer that doesn't serve filters never becomes the download peer, not even while it's the only one.
+        InboundMessageQueuer p1 = connectCompactFilterModePeer(1, plainVersion);
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertNull(peerGroup.getDownloadPeer());
+        InboundMessageQueuer p2 = connectCompactFilterModePeer(2, filterVersion);
+        assertEquals(p2.peer, peerGroup.getDownloadPeer());
+        assertNextMessageIs(p2, GetHeadersMessage.class);
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1, FakeTxBuilder.createFakeTx(PARAMS, COIN, address));
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        List<CFilterMessage> filters = ImmutableList.of(FakeTxBuilder.makeBasicFilter(b1),
+                FakeTxBuilder.makeBasicFilter(b2), FakeTxBuilder.makeBasicFilter(b3));
+        HeadersMessage headers = new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(),
+                b3.cloneAsHeader());
+        inbound(p2, headers);
+        assertNextMessageIs(p2, GetCFHeadersMessage.class);
+        inbound(p2, FakeTxBuilder.makeFilterHeaders(Sha256Hash.ZERO_HASH, filters));
+        assertNextMessageIs(p2, GetCFiltersMessage.class);
+        for (CFilterMessage filter : filters)
+            inbound(p2, filter);
+        assertEquals(b2.getHash(), assertNextMessageIs(p2, GetDataMessage.class).getHashOf(0));
+        inbound(p2, b2);
+        assertNextMessageIs(p2, GetHeadersMessage.class);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // A rescan replays the chain with the stored filters, so only the matching block is downloaded again.
+        peerGroup.rescan();
+        assertEquals(0, wallet.getTransactions(true).size());
+        assertEquals(PARAMS.getGenesisBlock().getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNextMessageIs(p2, GetHeadersMessage.class);
+        inbound(p2, headers);
+        assertEquals(b2.getHash(), assertNextMessageIs(p2, GetDataMessage.class).getHashOf(0));
+        inbound(p2, b2);
+        assertNextMessageIs(p2, GetHeadersMessage.class);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(3, client.getFiltersDownloaded());
+        assertEquals(3, client.getFiltersFromStore());
+        assertEquals(2, client.getBlocksDownloaded());
+
+        // The peer that doesn't serve filters was never asked for anything.
+        pingAndWait(p1);
+        assertNull(p1.nextMessage());
+    }
+
+    // Connects a peer while compact filters are enabled, in which case no Bloom filter is sent.
+    private InboundMessageQueuer connectCompactFilterModePeer(int id, VersionMessage versionMessage)
+            throws Exception {
+        InboundMessageQueuer p = connectPeerWithoutVersionExchange(id);
+        p.sendMessage(versionMessage);
+        p.sendMessage(new VersionAck());
+        assertNextMessageIs(p, VersionMessage.class);
+        assertNextMessageIs(p, VersionAck.class);
+        assertEquals(p.peer, connectedPeers.take());
+        return p;
+    }
+
     private <T extends Message> T assertNextMessageIs(InboundMessageQueuer q, Class<T> klass) throws Exception {
         Message outbound = waitForOutbound(q);
         assertEquals(klass, outbound.getClass());
@@ -824,27 +904,28 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(Coin.FIFTY_COINS.multiply(3), wallet.getBalance());
         assertEquals(exhaustionPoint.getPrevBlockHash(), blockChain.getChainHead().getHeader().getHash());
 
-        // Await the new filter.
+        // Await the new keys, which are added to the filter the peer already has.
         peerGroup.waitForJobQueue();
-        BloomFilter newFilter = assertNextMessageIs(p1, BloomFilter.class);
+        Ping ping = skipFilterAdds(p1);
+        BloomFilter newFilter = p1.lastReceivedFilter;
         assertNotEquals(filter, newFilter);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
-        Ping ping = assertNextMessageIs(p1, Ping.class);
         inbound(p1, new Pong(ping.getNonce()));
 
         // Await restart of the chain download.
         GetDataMessage getdata = assertNextMessageIs(p1, GetDataMessage.class);
         assertEquals(exhaustionPoint.getHash(), getdata.getHashOf(0));
         assertEquals(InventoryItem.Type.FilteredBlock, getdata.getItems().get(0).type);
+        // All of the discarded blocks are asked for again, in order.
+        assertEquals(blocks.size() - 3, getdata.getItems().size());
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), getdata.getHashOf(blocks.size() - 4));
         List<Block> newBlocks = blocks.subList(3, blocks.size());
         filterAndSend(p1, newBlocks, newFilter);
         assertNextMessageIs(p1, Ping.class);
 
         // It happened again.
         peerGroup.waitForJobQueue();
-        newFilter = assertNextMessageIs(p1, BloomFilter.class);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
-        inbound(p1, new Pong(assertNextMessageIs(p1, Ping.class).getNonce()));
+        inbound(p1, new Pong(skipFilterAdds(p1).getNonce()));
+        newFilter = p1.lastReceivedFilter;
         assertNextMessageIs(p1, GetDataMessage.class);
         newBlocks = blocks.subList(6, blocks.size());
         filterAndSend(p1, newBlocks, newFilter);
@@ -856,6 +937,15 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    // Skips at least one filteradd message and returns the ping that follows them.
+    private Ping skipFilterAdds(InboundMessageQueuer q) throws Exception {
+        Message m = assertNextMessageIs(q, FilterAddMessage.class);
+        while (m instanceof FilterAddMessage)
+            m = waitForOutbound(q);
+        assertEquals(Ping.class, m.getClass());
+        return (Ping) m;
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
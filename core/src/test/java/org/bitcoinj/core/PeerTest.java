@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 import com.google.common.collect.*;
 import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.store.MemoryCompactFilterStore;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.testing.InboundMessageQueuer;
 import org.bitcoinj.testing.TestWithNetworkConnections;
@@ -208,6 +209,112 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void blockDownloadStats() throws Exception {
+        Utils.setMockClock();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        connect();
+        assertEquals(Long.MAX_VALUE, peer.getBlockResponseTime());
+        assertEquals(0, peer.getDownloadSpeed());
+
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage)outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(2, peer.getPendingBlockRequests());
+        assertEquals(0, peer.getBlockResponseWaitTime());
+
+        // The first block takes two seconds to arrive.
+        Utils.rollMockClock(2);
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertEquals(1, peer.getPendingBlockRequests());
+        assertEquals(2000, peer.getBlockResponseTime());
+        assertTrue(peer.getDownloadedBytes() > Block.HEADER_SIZE);
+        assertEquals(peer.getDownloadedBytes() / 10, peer.getDownloadSpeed());
+
+        // The second one doesn't come. We count from the previous answer, not from the request.
+        Utils.rollMockClock(3);
+        assertEquals(3000, peer.getBlockResponseWaitTime());
+        // Ten seconds later the speed window has moved past the first block.
+        Utils.rollMockClock(10);
+        assertEquals(0, peer.getDownloadSpeed());
+
+        // Losing download peer status forgets about the outstanding request.
+        peer.setDownloadData(false);
+        assertEquals(0, peer.getPendingBlockRequests());
+        assertEquals(0, peer.getBlockResponseWaitTime());
+        closePeer(peer);
+    }
+
+    @Test
+    public void blockDownloadPipeline() throws Exception {
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        Block b4 = makeSolvedTestBlock(b3);
+        Block b5 = makeSolvedTestBlock(b4);
+        peer.setMaxBlocksInFlight(2);
+        connect();
+
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inv.addBlock(b4);
+        inv.addBlock(b5);
+        inbound(writeTarget, inv);
+        // Only a window's worth is requested.
+        GetDataMessage getdata = (GetDataMessage)outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(b2.getHash(), getdata.getItems().get(0).hash);
+        assertEquals(b3.getHash(), getdata.getItems().get(1).hash);
+        // Each arrival that leaves the window half empty tops it up.
+        inbound(writeTarget, b2);
+        getdata = (GetDataMessage)outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b4.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, b3);
+        getdata = (GetDataMessage)outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b5.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, b4);
+        inbound(writeTarget, b5);
+        pingAndWait(writeTarget);
+        assertNull(outbound(writeTarget));
+        assertEquals(b5.getHash(), blockChain.getChainHead().getHeader().getHash());
+        closePeer(peer);
+    }
+
+    @Test
+    public void getBlocksSentAhead() throws Exception {
+        peer.setMaxBlocksInFlight(500);
+        connect();
+
+        // A full answer to getblocks.
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        Sha256Hash last = null;
+        for (int i = 0; i < 500; i++) {
+            last = Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+            inv.addItem(new InventoryItem(InventoryItem.Type.Block, last));
+        }
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage)outbound(writeTarget);
+        assertEquals(500, getdata.getItems().size());
+        // Everything announced was requested, so the next batch is asked for before any block arrived.
+        GetBlocksMessage getblocks = (GetBlocksMessage)outbound(writeTarget);
+        assertEquals(last, getblocks.getLocator().get(0));
+        assertEquals(blockStore.getChainHead().getHeader().getHash(), getblocks.getLocator().get(1));
+        assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
+        assertNull(outbound(writeTarget));
+        closePeer(peer);
+    }
+
     // Check that an inventory tickle is processed correctly when downloading missing blocks is active.
     @Test
     public void invTickle() throws Exception {
@@ -316,6 +423,74 @@ public class PeerTest extends TestWithNetworkConnections {
         assertNull(outbound(writeTarget2));
     }
 
+    @Test
+    public void invDownloadTxFromNextPeerAfterNotFound() throws Exception {
+        VersionMessage ver = new VersionMessage(PARAMS, 100);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 4242);
+        Peer peer2 = new Peer(PARAMS, ver, new PeerAddress(PARAMS, address), blockChain);
+        peer2.addWallet(wallet);
+        VersionMessage peerVersion = new VersionMessage(PARAMS, OTHER_PEER_CHAIN_HEIGHT);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH;
+
+        connect();
+        InboundMessageQueuer writeTarget2 = connect(peer2, peerVersion);
+
+        Transaction tx = createFakeTx(PARAMS, COIN, this.address);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, tx.getHash()));
+
+        // The first peer is asked, but doesn't have it after all.
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(tx.getHash(), getdata.getHashOf(0));
+        inbound(writeTarget, new NotFoundMessage(PARAMS, getdata.getItems()));
+        pingAndWait(writeTarget);
+
+        // So the next peer announcing it is asked straight away, without waiting for the timeout.
+        inbound(writeTarget2, inv);
+        getdata = (GetDataMessage) outbound(writeTarget2);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(tx.getHash(), getdata.getHashOf(0));
+        inbound(writeTarget2, tx);
+        // Its dependency is in the chain.
+        getdata = (GetDataMessage) outbound(writeTarget2);
+        inbound(writeTarget2, new NotFoundMessage(PARAMS, getdata.getItems()));
+        pingAndWait(writeTarget2);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void invNotFoundFromPeerNotAskedIsIgnored() throws Exception {
+        VersionMessage peerVersion = new VersionMessage(PARAMS, OTHER_PEER_CHAIN_HEIGHT);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH;
+        Peer peer2 = new Peer(PARAMS, new VersionMessage(PARAMS, 100),
+                new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.1", 4242)), blockChain);
+        Peer peer3 = new Peer(PARAMS, new VersionMessage(PARAMS, 100),
+                new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.1", 4343)), blockChain);
+
+        connect();
+        InboundMessageQueuer writeTarget2 = connect(peer2, peerVersion);
+        InboundMessageQueuer writeTarget3 = connect(peer3, peerVersion);
+
+        Transaction tx = createFakeTx(PARAMS, COIN, this.address);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, tx.getHash()));
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(tx.getHash(), getdata.getHashOf(0));
+
+        // A peer that was never asked claims not to have it, which doesn't cancel the request to the first peer.
+        inbound(writeTarget3, new NotFoundMessage(PARAMS, getdata.getItems()));
+        pingAndWait(writeTarget3);
+        inbound(writeTarget2, inv);
+        pingAndWait(writeTarget2);
+        assertNull(outbound(writeTarget2));
+        assertNull(outbound(writeTarget3));
+    }
+
     // Check that inventory message containing blocks we want is processed correctly.
     @Test
     public void newBlock() throws Exception {
@@ -917,6 +1092,129 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(future2.get(), response2);
     }
 
+    @Test
+    public void compactFilterSync() throws Exception {
+        connectWithVersion(70001, VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH
+                | VersionMessage.NODE_COMPACT_FILTERS);
+        CompactFilterClient client = new CompactFilterClient(blockChain, new MemoryCompactFilterStore());
+        client.addWallet(wallet);
+        peer.setCompactFilterClient(client);
+        Block b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock());
+        Block b2 = makeSolvedTestBlock(b1, createFakeTx(PARAMS, COIN, address));
+        Block b3 = makeSolvedTestBlock(b2);
+        List<CFilterMessage> filters = ImmutableList.of(makeBasicFilter(b1), makeBasicFilter(b2),
+                makeBasicFilter(b3));
+
+        // Headers are fetched as usual, but instead of the blocks we're asked for filter headers and filters.
+        peer.setDownloadParameters(0, false);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        GetCFHeadersMessage getcfheaders = (GetCFHeadersMessage) outbound(writeTarget);
+        assertEquals(1, getcfheaders.getStartHeight());
+        assertEquals(b3.getHash(), getcfheaders.getStopHash());
+        assertTrue(peer.getCompactFilterResponseWaitTime() >= 0);
+        inbound(writeTarget, makeFilterHeaders(Sha256Hash.ZERO_HASH, filters));
+        GetCFiltersMessage getcfilters = (GetCFiltersMessage) outbound(writeTarget);
+        assertEquals(1, getcfilters.getStartHeight());
+        assertEquals(b3.getHash(), getcfilters.getStopHash());
+        for (CFilterMessage filter : filters)
+            inbound(writeTarget, filter);
+
+        // Only the block paying to the wallet is downloaded.
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b2.getHash(), getdata.getHashOf(0));
+        inbound(writeTarget, b2);
+        // Once the batch is connected, the peer asks for the following headers.
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(3, client.getFiltersDownloaded());
+        assertEquals(1, client.getBlocksDownloaded());
+        assertEquals(0, peer.getCompactFilterResponseWaitTime());
+    }
+
+    @Test
+    public void compactFilterBatchStopsWhenNoLongerDownloadPeer() throws Exception {
+        connectWithVersion(70001, VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH
+                | VersionMessage.NODE_COMPACT_FILTERS);
+        CompactFilterClient client = new CompactFilterClient(blockChain, new MemoryCompactFilterStore());
+        client.addWallet(wallet);
+        peer.setCompactFilterClient(client);
+        Block b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock());
+        Block b2 = makeSolvedTestBlock(b1, createFakeTx(PARAMS, COIN, address));
+        Block b3 = makeSolvedTestBlock(b2);
+        List<CFilterMessage> filters = ImmutableList.of(makeBasicFilter(b1), makeBasicFilter(b2),
+                makeBasicFilter(b3));
+
+        peer.setDownloadParameters(0, false);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        assertTrue(outbound(writeTarget) instanceof GetCFHeadersMessage);
+        inbound(writeTarget, makeFilterHeaders(Sha256Hash.ZERO_HASH, filters));
+        assertTrue(outbound(writeTarget) instanceof GetCFiltersMessage);
+        for (CFilterMessage filter : filters)
+            inbound(writeTarget, filter);
+        assertTrue(outbound(writeTarget) instanceof GetDataMessage);
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // Another peer took over whilst the block was in flight. It arrives anyway, but nothing more is connected.
+        peer.setDownloadData(false);
+        inbound(writeTarget, b2);
+        assertNull(outbound(writeTarget));
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(Coin.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // The peer is still usable if it becomes the download peer again.
+        peer.setDownloadData(true);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+    }
+
+    @Test
+    public void compactFilterRequestsFailWhenNoLongerDownloadPeer() throws Exception {
+        connectWithVersion(70001, VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH
+                | VersionMessage.NODE_COMPACT_FILTERS);
+        peer.setCompactFilterClient(new CompactFilterClient(blockChain, new MemoryCompactFilterStore()));
+        Block b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock());
+        ListenableFuture<CFHeadersMessage> headersFuture = peer.getCFHeaders(1, b1.getHash());
+        assertTrue(outbound(writeTarget) instanceof GetCFHeadersMessage);
+        peer.setDownloadData(false);
+        try {
+            headersFuture.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PeerException);
+        }
+        assertEquals(0, peer.getCompactFilterResponseWaitTime());
+    }
+
+    @Test
+    public void compactFilterRequestsFailOnDisconnect() throws Exception {
+        connectWithVersion(70001, VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH
+                | VersionMessage.NODE_COMPACT_FILTERS);
+        Block b1 = makeSolvedTestBlock(PARAMS.getGenesisBlock());
+        ListenableFuture<CFHeadersMessage> headersFuture = peer.getCFHeaders(1, b1.getHash());
+        ListenableFuture<List<CFilterMessage>> filtersFuture = peer.getCFilters(1, b1.getHash());
+        assertTrue(outbound(writeTarget) instanceof GetCFHeadersMessage);
+        assertTrue(outbound(writeTarget) instanceof GetCFiltersMessage);
+        closePeer(peer);
+        try {
+            headersFuture.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PeerException);
+        }
+        try {
+            filtersFuture.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PeerException);
+        }
+    }
+
     @Test
     public void badMessage() throws Exception {
         // Bring up an actual network connection and feed it bogus data.
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RollingBloomFilterTest {
+    @Test
+    public void addAndContains() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.000001);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        assertFalse(filter.contains(hash));
+        assertTrue(filter.add(hash));
+        assertTrue(filter.contains(hash));
+        assertFalse(filter.add(hash));
+        filter.clear();
+        assertFalse(filter.contains(hash));
+    }
+
+    @Test
+    public void rollsOverOldestHashes() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.000001);
+        for (int i = 0; i < 100; i++)
+            assertTrue(filter.add(Sha256Hash.of(Utils.uint32ToByteArrayLE(i))));
+        // The most recent half is always remembered.
+        for (int i = 50; i < 100; i++)
+            assertTrue(filter.contains(Sha256Hash.of(Utils.uint32ToByteArrayLE(i))));
+        // Filling another generation pushes out the first one.
+        for (int i = 100; i < 150; i++)
+            filter.add(Sha256Hash.of(Utils.uint32ToByteArrayLE(i)));
+        int remembered = 0;
+        for (int i = 0; i < 50; i++) {
+            if (filter.contains(Sha256Hash.of(Utils.uint32ToByteArrayLE(i))))
+                remembered++;
+        }
+        assertEquals(0, remembered);
+    }
+}
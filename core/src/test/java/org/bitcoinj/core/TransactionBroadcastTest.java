@@ -104,6 +104,36 @@ public class TransactionBroadcastTest extends TestWithPeerGroup {
         assertNull(outbound(channels[1]));
     }
 
+    @Test
+    public void queuedBroadcasts() throws Exception {
+        InboundMessageQueuer[] channels = { connectPeer(1), connectPeer(2), connectPeer(3), connectPeer(4) };
+        Transaction tx1 = FakeTxBuilder.createFakeTx(PARAMS, CENT, address);
+        Transaction tx2 = FakeTxBuilder.createFakeTx(PARAMS, COIN, address);
+        TransactionBroadcast broadcast1 = peerGroup.queueTransactionBroadcast(tx1);
+        TransactionBroadcast broadcast2 = peerGroup.queueTransactionBroadcast(tx2);
+        // Both are announced with one inv to the same two peers, 0 and 3 being randomly selected.
+        InventoryMessage inv = (InventoryMessage) waitForOutbound(channels[0]);
+        assertEquals(2, inv.getItems().size());
+        assertEquals(tx1.getHash(), inv.getItems().get(0).hash);
+        assertEquals(tx2.getHash(), inv.getItems().get(1).hash);
+        assertEquals(inv, waitForOutbound(channels[3]));
+        assertNull(outbound(channels[1]));
+        assertNull(outbound(channels[2]));
+        // The peers fetch them from us.
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addTransaction(tx1.getHash());
+        getdata.addTransaction(tx2.getHash());
+        inbound(channels[0], getdata);
+        assertEquals(tx1, waitForOutbound(channels[0]));
+        assertEquals(tx2, waitForOutbound(channels[0]));
+        assertFalse(broadcast1.future().isDone());
+        assertFalse(broadcast2.future().isDone());
+        // One of the other peers announcing them back is enough for both.
+        inbound(channels[1], InventoryMessage.with(tx1, tx2));
+        assertEquals(tx1, broadcast1.future().get());
+        assertEquals(tx2, broadcast2.future().get());
+    }
+
     @Test
     public void lateProgressCallback() throws Exception {
         // Check that if we register a progress callback on a broadcast after the broadcast has started, it's invoked
@@ -22,6 +22,8 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +101,51 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void stripesShareSizeLimit() throws Exception {
+        TxConfidenceTable striped = new TxConfidenceTable(1000, 16);
+        List<TransactionConfidence> confidences = new ArrayList<TransactionConfidence>();
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 10000; i++) {
+            Sha256Hash hash = Sha256Hash.of(Utils.uint32ToByteArrayLE(i));
+            hashes.add(hash);
+            confidences.add(striped.seen(hash, address1));
+        }
+        int tracked = 0;
+        for (Sha256Hash hash : hashes) {
+            if (striped.get(hash) != null)
+                tracked++;
+        }
+        assertEquals(1000, tracked);
+        // The most recent ones are always still there.
+        assertNotNull(striped.get(hashes.get(hashes.size() - 1)));
+    }
+
+    @Test
+    public void concurrentSeen() throws Exception {
+        final TxConfidenceTable striped = new TxConfidenceTable(1000, 16);
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 500; i++)
+            hashes.add(Sha256Hash.of(Utils.uint32ToByteArrayLE(i)));
+        // Keep the confidences reachable, so they stay in the table.
+        final List<TransactionConfidence> confidences = new CopyOnWriteArrayList<TransactionConfidence>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final PeerAddress peer = new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) t }));
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (Sha256Hash hash : hashes)
+                        confidences.add(striped.seen(hash, peer));
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (Sha256Hash hash : hashes)
+            assertEquals(8, striped.numBroadcastPeers(hash));
+    }
 }
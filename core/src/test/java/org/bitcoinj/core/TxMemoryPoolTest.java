@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class TxMemoryPoolTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final PeerAddress PEER = new PeerAddress(new InetSocketAddress("127.0.0.1", 8333));
+    private Context context;
+    private TxMemoryPool pool;
+    private Address address;
+
+    @Before
+    public void setUp() {
+        context = new Context(PARAMS);
+        pool = new TxMemoryPool();
+        address = new ECKey().toAddress(PARAMS);
+    }
+
+    // A transaction spending the given outpoint, whose value is only known if given.
+    private Transaction spend(TransactionOutPoint outPoint, @Nullable Coin inputValue, Coin outputValue) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 }, outPoint, inputValue));
+        tx.addOutput(outputValue, address);
+        return tx;
+    }
+
+    private TransactionOutPoint randomOutPoint() {
+        return new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()));
+    }
+
+    @Test
+    public void feeKnownForChildrenOfPoolTransactions() {
+        Transaction parent = spend(randomOutPoint(), null, COIN);
+        Transaction child = spend(new TransactionOutPoint(PARAMS, 0, parent), null, COIN.subtract(MILLICOIN));
+        // The child arrives first, so its fee isn't known until the parent does.
+        assertTrue(pool.add(child));
+        assertNull(pool.getFee(child.getHash()));
+        assertTrue(pool.add(parent));
+        assertNull(pool.getFee(parent.getHash()));
+        assertEquals(MILLICOIN, pool.getFee(child.getHash()));
+        assertEquals(child, pool.getTransactions().get(0));
+        assertEquals(child, pool.getSpendingTransaction(new TransactionOutPoint(PARAMS, 0, parent.getHash())));
+        assertFalse(pool.add(parent));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void doubleSpendsDropped() {
+        TransactionOutPoint outPoint = randomOutPoint();
+        Transaction first = spend(outPoint, null, COIN);
+        Transaction second = spend(outPoint, null, CENT);
+        assertTrue(pool.add(first));
+        assertFalse(pool.add(second));
+        assertTrue(pool.contains(first.getHash()));
+        assertFalse(pool.contains(second.getHash()));
+    }
+
+    @Test
+    public void orphanAcceptedWithParent() {
+        Transaction parent = spend(randomOutPoint(), null, COIN);
+        Transaction child = spend(new TransactionOutPoint(PARAMS, 0, parent), null, CENT);
+        Transaction grandchild = spend(new TransactionOutPoint(PARAMS, 0, child), null, MILLICOIN);
+        // We asked a peer for the parent but it hasn't arrived yet.
+        assertTrue(context.getTxRequestTable().tryRequest(parent.getHash(), PEER));
+        assertFalse(pool.add(child));
+        assertFalse(pool.add(grandchild));
+        assertEquals(2, pool.getOrphanCount());
+        assertEquals(0, pool.size());
+        assertTrue(pool.add(parent));
+        assertEquals(0, pool.getOrphanCount());
+        assertEquals(3, pool.size());
+        assertEquals(CENT.subtract(MILLICOIN), pool.getFee(grandchild.getHash()));
+    }
+
+    @Test
+    public void orphanAcceptedWhenParentConfirms() throws Exception {
+        Transaction parent = spend(randomOutPoint(), null, COIN);
+        Transaction child = spend(new TransactionOutPoint(PARAMS, 0, parent), null, CENT);
+        assertTrue(context.getTxRequestTable().tryRequest(parent.getHash(), PEER));
+        assertFalse(pool.add(child));
+        pool.notifyTransactionIsInBlock(parent.getHash(), null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertTrue(pool.contains(child.getHash()));
+        assertEquals(0, pool.getOrphanCount());
+    }
+
+    @Test
+    public void blockRemovesConfirmedAndDoubleSpent() throws Exception {
+        TransactionOutPoint outPoint = randomOutPoint();
+        Transaction confirmed = spend(randomOutPoint(), null, COIN);
+        Transaction child = spend(new TransactionOutPoint(PARAMS, 0, confirmed), null, CENT);
+        Transaction doubleSpent = spend(outPoint, null, COIN);
+        Transaction doubleSpentChild = spend(new TransactionOutPoint(PARAMS, 0, doubleSpent), null, CENT);
+        assertTrue(pool.add(confirmed));
+        assertTrue(pool.add(child));
+        assertTrue(pool.add(doubleSpent));
+        assertTrue(pool.add(doubleSpentChild));
+        // Side chains are ignored.
+        pool.receiveFromBlock(confirmed, null, AbstractBlockChain.NewBlockType.SIDE_CHAIN, 0);
+        assertEquals(4, pool.size());
+
+        pool.receiveFromBlock(confirmed, null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        pool.receiveFromBlock(spend(outPoint, null, CENT), null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
+        assertEquals(1, pool.size());
+        assertTrue(pool.contains(child.getHash()));
+    }
+
+    @Test
+    public void confirmedTransactionIsNotAcceptedAgain() throws Exception {
+        Transaction confirmed = spend(randomOutPoint(), null, COIN);
+        Transaction unseen = spend(randomOutPoint(), null, COIN);
+        assertTrue(pool.add(confirmed));
+        pool.receiveFromBlock(confirmed, null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        pool.notifyTransactionIsInBlock(unseen.getHash(), null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
+        // Copies relayed after they confirmed stay out.
+        assertFalse(pool.add(confirmed));
+        assertFalse(pool.add(unseen));
+        assertFalse(pool.contains(confirmed.getHash()));
+        assertFalse(pool.contains(unseen.getHash()));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void evictsLowestFeeRateFirst() {
+        Transaction unknownFee = spend(randomOutPoint(), null, COIN);
+        Transaction lowFee = spend(randomOutPoint(), COIN, COIN.subtract(SATOSHI.multiply(1000)));
+        Transaction highFee = spend(randomOutPoint(), COIN, COIN.subtract(MILLICOIN));
+        TxMemoryPool pool = new TxMemoryPool(1, TxMemoryPool.DEFAULT_MAX_ORPHANS);
+        assertFalse(pool.add(unknownFee));
+        assertEquals(0, pool.getMemoryUsage());
+
+        pool = new TxMemoryPool(Long.MAX_VALUE, TxMemoryPool.DEFAULT_MAX_ORPHANS);
+        pool.add(unknownFee);
+        long usage = pool.getMemoryUsage();
+        assertTrue(usage > 0);
+        pool = new TxMemoryPool(usage * 2, TxMemoryPool.DEFAULT_MAX_ORPHANS);
+        assertTrue(pool.add(highFee));
+        assertTrue(pool.add(unknownFee));
+        assertTrue(pool.add(lowFee));
+        assertEquals(2, pool.size());
+        assertFalse(pool.contains(unknownFee.getHash()));
+        assertTrue(pool.getMemoryUsage() <= usage * 2);
+        // The high fee transaction fits in a block of its own size, the low fee one doesn't.
+        int size = highFee.unsafeBitcoinSerialize().length;
+        assertEquals(pool.getFee(lowFee.getHash()).multiply(1000).divide(size), pool.estimateFeePerKb(size));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class TxRequestTableTest {
+    private TxRequestTable table;
+    private Sha256Hash hash;
+    private PeerAddress peer1, peer2;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        table = new TxRequestTable();
+        hash = Sha256Hash.of(new byte[] { 1 });
+        peer1 = new PeerAddress(InetAddress.getByName("127.0.0.1"), 8333);
+        peer2 = new PeerAddress(InetAddress.getByName("127.0.0.2"), 8333);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void requestOnceUntilTimeout() {
+        assertFalse(table.contains(hash));
+        assertTrue(table.tryRequest(hash, peer1));
+        assertTrue(table.contains(hash));
+        assertFalse(table.tryRequest(hash, peer2));
+        Utils.rollMockClockMillis(TxRequestTable.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        assertTrue(table.tryRequest(hash, peer2));
+        assertFalse(table.tryRequest(hash, peer1));
+    }
+
+    @Test
+    public void notFoundAllowsAnotherRequest() {
+        assertTrue(table.tryRequest(hash, peer1));
+        table.markNotFound(hash, peer1);
+        assertTrue(table.contains(hash));
+        assertTrue(table.tryRequest(hash, peer2));
+    }
+
+    @Test
+    public void notFoundOnlyFromPeerAsked() throws Exception {
+        assertTrue(table.tryRequest(hash, peer1));
+        table.markNotFound(hash, peer2);
+        assertFalse(table.tryRequest(hash, peer2));
+        // Another object for the same address counts as the same peer.
+        table.markNotFound(hash, new PeerAddress(InetAddress.getByName("127.0.0.1"), 8333));
+        assertTrue(table.tryRequest(hash, peer2));
+    }
+
+    @Test
+    public void receivedIsNeverRequested() {
+        assertTrue(table.tryRequest(hash, peer1));
+        table.markReceived(hash);
+        table.markNotFound(hash, peer1);
+        Utils.rollMockClockMillis(TxRequestTable.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        assertFalse(table.tryRequest(hash, peer2));
+    }
+}
@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.List;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -185,6 +187,24 @@ public class ChildKeyDerivationTest {
         assertEquals(key3.getPubKeyPoint(), pubkey3.getPubKeyPoint());
     }
 
+    @Test
+    public void batchDerivation() throws Exception {
+        DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey key2 = key1.dropPrivateBytes().dropParent();
+        for (DeterministicKey parent : new DeterministicKey[] { key1, key2 }) {
+            // Large enough to be split across threads.
+            List<DeterministicKey> batch = HDKeyDerivation.deriveChildKeys(parent, 5, 200);
+            assertEquals(200, batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                DeterministicKey key = HDKeyDerivation.deriveChildKey(parent, 5 + i);
+                assertEquals(key.getChildNumber(), batch.get(i).getChildNumber());
+                assertArrayEquals(key.getPubKey(), batch.get(i).getPubKey());
+                assertEquals(parent.hasPrivKey(), batch.get(i).hasPrivKey());
+            }
+        }
+        assertTrue(HDKeyDerivation.deriveChildKeys(key1, 0, 0).isEmpty());
+    }
+
     @Test
     public void testSerializationMainAndTestNetworks() {
         DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class SchnorrBatchVerifierTest {
+    @Test
+    public void emptyBatch() {
+        assertTrue(new SchnorrBatchVerifier().verify());
+    }
+
+    @Test
+    public void validBatch() {
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        for (byte i = 0; i < 20; i++) {
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.of(new byte[] { i });
+            batch.add(hash.getBytes(), key.signSchnorr(hash), key.getPubKey());
+        }
+        assertEquals(20, batch.size());
+        assertTrue(batch.verify());
+        batch.clear();
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void invalidSignature() {
+        ECKey key = new ECKey();
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        for (byte i = 0; i < 5; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { i });
+            batch.add(hash.getBytes(), key.signSchnorr(hash), key.getPubKey());
+        }
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 5 });
+        ECKey.SchnorrSignature sig = key.signSchnorr(hash);
+        batch.add(hash.getBytes(), new ECKey.SchnorrSignature(sig.r, sig.s.add(BigInteger.ONE)), key.getPubKey());
+        assertFalse(batch.verify());
+    }
+
+    @Test
+    public void signaturesDontCancelOut() {
+        // Two signatures that are off by the same amount in opposite directions would pass an unweighted sum.
+        ECKey key = new ECKey();
+        Sha256Hash hash1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash hash2 = Sha256Hash.of(new byte[] { 2 });
+        ECKey.SchnorrSignature sig1 = key.signSchnorr(hash1);
+        ECKey.SchnorrSignature sig2 = key.signSchnorr(hash2);
+        BigInteger n = ECKey.CURVE.getN();
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        batch.add(hash1.getBytes(), new ECKey.SchnorrSignature(sig1.r, sig1.s.add(BigInteger.ONE).mod(n)), key.getPubKey());
+        batch.add(hash2.getBytes(), new ECKey.SchnorrSignature(sig2.r, sig2.s.subtract(BigInteger.ONE).mod(n)), key.getPubKey());
+        assertFalse(batch.verify());
+    }
+
+    @Test
+    public void wrongKey() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        batch.add(hash.getBytes(), key.signSchnorr(hash), new ECKey().getPubKey());
+        assertFalse(batch.verify());
+    }
+}
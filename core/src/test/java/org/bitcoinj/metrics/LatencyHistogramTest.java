@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++)
+            histogram.record(i);
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getMean());
+        assertEquals(10, histogram.getMax());
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(10, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++)
+            histogram.record(i * 1000L);
+        assertPrecise(50000000, histogram.getPercentile(50));
+        assertPrecise(99000000, histogram.getPercentile(99));
+        assertEquals(100000000, histogram.getPercentile(100));
+        assertEquals(histogram.getPercentile(99) / 1000000, histogram.getPercentile(99, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void negativeAndHugeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    private static void assertPrecise(long expected, long actual) {
+        assertTrue(actual + " not within 1/16 of " + expected, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.metrics;
+
+import org.bitcoinj.utils.Threading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricRegistryTest {
+    @Test
+    public void counters() {
+        MetricRegistry registry = new MetricRegistry();
+        Counter counter = registry.counter("test.count");
+        counter.inc();
+        counter.add(2);
+        assertSame(counter, registry.counter("test.count"));
+        assertEquals(3, registry.counter("test.count").getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongType() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("test.metric");
+        registry.histogram("test.metric");
+    }
+
+    @Test
+    public void exporters() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("test.a");
+        final List<String> events = new ArrayList<String>();
+        registry.addExporter(Threading.SAME_THREAD, new MetricsExporter() {
+            @Override
+            public void onMetricAdded(String name, Metric metric) {
+                events.add("+" + name);
+            }
+
+            @Override
+            public void onMetricRemoved(String name, Metric metric) {
+                events.add("-" + name);
+            }
+        });
+        Gauge gauge = new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        };
+        registry.register("test.b", gauge);
+        // Only the registered gauge can be removed.
+        assertFalse(registry.remove("test.b", new Counter()));
+        assertTrue(registry.remove("test.b", gauge));
+        assertEquals(3, events.size());
+        assertEquals("+test.a", events.get(0));
+        assertEquals("+test.b", events.get(1));
+        assertEquals("-test.b", events.get(2));
+        assertEquals(1, registry.getMetrics().size());
+    }
+}
@@ -49,7 +49,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +61,15 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(3, 2);
+            channels.startAsync();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufConnection<TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -22,10 +22,13 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.bitcoinj.core.*;
 import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.SchnorrBatchVerifier;
+import org.bitcoinj.crypto.TransactionSchnorrSignature;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.VersionTally;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -46,6 +49,7 @@ import static org.bitcoinj.core.Utils.HEX;
 import static org.bitcoinj.core.Utils.toByteArray;
 import static org.bitcoinj.script.Script.MAX_SCRIPT_ELEMENT_SIZE;
 import static org.bitcoinj.script.ScriptOpCodes.OP_0;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKSIG;
 import static org.bitcoinj.script.ScriptOpCodes.OP_INVALIDOPCODE;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.*;
@@ -410,6 +414,160 @@ public class ScriptTest {
         }
     }
 
+    private static Transaction spendingTransaction(Script scriptPubKey, Coin value) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] {}, new TransactionOutPoint(PARAMS, 0, Sha256Hash.ZERO_HASH), value));
+        tx.addOutput(value, new ECKey());
+        return tx;
+    }
+
+    @Test
+    public void schnorrCheckSig() {
+        ECKey key = new ECKey();
+        Coin value = Coin.COIN;
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        Transaction tx = spendingTransaction(scriptPubKey, value);
+        byte[] sig = tx.calculateSchnorrSignature(0, key, null, scriptPubKey.getProgram(), value, SigHash.ALL, false)
+                .encodeToBitcoin();
+        assertEquals(TransactionSchnorrSignature.ENCODED_LENGTH, sig.length);
+        Script scriptSig = new ScriptBuilder().data(sig).data(key.getPubKey()).build();
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR));
+        try {
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.noneOf(VerifyFlag.class));
+            fail("Schnorr signature accepted without the flag");
+        } catch (ScriptException e) {
+            // Expected.
+        }
+
+        // An invalid Schnorr signature fails the script, or the batch it's deferred to.
+        byte[] badSig = Arrays.copyOf(sig, sig.length);
+        badSig[10] ^= 1;
+        Script badScriptSig = new ScriptBuilder().data(badSig).data(key.getPubKey()).build();
+        try {
+            badScriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR));
+            fail("Invalid Schnorr signature accepted");
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR), batch);
+        assertEquals(1, batch.size());
+        assertTrue(batch.verify());
+        badScriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR), batch);
+        assertEquals(2, batch.size());
+        assertFalse(batch.verify());
+    }
+
+    @Test
+    public void schnorrMultiSig() {
+        List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey());
+        Coin value = Coin.COIN;
+        Script scriptPubKey = ScriptBuilder.createMultiSigOutputScript(2, keys);
+        List<ECKey> scriptKeys = scriptPubKey.getPubKeys();
+        Transaction tx = spendingTransaction(scriptPubKey, value);
+        byte[] sig0 = tx.calculateSchnorrSignature(0, keys.get(0), null, scriptPubKey.getProgram(), value, SigHash.ALL,
+                false).encodeToBitcoin();
+        byte[] sig2 = tx.calculateSchnorrSignature(0, keys.get(2), null, scriptPubKey.getProgram(), value, SigHash.ALL,
+                false).encodeToBitcoin();
+        assertArrayEquals(keys.get(0).getPubKey(), scriptKeys.get(0).getPubKey());
+        assertArrayEquals(keys.get(2).getPubKey(), scriptKeys.get(2).getPubKey());
+
+        // The dummy is a bitfield selecting the first and the last key.
+        Script scriptSig = new ScriptBuilder().data(new byte[] { 0x05 }).data(sig0).data(sig2).build();
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR_MULTISIG));
+        // Schnorr multisig came with a later upgrade than Schnorr CHECKSIG.
+        try {
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR));
+            fail("Schnorr multisig accepted without the flag");
+        } catch (ScriptException e) {
+            // Expected.
+        }
+
+        Script[] badScriptSigs = {
+                // Signatures matched against the wrong keys.
+                new ScriptBuilder().data(new byte[] { 0x03 }).data(sig0).data(sig2).build(),
+                // Wrong order.
+                new ScriptBuilder().data(new byte[] { 0x05 }).data(sig2).data(sig0).build(),
+                // Bits not matching the number of signatures.
+                new ScriptBuilder().data(new byte[] { 0x07 }).data(sig0).data(sig2).build(),
+                // Bits out of range.
+                new ScriptBuilder().data(new byte[] { 0x09 }).data(sig0).data(sig2).build(),
+                // Schnorr signatures with a null dummy.
+                new ScriptBuilder().smallNum(0).data(sig0).data(sig2).build(),
+        };
+        for (Script badScriptSig : badScriptSigs) {
+            try {
+                badScriptSig.correctlySpends(tx, 0, scriptPubKey, value,
+                        EnumSet.of(VerifyFlag.SCHNORR, VerifyFlag.SCHNORR_MULTISIG));
+                fail("Accepted " + badScriptSig);
+            } catch (ScriptException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void schnorrEncodingChecks() {
+        ECKey key = new ECKey();
+        Coin value = Coin.COIN;
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        Transaction tx = spendingTransaction(scriptPubKey, value);
+        TransactionSchnorrSignature sig = tx.calculateSchnorrSignature(0, key, null, scriptPubKey.getProgram(), value,
+                SigHash.ALL, false);
+        // Undefined hashtypes and signatures without SIGHASH_FORKID fail the script, whatever the other flags.
+        int[] badSigHashes = {
+                0x00 | SigHash.FORKID.value,
+                0x04 | SigHash.FORKID.value,
+                SigHash.ALL.value | SigHash.FORKID.value | 0x20,
+                SigHash.ALL.value,
+                SigHash.SINGLE.value | SigHash.ANYONECANPAY.value,
+        };
+        for (int sigHash : badSigHashes) {
+            byte[] badSig = new TransactionSchnorrSignature(sig.r, sig.s, sigHash).encodeToBitcoin();
+            Script badScriptSig = new ScriptBuilder().data(badSig).data(key.getPubKey()).build();
+            try {
+                badScriptSig.correctlySpends(tx, 0, scriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR));
+                fail("Accepted sighash " + sigHash);
+            } catch (ScriptException e) {
+                // Expected.
+            }
+        }
+
+        // A hybrid public key encodes the same point, but isn't a valid public key encoding.
+        byte[] hybridPubKey = key.decompress().getPubKey();
+        hybridPubKey[0] = (byte) (0x06 | (hybridPubKey[64] & 1));
+        Script hybridScriptPubKey = new ScriptBuilder().data(hybridPubKey).op(OP_CHECKSIG).build();
+        Transaction hybridTx = spendingTransaction(hybridScriptPubKey, value);
+        byte[] hybridSig = hybridTx.calculateSchnorrSignature(0, key, null, hybridScriptPubKey.getProgram(), value,
+                SigHash.ALL, false).encodeToBitcoin();
+        Script hybridScriptSig = new ScriptBuilder().data(hybridSig).build();
+        try {
+            hybridScriptSig.correctlySpends(hybridTx, 0, hybridScriptPubKey, value, EnumSet.of(VerifyFlag.SCHNORR));
+            fail("Accepted a hybrid public key");
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void schnorrActivation() {
+        Block block = PARAMS.getGenesisBlock();
+        Transaction tx = block.getTransactions().get(0);
+        VersionTally tally = new VersionTally(PARAMS);
+        // The upgrades activate on the median time past, not on the block time.
+        long schnorr = PARAMS.getSchnorrActivationTime();
+        long multisig = PARAMS.getSchnorrMultisigActivationTime();
+        Set<VerifyFlag> flags = PARAMS.getTransactionVerificationFlags(block, tx, tally, null, schnorr - 1);
+        assertFalse(flags.contains(VerifyFlag.SCHNORR));
+        assertFalse(flags.contains(VerifyFlag.SCHNORR_MULTISIG));
+        flags = PARAMS.getTransactionVerificationFlags(block, tx, tally, null, schnorr);
+        assertTrue(flags.contains(VerifyFlag.SCHNORR));
+        assertFalse(flags.contains(VerifyFlag.SCHNORR_MULTISIG));
+        flags = PARAMS.getTransactionVerificationFlags(block, tx, tally, null, multisig);
+        assertTrue(flags.contains(VerifyFlag.SCHNORR));
+        assertTrue(flags.contains(VerifyFlag.SCHNORR_MULTISIG));
+    }
+
     @Test
     public void testCLTVPaymentChannelOutput() {
         Script script = ScriptBuilder.createCLTVPaymentChannelOutput(BigInteger.valueOf(20), new ECKey(), new ECKey());
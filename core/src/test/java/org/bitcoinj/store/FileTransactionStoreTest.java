@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FileTransactionStoreTest {
+
+    @Test
+    public void basics() throws Exception {
+        File f = File.createTempFile("txstore", null);
+        f.deleteOnExit();
+        FileTransactionStore store = new FileTransactionStore(f);
+        Sha256Hash hash1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash hash2 = Sha256Hash.of(new byte[] { 2 });
+        store.put(hash1, new byte[] { 1, 2, 3 });
+        store.put(hash2, new byte[] { 4 });
+        assertArrayEquals(new byte[] { 1, 2, 3 }, store.get(hash1));
+        assertArrayEquals(new byte[] { 4 }, store.get(hash2));
+        store.put(hash1, new byte[] { 5, 6 });
+        assertArrayEquals(new byte[] { 5, 6 }, store.get(hash1));
+        store.remove(hash2);
+        assertNull(store.get(hash2));
+        store.close();
+        // Content does not survive reopening.
+        store = new FileTransactionStore(f);
+        assertNull(store.get(hash1));
+        assertEquals(0, f.length());
+        store.close();
+    }
+
+    @Test
+    public void compacts() throws Exception {
+        File f = File.createTempFile("txstore", null);
+        f.deleteOnExit();
+        FileTransactionStore store = new FileTransactionStore(f);
+        byte[] data = new byte[600 * 1024];
+        for (int i = 0; i < 3; i++) {
+            Arrays.fill(data, (byte) i);
+            store.put(Sha256Hash.of(new byte[] { (byte) i }), data);
+        }
+        store.remove(Sha256Hash.of(new byte[] { 0 }));
+        assertEquals(3 * (4 + data.length), f.length());
+        // Once the garbage outweighs the live records, the file shrinks.
+        store.remove(Sha256Hash.of(new byte[] { 1 }));
+        assertEquals(4 + data.length, f.length());
+        Arrays.fill(data, (byte) 2);
+        assertArrayEquals(data, store.get(Sha256Hash.of(new byte[] { 2 })));
+        store.close();
+    }
+}
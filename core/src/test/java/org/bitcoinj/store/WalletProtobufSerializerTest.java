@@ -301,6 +301,42 @@ public class WalletProtobufSerializerTest {
         assertEquals(1, rebornConfidence1.getDepthInBlocks());
     }
 
+    @Test
+    public void evictedTransactions() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, myWallet, new MemoryBlockStore(PARAMS));
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock(), t1);
+        assertTrue(chain.add(b1));
+        Transaction t2 = myWallet.createSend(new ECKey().toAddress(PARAMS), CENT);
+        myWallet.commitTx(t2);
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1, t2);
+        assertTrue(chain.add(b2));
+        myWallet.setSpentTransactionStore(new MemoryTransactionStore(), 2);
+        assertEquals(1, myWallet.getEvictedTransactionCount());
+        // The depth of t1 isn't kept up to date while it's evicted.
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        assertTrue(chain.add(b3));
+        assertTrue(chain.add(FakeTxBuilder.makeSolvedTestBlock(b3)));
+
+        Wallet wallet1 = roundTrip(myWallet);
+        assertEquals(1, myWallet.getEvictedTransactionCount());
+        assertEquals(2, wallet1.getTransactions(true).size());
+        assertEquals(myWallet.getBalance(), wallet1.getBalance());
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        assertTrue(wallet1.getTransactionPool(Pool.SPENT).containsKey(t1.getHash()));
+        assertEquals(1, t1copy.getConfidence().getAppearedAtChainHeight());
+        assertEquals(4, t1copy.getConfidence().getDepthInBlocks());
+        assertEquals(3, wallet1.getTransaction(t2.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(t2.getHash(), t1copy.getOutput(0).getSpentBy().getParentTransaction().getHash());
+
+        // The depth stays right on the next block and save, too.
+        wallet1.setSpentTransactionStore(new MemoryTransactionStore(), 2);
+        assertEquals(1, wallet1.getEvictedTransactionCount());
+        wallet1.notifyNewBestBlock(chain.getChainHead().build(FakeTxBuilder.makeSolvedTestBlock(chain.getChainHead().getHeader())));
+        Wallet wallet2 = roundTrip(wallet1);
+        assertEquals(5, wallet2.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+    }
+
     private static Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         new WalletProtobufSerializer().writeWallet(wallet, output);
@@ -310,6 +346,43 @@ public class WalletProtobufSerializerTest {
         return new WalletProtobufSerializer().readWallet(input);
     }
 
+    @Test
+    public void streamingRead() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        myWallet.receivePending(t1, null);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(CENT, myWallet.freshReceiveAddress());
+        myWallet.receivePending(t2, null);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Wallet wallet1 = serializer.readWalletStreaming(new ByteArrayInputStream(output.toByteArray()), false, null);
+        assertEquals(2, wallet1.getTransactions(true).size());
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        Transaction t2copy = wallet1.getTransaction(t2.getHash());
+        assertArrayEquals(t1.unsafeBitcoinSerialize(), t1copy.unsafeBitcoinSerialize());
+        assertSame(t2copy.getInput(0), t1copy.getOutput(0).getSpentBy());
+        assertArrayEquals(myKey.getPrivKeyBytes(), wallet1.findKeyFromPubHash(myKey.getPubKeyHash()).getPrivKeyBytes());
+        assertEquals(myWallet.currentReceiveAddress(), wallet1.currentReceiveAddress());
+        assertEquals(myWallet.getWatchedScripts(), wallet1.getWatchedScripts());
+        assertEquals(WALLET_DESCRIPTION, wallet1.getDescription());
+        assertEquals(new WalletProtobufSerializer().walletToProto(myWallet).getKeyList(),
+                new WalletProtobufSerializer().walletToProto(wallet1).getKeyList());
+        assertEquals(2, serializer.getLastLoadTimings().transactions);
+
+        // Encrypted wallets have to wait for the encryption parameters before rebuilding the key chains.
+        myWallet.encrypt("password");
+        output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        Wallet wallet2 = serializer.readWalletStreaming(new ByteArrayInputStream(output.toByteArray()), false, null);
+        assertTrue(wallet2.isEncrypted());
+        assertTrue(wallet2.checkPassword("password"));
+        assertEquals(2, wallet2.getTransactions(true).size());
+    }
+
     @Test
     public void testRoundTripNormalWallet() throws Exception {
         Wallet wallet1 = roundTrip(myWallet);
@@ -26,7 +26,11 @@ import org.bitcoinj.store.BlockStoreException;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import static org.bitcoinj.core.Coin.*;
 import static com.google.common.base.Preconditions.checkState;
@@ -290,6 +294,29 @@ public class FakeTxBuilder {
         return createFakeBlock(blockStore, Block.BLOCK_VERSION_GENESIS, Utils.currentTimeSeconds(), 0, transactions);
     }
 
+    /** Creates the basic compact filter a peer would serve for the block, covering its output scripts. */
+    public static CFilterMessage makeBasicFilter(Block block) {
+        Set<ByteBuffer> scripts = new LinkedHashSet<ByteBuffer>();
+        for (Transaction tx : block.getTransactions())
+            for (TransactionOutput output : tx.getOutputs())
+                scripts.add(ByteBuffer.wrap(output.getScriptBytes()));
+        List<byte[]> elements = new ArrayList<byte[]>(scripts.size());
+        for (ByteBuffer script : scripts)
+            elements.add(script.array());
+        return new CFilterMessage(block.getParams(), CFilterMessage.BASIC_FILTER_TYPE, block.getHash(),
+                GolombCodedSet.build(block.getHash(), elements));
+    }
+
+    /** Creates the answer to a getcfheaders request for the given filters, chained on to the given filter header. */
+    public static CFHeadersMessage makeFilterHeaders(Sha256Hash previousFilterHeader, List<CFilterMessage> filters) {
+        List<Sha256Hash> filterHashes = new ArrayList<Sha256Hash>(filters.size());
+        for (CFilterMessage filter : filters)
+            filterHashes.add(filter.getFilterHash());
+        CFilterMessage last = filters.get(filters.size() - 1);
+        return new CFHeadersMessage(last.getParams(), CFilterMessage.BASIC_FILTER_TYPE, last.getBlockHash(),
+                previousFilterHeader, filterHashes);
+    }
+
     public static Block makeSolvedTestBlock(BlockStore blockStore, Address coinsTo) throws BlockStoreException {
         Block b = blockStore.getChainHead().getHeader().createNextBlock(coinsTo);
         b.solve();
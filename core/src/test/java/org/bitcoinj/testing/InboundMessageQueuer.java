@@ -57,6 +57,10 @@ public abstract class InboundMessageQueuer extends PeerSocketHandler {
         if (m instanceof BloomFilter) {
             lastReceivedFilter = (BloomFilter) m;
         }
+        if (m instanceof FilterAddMessage && lastReceivedFilter != null) {
+            // Like the remote node, keep the filter up to date.
+            lastReceivedFilter.insert(((FilterAddMessage) m).getData());
+        }
         inboundMessages.offer(m);
     }
 }
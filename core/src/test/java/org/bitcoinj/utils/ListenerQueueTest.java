@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ListenerQueueTest {
+    private Queue<Runnable> targetTasks;
+    private Executor target;
+    private boolean rejecting;
+    private List<String> events;
+
+    @Before
+    public void setUp() {
+        targetTasks = new LinkedList<Runnable>();
+        target = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting)
+                    throw new RejectedExecutionException();
+                targetTasks.add(command);
+            }
+        };
+        events = new ArrayList<String>();
+    }
+
+    private Runnable event(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(name);
+            }
+        };
+    }
+
+    private Runnable coalescingEvent(final Object key, final String name) {
+        return new CoalescingRunnable(key) {
+            @Override
+            public void run() {
+                events.add(name);
+            }
+        };
+    }
+
+    private void runTarget() {
+        Runnable task;
+        while ((task = targetTasks.poll()) != null)
+            task.run();
+    }
+
+    @Test
+    public void runsInOrderOneAtATime() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 100, ListenerQueue.Overflow.WARN);
+        queue.execute(event("a"));
+        queue.execute(event("b"));
+        queue.execute(event("c"));
+        assertEquals(1, targetTasks.size());
+        assertEquals(3, queue.getPendingCount());
+        assertFalse(queue.isIdle());
+        runTarget();
+        assertEquals(Arrays.asList("a", "b", "c"), events);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void coalesces() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 100, ListenerQueue.Overflow.WARN);
+        queue.execute(coalescingEvent("tx1", "tx1-seen"));
+        queue.execute(event("other"));
+        queue.execute(coalescingEvent("tx1", "tx1-depth"));
+        queue.execute(coalescingEvent("tx2", "tx2-seen"));
+        assertEquals(3, queue.getPendingCount());
+        runTarget();
+        // The replacement is queued behind the events that came before it.
+        assertEquals(Arrays.asList("other", "tx1-depth", "tx2-seen"), events);
+    }
+
+    @Test
+    public void targetRejectsEvent() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 100, ListenerQueue.Overflow.WARN);
+        rejecting = true;
+        try {
+            queue.execute(event("a"));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        assertTrue(queue.isIdle());
+        rejecting = false;
+        queue.execute(event("b"));
+        runTarget();
+        assertEquals(Arrays.asList("b"), events);
+    }
+
+    @Test
+    public void targetRejectsDrainer() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 100, ListenerQueue.Overflow.WARN);
+        queue.execute(event("a"));
+        queue.execute(event("b"));
+        rejecting = true;
+        try {
+            targetTasks.poll().run();
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        assertEquals(Arrays.asList("a"), events);
+        assertEquals(1, queue.getPendingCount());
+        // The next event starts a new drainer, which picks up the one left behind.
+        rejecting = false;
+        queue.execute(event("c"));
+        assertEquals(1, targetTasks.size());
+        runTarget();
+        assertEquals(Arrays.asList("a", "b", "c"), events);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void dropOldest() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 2, ListenerQueue.Overflow.DROP_OLDEST);
+        queue.execute(event("a"));
+        queue.execute(event("b"));
+        queue.execute(event("c"));
+        runTarget();
+        assertEquals(Arrays.asList("b", "c"), events);
+    }
+
+    @Test
+    public void dropNewest() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 2, ListenerQueue.Overflow.DROP_NEWEST);
+        queue.execute(event("a"));
+        queue.execute(event("b"));
+        queue.execute(event("c"));
+        // A full queue still takes a task it can coalesce.
+        queue.execute(coalescingEvent("x", "x1"));
+        runTarget();
+        assertEquals(Arrays.asList("a", "b"), events);
+    }
+
+    @Test
+    public void warnKeepsEverything() {
+        ListenerQueue queue = new ListenerQueue(target, 1, 2, ListenerQueue.Overflow.WARN);
+        queue.execute(event("a"));
+        queue.execute(event("b"));
+        queue.execute(event("c"));
+        runTarget();
+        assertEquals(Arrays.asList("a", "b", "c"), events);
+    }
+
+    @Test
+    public void blockNeverWaitsOnUserThread() throws Exception {
+        // Code running directly on the user thread overflows a queue that only the user thread can drain.
+        Threading.UserThread userThread = new Threading.UserThread();
+        final ListenerQueue queue = new ListenerQueue(userThread, 1, 1, ListenerQueue.Overflow.BLOCK);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch queued = new CountDownLatch(1);
+        userThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (final String name : Arrays.asList("a", "b", "c")) {
+                    queue.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            received.add(name);
+                        }
+                    });
+                }
+                queued.countDown();
+            }
+        });
+        assertTrue(queued.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!queue.isIdle() && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(Arrays.asList("a", "b", "c"), received);
+    }
+
+    @Test
+    public void parallel() {
+        ListenerQueue queue = new ListenerQueue(target, 2, 100, ListenerQueue.Overflow.WARN);
+        queue.execute(event("a"));
+        queue.execute(event("b"));
+        queue.execute(event("c"));
+        assertEquals(2, targetTasks.size());
+        runTarget();
+        assertEquals(3, events.size());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void listenerExecutor() {
+        Object listener = new Object();
+        Object threadSafeListener = new ThreadSafeListener() {};
+        assertSame(Threading.USER_THREAD, Threading.listenerExecutor(listener, Threading.USER_THREAD));
+        Threading.useListenerQueues(100, ListenerQueue.Overflow.BLOCK);
+        try {
+            Executor executor = Threading.listenerExecutor(listener, Threading.USER_THREAD);
+            assertTrue(executor instanceof ListenerQueue);
+            assertSame(Threading.USER_THREAD, ((ListenerQueue) executor).getTarget());
+            assertSame(executor, Threading.listenerExecutor(listener, Threading.USER_THREAD));
+            assertSame(Threading.SAME_THREAD, Threading.listenerExecutor(listener, Threading.SAME_THREAD));
+            Executor parallel = Threading.listenerExecutor(threadSafeListener, Threading.USER_THREAD);
+            assertSame(Threading.THREAD_POOL, ((ListenerQueue) parallel).getTarget());
+
+            executor.execute(event("a"));
+            executor.execute(event("b"));
+            Threading.waitForUserCode();
+            assertEquals(Arrays.asList("a", "b"), events);
+        } finally {
+            Threading.disableListenerQueues();
+        }
+    }
+}
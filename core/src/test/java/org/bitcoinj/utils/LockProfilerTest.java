@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.metrics.Counter;
+import org.bitcoinj.metrics.LatencyHistogram;
+import org.bitcoinj.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class LockProfilerTest {
+    @Before
+    public void setUp() {
+        Threading.profileLocks();
+        Threading.getLockProfiler().setEnabled(true);
+        Threading.getLockProfiler().resetContendedSites();
+    }
+
+    @After
+    public void tearDown() {
+        Threading.throwOnLockCycles();
+    }
+
+    @Test
+    public void modes() {
+        assertTrue(Threading.isProfilingLocks());
+        assertTrue(Threading.lock("test-modes") instanceof ProfilingReentrantLock);
+        Threading.ignoreLockCycles();
+        assertFalse(Threading.isProfilingLocks());
+        assertEquals(ReentrantLock.class, Threading.lock("test-modes").getClass());
+    }
+
+    @Test
+    public void recordsHoldTimeOfOutermostAcquisition() {
+        ReentrantLock lock = Threading.lock("test-hold");
+        lock.lock();
+        lock.lock();
+        lock.unlock();
+        lock.unlock();
+        assertTrue(lock.tryLock());
+        lock.unlock();
+        LatencyHistogram wait = (LatencyHistogram) MetricRegistry.getDefault().get("lock.test-hold.wait");
+        LatencyHistogram hold = (LatencyHistogram) MetricRegistry.getDefault().get("lock.test-hold.hold");
+        assertEquals(2, wait.getCount());
+        assertEquals(2, hold.getCount());
+    }
+
+    @Test
+    public void recordsHoldTimeAcrossConditionWait() throws Exception {
+        final ReentrantLock lock = Threading.lock("test-condition");
+        final Condition condition = lock.newCondition();
+        final boolean[] signalled = new boolean[1];
+        lock.lock();
+        Thread signaller = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    signalled[0] = true;
+                    condition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        signaller.start();
+        while (!signalled[0])
+            condition.await();
+        lock.unlock();
+        signaller.join();
+        // Both threads' holds are recorded, even though the signaller acquired the lock during the wait.
+        LatencyHistogram hold = (LatencyHistogram) MetricRegistry.getDefault().get("lock.test-condition.hold");
+        assertEquals(2, hold.getCount());
+    }
+
+    @Test
+    public void recordsNothingWhenDisabled() {
+        ReentrantLock lock = Threading.lock("test-disabled");
+        Threading.getLockProfiler().setEnabled(false);
+        lock.lock();
+        Threading.getLockProfiler().setEnabled(true);
+        lock.unlock();
+        lock.lock();
+        lock.unlock();
+        LatencyHistogram hold = (LatencyHistogram) MetricRegistry.getDefault().get("lock.test-disabled.hold");
+        assertEquals(1, hold.getCount());
+    }
+
+    @Test
+    public void recordsContendedSites() throws Exception {
+        final ReentrantLock lock = Threading.lock("test-contended");
+        final CountDownLatch done = new CountDownLatch(1);
+        lock.lock();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                lock.unlock();
+                done.countDown();
+            }
+        };
+        waiter.start();
+        while (!lock.hasQueuedThreads())
+            Thread.sleep(1);
+        Thread.sleep(10);
+        lock.unlock();
+        done.await();
+
+        Counter contended = (Counter) MetricRegistry.getDefault().get("lock.test-contended.contended");
+        assertEquals(1, contended.getCount());
+        LatencyHistogram wait = (LatencyHistogram) MetricRegistry.getDefault().get("lock.test-contended.wait");
+        assertTrue(wait.getMax() > 0);
+        List<LockProfiler.ContendedSite> sites = Threading.getLockProfiler().getTopContendedSites(10);
+        assertEquals(1, sites.size());
+        LockProfiler.ContendedSite site = sites.get(0);
+        assertEquals("test-contended", site.getLockName());
+        assertTrue(site.getSite().getClassName().startsWith(LockProfilerTest.class.getName()));
+        assertEquals(1, site.getCount());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.KeyCrypter;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DecryptedKeyCacheTest {
+    private KeyCrypter keyCrypter;
+    private KeyParameter aesKey;
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+        keyCrypter = new KeyCrypterScrypt(2);
+        aesKey = keyCrypter.deriveKey("password");
+    }
+
+    @Test
+    public void decryptsKeysOnce() {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        List<ECKey> encryptedKeys = new ArrayList<ECKey>();
+        // More keys than the initial capacity, so that the buffer grows.
+        for (int i = 0; i < 40; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            encryptedKeys.add(key.encrypt(keyCrypter, aesKey));
+        }
+        for (boolean offHeap : new boolean[] { false, true }) {
+            DecryptedKeyCache cache = new DecryptedKeyCache(aesKey, 1, TimeUnit.HOURS, offHeap);
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < keys.size(); i++) {
+                    ECKey decrypted = cache.decrypt(encryptedKeys.get(i));
+                    assertEquals(keys.get(i).getPrivKey(), decrypted.getPrivKey());
+                    assertArrayEquals(keys.get(i).getPubKey(), decrypted.getPubKey());
+                }
+            }
+            assertEquals(keys.size(), cache.size());
+            cache.close();
+            assertFalse(cache.isOpen());
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void deterministicKeys() {
+        DeterministicKeyChain chain = new DeterministicKeyChain(new SecureRandom());
+        DeterministicKeyChain encryptedChain = chain.toEncrypted(keyCrypter, aesKey);
+        DeterministicKey key = chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        DeterministicKey encryptedKey = encryptedChain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        DecryptedKeyCache cache = new DecryptedKeyCache(aesKey, 1, TimeUnit.HOURS, false);
+        for (int i = 0; i < 2; i++) {
+            ECKey decrypted = cache.decrypt(encryptedKey);
+            assertTrue(decrypted instanceof DeterministicKey);
+            assertEquals(key.getPath(), ((DeterministicKey) decrypted).getPath());
+            assertEquals(key.getPrivKey(), decrypted.getPrivKey());
+        }
+    }
+
+    @Test
+    public void expires() {
+        ECKey encryptedKey = new ECKey().encrypt(keyCrypter, aesKey);
+        DecryptedKeyCache cache = new DecryptedKeyCache(aesKey, 10, TimeUnit.MINUTES, false);
+        cache.decrypt(encryptedKey);
+        Utils.rollMockClock(9 * 60);
+        assertTrue(cache.isOpen());
+        Utils.rollMockClock(60);
+        assertFalse(cache.isOpen());
+        try {
+            cache.decrypt(encryptedKey);
+            fail();
+        } catch (ECKey.KeyIsEncryptedException e) {
+            // Expected.
+        }
+    }
+}
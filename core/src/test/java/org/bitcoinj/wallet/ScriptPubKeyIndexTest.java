@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScriptPubKeyIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Test
+    public void keyScripts() {
+        ScriptPubKeyIndex index = new ScriptPubKeyIndex();
+        ECKey key = new ECKey();
+        index.addKey(key);
+        assertEquals(2, index.size());
+        assertTrue(index.contains(ScriptBuilder.createOutputScript(key.toAddress(PARAMS)).getProgram()));
+        assertTrue(index.contains(ScriptBuilder.createOutputScript(key).getProgram()));
+        assertFalse(index.contains(ScriptBuilder.createOutputScript(new ECKey()).getProgram()));
+    }
+
+    @Test
+    public void scriptHash() {
+        ScriptPubKeyIndex index = new ScriptPubKeyIndex();
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(new ECKey(), new ECKey()));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        index.addScriptHash(p2sh.getPubKeyHash());
+        assertTrue(index.contains(p2sh.getProgram()));
+    }
+
+    @Test
+    public void growsAndIgnoresDuplicates() {
+        ScriptPubKeyIndex index = new ScriptPubKeyIndex();
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 500; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            index.addKey(key);
+            index.addKey(key);
+        }
+        assertEquals(1000, index.size());
+        for (ECKey key : keys)
+            assertTrue(index.contains(ScriptBuilder.createOutputScript(key.toAddress(PARAMS)).getProgram()));
+        index.clear();
+        assertEquals(0, index.size());
+        assertFalse(index.contains(ScriptBuilder.createOutputScript(keys.get(0)).getProgram()));
+    }
+
+    @Test
+    public void standardTemplates() {
+        ECKey key = new ECKey();
+        assertTrue(ScriptPubKeyIndex.isStandardTemplate(ScriptBuilder.createOutputScript(key.toAddress(PARAMS)).getProgram()));
+        assertTrue(ScriptPubKeyIndex.isStandardTemplate(ScriptBuilder.createOutputScript(key).getProgram()));
+        assertTrue(ScriptPubKeyIndex.isStandardTemplate(ScriptBuilder.createOutputScript(key.decompress()).getProgram()));
+        Script multisig = ScriptBuilder.createMultiSigOutputScript(1, ImmutableList.of(key, new ECKey()));
+        assertTrue(ScriptPubKeyIndex.isStandardTemplate(ScriptBuilder.createP2SHOutputScript(multisig).getProgram()));
+        assertFalse(ScriptPubKeyIndex.isStandardTemplate(multisig.getProgram()));
+        assertFalse(ScriptPubKeyIndex.isStandardTemplate(ScriptBuilder.createOpReturnScript(new byte[20]).getProgram()));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletDispatcherTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private WalletDispatcher dispatcher;
+    private Wallet a, b;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        dispatcher = new WalletDispatcher();
+        a = new Wallet(PARAMS);
+        b = new Wallet(PARAMS);
+        dispatcher.addWallet(a);
+        dispatcher.addWallet(b);
+    }
+
+    @Test
+    public void routesToOwningWalletOnly() {
+        Transaction tx = createFakeTx(PARAMS, Coin.COIN, a.currentReceiveAddress());
+        assertEquals(ImmutableList.of(a), dispatcher.getCandidateWallets(tx));
+        tx = createFakeTx(PARAMS, Coin.COIN, b.freshReceiveAddress());
+        assertEquals(ImmutableList.of(b), dispatcher.getCandidateWallets(tx));
+        tx = createFakeTx(PARAMS, Coin.COIN, new ECKey().toAddress(PARAMS));
+        assertTrue(dispatcher.getCandidateWallets(tx).isEmpty());
+    }
+
+    @Test
+    public void routesKeysAddedLater() {
+        ECKey key = new ECKey();
+        b.importKey(key);
+        Transaction tx = createFakeTx(PARAMS, Coin.COIN, key);
+        assertEquals(ImmutableList.of(b), dispatcher.getCandidateWallets(tx));
+        Address watched = new ECKey().toAddress(PARAMS);
+        a.addWatchedAddress(watched);
+        tx = createFakeTx(PARAMS, Coin.COIN, watched);
+        assertEquals(ImmutableList.of(a), dispatcher.getCandidateWallets(tx));
+    }
+
+    @Test
+    public void routesSpends() throws Exception {
+        Transaction funding = createFakeTx(PARAMS, Coin.COIN, a.currentReceiveAddress());
+        a.receivePending(funding, null);
+        assertSame(funding, dispatcher.getTransaction(funding.getHash()));
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(funding.getOutput(0));
+        spend.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+        assertEquals(ImmutableList.of(a), dispatcher.getCandidateWallets(spend));
+        assertTrue(a.isPendingTransactionRelevant(spend));
+    }
+
+    @Test
+    public void removedWalletIsNotRouted() {
+        Address address = a.currentReceiveAddress();
+        assertTrue(dispatcher.removeWallet(a));
+        assertFalse(dispatcher.removeWallet(a));
+        assertTrue(dispatcher.getCandidateWallets(createFakeTx(PARAMS, Coin.COIN, address)).isEmpty());
+        assertEquals(ImmutableList.of(b), dispatcher.getWallets());
+    }
+
+    @Test
+    public void removedWalletCanBeAddedAgain() {
+        Address address = a.currentReceiveAddress();
+        Transaction tx = createFakeTx(PARAMS, Coin.COIN, address);
+        assertTrue(dispatcher.removeWallet(a));
+        // A new wallet takes over the removed wallet's id, but not its index entries.
+        Wallet c = new Wallet(PARAMS);
+        dispatcher.addWallet(c);
+        assertTrue(dispatcher.getCandidateWallets(tx).isEmpty());
+        dispatcher.addWallet(a);
+        assertEquals(ImmutableList.of(a), dispatcher.getCandidateWallets(tx));
+        assertEquals(ImmutableList.of(b, c, a), dispatcher.getWallets());
+    }
+
+    @Test
+    public void restoreWallets() {
+        long now = Utils.currentTimeSeconds();
+        List<DeterministicSeed> seeds = new ArrayList<DeterministicSeed>();
+        List<Wallet> expected = new ArrayList<Wallet>();
+        for (int i = 0; i < 5; i++) {
+            DeterministicSeed seed = new DeterministicSeed(new SecureRandom(), 128, "", now - i * 86400);
+            seeds.add(seed);
+            expected.add(Wallet.fromSeed(PARAMS, seed));
+        }
+        List<Wallet> restored = dispatcher.restoreWallets(PARAMS, seeds);
+        assertEquals(seeds.size(), restored.size());
+        assertEquals(now - 4 * 86400, dispatcher.getEarliestKeyCreationTime());
+        for (int i = 0; i < restored.size(); i++) {
+            Wallet wallet = restored.get(i);
+            assertEquals(expected.get(i).currentReceiveAddress(), wallet.currentReceiveAddress());
+            assertTrue(dispatcher.getWallets().contains(wallet));
+            // A key from deep in the lookahead zone is routed without having been issued.
+            Address lookahead = expected.get(i).freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, 10).get(9).toAddress(PARAMS);
+            Transaction tx = createFakeTx(PARAMS, Coin.COIN, lookahead);
+            assertEquals(ImmutableList.of(wallet), dispatcher.getCandidateWallets(tx));
+        }
+    }
+}
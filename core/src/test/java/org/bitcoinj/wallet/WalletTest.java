@@ -43,6 +43,7 @@ import org.bitcoinj.signers.StatelessTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.MemoryTransactionStore;
 import org.bitcoinj.testing.*;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
@@ -1490,6 +1491,77 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionHistoryPages() throws Exception {
+        Utils.setMockClock();
+        List<Transaction> received = new ArrayList<Transaction>();
+        for (int i = 0; i < 5; i++) {
+            received.add(sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, 10 + i)));
+            Utils.rollMockClock(60);
+        }
+        Transaction spend = wallet.createSend(OTHER_ADDRESS, valueOf(0, 5));
+        wallet.commitTx(spend);
+
+        // Page through everything, newest first.
+        TransactionHistoryQuery query = TransactionHistoryQuery.builder().build();
+        TransactionHistoryPage page = wallet.getTransactionHistory(query, null, 2);
+        assertEquals(ImmutableList.of(spend, received.get(4)), page.getTransactions());
+        page = wallet.getTransactionHistory(query, page.getNextCursor(), 2);
+        assertEquals(ImmutableList.of(received.get(3), received.get(2)), page.getTransactions());
+        // A transaction arriving in between doesn't disturb the next page.
+        Utils.rollMockClock(60);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, 20));
+        page = wallet.getTransactionHistory(query, page.getNextCursor(), 2);
+        assertEquals(ImmutableList.of(received.get(1), received.get(0)), page.getTransactions());
+        assertNull(page.getNextCursor());
+
+        // Filters.
+        query = TransactionHistoryQuery.builder().direction(TransactionHistoryQuery.Direction.SENT).build();
+        assertEquals(ImmutableList.of(spend), wallet.getTransactionHistory(query, null, 10).getTransactions());
+        // A full page with nothing after it is the last page.
+        page = wallet.getTransactionHistory(query, null, 1);
+        assertEquals(ImmutableList.of(spend), page.getTransactions());
+        assertNull(page.getNextCursor());
+        query = TransactionHistoryQuery.builder().confidenceTypes(ConfidenceType.PENDING).build();
+        assertEquals(ImmutableList.of(spend), wallet.getTransactionHistory(query, null, 10).getTransactions());
+        query = TransactionHistoryQuery.builder()
+                .timeRange(received.get(1).getUpdateTime(), received.get(3).getUpdateTime()).build();
+        assertEquals(ImmutableList.of(received.get(2), received.get(1)),
+                wallet.getTransactionHistory(query, null, 10).getTransactions());
+
+        // Unconfirmed transactions come first by height.
+        query = TransactionHistoryQuery.builder().order(TransactionHistoryQuery.Order.HEIGHT).build();
+        page = wallet.getTransactionHistory(query, null, 7);
+        assertEquals(spend, page.getTransactions().get(0));
+        assertEquals(received.get(0), page.getTransactions().get(6));
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void transactionHistoryAfterUpdateTimeChange() throws Exception {
+        Utils.setMockClock();
+        List<Transaction> received = new ArrayList<Transaction>();
+        for (int i = 0; i < 4; i++) {
+            received.add(sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, 10 + i)));
+            Utils.rollMockClock(60);
+        }
+        TransactionHistoryQuery query = TransactionHistoryQuery.builder().build();
+        assertEquals(ImmutableList.of(received.get(3), received.get(2)),
+                wallet.getTransactionHistory(query, null, 2).getTransactions());
+
+        // The oldest transaction becomes the newest without the wallet touching it. Its entry would be beyond the end
+        // of the first page, so the scan alone wouldn't find it.
+        received.get(0).setUpdateTime(Utils.now());
+        List<Transaction> history = new ArrayList<Transaction>();
+        TransactionHistoryPage page = wallet.getTransactionHistory(query, null, 1);
+        history.addAll(page.getTransactions());
+        while (page.getNextCursor() != null) {
+            page = wallet.getTransactionHistory(query, page.getNextCursor(), 1);
+            history.addAll(page.getTransactions());
+        }
+        assertEquals(ImmutableList.of(received.get(0), received.get(3), received.get(2), received.get(1)), history);
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();
@@ -1650,6 +1722,27 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isPendingTransactionRelevant(t1));
     }
 
+    @Test
+    public void removedWatchedScriptIsNotRelevant() throws Exception {
+        Address watchedAddress = new ECKey().toAddress(PARAMS);
+        wallet.addWatchedAddress(watchedAddress);
+        Transaction t1 = createFakeTx(PARAMS, CENT, watchedAddress);
+        assertTrue(wallet.isPendingTransactionRelevant(t1));
+        wallet.removeWatchedAddress(watchedAddress);
+        assertFalse(wallet.isPendingTransactionRelevant(t1));
+    }
+
+    @Test
+    public void lookaheadKeysAreRelevant() throws Exception {
+        // Keys in the lookahead zone that were never handed out must be found, both as pay-to-address and pay-to-pubkey.
+        DeterministicKey issued = wallet.freshReceiveKey();
+        DeterministicKey lookahead = HDKeyDerivation.deriveChildKey((DeterministicKey) issued.getParent(),
+                issued.getChildNumber().num() + 2);
+        assertTrue(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, CENT, lookahead.toAddress(PARAMS))));
+        assertTrue(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, CENT, lookahead)));
+        assertFalse(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, CENT, new ECKey())));
+    }
+
     @Test(expected = InsufficientMoneyException.class)
     public void watchingScriptsConfirmed() throws Exception {
         Address watchedAddress = new ECKey().toAddress(PARAMS);
@@ -1977,6 +2070,58 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void unlockKeysForSigning() throws Exception {
+        Utils.setMockClock();
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encrypt(PASSWORD1);
+        receiveATransaction(encryptedWallet, encryptedWallet.freshReceiveKey().toAddress(PARAMS));
+        assertFalse(encryptedWallet.areKeysUnlocked());
+        try {
+            encryptedWallet.unlockKeys(WRONG_PASSWORD, 1, TimeUnit.HOURS, false);
+            fail();
+        } catch (KeyCrypterException e) {
+            // Expected.
+        }
+        assertFalse(encryptedWallet.areKeysUnlocked());
+
+        // While unlocked, transactions are signed without an AES key.
+        encryptedWallet.unlockKeys(PASSWORD1, 1, TimeUnit.HOURS, true);
+        assertTrue(encryptedWallet.areKeysUnlocked());
+        for (int i = 0; i < 2; i++) {
+            SendRequest req = SendRequest.to(OTHER_ADDRESS, CENT);
+            encryptedWallet.completeTx(req);
+            TransactionInput input = req.tx.getInput(0);
+            input.verify(input.getConnectedOutput());
+        }
+
+        // Explicitly locked.
+        encryptedWallet.lockKeys();
+        assertFalse(encryptedWallet.areKeysUnlocked());
+        try {
+            encryptedWallet.completeTx(SendRequest.to(OTHER_ADDRESS, CENT));
+            fail();
+        } catch (ECKey.MissingPrivateKeyException e) {
+            // Expected.
+        }
+
+        // Expired.
+        encryptedWallet.unlockKeys(PASSWORD1, 1, TimeUnit.HOURS, false);
+        Utils.rollMockClock(60 * 60);
+        assertFalse(encryptedWallet.areKeysUnlocked());
+        try {
+            encryptedWallet.completeTx(SendRequest.to(OTHER_ADDRESS, CENT));
+            fail();
+        } catch (ECKey.MissingPrivateKeyException e) {
+            // Expected.
+        }
+
+        // Decrypting the wallet locks the keys too.
+        encryptedWallet.unlockKeys(PASSWORD1, 1, TimeUnit.HOURS, false);
+        encryptedWallet.decrypt(PASSWORD1);
+        assertFalse(encryptedWallet.areKeysUnlocked());
+    }
+
     @Test
     public void encryptionDecryptionBadPassword() throws Exception {
         Wallet encryptedWallet = new Wallet(PARAMS);
@@ -3032,6 +3177,67 @@ public class WalletTest extends TestWithWallet {
         return new WalletProtobufSerializer().readWallet(PARAMS, null, protos);
     }
 
+    @Test
+    public void evictsDeeplyBuriedSpentTransactions() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx2 = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(tx2);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, tx2);
+        Coin balance = wallet.getBalance();
+        MemoryTransactionStore store = new MemoryTransactionStore();
+        wallet.setSpentTransactionStore(store, 3);
+        assertEquals(0, wallet.getEvictedTransactionCount());
+        // A third block buries tx1 deep enough.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.getEvictedTransactionCount());
+        assertEquals(1, store.size());
+        assertEquals(1, wallet.getPoolSize(Pool.SPENT));
+        assertTrue(wallet.poolContainsTxHash(Pool.SPENT, tx1.getHash()));
+        assertNull(tx2.getInput(0).getConnectedOutput());
+        assertEquals(balance, wallet.getBalance());
+        wallet.isConsistentOrThrow();
+
+        // Balance and history calculations read it from the store, without bringing it back.
+        Coin totalReceived = wallet.getTotalReceived();
+        Coin totalSent = wallet.getTotalSent();
+        assertEquals(COIN, tx2.getValueSentFromMe(wallet));
+        assertEquals(1, wallet.getEvictedTransactionCount());
+        assertEquals(1, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(1, store.size());
+        assertEquals(0, wallet.getTransactionPool(Pool.SPENT).size());
+        // So do history queries that skip it.
+        TransactionHistoryQuery query = TransactionHistoryQuery.builder()
+                .direction(TransactionHistoryQuery.Direction.SENT).build();
+        assertEquals(ImmutableList.of(tx2), wallet.getTransactionHistory(query, null, 10).getTransactions());
+        query = TransactionHistoryQuery.builder().confidenceTypes(ConfidenceType.PENDING).build();
+        assertEquals(0, wallet.getTransactionHistory(query, null, 10).getTransactions().size());
+        assertEquals(1, wallet.getEvictedTransactionCount());
+
+        // Looking it up brings it back, linked up with the transaction spending it.
+        Transaction restored = wallet.getTransaction(tx1.getHash());
+        assertEquals(0, wallet.getEvictedTransactionCount());
+        assertEquals(totalReceived, wallet.getTotalReceived());
+        assertEquals(totalSent, wallet.getTotalSent());
+        assertEquals(tx1.getHash(), restored.getHash());
+        assertEquals(tx2.getInput(0), restored.getOutput(0).getSpentBy());
+        assertEquals(restored.getOutput(0), tx2.getInput(0).getConnectedOutput());
+        assertEquals(3, restored.getConfidence().getDepthInBlocks());
+        wallet.isConsistentOrThrow();
+
+        // Evicted transactions are still saved with the wallet.
+        assertEquals(1, wallet.evictSpentTransactions());
+        Wallet wallet2 = roundTrip(wallet);
+        assertEquals(2, wallet2.getTransactions(true).size());
+        assertEquals(balance, wallet2.getBalance());
+        assertNotNull(wallet2.getTransaction(tx1.getHash()).getOutput(0).getSpentBy());
+        assertEquals(1, wallet.getEvictedTransactionCount());
+
+        wallet.setSpentTransactionStore(null, 0);
+        assertEquals(0, wallet.getEvictedTransactionCount());
+        assertEquals(0, store.size());
+        assertEquals(2, wallet.getTransactions(true).size());
+    }
+
     @Test
     public void keyRotationHD() throws Exception {
         // Test that if we rotate an HD chain, a new one is created and all arrivals on the old keys are moved.
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times matching a block's worth of transactions against the Bloom filters of many SPV clients, one
+ * {@link BloomFilter} at a time and with a {@link BloomFilterMatcher}. Takes the number of filters (default 1000) and
+ * transactions (default 2000) as arguments.
+ */
+public class BloomFilterMatcherBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int numFilters = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int numTxns = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        Random random = new Random(1);
+
+        List<BloomFilter> filters = new ArrayList<BloomFilter>();
+        for (int i = 0; i < numFilters; i++) {
+            BloomFilter filter = new BloomFilter(500, 0.0005, random.nextInt());
+            for (int k = 0; k < 100; k++) {
+                byte[] element = new byte[20];
+                random.nextBytes(element);
+                filter.insert(element);
+            }
+            filters.add(filter);
+        }
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < numTxns; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] hash = new byte[32];
+            for (int k = 0; k < 2; k++) {
+                random.nextBytes(hash);
+                tx.addInput(new TransactionInput(params, tx, new ECKey().getPubKey(),
+                        new TransactionOutPoint(params, k, Sha256Hash.wrap(hash))));
+            }
+            for (int k = 0; k < 2; k++)
+                tx.addOutput(Coin.CENT, new ECKey().toAddress(params));
+            txns.add(tx);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            int matches = 0;
+            long start = System.nanoTime();
+            for (Transaction tx : txns) {
+                for (BloomFilter filter : filters) {
+                    if (filter.applyAndUpdate(tx))
+                        matches++;
+                }
+            }
+            long oneByOne = System.nanoTime() - start;
+
+            BloomFilterMatcher matcher = new BloomFilterMatcher();
+            for (BloomFilter filter : filters)
+                matcher.add(filter);
+            int matcherMatches = 0;
+            start = System.nanoTime();
+            for (Transaction tx : txns)
+                matcherMatches += matcher.applyAndUpdate(tx).cardinality();
+            long batch = System.nanoTime() - start;
+
+            System.out.printf("Round %d: one filter at a time %d msec (%d matches), matcher %d msec (%d matches)%n",
+                    round, oneByOne / 1000000, matches, batch / 1000000, matcherMatches);
+        }
+    }
+}
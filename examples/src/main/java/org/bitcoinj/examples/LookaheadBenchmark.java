@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.DeterministicKeyChain;
+
+import java.security.SecureRandom;
+
+/**
+ * Compares deriving HD keys one by one with deriving them as a batch, and times filling the lookahead zone of a fresh
+ * {@link DeterministicKeyChain}. Takes the number of keys (default 5000) as an argument, which is also used as the
+ * lookahead size. Run with libsecp256k1 on the library path to see the difference native key derivation makes.
+ */
+public class LookaheadBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        DeterministicKey parent = HDKeyDerivation.createMasterPrivateKey("lookahead benchmark".getBytes());
+        DeterministicKey watchingParent = parent.dropPrivateBytes().dropParent();
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, libsecp256k1 "
+                + (Secp256k1Context.isEnabled() ? "loaded" : "not loaded"));
+
+        for (int round = 0; round < 3; round++) {
+            for (DeterministicKey key : new DeterministicKey[] { parent, watchingParent }) {
+                long start = System.nanoTime();
+                for (int i = 0; i < numKeys; i++)
+                    HDKeyDerivation.deriveThisOrNextChildKey(key, i);
+                long oneByOne = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                HDKeyDerivation.deriveChildKeys(key, 0, numKeys);
+                long batch = System.nanoTime() - start;
+
+                System.out.printf("Round %d, %s parent: one by one %d msec, batch %d msec (%d keys)%n", round,
+                        key.hasPrivKey() ? "private" : "public", oneByOne / 1000000, batch / 1000000, numKeys);
+            }
+
+            DeterministicKeyChain chain = new DeterministicKeyChain(new SecureRandom());
+            chain.setLookaheadSize(numKeys);
+            long start = System.nanoTime();
+            chain.maybeLookAhead();
+            System.out.printf("Round %d: lookahead of %d took %d msec (%d keys)%n", round, numKeys,
+                    (System.nanoTime() - start) / 1000000, chain.getLeafKeys().size());
+        }
+    }
+}
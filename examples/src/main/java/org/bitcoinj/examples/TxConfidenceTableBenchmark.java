@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Times many threads announcing transactions to a {@link TxConfidenceTable}, the way peers do on receiving invs, with
+ * the table in one stripe and split into the default number of stripes. Takes the number of threads (default 8) and
+ * announcements per thread (default 200000) as arguments.
+ */
+public class TxConfidenceTableBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        final int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int numInvs = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        Random random = new Random(1);
+
+        // Peers mostly announce the same transactions, so draw from a pool a bit bigger than the table.
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < TxConfidenceTable.MAX_SIZE * 2; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            hashes.add(Sha256Hash.wrap(hash));
+        }
+        final List<PeerAddress> peers = new ArrayList<PeerAddress>();
+        for (int i = 0; i < numThreads; i++)
+            peers.add(new PeerAddress(params, InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i })));
+
+        for (int round = 0; round < 3; round++) {
+            long oneStripe = run(new TxConfidenceTable(TxConfidenceTable.MAX_SIZE, 1), hashes, peers, numInvs);
+            long striped = run(new TxConfidenceTable(), hashes, peers, numInvs);
+            System.out.printf("Round %d: %d threads, one stripe %d msec, striped %d msec%n",
+                    round, numThreads, oneStripe / 1000000, striped / 1000000);
+        }
+    }
+
+    private static long run(final TxConfidenceTable table, final List<Sha256Hash> hashes, List<PeerAddress> peers,
+                            final int numInvs) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < peers.size(); i++) {
+            final PeerAddress peer = peers.get(i);
+            final int offset = i * 7;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int k = 0; k < numInvs; k++) {
+                        Sha256Hash hash = hashes.get((offset + k) % hashes.size());
+                        table.seen(hash, peer);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        return System.nanoTime() - begin;
+    }
+}
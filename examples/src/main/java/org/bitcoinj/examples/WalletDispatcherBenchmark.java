@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 the bitcoinj-cash developers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletDispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares routing transactions through a {@link WalletDispatcher} with offering each of them to every wallet in turn,
+ * the way a {@link org.bitcoinj.core.PeerGroup} does for wallets added individually. Takes the number of wallets
+ * (default 10000) and the number of transactions (default 1000) as arguments. Creating the wallets takes a while, as
+ * each derives its lookahead keys.
+ */
+public class WalletDispatcherBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int numWallets = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numTransactions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        NetworkParameters params = UnitTestParams.get();
+        Random random = new Random(1);
+
+        System.out.println("Creating " + numWallets + " wallets...");
+        List<Wallet> wallets = new ArrayList<Wallet>(numWallets);
+        WalletDispatcher dispatcher = new WalletDispatcher();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numWallets; i++) {
+            Wallet wallet = new Wallet(params);
+            wallets.add(wallet);
+            dispatcher.addWallet(wallet);
+        }
+        System.out.println("Created and indexed in " + (System.currentTimeMillis() - start) + " msec");
+
+        // One in ten transactions pays one of the wallets, the rest is unrelated traffic.
+        List<Transaction> transactions = new ArrayList<Transaction>(numTransactions);
+        for (int i = 0; i < numTransactions; i++) {
+            Address to = i % 10 == 0
+                    ? wallets.get(random.nextInt(numWallets)).currentReceiveAddress()
+                    : new ECKey().toAddress(params);
+            Transaction tx = new Transaction(params);
+            byte[] prevHash = new byte[32];
+            random.nextBytes(prevHash);
+            tx.addInput(new TransactionInput(params, tx, new byte[0],
+                    new TransactionOutPoint(params, 0, Sha256Hash.wrap(prevHash))));
+            tx.addOutput(Coin.COIN, to);
+            tx.addOutput(Coin.CENT, new ECKey().toAddress(params));
+            transactions.add(tx);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            int matches = 0;
+            start = System.nanoTime();
+            for (Transaction tx : transactions)
+                for (Wallet wallet : wallets)
+                    if (wallet.isPendingTransactionRelevant(tx))
+                        matches++;
+            long perWallet = System.nanoTime() - start;
+
+            int candidates = 0;
+            start = System.nanoTime();
+            for (Transaction tx : transactions)
+                for (Wallet wallet : dispatcher.getCandidateWallets(tx))
+                    if (wallet.isPendingTransactionRelevant(tx))
+                        candidates++;
+            long dispatched = System.nanoTime() - start;
+
+            System.out.printf("Round %d: every wallet %.1f usec/tx (%d matches), dispatcher %.1f usec/tx (%d matches)%n",
+                    round, perWallet / 1000.0 / numTransactions, matches,
+                    dispatched / 1000.0 / numTransactions, candidates);
+        }
+    }
+}